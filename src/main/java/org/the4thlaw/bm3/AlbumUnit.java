@@ -0,0 +1,197 @@
+package org.the4thlaw.bm3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import org.the4thlaw.bm3.FileMetadata.TargetState;
+
+/**
+ * The files of one directory of the library, usually the tracks of an album, which the copy phase processes together.
+ * <p>
+ * The lookups which are the same for all the tracks of an album are done once per unit rather than once per track:
+ * listing the source directory and its covers, listing each target directory, resolving the canonical paths of the
+ * directories and creating the target directories. Units are also what the copy phase schedules on its workers.
+ */
+class AlbumUnit {
+	private final File directory;
+	private final List<File> files = new ArrayList<>();
+	private final Set<Target> createdDirectories = ConcurrentHashMap.newKeySet();
+
+	/**
+	 * The attributes of some files of a directory, read while listing it.
+	 */
+	private static final class Listing {
+		private final Map<String, BasicFileAttributes> attributes = new HashMap<>();
+		private final Set<String> lowerCaseNames = new HashSet<>();
+		private final Path canonicalDirectory;
+
+		private Listing(Path directory, Set<String> names) throws IOException {
+			canonicalDirectory = directory.toRealPath();
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+				for (Path entry : stream) {
+					String name = entry.getFileName().toString();
+					lowerCaseNames.add(name.toLowerCase(Locale.ROOT));
+					if (names.contains(name)) {
+						// Free on Windows, where the listing already holds the attributes
+						attributes.put(name, Files.readAttributes(entry, BasicFileAttributes.class));
+					}
+				}
+			}
+		}
+
+		private Listing() {
+			canonicalDirectory = null;
+		}
+
+		/**
+		 * Checks whether a file which isn't in the listing may still exist under another case, on a case-insensitive
+		 * file system such as FAT.
+		 */
+		private boolean mayExistWithOtherCase(String name) {
+			return lowerCaseNames.contains(name.toLowerCase(Locale.ROOT));
+		}
+	}
+
+	private AlbumUnit(File directory) {
+		this.directory = directory;
+	}
+
+	/**
+	 * Groups files by directory.
+	 *
+	 * @param files The files.
+	 * @param keepOrder <code>true</code> to keep the files in order, in which case a directory may be split in several
+	 *            units, <code>false</code> to have exactly one unit per directory, in the order in which directories
+	 *            first appear.
+	 * @return The units.
+	 */
+	static List<AlbumUnit> group(Collection<File> files, boolean keepOrder) {
+		if (keepOrder) {
+			List<AlbumUnit> units = new ArrayList<>();
+			AlbumUnit current = null;
+			for (File file : files) {
+				if (current == null || !current.directory.equals(file.getParentFile())) {
+					current = new AlbumUnit(file.getParentFile());
+					units.add(current);
+				}
+				current.files.add(file);
+			}
+			return units;
+		}
+		Map<File, AlbumUnit> units = new LinkedHashMap<>();
+		for (File file : files) {
+			units.computeIfAbsent(file.getParentFile(), AlbumUnit::new).files.add(file);
+		}
+		return new ArrayList<>(units.values());
+	}
+
+	File getDirectory() {
+		return directory;
+	}
+
+	List<File> getFiles() {
+		return Collections.unmodifiableList(files);
+	}
+
+	/**
+	 * Resolves the metadata of the files of the unit, as {@link FileMetadata#resolve(File, String, List, Function)}
+	 * would for each file.
+	 *
+	 * @param sourceDirectory The library.
+	 * @param targets The targets.
+	 * @param coverLookup Finds the cover of a file of the unit.
+	 * @return The metadata of each file, in order.
+	 * @throws IOException If a lookup fails.
+	 */
+	List<FileMetadata> resolve(Path sourceDirectory, List<Target> targets, Function<File, Cover> coverLookup)
+			throws IOException {
+		Set<String> names = new HashSet<>();
+		for (File file : files) {
+			names.add(file.getName());
+		}
+		String relativeDirectory = sourceDirectory.relativize(directory.toPath()).toString();
+		Listing sourceListing = new Listing(directory.toPath(), names);
+		Map<Target, Listing> targetListings = new HashMap<>();
+		for (Target target : targets) {
+			Path targetDirectory = target.getDirectory().resolve(relativeDirectory);
+			targetListings.put(target,
+					Files.isDirectory(targetDirectory) ? new Listing(targetDirectory, names) : new Listing());
+		}
+
+		List<FileMetadata> resolved = new ArrayList<>(files.size());
+		Map<Path, Long> coverTimes = new HashMap<>();
+		for (File file : files) {
+			String name = file.getName();
+			String relativePath = sourceDirectory.relativize(file.toPath()).toString();
+			BasicFileAttributes attributes = sourceListing.attributes.get(name);
+			if (attributes == null) {
+				// Not listed, let the lookups of the file itself tell why
+				resolved.add(FileMetadata.resolve(file, relativePath, targets, coverLookup));
+				continue;
+			}
+
+			long lookupStart = System.nanoTime();
+			Cover cover = coverLookup.apply(file);
+			long coverLookupNanos = System.nanoTime() - lookupStart;
+			long coverLastModified = cover == null ? 0
+					: coverTimes.computeIfAbsent(cover.getPath(), f -> cover.lastModified());
+			FileMetadata metadata = new FileMetadata(file, relativePath, attributes.size(),
+					attributes.lastModifiedTime().toMillis(), cover, coverLastModified, coverLookupNanos,
+					sourceListing.canonicalDirectory.resolve(name));
+
+			for (Target target : targets) {
+				Path targetFile = target.getDirectory().resolve(relativePath);
+				Listing targetListing = targetListings.get(target);
+				BasicFileAttributes targetAttributes = targetListing.attributes.get(name);
+				TargetState targetState;
+				if (targetAttributes != null) {
+					targetState = new TargetState(targetFile, targetAttributes.size(),
+							targetAttributes.lastModifiedTime().toMillis(),
+							targetListing.canonicalDirectory.resolve(name));
+				} else if (targetListing.mayExistWithOtherCase(name)) {
+					targetState = new TargetState(targetFile);
+				} else {
+					targetState = new TargetState(targetFile, 0, 0, null);
+				}
+				metadata.setTargetState(target, targetState);
+			}
+			resolved.add(metadata);
+		}
+		return resolved;
+	}
+
+	/**
+	 * Creates the directory of the unit on a target, once.
+	 *
+	 * @param target The target.
+	 * @param relativePath The path of a file of the unit, relative to the target.
+	 * @throws IOException If the directory can't be created.
+	 */
+	void createTargetDirectory(Target target, String relativePath) throws IOException {
+		if (!createdDirectories.contains(target)) {
+			Files.createDirectories(target.getDirectory().resolve(relativePath).getParent());
+			createdDirectories.add(target);
+		}
+	}
+
+	@Override
+	public String toString() {
+		return directory + " (" + files.size() + " files)";
+	}
+}
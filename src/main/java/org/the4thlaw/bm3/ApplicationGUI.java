@@ -5,6 +5,8 @@ import java.awt.EventQueue;
 import java.awt.event.ActionEvent;
 import java.io.File;
 import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.CancellationException;
 
 import javax.swing.AbstractAction;
 import javax.swing.Action;
@@ -15,7 +17,10 @@ import javax.swing.JFrame;
 import javax.swing.JLabel;
 import javax.swing.JOptionPane;
 import javax.swing.JProgressBar;
+import javax.swing.JScrollPane;
+import javax.swing.JTextArea;
 import javax.swing.SwingUtilities;
+import javax.swing.Timer;
 import javax.swing.UIManager;
 import javax.swing.UnsupportedLookAndFeelException;
 
@@ -27,8 +32,10 @@ import com.jgoodies.forms.layout.ColumnSpec;
 import com.jgoodies.forms.layout.FormLayout;
 import com.jgoodies.forms.layout.RowSpec;
 
-public class ApplicationGUI implements ProgressReporter {
+public class ApplicationGUI {
 	private static final Logger LOGGER = LoggerFactory.getLogger(ApplicationGUI.class);
+	/** The progress is rendered at most 20 times per second, however fast it is reported. */
+	private static final int REFRESH_INTERVAL_MILLIS = 50;
 
 	private JFrame frame;
 	private File inputDirectory;
@@ -36,10 +43,15 @@ public class ApplicationGUI implements ProgressReporter {
 	private final Action browseSourceAction = new BrowseSourceAction();
 	private final Action browseDestinationAction = new BrowseDestinationAction();
 	private final Action runAction = new RunAction();
+	private final Action cancelAction = new CancelAction();
 	private JProgressBar mainProgressBar;
 	private JProgressBar subProgressBar;
 	private JLabel statusLabel;
-	private int currentTotal;
+	private final ProgressModel progressModel = new ProgressModel();
+	private final Timer refreshTimer = new Timer(REFRESH_INTERVAL_MILLIS, e -> refreshProgress());
+	private volatile FileProcessor runningProcessor;
+	/** Whether the errors dialog is open, only accessed on the event dispatch thread. */
+	private boolean showingErrors;
 
 	private JCheckBox syncCheckbox;
 
@@ -126,6 +138,11 @@ public class ApplicationGUI implements ProgressReporter {
 		btnRun.setAction(runAction);
 		frame.getContentPane().add(btnRun, "6, 8");
 
+		JButton btnCancel = new JButton();
+		btnCancel.setAction(cancelAction);
+		cancelAction.setEnabled(false);
+		frame.getContentPane().add(btnCancel, "8, 8");
+
 		statusLabel = new JLabel("No action running.");
 		statusLabel.setEnabled(false);
 		frame.getContentPane().add(statusLabel, "4, 10");
@@ -193,30 +210,92 @@ public class ApplicationGUI implements ProgressReporter {
 		@Override
 		public void actionPerformed(ActionEvent e) {
 			lockUnlockUI(true);
+			final FileProcessor processor = new FileProcessor(inputDirectory.toPath(), outputDirectory.toPath(),
+					syncCheckbox.isSelected());
+			runningProcessor = processor;
+			progressModel.clearFileEvents();
+			processor.setFileEventListener(progressModel);
+			refreshTimer.start();
 			new Thread(new Runnable() {
 				@Override
 				public void run() {
 					try {
-						new FileProcessor(inputDirectory, outputDirectory, syncCheckbox.isSelected())
-								.process(ApplicationGUI.this);
+						processor.process(progressModel);
+					} catch (CancellationException e) {
+						LOGGER.info("Processing cancelled by the user");
+					} catch (final IOException e) {
+						LOGGER.error("Failed to process playlists", e);
 						SwingUtilities.invokeLater(new Runnable() {
 							@Override
 							public void run() {
-								lockUnlockUI(false);
+								JOptionPane.showMessageDialog(frame, "Failed to process playlists:\n" + e.getMessage(),
+										"Warning", JOptionPane.WARNING_MESSAGE);
 							}
 						});
-					} catch (final IOException e) {
-						LOGGER.error("Failed to process playlists", e);
+					} finally {
+						runningProcessor = null;
 						SwingUtilities.invokeLater(new Runnable() {
 							@Override
 							public void run() {
-								JOptionPane.showMessageDialog(frame, "Failed to process playlists:\n" + e.getMessage(),
-										"Warning", JOptionPane.WARNING_MESSAGE);
+								refreshTimer.stop();
+								// Render the final state
+								refreshProgress();
+								lockUnlockUI(false);
 							}
 						});
 					}
 				}
-			}).start();
+			}, "bm3-processor").start();
+		}
+	}
+
+	private class CancelAction extends AbstractAction {
+		private static final long serialVersionUID = 2954062519346297331L;
+
+		public CancelAction() {
+			putValue(NAME, "Cancel");
+			putValue(SHORT_DESCRIPTION, "Stops after the file being copied");
+		}
+
+		@Override
+		public void actionPerformed(ActionEvent e) {
+			FileProcessor processor = runningProcessor;
+			if (processor != null) {
+				processor.cancel();
+				setEnabled(false);
+				statusLabel.setText("Cancelling...");
+			}
+		}
+	}
+
+	/**
+	 * Shows errors in a single dialog. The refresh timer is paused meanwhile, since the dialog is modal and each tick
+	 * would open another one: the errors reported in the meantime are shown once it is closed.
+	 */
+	private void showErrors(List<String> errors) {
+		Object message;
+		String title;
+		if (errors.size() == 1) {
+			message = errors.get(0);
+			title = "Warning";
+		} else {
+			JTextArea text = new JTextArea(String.join("\n\n", errors), 15, 60);
+			text.setEditable(false);
+			text.setLineWrap(true);
+			text.setWrapStyleWord(true);
+			message = new JScrollPane(text);
+			title = errors.size() + " warnings";
+		}
+		refreshTimer.stop();
+		showingErrors = true;
+		try {
+			JOptionPane.showMessageDialog(frame, message, title, JOptionPane.WARNING_MESSAGE);
+		} finally {
+			showingErrors = false;
+			// Unless the run ended while the dialog was open
+			if (runningProcessor != null) {
+				refreshTimer.start();
+			}
 		}
 	}
 
@@ -224,6 +303,7 @@ public class ApplicationGUI implements ProgressReporter {
 		statusLabel.setEnabled(locked);
 		mainProgressBar.setEnabled(locked);
 		runAction.setEnabled(!locked);
+		cancelAction.setEnabled(locked);
 		browseSourceAction.setEnabled(!locked);
 		browseDestinationAction.setEnabled(!locked);
 		syncCheckbox.setEnabled(!locked);
@@ -234,93 +314,48 @@ public class ApplicationGUI implements ProgressReporter {
 		}
 	}
 
-	@Override
-	public void setStatus(final String status) {
-		LOGGER.info(status);
-		SwingUtilities.invokeLater(new Runnable() {
-			@Override
-			public void run() {
-				statusLabel.setText(status);
-			}
-		});
-	}
-
-	@Override
-	public void setProgressUnknown(final boolean unknown) {
-		SwingUtilities.invokeLater(new Runnable() {
-			@Override
-			public void run() {
-				mainProgressBar.setIndeterminate(unknown);
-				mainProgressBar.setStringPainted(!unknown);
-			}
-		});
-	}
-
-	@Override
-	public void setTotal(final int total) {
-		currentTotal = total;
-		SwingUtilities.invokeLater(new Runnable() {
-			@Override
-			public void run() {
-				mainProgressBar.setMaximum(total);
-			}
-		});
-	}
-
-	@Override
-	public void setStep(final int step) {
-		SwingUtilities.invokeLater(new Runnable() {
-			@Override
-			public void run() {
-				mainProgressBar.setString(step + " / " + currentTotal);
-				mainProgressBar.setValue(step);
-			}
-		});
-	}
-
-	@Override
-	public void reportError(final String message) {
-		SwingUtilities.invokeLater(new Runnable() {
-			@Override
-			public void run() {
-				JOptionPane.showMessageDialog(frame, message, "Warning", JOptionPane.WARNING_MESSAGE);
-			}
-		});
-	}
-
-	@Override
-	public void setSubTotal(final int total) {
-		SwingUtilities.invokeLater(new Runnable() {
-			@Override
-			public void run() {
-				subProgressBar.setEnabled(true);
-				subProgressBar.setStringPainted(true);
-				subProgressBar.setMaximum(total);
+	/**
+	 * Renders the latest progress, called by the refresh timer on the event dispatch thread.
+	 */
+	private void refreshProgress() {
+		if (!showingErrors) {
+			List<String> errors = progressModel.drainErrors();
+			if (!errors.isEmpty()) {
+				showErrors(errors);
 			}
-		});
-	}
+		}
+		ProgressModel.Snapshot snapshot = progressModel.publish();
+		if (snapshot == null) {
+			return;
+		}
 
-	@Override
-	public void setSubStep(final int step) {
-		SwingUtilities.invokeLater(new Runnable() {
-			@Override
-			public void run() {
-				subProgressBar.setString(step + " / " + subProgressBar.getMaximum());
-				subProgressBar.setValue(step);
-			}
-		});
-	}
+		String fileCounts = snapshot.getFileCounts();
+		statusLabel.setText(fileCounts.isEmpty() ? snapshot.getStatus()
+				: snapshot.getStatus() + " (" + fileCounts + ")");
+		mainProgressBar.setIndeterminate(snapshot.isProgressUnknown());
+		mainProgressBar.setStringPainted(!snapshot.isProgressUnknown());
+		int total = snapshot.getTotal();
+		mainProgressBar.setMaximum(total);
+		if (snapshot.getByteTotal() > 0) {
+			// Weight the bar by bytes, on the scale of the file count
+			mainProgressBar.setString(snapshot.getStep() + " / " + total + " - " + progressModel.formatThroughput());
+			mainProgressBar.setValue((int) (snapshot.getBytesDone() * total / snapshot.getByteTotal()));
+		} else {
+			mainProgressBar.setString(snapshot.getStep() + " / " + total);
+			mainProgressBar.setValue(snapshot.getStep());
+		}
 
-	@Override
-	public void endSubTracking() {
-		SwingUtilities.invokeLater(new Runnable() {
-			@Override
-			public void run() {
-				subProgressBar.setMaximum(1);
-				subProgressBar.setValue(0);
-				subProgressBar.setEnabled(false);
-				subProgressBar.setStringPainted(false);
-			}
-		});
+		if (snapshot.getSubTotal() > 0) {
+			subProgressBar.setEnabled(true);
+			subProgressBar.setStringPainted(true);
+			subProgressBar.setMaximum(snapshot.getSubTotal());
+			subProgressBar.setString(snapshot.getSubStep() + " / " + snapshot.getSubTotal());
+			subProgressBar.setValue(snapshot.getSubStep());
+		} else {
+			subProgressBar.setMaximum(1);
+			subProgressBar.setValue(0);
+			subProgressBar.setEnabled(false);
+			subProgressBar.setStringPainted(false);
+		}
 	}
 }
@@ -1,7 +1,14 @@
 package org.the4thlaw.bm3;
 
+import java.io.Closeable;
 import java.io.File;
 import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Map;
 
 import org.apache.commons.cli.CommandLine;
 import org.apache.commons.cli.CommandLineParser;
@@ -20,16 +27,104 @@ public class CLI  {
         root.setLevel(level);
     }
 
+    private static long parseMegabytes(String megabytes) {
+        if (megabytes == null) {
+            return 0;
+        }
+        return (long) (Double.parseDouble(megabytes) * 1024 * 1024);
+    }
+
+    private static void audit(CommandLine cmd) throws IOException {
+        List<String> outputs = new ArrayList<>();
+        if (cmd.hasOption("o")) {
+            outputs.addAll(Arrays.asList(cmd.getOptionValues("o")));
+        }
+        if (cmd.hasOption("B")) {
+            outputs.addAll(Arrays.asList(cmd.getOptionValues("B")));
+        }
+        boolean passed = true;
+        for (String output : outputs) {
+            Verifier.Audit audit = Verifier.audit(Paths.get(output), Verifier.DEFAULT_PARALLELISM,
+                    new CLIProgressReporter());
+            for (Map.Entry<String, String> problem : audit.getProblems().entrySet()) {
+                System.out.println(output + ": " + problem.getKey() + " is " + problem.getValue());
+            }
+            if (audit.getVerifiedFiles() == 0 && audit.getUnrecordedFiles() > 0) {
+                System.out.println(output + ": no checksums were recorded, sync it with --checksums first");
+            } else if (audit.getUnrecordedFiles() > 0) {
+                System.out.println(output + ": " + audit.getUnrecordedFiles()
+                        + " files have no recorded checksum and were not verified");
+            }
+            passed &= audit.isPassed();
+        }
+        if (!passed) {
+            System.exit(2);
+        }
+    }
+
+    private static void printHelpAndExit(Options options) {
+        HelpFormatter formatter = new HelpFormatter();
+        formatter.printHelp(CLI.class.getName(), options);
+        System.exit(1);
+    }
+
     public static void main(String[] args) throws IOException {
         Options options = new Options();
 
-        options.addRequiredOption("i", "input", true, "Input directory")
-                .addRequiredOption("o", "output", true, "Output directory")
+        options.addOption("i", "input", true, "Input directory, required unless running as a server")
+                .addOption("o", "output", true, "Output directory. Can be repeated to copy to several targets in a single pass")
+                .addOption("B", "output-backslashes", true, "Additional output directory which always uses backslashes"
+                + " in its playlist files, regardless of --use-backslashes. Can be repeated")
                 .addOption("p", "playlist-dir", true, "Disable automatic playlist detection and use a specific directory")
                 .addOption("b", "use-backslashes", false, "Use backslashes for separators in the playlist files. Known to work on BMW iDrive 5.x."
                 + " Default is to use slashes, which is known to work on BMW iDrive 8.x and VLC for Android.")
                 .addOption("s", "sync", false, "Synchronize changes rather than copying everything")
                 .addOption("d", "dry-run", false, "Don't change the target directory or files, only perform a trial run")
+                .addOption(null, "slow-files", true, "Number of slowest files to report at the end of the run (default: "
+                + FileProcessor.DEFAULT_SLOW_FILE_LOG_SIZE + ", 0 to disable)")
+                .addOption(null, "staging-dir", true, "Local directory where files are prepared with their covers once,"
+                + " so that syncing several devices only copies bytes")
+                .addOption(null, "parallel-metadata", true, "Number of file metadata lookups issued concurrently,"
+                + " which speeds up network sources and targets (default: sequential lookups)")
+                .addOption(null, "no-space-check", false, "Don't check that the target has enough free space before copying")
+                .addOption(null, "max-read-mbps", true, "Maximum rate at which the library is read, in MB/s")
+                .addOption(null, "max-write-mbps", true, "Maximum rate at which the targets are written, in MB/s")
+                .addOption(null, "max-iops", true, "Maximum number of read and write operations per second")
+                .addOption(null, "adaptive-throttle", false, "Slow down when reading the library gets slower, which means"
+                + " that someone else is using it")
+                .addOption(null, "auto-tune", false, "Copy several files at once, tuning the number of concurrent writes"
+                + " and the buffer size to the speed of each target")
+                .addOption(null, "cover-cache-mb", true, "Memory used to keep rendered covers between files, in MB (default: "
+                + Cover.DEFAULT_CACHE_SIZE / 1024 / 1024 + ")")
+                .addOption(null, "cover-kb", true, "Maximum size of each cover, in KB. The JPEG quality is lowered as needed"
+                + " to fit, which saves space when a cover is embedded in every track of an album (default: no limit)")
+                .addOption(null, "progressive-covers", false, "Encode covers as progressive JPEG, which is usually smaller"
+                + " but not supported by every head unit")
+                .addOption(null, "playlists-first", false, "Copy whole playlists one after another, the smallest first, and"
+                + " write each playlist as soon as its files are copied, so that a long copy is usable early")
+                .addOption(null, "priority-playlists", true, "Comma-separated names of the playlists to copy before any"
+                + " other, in order. Implies --playlists-first")
+                .addOption(null, "checksums", false, "Record the checksum of each file written to the targets, computed"
+                + " while writing it, so that the targets can be verified later on with --audit")
+                .addOption(null, "verify", false, "Read back the files written to the targets and compare them with their"
+                + " checksum, reporting mismatches. Implies --checksums")
+                .addOption(null, "repair", false, "With --verify, copy the files which fail verification again")
+                .addOption(null, "audit", false, "Only verify the files of the targets against the checksums recorded"
+                + " by previous syncs, without the library. Fails if problems are found, or if no checksums were"
+                + " recorded")
+                .addOption(null, "prune-dirs", true, "Comma-separated globs of directory names not searched for"
+                + " playlists, such as .* for hidden directories")
+                .addOption(null, "prune-depth", true, "Maximum depth of the directories searched for playlists")
+                .addOption(null, "prune-albums", false, "Don't search the sub-directories of directories which contain"
+                + " audio files for playlists, which makes searching a whole library much faster")
+                .addOption(null, "dedup", false, "Copy identical files once, such as the tracks of compilations which"
+                + " are also in their album, and make all playlists refer to that copy")
+                .addOption(null, "index", true, "File in which an index of the library is kept between runs, so that"
+                + " unchanged directories and playlists are not read again")
+                .addOption(null, "server", true, "Run as a server accepting sync jobs through a local HTTP API on the given"
+                + " port, keeping caches warm between jobs")
+                .addOption(null, "jfr", true, "Record a Java Flight Recorder profile of the run, including the phases,"
+                + " files and covers processed, to the given file")
                 .addOption("q", "quiet", false, "Quiet mode, outputs only status and warning messages")
                 .addOption("v", "verbose", false, "Verbose mode, outputs debug information");
 
@@ -38,28 +133,130 @@ public class CLI  {
         try {
             cmd = parser.parse(options, args);
         } catch (ParseException e) {
-            HelpFormatter formatter = new HelpFormatter();
-            formatter.printHelp(CLI.class.getName(), options);
-            System.exit(1);
+            printHelpAndExit(options);
+        }
+        if (cmd.hasOption("v")) {
+            setLoggingLevel(Level.DEBUG);
+        } else if (cmd.hasOption("q")) {
+            setLoggingLevel(Level.WARN);
+        }
+        // Written when the run ends, or when the JVM exits for a server
+        Closeable recording = null;
+        if (cmd.hasOption("jfr")) {
+            recording = FlightRecording.startRecording(new File(cmd.getOptionValue("jfr")));
+        }
+        int metadataParallelism = 0;
+        if (cmd.hasOption("parallel-metadata")) {
+            metadataParallelism = Integer.parseInt(cmd.getOptionValue("parallel-metadata"));
+        }
+
+        IoThrottle throttle = new IoThrottle(parseMegabytes(cmd.getOptionValue("max-read-mbps")),
+                parseMegabytes(cmd.getOptionValue("max-write-mbps")),
+                Integer.parseInt(cmd.getOptionValue("max-iops", "0")), cmd.hasOption("adaptive-throttle"));
+        if (cmd.hasOption("cover-cache-mb")) {
+            Cover.setCacheSize(parseMegabytes(cmd.getOptionValue("cover-cache-mb")));
+        }
+        if (cmd.hasOption("cover-kb")) {
+            Cover.setByteBudget(Integer.parseInt(cmd.getOptionValue("cover-kb")) * 1024);
+        }
+        Cover.setProgressive(cmd.hasOption("progressive-covers"));
+
+        if (cmd.hasOption("server")) {
+            JobServer server = new JobServer(Integer.parseInt(cmd.getOptionValue("server")), metadataParallelism,
+                    throttle);
+            if (cmd.hasOption("index")) {
+                server.setIndexFile(Paths.get(cmd.getOptionValue("index")));
+            }
+            Runtime.getRuntime().addShutdownHook(new Thread(server::stop));
+            server.start();
+            System.out.println("Send requests with the header " + JobServer.TOKEN_HEADER + ": " + server.getToken());
+            return;
+        }
+        if (!cmd.hasOption("o") && !cmd.hasOption("B")) {
+            printHelpAndExit(options);
+        }
+        if (cmd.hasOption("audit")) {
+            audit(cmd);
+            return;
+        }
+        if (!cmd.hasOption("i")) {
+            printHelpAndExit(options);
         }
 
-        File inputDirectory = new File(cmd.getOptionValue("i"));
-        File outputDirectory = new File(cmd.getOptionValue("o"));
-        File playlistDirectory = null;
+        Path inputDirectory = Paths.get(cmd.getOptionValue("i"));
+        Path playlistDirectory = null;
         if (cmd.hasOption("p")) {
-            playlistDirectory = new File(cmd.getOptionValue("p"));
+            playlistDirectory = Paths.get(cmd.getOptionValue("p"));
         }
         boolean isUseSlashes = !cmd.hasOption("b");
+        List<Target> targets = new ArrayList<>();
+        if (cmd.hasOption("o")) {
+            for (String output : cmd.getOptionValues("o")) {
+                targets.add(new Target(Paths.get(output), isUseSlashes));
+            }
+        }
+        if (cmd.hasOption("B")) {
+            for (String output : cmd.getOptionValues("B")) {
+                targets.add(new Target(Paths.get(output), false));
+            }
+        }
         boolean isSync = cmd.hasOption("s");
         boolean isDryRun = cmd.hasOption("d");
 
-        if (cmd.hasOption("v")) {
-            setLoggingLevel(Level.DEBUG);
-        } else if (cmd.hasOption("q")) {
-            setLoggingLevel(Level.WARN);
+        FileProcessor processor = new FileProcessor(inputDirectory, targets, playlistDirectory, isSync, isDryRun);
+        if (cmd.hasOption("slow-files")) {
+            processor.setSlowFileLogSize(Integer.parseInt(cmd.getOptionValue("slow-files")));
+        }
+        if (cmd.hasOption("staging-dir")) {
+            processor.setStagingDirectory(Paths.get(cmd.getOptionValue("staging-dir")));
+        }
+        processor.setMetadataParallelism(metadataParallelism);
+        processor.setThrottle(throttle);
+        processor.setAutoTune(cmd.hasOption("auto-tune"));
+        processor.setSpaceCheck(!cmd.hasOption("no-space-check"));
+        PlaylistFinder playlistFinder = new PlaylistFinder(PlaylistFinder.DEFAULT_PARALLELISM);
+        if (cmd.hasOption("prune-dirs")) {
+            for (String glob : cmd.getOptionValue("prune-dirs").split(",")) {
+                if (!glob.trim().isEmpty()) {
+                    playlistFinder.addPrunedName(glob.trim());
+                }
+            }
+        }
+        if (cmd.hasOption("prune-depth")) {
+            playlistFinder.setMaxDepth(Integer.parseInt(cmd.getOptionValue("prune-depth")));
+        }
+        playlistFinder.setAlbumPruning(cmd.hasOption("prune-albums"));
+        processor.setPlaylistFinder(playlistFinder);
+        List<String> priorityPlaylists = new ArrayList<>();
+        if (cmd.hasOption("priority-playlists")) {
+            for (String name : cmd.getOptionValue("priority-playlists").split(",")) {
+                if (!name.trim().isEmpty()) {
+                    priorityPlaylists.add(name.trim());
+                }
+            }
+        }
+        processor.setPlaylistOrder(cmd.hasOption("playlists-first") || !priorityPlaylists.isEmpty(), priorityPlaylists);
+        processor.setChecksums(cmd.hasOption("checksums"));
+        processor.setVerify(cmd.hasOption("verify"), cmd.hasOption("repair"));
+        processor.setDeduplicate(cmd.hasOption("dedup"));
+        LibraryCache libraryCache = null;
+        Path indexFile = null;
+        if (cmd.hasOption("index")) {
+            indexFile = Paths.get(cmd.getOptionValue("index"));
+            libraryCache = LibraryCache.load(indexFile);
+            processor.setLibraryCache(libraryCache);
+        }
+        try {
+            CLIProgressReporter reporter = new CLIProgressReporter();
+            processor.setFileEventListener(reporter);
+            processor.process(reporter);
+        } finally {
+            if (libraryCache != null) {
+                libraryCache.save(indexFile);
+            }
+            if (recording != null) {
+                recording.close();
+            }
         }
-
-        new FileProcessor(inputDirectory, outputDirectory, playlistDirectory, isUseSlashes, isSync, isDryRun)
-                .process(new CLIProgressReporter());
     }
 }
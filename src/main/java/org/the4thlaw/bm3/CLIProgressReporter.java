@@ -1,31 +1,54 @@
 package org.the4thlaw.bm3;
 
+import java.util.List;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
 import io.github.bhowell2.debouncer.Debouncer;
 
-public class CLIProgressReporter implements ProgressReporter {
+/**
+ * Prints the progress of a sync on a single console line. As a file event listener, it counts the files by outcome
+ * for the summary printed at the end: the progress and errors themselves come from the progress callbacks.
+ */
+public class CLIProgressReporter implements ProgressReporter, FileEventListener {
     private static final Logger LOGGER = LoggerFactory.getLogger(CLIProgressReporter.class);
 
     private final Debouncer<String> debouncer;
-    private String status = "";
-    private boolean unknown;
-    private int step;
-    private int total;
-    private boolean trackSub;
-    private int subStep;
-    private int subTotal;
+    private final AtomicBoolean printPending = new AtomicBoolean();
+    private final FileEventCounter fileCounts = new FileEventCounter();
+    private final ThroughputEstimator throughput = new ThroughputEstimator();
+    private volatile String status = "";
+    private volatile boolean unknown;
+    private volatile int step;
+    private volatile int total;
+    private volatile boolean trackSub;
+    private volatile int subStep;
+    private volatile int subTotal;
+    private volatile long byteTotal;
+    private volatile long bytesDone;
     private int maxOutputLength = 0;
-    private String lastMessage = "";
 
     public CLIProgressReporter() {
         debouncer = new Debouncer<>( 1);
     }
 
+    /**
+     * Schedules the output of the progress. Formatting is deferred until the debouncer fires, so that calling this
+     * method is cheap enough to be done for each processed file.
+     */
     private void printProgress() {
+        if (printPending.compareAndSet(false, true)) {
+            debouncer.addRunLast(10, TimeUnit.MILLISECONDS, "ConsoleProgressReport", k -> {
+                printPending.set(false);
+                System.err.print(formatProgress() + "\r");
+            });
+        }
+    }
+
+    private synchronized String formatProgress() {
         String progress = "";
         if (unknown) {
             progress = status;
@@ -39,6 +62,11 @@ public class CLIProgressReporter implements ProgressReporter {
                 String subFmt = "% " + numSubDigits + "d";
                 sb.append(String.format(" [" + subFmt + "/" + subFmt + "]", subStep, subTotal));
             }
+            long currentByteTotal = byteTotal;
+            if (currentByteTotal > 0) {
+                sb.append(String.format(" [%d/%d MB, %s]", bytesDone / 1024 / 1024, currentByteTotal / 1024 / 1024,
+                        throughput.format(currentByteTotal)));
+            }
             progress = sb.toString();
         }
 
@@ -48,12 +76,13 @@ public class CLIProgressReporter implements ProgressReporter {
         } else {
             maxOutputLength = progress.length();
         }
+        return progress;
+    }
 
-        lastMessage = progress;
-        String progressToLog = progress + "\r";
-        debouncer.addRunLast(10, TimeUnit.MILLISECONDS, "ConsoleProgressReport", k -> {
-            System.err.print(progressToLog);
-        });
+    @Override
+    public void onEvents(List<FileEvent> events) {
+        // Only summarised at the end, failures are already reported as errors
+        fileCounts.onEvents(events);
     }
 
     @Override
@@ -104,12 +133,37 @@ public class CLIProgressReporter implements ProgressReporter {
         printProgress();
     }
 
+    @Override
+    public void setByteTotal(long total) {
+        this.byteTotal = total;
+        this.bytesDone = 0;
+        throughput.reset();
+        printProgress();
+    }
+
+    @Override
+    public void adjustByteTotal(long total) {
+        this.byteTotal = total;
+        printProgress();
+    }
+
+    @Override
+    public void setBytesDone(long bytes) {
+        this.bytesDone = bytes;
+        throughput.record(bytes);
+        printProgress();
+    }
+
     @Override
     public void endTracking() {
         // Shut the debouncer down
         debouncer.shutdown();
         // Print the last message which could be lost due to the debouncer shutdown and add a final newline to preserve it
         // (shutdownAndAwaitTermination doesn't seem to do that)
-        System.err.println(lastMessage);
+        System.err.println(formatProgress());
+        String counts = fileCounts.format();
+        if (!counts.isEmpty()) {
+            System.err.println("Files: " + counts);
+        }
     }
 }
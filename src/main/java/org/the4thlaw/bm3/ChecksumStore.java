@@ -0,0 +1,173 @@
+package org.the4thlaw.bm3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.Properties;
+import java.util.Set;
+import java.util.TreeSet;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * The checksums of the files written to a target, computed while they were written.
+ * <p>
+ * The checksums are stored at the root of the target, so that the target can be verified later on, even without the
+ * library. Each file is recorded with its size and its CRC32.
+ * <p>
+ * Thread-safe.
+ */
+public class ChecksumStore {
+	private static final Logger LOGGER = LoggerFactory.getLogger(ChecksumStore.class);
+	static final String FILE_NAME = ".bm3-checksums.properties";
+
+	private final Path storeFile;
+	private final boolean enabled;
+	private final Properties checksums = new Properties();
+	private boolean dirty;
+
+	/**
+	 * The recorded checksum of a file.
+	 */
+	public static final class Record {
+		private final long size;
+		private final long crc;
+
+		Record(long size, long crc) {
+			this.size = size;
+			this.crc = crc;
+		}
+
+		public long getSize() {
+			return size;
+		}
+
+		public long getCrc() {
+			return crc;
+		}
+
+		private static Record parse(String value) {
+			int separator = value.indexOf(':');
+			if (separator < 0) {
+				return null;
+			}
+			try {
+				return new Record(Long.parseLong(value.substring(0, separator)),
+						Long.parseLong(value.substring(separator + 1), 16));
+			} catch (NumberFormatException e) {
+				return null;
+			}
+		}
+
+		private String format() {
+			return size + ":" + Long.toHexString(crc);
+		}
+	}
+
+	private ChecksumStore(Path storeFile, boolean enabled) {
+		this.storeFile = storeFile;
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Opens the checksums of a target.
+	 *
+	 * @param targetDirectory The target directory.
+	 * @param dryRun If <code>true</code>, the checksums are read but never written.
+	 * @return The checksums, empty if none were recorded.
+	 * @throws IOException If reading the recorded checksums fails.
+	 */
+	public static ChecksumStore open(Path targetDirectory, boolean dryRun) throws IOException {
+		ChecksumStore store = new ChecksumStore(targetDirectory.resolve(FILE_NAME), !dryRun);
+		if (Files.isRegularFile(store.storeFile)) {
+			try (InputStream in = Files.newInputStream(store.storeFile)) {
+				store.checksums.load(in);
+			}
+			LOGGER.debug("Loaded {} checksums from {}", store.checksums.size(), store.storeFile);
+		}
+		return store;
+	}
+
+	/**
+	 * Records the checksum of a file.
+	 *
+	 * @param relativePath The path of the file, relative to the target.
+	 * @param size The size of the file.
+	 * @param crc The CRC32 of the file.
+	 */
+	public synchronized void record(String relativePath, long size, long crc) {
+		checksums.setProperty(relativePath, new Record(size, crc).format());
+		dirty = true;
+	}
+
+	/**
+	 * Forgets the checksum of a file, which was written without computing it.
+	 *
+	 * @param relativePath The path of the file, relative to the target.
+	 */
+	public synchronized void remove(String relativePath) {
+		if (checksums.remove(relativePath) != null) {
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Gets the checksum of a file.
+	 *
+	 * @param relativePath The path of the file, relative to the target.
+	 * @return The checksum, or <code>null</code> if none was recorded.
+	 */
+	public synchronized Record get(String relativePath) {
+		String value = checksums.getProperty(relativePath);
+		return value == null ? null : Record.parse(value);
+	}
+
+	/**
+	 * Gets the files with a recorded checksum.
+	 *
+	 * @return The paths of the files, relative to the target, sorted.
+	 */
+	public synchronized Set<String> getPaths() {
+		return new TreeSet<>(checksums.stringPropertyNames());
+	}
+
+	/**
+	 * Forgets the checksums of the files which are no longer part of the target.
+	 *
+	 * @param relativePaths The paths of the files of the target, relative to it.
+	 */
+	public synchronized void retainAll(Collection<String> relativePaths) {
+		Set<String> kept = relativePaths instanceof Set ? (Set<String>) relativePaths : new HashSet<>(relativePaths);
+		if (checksums.keySet().retainAll(kept)) {
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Saves the checksums, if they changed.
+	 *
+	 * @throws IOException If writing the checksums fails.
+	 */
+	public synchronized void save() throws IOException {
+		if (!enabled || !dirty) {
+			return;
+		}
+		Path tempFile = FileProcessor.getTempFile(storeFile);
+		try (OutputStream out = Files.newOutputStream(tempFile)) {
+			checksums.store(out, "bm3 checksums: size and CRC32 of each file");
+		}
+		try {
+			Files.move(tempFile, storeFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tempFile, storeFile, StandardCopyOption.REPLACE_EXISTING);
+		}
+		dirty = false;
+	}
+}
@@ -0,0 +1,139 @@
+package org.the4thlaw.bm3;
+
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.HashSet;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A journal of the files which have been completely copied to a target.
+ * <p>
+ * The journal is stored at the root of the target and removed when a run completes. If a run is interrupted, the next
+ * one finds it and skips the files it lists without checking them again.
+ */
+public class CopyJournal implements Closeable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(CopyJournal.class);
+	static final String FILE_NAME = ".bm3-journal";
+	private static final String SOURCE_HEADER = "#source=";
+
+	private final Path journalFile;
+	private final String source;
+	private final boolean enabled;
+	private final Set<String> completed = new HashSet<>();
+	private Writer writer;
+
+	private CopyJournal(Path journalFile, String source, boolean enabled) {
+		this.journalFile = journalFile;
+		this.source = source;
+		this.enabled = enabled;
+	}
+
+	/**
+	 * Opens the journal of a target, loading the files completed by an interrupted run if any. Nothing is written
+	 * until the first file is marked as completed.
+	 *
+	 * @param targetDirectory The target directory.
+	 * @param sourceDirectory The source directory. A journal left behind by a run from another source is ignored.
+	 * @param dryRun If <code>true</code>, the journal is neither read nor written.
+	 * @return The journal.
+	 * @throws IOException If reading the existing journal fails.
+	 */
+	public static CopyJournal open(Path targetDirectory, Path sourceDirectory, boolean dryRun) throws IOException {
+		CopyJournal journal = new CopyJournal(targetDirectory.resolve(FILE_NAME),
+				sourceDirectory.toAbsolutePath().toString(), !dryRun);
+		if (journal.enabled && Files.isRegularFile(journal.journalFile)) {
+			journal.load();
+		}
+		return journal;
+	}
+
+	private void load() throws IOException {
+		try (BufferedReader reader = Files.newBufferedReader(journalFile, StandardCharsets.UTF_8)) {
+			String header = reader.readLine();
+			if (header == null || !header.equals(SOURCE_HEADER + source)) {
+				LOGGER.info("Ignoring a journal left behind by a run from another source: {}", header);
+				return;
+			}
+			String line;
+			while ((line = reader.readLine()) != null) {
+				if (!line.isEmpty()) {
+					completed.add(line);
+				}
+			}
+		}
+		LOGGER.info("Resuming an interrupted run, {} files were already copied", completed.size());
+	}
+
+	/**
+	 * Checks if a file was completely copied by an interrupted run.
+	 *
+	 * @param relativePath The path of the file, relative to the target.
+	 * @return <code>true</code> if the file doesn't need to be copied again.
+	 */
+	public boolean isCompleted(String relativePath) {
+		return completed.contains(relativePath);
+	}
+
+	/**
+	 * Gets the number of files copied by the interrupted run, if any.
+	 *
+	 * @return The number of files.
+	 */
+	public int getResumedCount() {
+		return completed.size();
+	}
+
+	/**
+	 * Records that a file has been completely copied. The record is flushed immediately.
+	 *
+	 * @param relativePath The path of the file, relative to the target.
+	 * @throws IOException If writing the journal fails.
+	 */
+	public synchronized void markCompleted(String relativePath) throws IOException {
+		if (!enabled) {
+			return;
+		}
+		if (writer == null) {
+			if (completed.isEmpty()) {
+				writer = Files.newBufferedWriter(journalFile, StandardCharsets.UTF_8);
+				writer.write(SOURCE_HEADER + source + "\n");
+			} else {
+				// Resuming, the journal which was loaded is extended
+				writer = Files.newBufferedWriter(journalFile, StandardCharsets.UTF_8, StandardOpenOption.APPEND);
+			}
+		}
+		writer.write(relativePath);
+		writer.write('\n');
+		writer.flush();
+	}
+
+	/**
+	 * Marks the run as complete, removing the journal.
+	 *
+	 * @throws IOException If removing the journal fails.
+	 */
+	public synchronized void complete() throws IOException {
+		close();
+		if (enabled) {
+			Files.deleteIfExists(journalFile);
+		}
+		completed.clear();
+	}
+
+	@Override
+	public synchronized void close() throws IOException {
+		if (writer != null) {
+			writer.close();
+			writer = null;
+		}
+	}
+}
@@ -2,61 +2,175 @@ package org.the4thlaw.bm3;
 
 import java.awt.Color;
 import java.awt.image.BufferedImage;
+import java.io.BufferedInputStream;
 import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
-import java.util.Collection;
+import java.io.InputStream;
+import java.nio.ByteBuffer;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.function.Function;
 import java.util.regex.Pattern;
 
+import javax.imageio.IIOImage;
 import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.io.filefilter.FalseFileFilter;
-import org.apache.commons.io.filefilter.RegexFileFilter;
 import org.cache2k.Cache;
 import org.cache2k.Cache2kBuilder;
+import org.cache2k.event.CacheEntryCreatedListener;
+import org.cache2k.event.CacheEntryEvictedListener;
 import org.imgscalr.Scalr;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
-import com.mpatric.mp3agic.ID3v2;
-import com.mpatric.mp3agic.ID3v24Tag;
-import com.mpatric.mp3agic.InvalidDataException;
-import com.mpatric.mp3agic.Mp3File;
-import com.mpatric.mp3agic.NotSupportedException;
-import com.mpatric.mp3agic.UnsupportedTagException;
-
 public class Cover {
 	private static final Logger LOGGER = LoggerFactory.getLogger(Cover.class);
+	private static final Pattern IMAGE_PATTERN = Pattern.compile(".*\\.(png|jpg|jpeg)", Pattern.CASE_INSENSITIVE);
 	private static final Pattern FOLDER_PATTERN = Pattern.compile("folder\\.(png|jpg|jpeg)", Pattern.CASE_INSENSITIVE);
 	private static final int MAX_SIZE = 500;
-	private static final int COVER_CACHE_SIZE = 50;
-	private static final Cache<String, CoverData> COVER_CACHE = new Cache2kBuilder<String, CoverData>() {
+	private static final String MIME_TYPE = "image/jpeg";
+	/**
+	 * The default size of the cover cache, in bytes.
+	 */
+	public static final long DEFAULT_CACHE_SIZE = 16 * 1024 * 1024;
+
+	/** The lowest JPEG quality tried to fit a cover in its byte budget. */
+	private static final float MIN_QUALITY = 0.3f;
+	/** The default quality of the JPEG encoder, which a byte budget never raises. */
+	private static final float DEFAULT_QUALITY = 0.75f;
+	/** The number of steps of the binary search on the JPEG quality. */
+	private static final int QUALITY_STEPS = 6;
+
+	private static volatile long cacheSize = DEFAULT_CACHE_SIZE;
+	private static volatile int byteBudget;
+	private static volatile boolean progressive;
+	private static final AtomicLong CACHE_HITS = new AtomicLong();
+	private static final AtomicLong CACHE_MISSES = new AtomicLong();
+	private static final AtomicLong CACHE_EVICTIONS = new AtomicLong();
+	private static final AtomicLong CACHE_BYTES = new AtomicLong();
+
+	/**
+	 * Holds the cover cache, so that it's only built when a cover is first rendered. Syncs without changes never pay
+	 * for it.
+	 * <p>
+	 * The cache is bounded by the total size of the rendered covers rather than by their number, since a few large
+	 * covers weigh as much as many small ones.
+	 */
+	private static final class CoverCache {
+		private static final Cache<String, CoverData> INSTANCE = new Cache2kBuilder<String, CoverData>() {
+		}
+				.name("Covers")
+				.eternal(true)
+				.weigher((String key, CoverData value) -> value.size())
+				.maximumWeight(cacheSize)
+				.addListener((CacheEntryCreatedListener<String, CoverData>) (cache,
+						entry) -> CACHE_BYTES.addAndGet(entry.getValue().size()))
+				.addListener((CacheEntryEvictedListener<String, CoverData>) (cache, entry) -> {
+					CACHE_EVICTIONS.incrementAndGet();
+					CACHE_BYTES.addAndGet(-entry.getValue().size());
+				})
+				.build();
 	}
-			.name("Covers")
-			.eternal(true)
-			.entryCapacity(COVER_CACHE_SIZE)
-			.build();
 
+	/**
+	 * A rendered cover, stored outside of the heap so that the cache doesn't weigh on the garbage collector.
+	 */
 	private static class CoverData {
-		private final byte[] data;
+		private final ByteBuffer data;
+
+		CoverData(byte[] bytes) {
+			data = ByteBuffer.allocateDirect(bytes.length);
+			data.put(bytes);
+			data.flip();
+		}
+
+		int size() {
+			return data.capacity();
+		}
+
+		byte[] getBytes() {
+			byte[] bytes = new byte[data.capacity()];
+			// Duplicated so that concurrent readers don't share a position
+			data.duplicate().get(bytes);
+			return bytes;
+		}
+	}
+
+	/**
+	 * Sets the maximum size of the cover cache. Must be called before any cover is rendered.
+	 *
+	 * @param bytes The total size of the cached covers, in bytes.
+	 */
+	public static void setCacheSize(long bytes) {
+		cacheSize = bytes;
+	}
+
+	/**
+	 * Sets the maximum size of a rendered cover. The JPEG quality is lowered as needed to fit, down to a minimum
+	 * quality beyond which covers are left larger than the budget.
+	 *
+	 * @param bytes The budget, in bytes, 0 to always use the default JPEG quality.
+	 */
+	public static void setByteBudget(int bytes) {
+		byteBudget = bytes;
+	}
+
+	/**
+	 * Sets whether covers are encoded as progressive JPEG rather than baseline JPEG. Progressive covers are usually a
+	 * bit smaller, but some head units can't display them.
+	 *
+	 * @param progressive <code>true</code> for progressive JPEG.
+	 */
+	public static void setProgressive(boolean progressive) {
+		Cover.progressive = progressive;
+	}
 
-		CoverData(byte[] data) {
-			this.data = data;
+	/**
+	 * Describes the encoder settings, empty for the defaults so that covers rendered by previous versions are still
+	 * recognised.
+	 */
+	private static String getEncoderSettings() {
+		if (byteBudget <= 0 && !progressive) {
+			return "";
 		}
+		return "|" + byteBudget + (progressive ? "p" : "b");
+	}
 
-		byte[] getData() {
-			return data;
+	/**
+	 * Describes the use of the cover cache since the application started.
+	 *
+	 * @return The statistics, or <code>null</code> if no cover was requested.
+	 */
+	public static String getCacheStatistics() {
+		long hits = CACHE_HITS.get();
+		long misses = CACHE_MISSES.get();
+		if (hits + misses == 0) {
+			return null;
 		}
+		return String.format("%d hits, %d misses (%.0f%% hit rate), %d evictions, %s of %s used", hits, misses,
+				100.0 * hits / (hits + misses), CACHE_EVICTIONS.get(),
+				FileUtils.byteCountToDisplaySize(CACHE_BYTES.get()), FileUtils.byteCountToDisplaySize(cacheSize));
 	}
 
-	public static Cover forMusicFile(File file) {
-		File sourceParent = file.getParentFile();
-		File coverFile = null;
+	public static Cover forMusicFile(Path file) {
+		Path sourceParent = file.toAbsolutePath().getParent();
+		Path coverFile = null;
 
 		// Is it named like the file, with a supported extension ?
-		String basename = FilenameUtils.getBaseName(file.getName());
+		String basename = FilenameUtils.getBaseName(file.getFileName().toString());
 		coverFile = findFile(sourceParent,
 				Pattern.compile(Pattern.quote(basename) + "\\.(png|jpg|jpeg)", Pattern.CASE_INSENSITIVE));
 
@@ -65,38 +179,135 @@ public class Cover {
 			coverFile = findFile(sourceParent, FOLDER_PATTERN);
 		}
 
-		return coverFile == null ? null : new Cover(coverFile.getAbsoluteFile());
+		return coverFile == null ? null : new Cover(coverFile);
 	}
 
-	private static File findFile(File directory, Pattern pattern) {
-		Collection<File> potentialFiles = FileUtils.listFiles(directory, new RegexFileFilter(pattern),
-				FalseFileFilter.INSTANCE);
+	/**
+	 * Finds the covers of the music files of a directory, listing the directory once for all of them rather than
+	 * twice per file as {@link #forMusicFile(Path)} does. The directory is listed on the first lookup.
+	 * 
+	 * @param directory The directory.
+	 * @return Finds the cover of a music file of the directory, as {@link #forMusicFile(Path)} would, not
+	 *         thread-safe.
+	 */
+	static Function<Path, Cover> forDirectory(Path directory) {
+		return new DirectoryCovers(directory.toAbsolutePath());
+	}
+
+	private static final class DirectoryCovers implements Function<Path, Cover> {
+		private final Path directory;
+		private List<Path> images;
+
+		private DirectoryCovers(Path directory) {
+			this.directory = directory;
+		}
+
+		@Override
+		public Cover apply(Path musicFile) {
+			if (images == null) {
+				images = listImages(directory, IMAGE_PATTERN);
+			}
+			// Same precedence as forMusicFile
+			String basename = FilenameUtils.getBaseName(musicFile.getFileName().toString());
+			Path coverFile = findImage(
+					Pattern.compile(Pattern.quote(basename) + "\\.(png|jpg|jpeg)", Pattern.CASE_INSENSITIVE));
+			if (coverFile == null) {
+				coverFile = findImage(FOLDER_PATTERN);
+			}
+			return coverFile == null ? null : new Cover(coverFile);
+		}
+
+		private Path findImage(Pattern pattern) {
+			for (Path image : images) {
+				if (pattern.matcher(image.getFileName().toString()).matches()) {
+					return image;
+				}
+			}
+			return null;
+		}
+	}
+
+	private static Path findFile(Path directory, Pattern pattern) {
+		List<Path> potentialFiles = listImages(directory, pattern);
 		if (!potentialFiles.isEmpty()) {
-			return potentialFiles.iterator().next();
+			return potentialFiles.get(0);
 		}
 		return null;
 	}
 
-	private final File coverFile;
+	/**
+	 * Lists the files of a directory whose name matches a pattern, without descending into sub-directories.
+	 *
+	 * @param directory The directory.
+	 * @param pattern The pattern matched against the whole name of the files.
+	 * @return The files, empty if the directory can't be listed.
+	 */
+	private static List<Path> listImages(Path directory, Pattern pattern) {
+		List<Path> images = new ArrayList<>();
+		try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory,
+				entry -> pattern.matcher(entry.getFileName().toString()).matches())) {
+			for (Path entry : stream) {
+				// Only stat the few entries which match
+				if (Files.isRegularFile(entry)) {
+					images.add(entry);
+				}
+			}
+		} catch (IOException e) {
+			LOGGER.warn("Failed to look for covers in {}", directory, e);
+		}
+		return images;
+	}
 
-	private Cover(File coverFile) {
+	/**
+	 * Gets the cover stored in a file, without any lookup.
+	 * 
+	 * @param coverFile The image file.
+	 * @return The cover.
+	 */
+	static Cover forCoverFile(Path coverFile) {
+		return new Cover(coverFile.toAbsolutePath());
+	}
+
+	private final Path coverFile;
+
+	private Cover(Path coverFile) {
 		this.coverFile = coverFile;
 	}
 
+	public Path getPath() {
+		return coverFile;
+	}
+
 	public byte[] getBytes() {
-		String coverPath = coverFile.toString();
+		return getBytes(IoThrottle.UNLIMITED);
+	}
 
-		CoverData cachedCover = COVER_CACHE.peek(coverPath);
+	/**
+	 * Gets the rendered cover, reading the image file through a throttle if it isn't cached.
+	 *
+	 * @param throttle The throttle.
+	 * @return A copy of the rendered cover, which the caller owns, or <code>null</code> if it can't be rendered.
+	 */
+	public byte[] getBytes(IoThrottle throttle) {
+		// Covers rendered with other settings, by previous server jobs, can't be reused
+		String coverPath = coverFile + getEncoderSettings();
+		FlightRecording.CoverRenderEvent event = FlightRecording.coverRender();
+
+		CoverData cachedCover = CoverCache.INSTANCE.peek(coverPath);
 		if (cachedCover != null) {
 			LOGGER.debug("Cache hit for {}", coverFile);
-			return cachedCover.getData();
+			CACHE_HITS.incrementAndGet();
+			event.end(coverFile, 0, 0, cachedCover.size(), true);
+			return cachedCover.getBytes();
 		}
+		CACHE_MISSES.incrementAndGet();
 
 		BufferedImage coverImg;
-		try {
-			coverImg = ImageIO.read(coverFile);
+		try (InputStream in = throttle.wrap(new BufferedInputStream(Files.newInputStream(coverFile)))) {
+			coverImg = ImageIO.read(in);
 		} catch (IOException e1) {
 			LOGGER.warn("Failed to save cover at {}", coverFile);
+			event.end(coverFile, 0, 0, 0, false);
 			return null;
 		}
 
@@ -104,8 +315,11 @@ public class Cover {
 			LOGGER.warn(
 					"Cover at {} coverFile is in an unknown format (CMYK and exotic color profiles are usual suspects)",
 					coverFile);
+			event.end(coverFile, 0, 0, 0, false);
 			return null;
 		}
+		int sourceWidth = coverImg.getWidth();
+		int sourceHeight = coverImg.getHeight();
 
 		// Convert non-RGB to RGB if needed
 		if (coverImg.getType() != BufferedImage.TYPE_INT_RGB) {
@@ -122,44 +336,153 @@ public class Cover {
 			coverImg = resizedImg;
 		}
 
-		// Write final result to a byte stream
-		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		byte[] bytes;
 		try {
-			ImageIO.write(coverImg, "jpg", baos);
+			bytes = encode(coverImg);
 		} catch (IOException e) {
 			LOGGER.warn("Failed to save cover at {}", coverFile);
+			event.end(coverFile, sourceWidth, sourceHeight, 0, false);
 			return null;
 		}
 
-		byte[] bytes = baos.toByteArray();
-		COVER_CACHE.put(coverPath, new CoverData(bytes));
+		// Covers rendered concurrently are only counted once
+		CoverCache.INSTANCE.putIfAbsent(coverPath, new CoverData(bytes));
+		event.end(coverFile, sourceWidth, sourceHeight, bytes.length, false);
 		return bytes;
 	}
 
-	public void writeToFile(File sourceFile, File targetFile) throws IOException {
-		Mp3File mp3;
+	private byte[] encode(BufferedImage coverImg) throws IOException {
+		int budget = byteBudget;
+		boolean progressiveCover = progressive;
+		if (budget <= 0 && !progressiveCover) {
+			ByteArrayOutputStream baos = new ByteArrayOutputStream();
+			ImageIO.write(coverImg, "jpg", baos);
+			return baos.toByteArray();
+		}
+
+		Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName("jpeg");
+		if (!writers.hasNext()) {
+			throw new IOException("No JPEG encoder available");
+		}
+		ImageWriter writer = writers.next();
 		try {
-			mp3 = new Mp3File(sourceFile);
-		} catch (UnsupportedTagException | InvalidDataException | IOException e) {
-			LOGGER.error("Failed to open file as MP3", e);
-			throw new IOException("Failed to open file as MP3", e);
+			if (budget <= 0) {
+				return encode(writer, coverImg, -1, progressiveCover);
+			}
+			byte[] best = encode(writer, coverImg, DEFAULT_QUALITY, progressiveCover);
+			if (best.length <= budget) {
+				return best;
+			}
+			// Binary search of the highest quality which fits in the budget
+			float low = MIN_QUALITY;
+			float high = DEFAULT_QUALITY;
+			best = null;
+			for (int step = 0; step < QUALITY_STEPS; step++) {
+				float quality = (low + high) / 2;
+				byte[] candidate = encode(writer, coverImg, quality, progressiveCover);
+				if (candidate.length <= budget) {
+					best = candidate;
+					low = quality;
+				} else {
+					high = quality;
+				}
+			}
+			if (best == null) {
+				best = encode(writer, coverImg, MIN_QUALITY, progressiveCover);
+				LOGGER.debug("Cover at {} doesn't fit in {} bytes even at the lowest quality, it weighs {} bytes",
+						coverFile, budget, best.length);
+			} else {
+				LOGGER.debug("Cover at {} encoded with a quality of {} in {} bytes", coverFile,
+						String.format("%.2f", low), best.length);
+			}
+			return best;
+		} finally {
+			writer.dispose();
+		}
+	}
+
+	private static byte[] encode(ImageWriter writer, BufferedImage image, float quality, boolean progressive)
+			throws IOException {
+		ImageWriteParam param = writer.getDefaultWriteParam();
+		if (quality >= 0) {
+			param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+			param.setCompressionQuality(quality);
+		}
+		if (param.canWriteProgressive()) {
+			param.setProgressiveMode(progressive ? ImageWriteParam.MODE_DEFAULT : ImageWriteParam.MODE_DISABLED);
 		}
-		ID3v2 tag;
-		if (!mp3.hasId3v2Tag()) {
-			tag = new ID3v24Tag();
-			mp3.setId3v2Tag(tag);
-		} else {
-			tag = mp3.getId3v2Tag();
+		ByteArrayOutputStream baos = new ByteArrayOutputStream();
+		try (ImageOutputStream out = ImageIO.createImageOutputStream(baos)) {
+			writer.setOutput(out);
+			writer.write(null, new IIOImage(image, null, null), param);
 		}
+		return baos.toByteArray();
+	}
 
-		tag.setAlbumImage(getBytes(), "image/jpeg");
+	public void writeToFile(Path sourceFile, Path targetFile) throws IOException {
+		writeToFile(sourceFile, targetFile, getBytes());
+	}
 
+	/**
+	 * Writes a copy of a music file with this cover.
+	 * 
+	 * @param sourceFile The music file.
+	 * @param targetFile The file to write.
+	 * @param coverBytes The rendered cover, as returned by {@link #getBytes()}.
+	 * @throws IOException If reading or writing the music file fails.
+	 */
+	public void writeToFile(Path sourceFile, Path targetFile, byte[] coverBytes) throws IOException {
+		prepare(sourceFile, coverBytes).writeTo(targetFile);
+	}
+
+	/**
+	 * Prepares a copy of a music file with this cover, without writing anything.
+	 * 
+	 * @param sourceFile The music file.
+	 * @param coverBytes The rendered cover, as returned by {@link #getBytes()}.
+	 * @return The prepared file, which can be measured or written.
+	 * @throws IOException If the cover could not be rendered or the music file tag can't be read.
+	 */
+	public TaggedMp3 prepare(Path sourceFile, byte[] coverBytes) throws IOException {
+		if (coverBytes == null) {
+			throw new IOException("The cover could not be rendered: " + coverFile);
+		}
+		TaggedMp3 mp3;
 		try {
-			mp3.save(targetFile.getAbsolutePath());
-		} catch (NotSupportedException | IOException e) {
-			LOGGER.error("Failed to save file as MP3", e);
-			throw new IOException("Failed to save file as MP3", e);
+			mp3 = TaggedMp3.read(sourceFile);
+		} catch (IOException e) {
+			LOGGER.error("Failed to open file as MP3", e);
+			throw new IOException("Failed to open file as MP3", e);
 		}
+		mp3.setAlbumImage(coverBytes, MIME_TYPE);
+		return mp3;
+	}
+
+	/**
+	 * Estimates the size of a copy of a music file with this cover, as {@link #prepare(Path, byte[])} would give it,
+	 * without parsing the tag of the music file.
+	 * 
+	 * @param sourceFile The music file.
+	 * @param coverLength The size of the rendered cover, as returned by {@link #getBytes()}.
+	 * @return The estimated size.
+	 * @throws IOException If the music file can't be read.
+	 * @see TaggedMp3#estimateSize(Path, int, String)
+	 */
+	public long estimateSize(Path sourceFile, int coverLength) throws IOException {
+		return TaggedMp3.estimateSize(sourceFile, coverLength, MIME_TYPE);
+	}
+
+	/**
+	 * Gets a string identifying this cover and its content, which changes whenever the cover file or the encoder
+	 * settings change.
+	 * 
+	 * @return The identity.
+	 */
+	public String getIdentity() {
+		BasicFileAttributes attributes = readAttributes();
+		long length = attributes == null ? 0 : attributes.size();
+		long lastModified = attributes == null ? 0 : attributes.lastModifiedTime().toMillis();
+		return coverFile + "|" + length + "|" + lastModified + getEncoderSettings();
 	}
 
 	/**
@@ -168,6 +491,23 @@ public class Cover {
 	 * @return the modification time.
 	 */
 	public long lastModified() {
-		return coverFile.lastModified();
+		BasicFileAttributes attributes = readAttributes();
+		return attributes == null ? 0 : attributes.lastModifiedTime().toMillis();
+	}
+
+	/**
+	 * Reads the attributes of the cover file.
+	 * 
+	 * @return The attributes, <code>null</code> if the file doesn't exist or can't be read.
+	 */
+	private BasicFileAttributes readAttributes() {
+		try {
+			return Files.readAttributes(coverFile, BasicFileAttributes.class);
+		} catch (NoSuchFileException e) {
+			return null;
+		} catch (IOException e) {
+			LOGGER.debug("Failed to read the attributes of {}", coverFile, e);
+			return null;
+		}
 	}
 }
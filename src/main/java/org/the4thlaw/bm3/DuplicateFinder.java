@@ -0,0 +1,286 @@
+package org.the4thlaw.bm3;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Finds files of the library which are byte-identical, such as the tracks of compilations which are also in the album
+ * they come from, so that they are copied once.
+ * <p>
+ * Files are compared in stages, each one only looking at the files which are still candidates: first by size, then by
+ * the cover they get, since identical files in directories with different covers are different once copied, then by
+ * a hash of their first bytes, then by a hash of their whole content. Most files have a unique size and are never
+ * read. Hashes are cached by path, size and modification time, in the library cache if there is one so that they
+ * survive between runs. Files are read through the I/O throttle of the run. A file which can't be read is considered
+ * unique, so that it is copied as usual.
+ * <p>
+ * Thread-safe.
+ */
+public class DuplicateFinder {
+	private static final Logger LOGGER = LoggerFactory.getLogger(DuplicateFinder.class);
+	/** The number of bytes hashed by the partial hash. */
+	static final int PARTIAL_SIZE = 64 * 1024;
+	private static final int BUFFER_SIZE = 64 * 1024;
+	private static final String ALGORITHM = "SHA-256";
+
+	/**
+	 * A cache of content hashes.
+	 */
+	interface HashCache {
+		/**
+		 * Gets a hash.
+		 *
+		 * @param file The file.
+		 * @param size The current size of the file.
+		 * @param lastModified The current modification time of the file.
+		 * @param partial <code>true</code> for the hash of the first bytes, <code>false</code> for the whole file.
+		 * @return The hash, <code>null</code> if it isn't cached or if the file changed since it was.
+		 */
+		String getContentHash(File file, long size, long lastModified, boolean partial);
+
+		/**
+		 * Records a hash.
+		 *
+		 * @param file The file.
+		 * @param size The size of the file.
+		 * @param lastModified The modification time of the file.
+		 * @param partial <code>true</code> for the hash of the first bytes, <code>false</code> for the whole file.
+		 * @param hash The hash.
+		 */
+		void putContentHash(File file, long size, long lastModified, boolean partial, String hash);
+	}
+
+	private static final class Attributes {
+		private final long size;
+		private final long lastModified;
+
+		private Attributes(long size, long lastModified) {
+			this.size = size;
+			this.lastModified = lastModified;
+		}
+	}
+
+	private final HashCache cache;
+	private final MetadataResolver resolver;
+	private final IoThrottle throttle;
+	private final Function<File, Cover> coverLookup;
+	private int hashedFiles;
+	private long hashedBytes;
+
+	/**
+	 * Creates a finder.
+	 *
+	 * @param libraryCache The cache where hashes are kept, <code>null</code> to keep them in memory for this finder
+	 *            only.
+	 * @param resolver The resolver used to read file attributes and hash files concurrently.
+	 * @param throttle The I/O limits applied to reading files.
+	 * @param coverLookup Finds the cover of a file, returning <code>null</code> if it has none.
+	 */
+	public DuplicateFinder(LibraryCache libraryCache, MetadataResolver resolver, IoThrottle throttle,
+			Function<File, Cover> coverLookup) {
+		this.cache = libraryCache != null ? libraryCache : new MemoryHashCache();
+		this.resolver = resolver;
+		this.throttle = throttle;
+		this.coverLookup = coverLookup;
+	}
+
+	/**
+	 * Finds the duplicates among files.
+	 *
+	 * @param files The files, in order of preference: the first file of a group of identical files is the one kept.
+	 * @return The duplicates, each one mapped to the first identical file.
+	 * @throws IOException If the search is interrupted.
+	 */
+	public Map<File, File> find(Collection<File> files) throws IOException {
+		synchronized (this) {
+			hashedFiles = 0;
+			hashedBytes = 0;
+		}
+		List<File> orderedFiles = new ArrayList<>(files);
+		List<Attributes> attributes = resolver.resolveAll(orderedFiles, file -> {
+			try {
+				BasicFileAttributes fileAttributes = Files.readAttributes(file.toPath(), BasicFileAttributes.class);
+				return new Attributes(fileAttributes.size(), fileAttributes.lastModifiedTime().toMillis());
+			} catch (IOException e) {
+				LOGGER.warn("Failed to read the attributes of {}, it will not be deduplicated", file, e);
+				return null;
+			}
+		});
+		Map<File, Attributes> attributesOf = new HashMap<>();
+		Map<Long, List<File>> bySize = new LinkedHashMap<>();
+		for (int i = 0; i < orderedFiles.size(); i++) {
+			File file = orderedFiles.get(i);
+			if (attributes.get(i) == null) {
+				continue;
+			}
+			attributesOf.put(file, attributes.get(i));
+			bySize.computeIfAbsent(attributes.get(i).size, s -> new ArrayList<>()).add(file);
+		}
+
+		Map<File, File> duplicates = new LinkedHashMap<>();
+		Map<Path, String> coverIdentities = new ConcurrentHashMap<>();
+		for (List<File> sameSize : bySize.values()) {
+			if (sameSize.size() < 2 || attributesOf.get(sameSize.get(0)).size == 0) {
+				continue;
+			}
+			for (List<File> sameCover : groupByCover(sameSize, coverIdentities)) {
+				findIdentical(sameCover, attributesOf, duplicates);
+			}
+		}
+		LOGGER.info("Found {} duplicates among {} files, hashed {} files ({} MB)", duplicates.size(), files.size(),
+				hashedFiles, hashedBytes / 1024 / 1024);
+		return duplicates;
+	}
+
+	/**
+	 * Groups files by the identity of their cover, keeping only the groups of several files.
+	 *
+	 * @param coverIdentities The identities of the covers already looked up, by cover file.
+	 */
+	private List<List<File>> groupByCover(List<File> files, Map<Path, String> coverIdentities) throws IOException {
+		List<String> identities = resolver.resolveAll(files, file -> {
+			Cover cover = coverLookup.apply(file);
+			// Files of the same album share their cover, whose identity reads its attributes
+			return cover == null ? "" : coverIdentities.computeIfAbsent(cover.getPath(), p -> cover.getIdentity());
+		});
+		return group(files, identities);
+	}
+
+	/**
+	 * Finds the identical files among files of the same size and cover.
+	 */
+	private void findIdentical(List<File> candidates, Map<File, Attributes> attributesOf, Map<File, File> duplicates)
+			throws IOException {
+		for (List<File> samePartialHash : groupByHash(candidates, attributesOf, true)) {
+			// Files no larger than the partial hash are already fully compared
+			List<List<File>> identicalGroups = attributesOf.get(samePartialHash.get(0)).size <= PARTIAL_SIZE
+					? Collections.singletonList(samePartialHash)
+					: groupByHash(samePartialHash, attributesOf, false);
+			for (List<File> identical : identicalGroups) {
+				File kept = identical.get(0);
+				for (File duplicate : identical.subList(1, identical.size())) {
+					LOGGER.debug("{} is identical to {}", duplicate, kept);
+					duplicates.put(duplicate, kept);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Groups files by hash, keeping only the groups of several files.
+	 */
+	private List<List<File>> groupByHash(List<File> files, Map<File, Attributes> attributesOf, boolean partial)
+			throws IOException {
+		List<String> hashes = resolver.resolveAll(files, file -> getHash(file, attributesOf.get(file), partial));
+		return group(files, hashes);
+	}
+
+	/**
+	 * Groups files by key, keeping only the groups of several files.
+	 *
+	 * @param files The files.
+	 * @param keys The key of each file, in the order of the files, <code>null</code> for a file which is unique.
+	 * @return The groups, in the order of their first file.
+	 */
+	private static List<List<File>> group(List<File> files, List<String> keys) {
+		Map<String, List<File>> byKey = new LinkedHashMap<>();
+		for (int i = 0; i < files.size(); i++) {
+			if (keys.get(i) == null) {
+				continue;
+			}
+			byKey.computeIfAbsent(keys.get(i), k -> new ArrayList<>()).add(files.get(i));
+		}
+		List<List<File>> groups = new ArrayList<>();
+		for (List<File> group : byKey.values()) {
+			if (group.size() > 1) {
+				groups.add(group);
+			}
+		}
+		return groups;
+	}
+
+	/**
+	 * Gets the hash of a file, from the cache if possible.
+	 *
+	 * @return The hash, <code>null</code> if the file can't be read.
+	 */
+	private String getHash(File file, Attributes attributes, boolean partial) {
+		String hash = cache.getContentHash(file, attributes.size, attributes.lastModified, partial);
+		if (hash == null) {
+			try {
+				hash = hash(file, partial ? PARTIAL_SIZE : Long.MAX_VALUE);
+			} catch (IOException e) {
+				LOGGER.warn("Failed to read {}, it will not be deduplicated", file, e);
+				return null;
+			}
+			cache.putContentHash(file, attributes.size, attributes.lastModified, partial, hash);
+		}
+		return hash;
+	}
+
+	private String hash(File file, long maxBytes) throws IOException {
+		MessageDigest digest;
+		try {
+			digest = MessageDigest.getInstance(ALGORITHM);
+		} catch (NoSuchAlgorithmException e) {
+			throw new IllegalStateException(ALGORITHM + " is always supported", e);
+		}
+		long read = 0;
+		try (InputStream in = throttle.wrap(Files.newInputStream(file.toPath()))) {
+			byte[] buffer = new byte[BUFFER_SIZE];
+			int n;
+			while (read < maxBytes && (n = in.read(buffer, 0, (int) Math.min(buffer.length, maxBytes - read))) > 0) {
+				digest.update(buffer, 0, n);
+				read += n;
+			}
+		}
+		synchronized (this) {
+			hashedFiles++;
+			hashedBytes += read;
+		}
+		StringBuilder hex = new StringBuilder();
+		for (byte b : digest.digest()) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Keeps hashes in memory, when there is no library cache.
+	 */
+	private static final class MemoryHashCache implements HashCache {
+		private final Map<String, String> hashes = new ConcurrentHashMap<>();
+
+		private static String key(File file, long size, long lastModified, boolean partial) {
+			return (partial ? "p:" : "f:") + size + ':' + lastModified + ':' + file;
+		}
+
+		@Override
+		public String getContentHash(File file, long size, long lastModified, boolean partial) {
+			return hashes.get(key(file, size, lastModified, partial));
+		}
+
+		@Override
+		public void putContentHash(File file, long size, long lastModified, boolean partial, String hash) {
+			hashes.put(key(file, size, lastModified, partial), hash);
+		}
+	}
+}
@@ -0,0 +1,191 @@
+package org.the4thlaw.bm3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The files excluded by the exclusion playlists.
+ * <p>
+ * Exclusion playlists may list:
+ * <ul>
+ * <li>files, which are excluded</li>
+ * <li>directories, whose whole content is excluded</li>
+ * <li>globs, which contain <code>*</code> or <code>?</code>, such as <code>Podcasts/*&#47;*.mp3</code> or
+ * <code>**&#47;Live *</code>, which exclude the files they match and the content of the directories they match. The
+ * glob syntax is the one of {@link java.nio.file.FileSystem#getPathMatcher(String)}, relative to the playlist
+ * directory.</li>
+ * </ul>
+ * The rules are compiled in a trie keyed by path components: files and directories are marked on their node, and
+ * globs are attached to the node of the deepest directory they name literally. Checking a file walks its path once
+ * and only evaluates the globs found along the way, so the cost depends on the depth of the path rather than on the
+ * number of rules.
+ * <p>
+ * Not thread-safe while rules are added, thread-safe afterwards.
+ */
+public class ExclusionRules {
+	private final Node root = new Node();
+	private int fileCount;
+	private int directoryCount;
+	private int globCount;
+
+	private static final class Node {
+		private final Map<String, Node> children = new HashMap<>();
+		/** The file at this node is excluded. */
+		private boolean file;
+		/** Everything below this node is excluded. */
+		private boolean subtree;
+		/** Globs relative to this node, <code>null</code> if there are none. */
+		private List<PathMatcher> globs;
+	}
+
+	/**
+	 * Checks if a playlist entry is a glob.
+	 *
+	 * @param rawEntry The entry, as read from the playlist.
+	 * @return <code>true</code> if the entry contains a <code>*</code> or a <code>?</code>, which can't be part of
+	 *         file names on Windows and almost never are elsewhere.
+	 */
+	public static boolean isGlob(File rawEntry) {
+		return indexOfWildcard(rawEntry.getPath()) >= 0;
+	}
+
+	private static int indexOfWildcard(String path) {
+		for (int i = 0; i < path.length(); i++) {
+			char c = path.charAt(i);
+			if (c == '*' || c == '?') {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	/**
+	 * Excludes a file.
+	 *
+	 * @param file The canonical file.
+	 */
+	public void addFile(File file) {
+		getNode(file.toPath()).file = true;
+		fileCount++;
+	}
+
+	/**
+	 * Excludes the content of a directory.
+	 *
+	 * @param directory The canonical directory.
+	 */
+	public void addDirectory(File directory) {
+		getNode(directory.toPath()).subtree = true;
+		directoryCount++;
+	}
+
+	/**
+	 * Excludes the files matching a glob.
+	 *
+	 * @param rawEntry The absolute glob, as read from the playlist.
+	 * @throws IOException If the directory the glob is relative to can't be resolved.
+	 * @throws IllegalArgumentException If the glob is invalid.
+	 * @see #isGlob(File)
+	 */
+	public void addGlob(File rawEntry) throws IOException {
+		String path = rawEntry.getPath();
+		int wildcard = indexOfWildcard(path);
+		if (wildcard < 0) {
+			throw new IllegalArgumentException("Not a glob: " + rawEntry);
+		}
+		// The literal part is resolved like any other entry, the wildcard part is matched against canonical paths
+		int separator = Math.max(path.lastIndexOf('/', wildcard), path.lastIndexOf(File.separatorChar, wildcard));
+		File baseDirectory = new File(path.substring(0, separator + 1)).getCanonicalFile();
+		String glob = path.substring(separator + 1).replace(File.separatorChar, '/');
+		addGlob(baseDirectory, glob);
+	}
+
+	/**
+	 * Excludes the files matching a glob.
+	 *
+	 * @param baseDirectory The canonical directory the glob is relative to.
+	 * @param glob The glob, using <code>/</code> as separator.
+	 * @throws IllegalArgumentException If the glob is invalid.
+	 */
+	public void addGlob(File baseDirectory, String glob) {
+		Node node = getNode(baseDirectory.toPath());
+		if (node.globs == null) {
+			node.globs = new ArrayList<>();
+		}
+		node.globs.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+		globCount++;
+	}
+
+	private Node getNode(Path path) {
+		Node node = root.children.computeIfAbsent(getRootKey(path), k -> new Node());
+		for (Path name : path) {
+			node = node.children.computeIfAbsent(name.toString(), k -> new Node());
+		}
+		return node;
+	}
+
+	private static String getRootKey(Path path) {
+		Path pathRoot = path.getRoot();
+		return pathRoot == null ? "" : pathRoot.toString();
+	}
+
+	/**
+	 * Checks if a file is excluded.
+	 *
+	 * @param file The canonical file.
+	 * @return <code>true</code> if the file is excluded.
+	 */
+	public boolean isExcluded(File file) {
+		Path path = file.toPath();
+		int nameCount = path.getNameCount();
+		Node node = root.children.get(getRootKey(path));
+		int depth = 0;
+		while (node != null) {
+			if (node.subtree) {
+				return true;
+			}
+			if (node.globs != null && matchesGlob(node.globs, path, depth)) {
+				return true;
+			}
+			if (depth == nameCount) {
+				return node.file;
+			}
+			node = node.children.get(path.getName(depth++).toString());
+		}
+		return false;
+	}
+
+	private static boolean matchesGlob(List<PathMatcher> globs, Path path, int depth) {
+		// Matching a parent directory excludes its content too
+		for (int end = depth + 1; end <= path.getNameCount(); end++) {
+			Path relativePath = path.subpath(depth, end);
+			for (PathMatcher glob : globs) {
+				if (glob.matches(relativePath)) {
+					return true;
+				}
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks if there are no rules at all.
+	 *
+	 * @return <code>true</code> if nothing is excluded.
+	 */
+	public boolean isEmpty() {
+		return fileCount == 0 && directoryCount == 0 && globCount == 0;
+	}
+
+	@Override
+	public String toString() {
+		return fileCount + " files, " + directoryCount + " directories and " + globCount + " globs";
+	}
+}
@@ -0,0 +1,133 @@
+package org.the4thlaw.bm3;
+
+import java.io.File;
+import java.nio.file.Path;
+
+/**
+ * Something which happened to a file of the library during a sync.
+ * <p>
+ * Immutable.
+ */
+public final class FileEvent {
+	/**
+	 * The types of events.
+	 */
+	public enum Type {
+		/** The file is part of an included playlist and will be synced. */
+		DISCOVERED,
+		/** The file is part of an included playlist but is excluded. */
+		EXCLUDED,
+		/** The file is up-to-date on a target, or was copied to it by an interrupted run, and wasn't copied. */
+		SKIPPED_UNCHANGED,
+		/** The file was written to a target. */
+		COPIED,
+		/** A cover was embedded in the file while preparing it, once for all targets. */
+		COVER_EMBEDDED,
+		/** The file couldn't be synced to at least one target. */
+		FAILED
+	}
+
+	private final Type type;
+	private final File sourceFile;
+	private final Path targetDirectory;
+	private final long bytes;
+	private final long durationNanos;
+	private final Throwable cause;
+
+	private FileEvent(Type type, File sourceFile, Path targetDirectory, long bytes, long durationNanos,
+			Throwable cause) {
+		this.type = type;
+		this.sourceFile = sourceFile;
+		this.targetDirectory = targetDirectory;
+		this.bytes = bytes;
+		this.durationNanos = durationNanos;
+		this.cause = cause;
+	}
+
+	static FileEvent discovered(File sourceFile) {
+		return new FileEvent(Type.DISCOVERED, sourceFile, null, 0, 0, null);
+	}
+
+	static FileEvent excluded(File sourceFile) {
+		return new FileEvent(Type.EXCLUDED, sourceFile, null, 0, 0, null);
+	}
+
+	static FileEvent skippedUnchanged(File sourceFile, Target target) {
+		return new FileEvent(Type.SKIPPED_UNCHANGED, sourceFile, target.getDirectory(), 0, 0, null);
+	}
+
+	static FileEvent copied(File sourceFile, Target target, long bytes, long durationNanos) {
+		return new FileEvent(Type.COPIED, sourceFile, target.getDirectory(), bytes, durationNanos, null);
+	}
+
+	static FileEvent coverEmbedded(File sourceFile, long coverBytes, long durationNanos) {
+		return new FileEvent(Type.COVER_EMBEDDED, sourceFile, null, coverBytes, durationNanos, null);
+	}
+
+	static FileEvent failed(File sourceFile, Throwable cause) {
+		return new FileEvent(Type.FAILED, sourceFile, null, 0, 0, cause);
+	}
+
+	public Type getType() {
+		return type;
+	}
+
+	/**
+	 * Gets the file of the library.
+	 *
+	 * @return The canonical file.
+	 */
+	public File getSourceFile() {
+		return sourceFile;
+	}
+
+	/**
+	 * Gets the target the event happened on.
+	 *
+	 * @return The target directory, <code>null</code> if the event isn't specific to a target.
+	 */
+	public Path getTargetDirectory() {
+		return targetDirectory;
+	}
+
+	/**
+	 * Gets the number of bytes involved: written to the target for {@link Type#COPIED}, size of the rendered cover for
+	 * {@link Type#COVER_EMBEDDED}.
+	 *
+	 * @return The number of bytes, 0 for other events.
+	 */
+	public long getBytes() {
+		return bytes;
+	}
+
+	/**
+	 * Gets the time spent: writing to the target for {@link Type#COPIED}, rewriting the tag for
+	 * {@link Type#COVER_EMBEDDED}.
+	 *
+	 * @return The duration in nanoseconds, 0 for other events.
+	 */
+	public long getDurationNanos() {
+		return durationNanos;
+	}
+
+	/**
+	 * Gets the cause of a {@link Type#FAILED} event.
+	 *
+	 * @return The cause, <code>null</code> for other events.
+	 */
+	public Throwable getCause() {
+		return cause;
+	}
+
+	@Override
+	public String toString() {
+		StringBuilder sb = new StringBuilder().append(type).append(' ').append(sourceFile);
+		if (targetDirectory != null) {
+			sb.append(" on ").append(targetDirectory);
+		}
+		if (cause != null) {
+			sb.append(": ").append(cause.getMessage());
+		}
+		return sb.toString();
+	}
+}
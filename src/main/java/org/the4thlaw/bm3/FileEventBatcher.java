@@ -0,0 +1,133 @@
+package org.the4thlaw.bm3;
+
+import java.io.Closeable;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Collects file events from any thread and delivers them to a listener in batches.
+ * <p>
+ * A batch is delivered by the thread which fills it, or by a timer once it has waited for a while, so that the last
+ * events before a long copy aren't held back until it ends. The listener is called outside the lock of the batch, so
+ * that a slow listener doesn't block the threads firing events: if a batch is being delivered, the others keep
+ * collecting events until the next delivery.
+ * <p>
+ * Thread-safe.
+ */
+class FileEventBatcher implements Closeable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(FileEventBatcher.class);
+	private static final int MAX_BATCH_SIZE = 512;
+	private static final long MAX_DELAY_NANOS = TimeUnit.MILLISECONDS.toNanos(100);
+
+	private final FileEventListener listener;
+	/** Held while delivering, so that batches are delivered one at a time and in order. */
+	private final ReentrantLock deliveryLock = new ReentrantLock();
+	private final ScheduledExecutorService timer;
+	private List<FileEvent> batch = new ArrayList<>();
+	private long lastDelivery = System.nanoTime();
+
+	/**
+	 * Creates a batcher, which must be closed once the events have all been fired.
+	 *
+	 * @param listener The listener, <code>null</code> to drop all events.
+	 */
+	FileEventBatcher(FileEventListener listener) {
+		this.listener = listener;
+		if (listener == null) {
+			timer = null;
+			return;
+		}
+		timer = Executors.newSingleThreadScheduledExecutor(r -> {
+			Thread thread = new Thread(r, "bm3-file-events");
+			thread.setDaemon(true);
+			return thread;
+		});
+		timer.scheduleWithFixedDelay(() -> {
+			if (isDue()) {
+				deliver(false);
+			}
+		}, MAX_DELAY_NANOS, MAX_DELAY_NANOS, TimeUnit.NANOSECONDS);
+	}
+
+	/**
+	 * Adds an event, delivering the batch if it is full or if the previous one was delivered a while ago.
+	 *
+	 * @param event The event.
+	 */
+	void fire(FileEvent event) {
+		if (listener == null) {
+			return;
+		}
+		boolean due;
+		synchronized (this) {
+			batch.add(event);
+			due = batch.size() >= MAX_BATCH_SIZE || System.nanoTime() - lastDelivery >= MAX_DELAY_NANOS;
+		}
+		if (due) {
+			deliver(false);
+		}
+	}
+
+	private synchronized boolean isDue() {
+		return !batch.isEmpty() && System.nanoTime() - lastDelivery >= MAX_DELAY_NANOS;
+	}
+
+	/**
+	 * Delivers the pending events, if any, waiting for the batch being delivered if there is one.
+	 */
+	void flush() {
+		if (listener != null) {
+			deliver(true);
+		}
+	}
+
+	/**
+	 * Stops the timer and delivers the pending events.
+	 */
+	@Override
+	public void close() {
+		if (timer != null) {
+			timer.shutdown();
+		}
+		flush();
+	}
+
+	/**
+	 * Delivers the pending events.
+	 *
+	 * @param wait <code>true</code> to wait for the batch being delivered, <code>false</code> to leave the events to
+	 *            the next delivery in that case.
+	 */
+	private void deliver(boolean wait) {
+		if (wait) {
+			deliveryLock.lock();
+		} else if (!deliveryLock.tryLock()) {
+			return;
+		}
+		try {
+			List<FileEvent> delivered;
+			synchronized (this) {
+				if (batch.isEmpty()) {
+					return;
+				}
+				delivered = batch;
+				batch = new ArrayList<>();
+				lastDelivery = System.nanoTime();
+			}
+			try {
+				listener.onEvents(delivered);
+			} catch (RuntimeException e) {
+				LOGGER.warn("A file event listener failed, its events are lost", e);
+			}
+		} finally {
+			deliveryLock.unlock();
+		}
+	}
+}
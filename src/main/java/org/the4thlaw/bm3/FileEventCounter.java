@@ -0,0 +1,60 @@
+package org.the4thlaw.bm3;
+
+import java.util.ArrayList;
+import java.util.EnumMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Counts file events by type, for progress displays.
+ * <p>
+ * Thread-safe.
+ */
+public class FileEventCounter implements FileEventListener {
+	private final Map<FileEvent.Type, Integer> counts = new EnumMap<>(FileEvent.Type.class);
+
+	@Override
+	public synchronized void onEvents(List<FileEvent> events) {
+		for (FileEvent event : events) {
+			counts.merge(event.getType(), 1, Integer::sum);
+		}
+	}
+
+	/**
+	 * Gets the number of events of a type.
+	 *
+	 * @param type The type.
+	 * @return The number of events.
+	 */
+	public synchronized int getCount(FileEvent.Type type) {
+		return counts.getOrDefault(type, 0);
+	}
+
+	/**
+	 * Forgets all events.
+	 */
+	public synchronized void clear() {
+		counts.clear();
+	}
+
+	/**
+	 * Formats the counts of the copies, skipped, excluded and failed files.
+	 *
+	 * @return The formatted counts, empty if there were no such events.
+	 */
+	public synchronized String format() {
+		List<String> parts = new ArrayList<>();
+		append(parts, FileEvent.Type.COPIED, "copied");
+		append(parts, FileEvent.Type.SKIPPED_UNCHANGED, "unchanged");
+		append(parts, FileEvent.Type.EXCLUDED, "excluded");
+		append(parts, FileEvent.Type.FAILED, "failed");
+		return String.join(", ", parts);
+	}
+
+	private void append(List<String> parts, FileEvent.Type type, String label) {
+		int count = counts.getOrDefault(type, 0);
+		if (count > 0) {
+			parts.add(count + " " + label);
+		}
+	}
+}
@@ -0,0 +1,25 @@
+package org.the4thlaw.bm3;
+
+import java.util.List;
+
+/**
+ * Receives the events of the files of the library during a sync.
+ * <p>
+ * Events are delivered in batches, so that a sync of thousands of small files doesn't call the listener for each of
+ * them. A batch is delivered once it is full or once it has waited for a short while, so that a slow sync still
+ * reports each file promptly. Batches are delivered one at a time, in order, from the threads of the sync or from a
+ * timer thread: a listener must return quickly and doesn't need to be thread-safe with respect to itself.
+ * <p>
+ * File events complement the {@link ProgressReporter} of the sync rather than replace it: the reporter follows the
+ * phases of the sync, its overall progress and its error messages, which aren't tied to a file, while file events
+ * tell what happened to each file. The command line and the GUI use both.
+ */
+@FunctionalInterface
+public interface FileEventListener {
+	/**
+	 * Handles a batch of events.
+	 *
+	 * @param events The events, in the order in which they happened. The list must not be kept after this call.
+	 */
+	void onEvents(List<FileEvent> events);
+}
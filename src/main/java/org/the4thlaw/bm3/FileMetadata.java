@@ -0,0 +1,198 @@
+package org.the4thlaw.bm3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Function;
+
+/**
+ * The metadata of a source file and of its copies on each target, resolved once so that the copy stage doesn't need
+ * any further lookup.
+ */
+class FileMetadata {
+	/**
+	 * The state of the copy of a file on a target.
+	 */
+	static class TargetState {
+		private final Path file;
+		private final boolean exists;
+		private final long size;
+		private final long lastModified;
+		private final Path canonicalPath;
+
+		TargetState(Path file) throws IOException {
+			this.file = file;
+			BasicFileAttributes attributes = readAttributes(file);
+			this.exists = attributes != null;
+			this.size = exists ? attributes.size() : 0;
+			this.lastModified = exists ? attributes.lastModifiedTime().toMillis() : 0;
+			this.canonicalPath = exists ? file.toRealPath() : null;
+		}
+
+		/**
+		 * Reads the attributes of a file in a single lookup.
+		 *
+		 * @return The attributes, <code>null</code> if the file doesn't exist.
+		 */
+		private static BasicFileAttributes readAttributes(Path path) throws IOException {
+			try {
+				return Files.readAttributes(path, BasicFileAttributes.class);
+			} catch (NoSuchFileException e) {
+				return null;
+			}
+		}
+
+		/**
+		 * Creates the state of a file from a listing of its directory.
+		 *
+		 * @param file The file.
+		 * @param size The size of the file.
+		 * @param lastModified The modification time of the file.
+		 * @param canonicalPath The canonical path of the file, <code>null</code> if it doesn't exist.
+		 */
+		TargetState(Path file, long size, long lastModified, Path canonicalPath) {
+			this.file = file;
+			this.size = size;
+			this.lastModified = lastModified;
+			this.exists = canonicalPath != null;
+			this.canonicalPath = canonicalPath;
+		}
+
+		Path getFile() {
+			return file;
+		}
+
+		boolean exists() {
+			return exists;
+		}
+
+		/**
+		 * Gets the size of the file.
+		 *
+		 * @return The size, 0 if the file doesn't exist.
+		 */
+		long getSize() {
+			return size;
+		}
+
+		long getLastModified() {
+			return lastModified;
+		}
+
+		Path getCanonicalPath() {
+			return canonicalPath;
+		}
+	}
+
+	private final File sourceFile;
+	private final String relativePath;
+	private final long size;
+	private final long lastModified;
+	private final Cover cover;
+	private final long coverLastModified;
+	private final Path canonicalSource;
+	private final long coverLookupNanos;
+	private final Map<Target, TargetState> targetStates = new HashMap<>();
+
+	private FileMetadata(File sourceFile, String relativePath, Function<File, Cover> coverLookup) throws IOException {
+		this.sourceFile = sourceFile;
+		this.relativePath = relativePath;
+		BasicFileAttributes attributes = Files.readAttributes(sourceFile.toPath(), BasicFileAttributes.class);
+		this.size = attributes.size();
+		this.lastModified = attributes.lastModifiedTime().toMillis();
+		long lookupStart = System.nanoTime();
+		this.cover = coverLookup.apply(sourceFile);
+		this.coverLookupNanos = System.nanoTime() - lookupStart;
+		this.coverLastModified = cover == null ? 0 : cover.lastModified();
+		this.canonicalSource = sourceFile.toPath().toRealPath();
+	}
+
+	/**
+	 * Creates the metadata of a file from lookups shared by the files of its directory.
+	 *
+	 * @param sourceFile The source file.
+	 * @param relativePath The path of the file relative to the source and target directories.
+	 * @param size The size of the file.
+	 * @param lastModified The modification time of the file.
+	 * @param cover The cover of the file, <code>null</code> if there is none.
+	 * @param coverLastModified The modification time of the cover, 0 if there is none.
+	 * @param coverLookupNanos The time spent looking up the cover.
+	 * @param canonicalSource The canonical path of the file.
+	 */
+	FileMetadata(File sourceFile, String relativePath, long size, long lastModified, Cover cover,
+			long coverLastModified, long coverLookupNanos, Path canonicalSource) {
+		this.sourceFile = sourceFile;
+		this.relativePath = relativePath;
+		this.size = size;
+		this.lastModified = lastModified;
+		this.cover = cover;
+		this.coverLookupNanos = coverLookupNanos;
+		this.coverLastModified = coverLastModified;
+		this.canonicalSource = canonicalSource;
+	}
+
+	/**
+	 * Resolves the metadata of a file.
+	 *
+	 * @param sourceFile The source file.
+	 * @param relativePath The path of the file relative to the source and target directories.
+	 * @param targets The targets.
+	 * @param coverLookup Finds the cover of the file, <code>null</code> if there is none.
+	 * @return The metadata.
+	 * @throws IOException If a lookup fails.
+	 */
+	static FileMetadata resolve(File sourceFile, String relativePath, List<Target> targets,
+			Function<File, Cover> coverLookup) throws IOException {
+		FileMetadata metadata = new FileMetadata(sourceFile, relativePath, coverLookup);
+		for (Target target : targets) {
+			metadata.targetStates.put(target, new TargetState(target.getDirectory().resolve(relativePath)));
+		}
+		return metadata;
+	}
+
+	File getSourceFile() {
+		return sourceFile;
+	}
+
+	String getRelativePath() {
+		return relativePath;
+	}
+
+	long getSize() {
+		return size;
+	}
+
+	long getLastModified() {
+		return lastModified;
+	}
+
+	Cover getCover() {
+		return cover;
+	}
+
+	long getCoverLastModified() {
+		return coverLastModified;
+	}
+
+	Path getCanonicalSource() {
+		return canonicalSource;
+	}
+
+	long getCoverLookupNanos() {
+		return coverLookupNanos;
+	}
+
+	TargetState getTargetState(Target target) {
+		return targetStates.get(target);
+	}
+
+	void setTargetState(Target target, TargetState targetState) {
+		targetStates.put(target, targetState);
+	}
+}
@@ -2,110 +2,474 @@ package org.the4thlaw.bm3;
 
 import java.io.File;
 import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.management.ManagementFactory;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.FileVisitResult;
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileTime;
 import java.util.ArrayList;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.TreeSet;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiConsumer;
+import java.util.function.Function;
 import java.util.regex.Pattern;
 import java.util.stream.Collectors;
+import java.util.zip.CRC32;
 
 import org.apache.commons.io.FileUtils;
 import org.apache.commons.io.FilenameUtils;
-import org.apache.commons.io.filefilter.TrueFileFilter;
 import org.apache.commons.lang3.time.StopWatch;
 import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
+import org.the4thlaw.bm3.FileMetadata.TargetState;
+import org.the4thlaw.bm3.LibraryCache.ResolvedEntry;
+import org.the4thlaw.bm3.SlowFileLog.FileTiming;
+import org.the4thlaw.bm3.SlowFileLog.Phase;
 
 /**
- * Not thread-safe.
+ * Not thread-safe: a processor runs one sync at a time. Independent processors may run concurrently, see
+ * {@link SyncJob}.
  */
 public class FileProcessor {
 	private static final Logger LOGGER = LoggerFactory.getLogger(FileProcessor.class);
+	/**
+	 * The default number of files reported in the slow file log.
+	 */
+	public static final int DEFAULT_SLOW_FILE_LOG_SIZE = 10;
+	/**
+	 * The suffix of the temporary files used while writing to the target.
+	 */
+	static final String TEMP_SUFFIX = ".bm3tmp";
+	private static final long CLUSTER_SIZE = 32 * 1024;
 	private static final Pattern EXCLUDE_PATTERN = Pattern.compile("^BM3.Exclu(sion|de)s?.*", Pattern.CASE_INSENSITIVE);
 
-	private final File sourceDirectory;
-	private final File targetDirectory;
-	private final File playlistDirectory;
-	private final boolean useSlashes;
+	private final Path sourceDirectory;
+	private final List<Target> targets;
+	private final Path playlistDirectory;
 	private final boolean syncMode;
 	private final boolean dryRun;
 
 	private final SummaryStatistics sourceFileTotalStats = new SummaryStatistics();
-	private final SummaryStatistics targetFileTotalStats = new SummaryStatistics();
-	private final SummaryStatistics syncSavedStats = new SummaryStatistics();
-	private final SummaryStatistics syncRemovedStats = new SummaryStatistics();
+	private final AtomicInteger resumedFiles = new AtomicInteger();
+	private int metadataParallelism;
+	private MetadataResolver metadataResolver;
+	/** Metadata resolved by the space check, reused by the copy stage. */
+	private final Map<File, FileMetadata> metadataCache = new ConcurrentHashMap<>();
 	private final StopWatch stopWatch = new StopWatch();
+	/** When the first byte was copied during this run, 0 if none was. */
+	private final AtomicLong firstWriteNanos = new AtomicLong();
+	private SlowFileLog slowFileLog = new SlowFileLog(DEFAULT_SLOW_FILE_LOG_SIZE);
+	private boolean spaceCheck = true;
+	private Path stagingDirectory;
+	private LibraryCache libraryCache;
+	private volatile boolean cancelled;
+	private IoThrottle throttle = IoThrottle.UNLIMITED;
+	private boolean autoTune;
+	private boolean checksums;
+	private boolean verify;
+	private boolean repair;
+	private boolean playlistsFirst;
+	private boolean deduplicate;
+	private List<String> priorityPlaylists = Collections.emptyList();
+	private StagingMirror stagingMirror;
+	private FileEventListener fileEventListener;
+	private PlaylistFinder playlistFinder = new PlaylistFinder(PlaylistFinder.DEFAULT_PARALLELISM);
+	private FileEventBatcher events = new FileEventBatcher(null);
+	/** Target sizes estimated by the space check, reused by the dry run statistics. */
+	private final Map<File, Long> sizeEstimates = new ConcurrentHashMap<>();
+	/** The sizes of the covers rendered during this run, so that the space check renders each cover once at most. */
+	private final Map<Path, Integer> renderedCoverSizes = new ConcurrentHashMap<>();
 
-	public FileProcessor(File sourceDirectory, File targetDirectory, boolean syncMode) {
+	public FileProcessor(Path sourceDirectory, Path targetDirectory, boolean syncMode) {
 		this(sourceDirectory, targetDirectory, null, true, syncMode, false);
 	}
 
-	public FileProcessor(File sourceDirectory, File targetDirectory, File playlistDirectory, boolean useSlashes, boolean syncMode, boolean dryRun) {
-		if (!sourceDirectory.isDirectory()) {
+	public FileProcessor(Path sourceDirectory, Path targetDirectory, Path playlistDirectory, boolean useSlashes, boolean syncMode, boolean dryRun) {
+		this(sourceDirectory, Collections.singletonList(new Target(targetDirectory, useSlashes)), playlistDirectory,
+				syncMode, dryRun);
+	}
+
+	/**
+	 * Creates a processor copying the library to several targets in a single pass. Playlists are parsed, source files
+	 * are read and covers are rendered once for all targets.
+	 * <p>
+	 * The library and its playlists must be on the default file system, the targets may be on any file system.
+	 * 
+	 * @param sourceDirectory The library.
+	 * @param targets The targets.
+	 * @param playlistDirectory The directory where playlists are searched, <code>null</code> to search the library.
+	 * @param syncMode <code>true</code> to only copy files which changed since the previous sync of each target.
+	 * @param dryRun <code>true</code> to leave the targets untouched.
+	 */
+	public FileProcessor(Path sourceDirectory, List<Target> targets, Path playlistDirectory, boolean syncMode,
+			boolean dryRun) {
+		if (!Files.isDirectory(sourceDirectory)) {
 			throw new IllegalArgumentException("Not a directory or doesn't exist: " + sourceDirectory);
 		}
-		
+		if (sourceDirectory.getFileSystem() != FileSystems.getDefault() || (playlistDirectory != null
+				&& playlistDirectory.getFileSystem() != FileSystems.getDefault())) {
+			throw new IllegalArgumentException("The library must be on the default file system: " + sourceDirectory);
+		}
+		if (targets.isEmpty()) {
+			throw new IllegalArgumentException("At least one target is required");
+		}
+
 		this.sourceDirectory = sourceDirectory;
-		this.targetDirectory = targetDirectory;
+		this.targets = new ArrayList<>(targets);
 		if (playlistDirectory == null) {
 			this.playlistDirectory = sourceDirectory;
 		} else {
 			this.playlistDirectory = playlistDirectory;
 		}
-		this.useSlashes = useSlashes;
 		this.syncMode = syncMode;
 		this.dryRun = dryRun;
 	}
 
+	/**
+	 * Sets the number of slowest files to report at the end of the run.
+	 * 
+	 * @param size The number of files, zero to disable the report.
+	 */
+	public void setSlowFileLogSize(int size) {
+		slowFileLog = new SlowFileLog(size);
+	}
+
+	/**
+	 * Enables or disables the check of the free space on the target before making any change.
+	 * 
+	 * @param spaceCheck <code>true</code> to check the free space (the default).
+	 */
+	public void setSpaceCheck(boolean spaceCheck) {
+		this.spaceCheck = spaceCheck;
+	}
+
+	/**
+	 * Sets the directory of the local staging mirror, where files are prepared once for all the devices they are
+	 * synced to.
+	 * 
+	 * @param stagingDirectory The directory, or <code>null</code> to prepare files directly on the target (the
+	 *            default).
+	 * @see StagingMirror
+	 */
+	public void setStagingDirectory(Path stagingDirectory) {
+		this.stagingDirectory = stagingDirectory;
+	}
+
+	/**
+	 * Sets the number of file metadata lookups (existence, modification times, canonical paths...) which are issued
+	 * concurrently. This hides the latency of network file systems.
+	 * 
+	 * @param parallelism The number of concurrent lookups, 0 or 1 to resolve metadata sequentially (the default).
+	 */
+	public void setMetadataParallelism(int parallelism) {
+		this.metadataParallelism = parallelism;
+	}
+
+	/**
+	 * Sets a cache of library state (playlist listings, parsed playlists, cover lookups) shared with other runs.
+	 * 
+	 * @param libraryCache The cache, <code>null</code> to look everything up (the default).
+	 */
+	public void setLibraryCache(LibraryCache libraryCache) {
+		this.libraryCache = libraryCache;
+	}
+
+	/**
+	 * Sets the limits applied to reading the library and writing to the targets.
+	 * 
+	 * @param throttle The throttle, {@link IoThrottle#UNLIMITED} by default.
+	 */
+	public void setThrottle(IoThrottle throttle) {
+		this.throttle = throttle;
+	}
+
+	/**
+	 * Enables or disables the auto-tuning of the number of files written concurrently to each target and of the copy
+	 * buffer size. When disabled, files are copied one at a time.
+	 * 
+	 * @param autoTune <code>true</code> to tune the copy settings of each target while copying.
+	 * @see WriteTuner
+	 */
+	public void setAutoTune(boolean autoTune) {
+		this.autoTune = autoTune;
+	}
+
+	/**
+	 * Enables or disables the checksums of the files written to the targets. Checksums are computed while the files are
+	 * written and recorded on each target, so that it can be verified later on.
+	 * 
+	 * @param checksums <code>true</code> to record checksums.
+	 * @see ChecksumStore
+	 */
+	public void setChecksums(boolean checksums) {
+		this.checksums = checksums;
+	}
+
+	/**
+	 * Enables or disables the verification of the files written during a run. Once all files are copied, they are read
+	 * back from each target and compared with their checksum. Implies {@link #setChecksums(boolean)}.
+	 * 
+	 * @param verify <code>true</code> to verify the files written.
+	 * @param repair <code>true</code> to copy the files which fail verification again, <code>false</code> to only
+	 *            report them.
+	 * @see Verifier
+	 */
+	public void setVerify(boolean verify, boolean repair) {
+		this.verify = verify;
+		this.repair = repair;
+	}
+
+	/**
+	 * Sets the order in which files are copied. By default, files are copied in path order and all playlists are
+	 * written before copying. Otherwise, files are copied so that whole playlists are completed one after another,
+	 * and each playlist is written as soon as all its files are on the targets, which makes a long copy usable early.
+	 * 
+	 * @param playlistsFirst <code>true</code> to copy playlist by playlist, the smallest first.
+	 * @param priorityPlaylists The names of the playlists to complete before any other, in order, may be empty.
+	 * @see PlaylistSchedule
+	 */
+	public void setPlaylistOrder(boolean playlistsFirst, List<String> priorityPlaylists) {
+		this.playlistsFirst = playlistsFirst;
+		this.priorityPlaylists = priorityPlaylists;
+	}
+
+	/**
+	 * Enables or disables the copy of identical files once. Files of the library which are byte-identical, such as
+	 * the tracks of a compilation which are also in their album, are only copied once, and all playlists refer to the
+	 * copied file. This reads the files which have the same size as another one, the hashes are kept in the library
+	 * cache if there is one.
+	 * 
+	 * @param deduplicate <code>true</code> to copy identical files once.
+	 * @see DuplicateFinder
+	 */
+	public void setDeduplicate(boolean deduplicate) {
+		this.deduplicate = deduplicate;
+	}
+
+	/**
+	 * Sets the finder searching for playlists, to prune the search. Not used with a library cache, which keeps track
+	 * of the playlists itself.
+	 * 
+	 * @param playlistFinder The finder.
+	 */
+	public void setPlaylistFinder(PlaylistFinder playlistFinder) {
+		this.playlistFinder = playlistFinder;
+	}
+
+	/**
+	 * Sets the listener of the events of each file, delivered in batches from the threads of the run. This is more
+	 * detailed than the progress reported to a {@link ProgressReporter}.
+	 * 
+	 * @param listener The listener, <code>null</code> for none.
+	 */
+	public void setFileEventListener(FileEventListener listener) {
+		this.fileEventListener = listener;
+	}
+
+	/**
+	 * Requests the cancellation of the current run, from any thread. The run stops between two files, after the file
+	 * being copied has been completely written, and {@link #process(ProgressReporter)} throws a
+	 * {@link CancellationException}. As with any interrupted run, the next sync resumes where this one stopped.
+	 */
+	public void cancel() {
+		cancelled = true;
+	}
+
+	private void checkCancelled() {
+		if (cancelled) {
+			throw new CancellationException("The run was cancelled");
+		}
+	}
+
 	public void process(ProgressReporter reporter) throws IOException {
 		resetStats();
+		metadataResolver = MetadataResolver.concurrent(metadataParallelism);
+		events = new FileEventBatcher(fileEventListener);
+		try {
+			processFiles(reporter);
+		} catch (CancellationException e) {
+			LOGGER.warn("Run cancelled");
+			reporter.setStatus("Cancelled");
+			throw e;
+		} finally {
+			events.close();
+			cancelled = false;
+			metadataResolver.close();
+			metadataResolver = null;
+			metadataCache.clear();
+			if (libraryCache != null) {
+				libraryCache.logStatistics();
+			}
+		}
+	}
 
+	private void processFiles(ProgressReporter reporter) throws IOException {
 		// Use a tree set to maximise cache hits for covers
 		Set<File> includedFiles = new TreeSet<>();
 		Map<String, List<File>> loadedPlaylists = new HashMap<>();
 
-		Collection<File> allPlaylists = getPlaylists(reporter);
 		Collection<File> excludedPlaylists = new ArrayList<>();
 		Collection<File> includedPlaylists = new ArrayList<>();
-		filterPlaylists(allPlaylists, excludedPlaylists, includedPlaylists);
-		LOGGER.info("Playlists found: {} ({} exclusion playlists, {} inclusion playlists)", allPlaylists.size(),
-				excludedPlaylists.size(), includedPlaylists.size());
+		FlightRecording.PhaseEvent phase = FlightRecording.phase("Find playlists");
+		try {
+			Collection<File> allPlaylists = getPlaylists(reporter);
+			filterPlaylists(allPlaylists, excludedPlaylists, includedPlaylists);
+			LOGGER.info("Playlists found: {} ({} exclusion playlists, {} inclusion playlists)", allPlaylists.size(),
+					excludedPlaylists.size(), includedPlaylists.size());
+		} finally {
+			phase.commit();
+		}
 
-		Set<File> excludedFiles = loadExclusions(reporter, excludedPlaylists);
-		findFiles(reporter, excludedFiles, includedPlaylists, includedFiles, loadedPlaylists);
-		if (syncMode) {
-			// Remove before copying to make room
-			removeFiles(reporter, includedFiles);
+		phase = FlightRecording.phase("Read playlists");
+		try {
+			ExclusionRules exclusions = loadExclusions(reporter, excludedPlaylists);
+			findFiles(reporter, exclusions, includedPlaylists, includedFiles, loadedPlaylists);
+		} finally {
+			phase.commit();
+		}
+		if (deduplicate) {
+			phase = FlightRecording.phase("Find duplicates");
+			try {
+				removeDuplicates(reporter, includedFiles, loadedPlaylists);
+			} finally {
+				phase.commit();
+			}
+		}
+		// Opened before the space check, which measures the files already prepared
+		stagingMirror = stagingDirectory == null || dryRun ? null : StagingMirror.open(stagingDirectory);
+		try {
+			phase = FlightRecording.phase("Check targets");
+			try {
+				for (Target target : targets) {
+					if (syncMode) {
+						target.setObsoleteFiles(findObsoleteAudio(reporter, target, includedFiles));
+					}
+					if (spaceCheck) {
+						checkFreeSpace(reporter, target, includedFiles);
+					}
+				}
+			} finally {
+				phase.commit();
+			}
+			phase = FlightRecording.phase("Clean up targets");
+			try {
+				for (Target target : targets) {
+					checkCancelled();
+					if (syncMode) {
+						// Remove before copying to make room
+						removeFiles(reporter, target);
+					}
+					if (!playlistsFirst) {
+						recreatePlaylists(reporter, target, loadedPlaylists);
+					}
+				}
+			} finally {
+				phase.commit();
+			}
+			for (Target target : targets) {
+				target.setJournal(CopyJournal.open(target.getDirectory(), sourceDirectory, dryRun));
+				// Opened even without checksums so that rewritten files don't keep a stale checksum
+				target.setChecksums(ChecksumStore.open(target.getDirectory(), dryRun));
+			}
+			phase = FlightRecording.phase("Copy files");
+			try {
+				copyFiles(reporter, includedFiles, loadedPlaylists);
+			} finally {
+				phase.commit();
+			}
+			if (verify && !dryRun) {
+				phase = FlightRecording.phase("Verify targets");
+				try {
+					verifyTargets(reporter);
+				} finally {
+					phase.commit();
+				}
+			}
+			for (Target target : targets) {
+				target.getJournal().complete();
+			}
+		} finally {
+			List<String> includedPaths = includedFiles.stream().map(this::getRelativePath)
+					.collect(Collectors.toList());
+			for (Target target : targets) {
+				if (target.getJournal() != null) {
+					target.getJournal().close();
+				}
+				if (target.getChecksums() != null) {
+					target.getChecksums().retainAll(includedPaths);
+					target.getChecksums().save();
+				}
+			}
+			if (stagingMirror != null) {
+				retainStagedFiles(includedPaths);
+				stagingMirror.close();
+			}
 		}
-		recreatePlaylists(reporter, includedFiles, loadedPlaylists);
-		copyFiles(reporter, includedFiles);
 
 		reporter.setStatus("Done");
 		LOGGER.info("Process complete");
+		// Deliver the last events before the reporter prints its summary
+		events.flush();
 		reporter.endTracking();
 		outputStatistics();
 	}
 
-	private void removeFiles(ProgressReporter reporter, Set<File> includedFiles) {
-		removePlaylists();
-		removeObsoleteAudio(reporter, includedFiles);
+	/**
+	 * Forgets the prepared files of the staging mirror whose source is no longer part of the library. The files which
+	 * weren't synced by this run are kept as long as their source exists, since the mirror may be shared by syncs of
+	 * other playlists.
+	 * 
+	 * @param includedPaths The paths of the files synced by this run, relative to the library.
+	 */
+	private void retainStagedFiles(Collection<String> includedPaths) {
+		Set<String> keptPaths = new HashSet<>(includedPaths);
+		for (String stagedPath : stagingMirror.getPaths()) {
+			if (!keptPaths.contains(stagedPath) && Files.exists(sourceDirectory.resolve(stagedPath))) {
+				keptPaths.add(stagedPath);
+			}
+		}
+		stagingMirror.retainAll(keptPaths);
+	}
+
+	private void removeFiles(ProgressReporter reporter, Target target) throws IOException {
+		removePlaylists(target);
+		removeObsoleteAudio(reporter, target);
 	}
 
-	private boolean deleteFile(File f) {
+	private boolean deleteFile(Path f) {
 		if (dryRun) {
 			return true;
 		}
 		try {
-			Files.delete(f.toPath());
+			Files.delete(f);
 		} catch (IOException e) {
 			LOGGER.warn("Failed to delete {}", f, e);
 			return false;
@@ -113,41 +477,69 @@ public class FileProcessor {
 		return true;
 	}
 
-	private void removePlaylists() {
-		File plsDir = getTargetPlaylistDirectory();
-		File[] playlists = plsDir.listFiles((d, n) -> n.endsWith(".m3u"));
-		if (playlists == null) {
-			playlists = new File[0];
+	private void removePlaylists(Target target) throws IOException {
+		Path plsDir = getTargetPlaylistDirectory(target);
+		List<Path> playlists = new ArrayList<>();
+		if (Files.isDirectory(plsDir)) {
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(plsDir, "*.m3u")) {
+				for (Path pls : stream) {
+					playlists.add(pls);
+				}
+			}
 		}
-		LOGGER.debug("Found {} existing playlists which will be removed", playlists.length);
+		LOGGER.debug("Found {} existing playlists which will be removed", playlists.size());
 		if (!dryRun) {
-			for (File pls : playlists) {
+			for (Path pls : playlists) {
 				deleteFile(pls);
 			}
 		}
 	}
 
-	private void removeObsoleteAudio(ProgressReporter reporter, Set<File> includedFiles) {
+	private Collection<Path> findObsoleteAudio(ProgressReporter reporter, Target target, Set<File> includedFiles)
+			throws IOException {
+		Path targetPath = target.getDirectory();
 		reporter.setStatus("Finding de-synced files to remove");
 		reporter.setProgressUnknown(true);
-		Path sourcePath = sourceDirectory.toPath();
 		// Build the set of relative file names
-		Set<String> includedPaths = includedFiles.stream().map(f -> sourcePath.relativize(f.toPath()).toString())
-				.collect(Collectors.toSet());
+		Set<String> includedPaths = includedFiles.stream().map(this::getRelativePath).collect(Collectors.toSet());
 		// List the files which have been removed from the source data
-		NotInSourceFileFilter filter = new NotInSourceFileFilter(includedPaths, targetDirectory.toPath());
-		Collection<File> filesToRemove = FileUtils.listFiles(targetDirectory, filter, TrueFileFilter.INSTANCE);
-		// Actually remove those files from destination
+		NotInSourceFileFilter filter = new NotInSourceFileFilter(includedPaths, targetPath);
+		Collection<Path> filesToRemove = new ArrayList<>();
+		if (Files.isDirectory(targetPath)) {
+			Files.walkFileTree(targetPath, new SimpleFileVisitor<Path>() {
+				@Override
+				public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) throws IOException {
+					if (attrs.isRegularFile() && filter.accept(file)) {
+						filesToRemove.add(file);
+					}
+					return FileVisitResult.CONTINUE;
+				}
+
+				@Override
+				public FileVisitResult visitFileFailed(Path file, IOException exc) {
+					LOGGER.warn("Cannot check whether {} is de-synced", file, exc);
+					return FileVisitResult.CONTINUE;
+				}
+			});
+		}
 		LOGGER.info("There are {} de-synced files to remove", filesToRemove.size());
 		reporter.setProgressUnknown(false);
+		return filesToRemove;
+	}
+
+	private void removeObsoleteAudio(ProgressReporter reporter, Target target) {
+		Collection<Path> filesToRemove = target.getObsoleteFiles();
+		// Actually remove those files from destination
+		reporter.setStatus("Removing de-synced files");
 		if (!filesToRemove.isEmpty()) {
 			AtomicInteger step = new AtomicInteger(0);
 			reporter.setStep(0);
 			reporter.setTotal(filesToRemove.size());
 			filesToRemove.stream().forEach(f -> {
-				long fileSize = f.length();
+				checkCancelled();
+				long fileSize = sizeOf(f);
 				if (deleteFile(f)) {
-					syncRemovedStats.addValue(fileSize);
+					target.getSyncRemovedStats().addValue(fileSize);
 				}
 				reporter.setStep(step.incrementAndGet());
 			});
@@ -156,6 +548,161 @@ public class FileProcessor {
 		// Some empty directories could be left behind but it's no big deal and it's a bit complex to prune them
 	}
 
+	/**
+	 * Checks that the target has enough room for the files to copy, before any change is made to it.
+	 * <p>
+	 * The size of each file to copy is estimated from its new tag, files which are up-to-date in sync mode are not
+	 * counted and the space freed by overwritten and de-synced files is taken into account.
+	 * 
+	 * @param reporter The progress reporter.
+	 * @param target The target to check.
+	 * @param includedFiles The files to copy.
+	 * @throws IOException If there is not enough space on the target.
+	 */
+	private void checkFreeSpace(ProgressReporter reporter, Target target, Set<File> includedFiles)
+			throws IOException {
+		LOGGER.info("Estimating the space required on the target...");
+		reporter.setStatus("Estimating the required space...");
+		reporter.setStep(0);
+		reporter.setTotal(includedFiles.size());
+
+		AtomicLong required = new AtomicLong();
+		AtomicInteger copiedFiles = new AtomicInteger();
+		AtomicInteger step = new AtomicInteger();
+		List<AlbumUnit> units = AlbumUnit.group(includedFiles, false);
+		metadataResolver.forEachResolved(units, this::getAlbumMetadata, (unit, unitMetadata, failure) -> {
+			if (failure != null) {
+				// Will be reported by the copy
+				LOGGER.debug("Cannot estimate the size of {}", unit, failure);
+				reporter.setStep(step.addAndGet(unit.getFiles().size()));
+				return;
+			}
+			for (FileMetadata metadata : unitMetadata) {
+				checkCancelled();
+				File sourceFile = metadata.getSourceFile();
+				TargetState targetState = metadata.getTargetState(target);
+				if (shouldCopy(metadata, targetState)) {
+					Long estimatedSize = sizeEstimates.get(sourceFile);
+					if (estimatedSize == null) {
+						estimatedSize = estimateTargetSize(metadata);
+						sizeEstimates.put(sourceFile, estimatedSize);
+					}
+					// Overwritten files give their space back
+					required.addAndGet(estimatedSize - targetState.getSize());
+					copiedFiles.incrementAndGet();
+				}
+			}
+			reporter.setStep(step.addAndGet(unitMetadata.size()));
+		});
+		for (Path obsoleteFile : target.getObsoleteFiles()) {
+			required.addAndGet(-sizeOf(obsoleteFile));
+		}
+		// On average, each new file wastes half a cluster, which are 32 KB on large FAT32 devices
+		required.addAndGet(copiedFiles.get() * (CLUSTER_SIZE / 2));
+		long requiredSpace = required.get();
+
+		long usable = getUsableSpace(target.getDirectory());
+		LOGGER.info("The target {} requires {} MB more and has {} MB available", target,
+				byteCountToMB(requiredSpace), byteCountToMB(usable));
+		if (requiredSpace > usable) {
+			String message = "Not enough space on the target " + target + ": " + byteCountToMB(requiredSpace)
+					+ " MB are required but only " + byteCountToMB(usable) + " MB are available";
+			if (!dryRun) {
+				LOGGER.error(message);
+				throw new IOException(message);
+			}
+			LOGGER.warn(message);
+			reporter.reportError(message);
+		}
+	}
+
+	/**
+	 * Gets the usable space for a directory which might not exist yet.
+	 * 
+	 * @param directory The directory.
+	 * @return The usable space of the closest existing ancestor.
+	 * @throws IOException If the space can't be read.
+	 */
+	private static long getUsableSpace(Path directory) throws IOException {
+		Path existing = directory.toAbsolutePath();
+		while (existing != null && !Files.exists(existing)) {
+			existing = existing.getParent();
+		}
+		return existing == null ? 0 : Files.getFileStore(existing).getUsableSpace();
+	}
+
+	/**
+	 * Gets the size of a file, like {@link File#length()} but through the file system provider.
+	 * 
+	 * @param file The file.
+	 * @return The size of the file, 0 if it doesn't exist or can't be read.
+	 */
+	private static long sizeOf(File file) {
+		return sizeOf(file.toPath());
+	}
+
+	private static long sizeOf(Path file) {
+		try {
+			return Files.size(file);
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Estimates the size of a file once copied, without writing anything. The tag of the file isn't parsed, so that the
+	 * copy doesn't pay for it twice. Files already prepared by the staging mirror are measured there. Otherwise only
+	 * the size of the cover is needed: each cover is rendered once for all the files and targets it is estimated for,
+	 * however the copy renders it again if the cover cache evicted it meanwhile.
+	 * 
+	 * @param metadata The metadata of the file to copy.
+	 * @return The estimated size.
+	 */
+	private long estimateTargetSize(FileMetadata metadata) {
+		Cover cover = metadata.getCover();
+		if (cover == null) {
+			return metadata.getSize();
+		}
+		if (stagingMirror != null) {
+			long preparedSize = stagingMirror.getPreparedSize(metadata.getRelativePath(),
+					StagingMirror.keyOf(metadata.getSourceFile().toPath(), metadata.getSize(),
+							metadata.getLastModified(), cover));
+			if (preparedSize >= 0) {
+				return preparedSize;
+			}
+		}
+		Integer coverSize = renderedCoverSizes.get(cover.getPath());
+		if (coverSize == null) {
+			byte[] coverBytes = renderCover(cover);
+			if (coverBytes == null) {
+				// Copied without cover
+				return metadata.getSize();
+			}
+			coverSize = coverBytes.length;
+		}
+		try {
+			return cover.estimateSize(metadata.getSourceFile().toPath(), coverSize);
+		} catch (IOException e) {
+			LOGGER.debug("Cannot estimate the size of {} with its cover, it will likely be copied as-is",
+					metadata.getSourceFile(), e);
+			return metadata.getSize();
+		}
+	}
+
+	/**
+	 * Renders a cover, recording its size for the space estimates.
+	 * 
+	 * @param cover The cover.
+	 * @return The rendered cover, <code>null</code> if it can't be rendered.
+	 */
+	private byte[] renderCover(Cover cover) {
+		byte[] coverBytes = renderCover(cover);
+		if (coverBytes != null) {
+			renderedCoverSizes.put(cover.getPath(), coverBytes.length);
+		}
+		return coverBytes;
+	}
+
 	/**
 	 * Filters input playlists in two sets: inclusions and exclusions.
 	 * 
@@ -184,9 +731,9 @@ public class FileProcessor {
 	 * @throws IOException If loading the playlist fails (this method does not throw exceptions if a file mentioned in a
 	 *             playlist does not exist).
 	 */
-	private static Set<File> loadExclusions(ProgressReporter reporter, Collection<File> excludedPlaylists)
+	private ExclusionRules loadExclusions(ProgressReporter reporter, Collection<File> excludedPlaylists)
 			throws IOException {
-		Set<File> exclusions = new HashSet<>();
+		ExclusionRules exclusions = new ExclusionRules();
 
 		int i = 0;
 		reporter.setStatus("Reading exclusions...");
@@ -197,31 +744,97 @@ public class FileProcessor {
 		for (File m3uFile : excludedPlaylists) {
 			String playlistName = m3uFile.getName();
 			LOGGER.info("Parsing exclusion playlist named \"{}\"", playlistName);
-			try (PlaylistReader m3uReader = new PlaylistReader(m3uFile)) {
-				int files = 0;
-				File musicFile;
-				while ((musicFile = m3uReader.getEntry()) != null) {
-					exclusions.add(musicFile);
-					files++;
+			List<File> rawEntries = readPlaylist(m3uFile);
+			List<File> literalEntries = new ArrayList<>();
+			for (File rawEntry : rawEntries) {
+				if (!ExclusionRules.isGlob(rawEntry)) {
+					literalEntries.add(rawEntry);
+					continue;
+				}
+				try {
+					exclusions.addGlob(rawEntry);
+				} catch (IllegalArgumentException e) {
+					LOGGER.warn("Exclusion playlist \"{}\" has an invalid glob {}, it will be ignored", playlistName,
+							rawEntry, e);
+					reporter.reportError("Invalid glob in the exclusion playlist '" + playlistName + "': " + rawEntry);
+				}
+			}
+			for (ResolvedEntry entry : metadataResolver.resolveAll(literalEntries, getEntryResolver())) {
+				File excludedFile = entry.getFile();
+				if (entry.exists() && Files.isDirectory(excludedFile.toPath())) {
+					exclusions.addDirectory(excludedFile);
+				} else {
+					exclusions.addFile(excludedFile);
 				}
-				LOGGER.info("Exclusion playlist \"{}\" had {} files", playlistName, files);
 			}
+			LOGGER.info("Exclusion playlist \"{}\" had {} entries", playlistName, rawEntries.size());
 
 			reporter.setStep(i++);
+			checkCancelled();
 		}
 
+		LOGGER.info("Excluding {}", exclusions);
 		return exclusions;
 	}
 
-	private Collection<File> getPlaylists(ProgressReporter reporter) {
+	private Collection<File> getPlaylists(ProgressReporter reporter) throws IOException {
 		LOGGER.info("Searching for playlists...");
 		reporter.setProgressUnknown(true);
 		reporter.setStatus("Searching for playlists...");
-		Collection<File> playlists = FileUtils.listFiles(playlistDirectory, new String[] { "m3u" }, true);
+		if (libraryCache != null) {
+			return libraryCache.listPlaylists(playlistDirectory.toFile(), playlistFinder);
+		}
+		Collection<File> playlists = playlistFinder.find(playlistDirectory.toFile());
+		LOGGER.info("Playlist search: {}", playlistFinder.getStatistics());
 		return playlists;
 	}
 
-	private static void findFiles(ProgressReporter reporter, Collection<File> excludedFiles,
+	/**
+	 * Removes the files which are identical to another included file, and makes the playlists refer to that file.
+	 * 
+	 * @param reporter The progress reporter.
+	 * @param includedFiles The included files.
+	 * @param loadedPlaylists The files of each playlist, by name.
+	 * @throws IOException If a file can't be read.
+	 */
+	private void removeDuplicates(ProgressReporter reporter, Set<File> includedFiles,
+			Map<String, List<File>> loadedPlaylists) throws IOException {
+		LOGGER.info("Searching for duplicates...");
+		reporter.setProgressUnknown(true);
+		reporter.setStatus("Searching for duplicates...");
+		Map<File, File> duplicates = new DuplicateFinder(libraryCache, metadataResolver, throttle,
+				libraryCache != null ? libraryCache::findCover : FileProcessor::findCover).find(includedFiles);
+		if (libraryCache != null) {
+			libraryCache.pruneHashes();
+		}
+		if (duplicates.isEmpty()) {
+			return;
+		}
+		includedFiles.removeAll(duplicates.keySet());
+		for (List<File> playlistFiles : loadedPlaylists.values()) {
+			playlistFiles.replaceAll(file -> duplicates.getOrDefault(file, file));
+		}
+		long savedBytes = 0;
+		for (File duplicate : duplicates.keySet()) {
+			savedBytes += sizeOf(duplicate);
+		}
+		LOGGER.info("{} duplicates will not be copied, saving {} MB", duplicates.size(), savedBytes / 1024 / 1024);
+	}
+
+	private MetadataResolver.Resolver<File, ResolvedEntry> getEntryResolver() {
+		return libraryCache != null ? libraryCache::resolveEntry : ResolvedEntry::resolve;
+	}
+
+	private List<File> readPlaylist(File m3uFile) throws IOException {
+		if (libraryCache != null) {
+			return libraryCache.readPlaylist(m3uFile);
+		}
+		try (PlaylistReader m3uReader = new PlaylistReader(m3uFile.toPath())) {
+			return m3uReader.getRawEntries();
+		}
+	}
+
+	private void findFiles(ProgressReporter reporter, ExclusionRules exclusions,
 			Collection<File> includedPlaylists, Set<File> includedFiles, Map<String, List<File>> loadedPlaylists)
 			throws IOException {
 		LOGGER.info("Listing included files");
@@ -244,160 +857,769 @@ public class FileProcessor {
 			loadedPlaylists.put(playlistName, playlistFiles);
 
 			LOGGER.info("Parsing playlist named \"{}\"", playlistName);
-			try (PlaylistReader m3uReader = new PlaylistReader(m3uFile)) {
-				File musicFile;
-				while ((musicFile = m3uReader.getEntry()) != null) {
-					if (excludedFiles.contains(musicFile)) {
-						LOGGER.debug("File {} has been marked for exclusion", musicFile);
-						continue;
-					}
-					if (!musicFile.exists()) {
-						// Silently skip missing files
-						LOGGER.debug("Playlist {} references non-existing file {}, the file will be skipped",
-								playlistName, musicFile);
-						continue;
-					}
-					includedFiles.add(musicFile);
-					playlistFiles.add(musicFile);
+			List<File> rawEntries = readPlaylist(m3uFile);
+			for (ResolvedEntry entry : metadataResolver.resolveAll(rawEntries, getEntryResolver())) {
+				File musicFile = entry.getFile();
+				if (exclusions.isExcluded(musicFile)) {
+					LOGGER.debug("File {} has been marked for exclusion", musicFile);
+					events.fire(FileEvent.excluded(musicFile));
+					continue;
 				}
-				LOGGER.info("Playlist \"{}\" had {} files", playlistName, playlistFiles.size());
+				if (!entry.exists()) {
+					// Silently skip missing files
+					LOGGER.debug("Playlist {} references non-existing file {}, the file will be skipped",
+							playlistName, musicFile);
+					continue;
+				}
+				if (includedFiles.add(musicFile)) {
+					events.fire(FileEvent.discovered(musicFile));
+				}
+				playlistFiles.add(musicFile);
 			}
+			LOGGER.info("Playlist \"{}\" had {} files", playlistName, playlistFiles.size());
 
 			reporter.setStep(i++);
+			checkCancelled();
 		}
 		LOGGER.info("Found {} files", includedFiles.size());
+		events.flush();
 	}
 
-	private File getTargetPlaylistDirectory() {
-		File targetPlaylistDirectory = new File(targetDirectory, "BM3_Playlists");
+	private Path getTargetPlaylistDirectory(Target target) throws IOException {
+		Path targetPlaylistDirectory = target.getPlaylistDirectory();
 		if (!dryRun) {
-			targetPlaylistDirectory.mkdirs();
+			Files.createDirectories(targetPlaylistDirectory);
 		}
 		return targetPlaylistDirectory;
 	}
 
-	private void recreatePlaylists(ProgressReporter reporter, Set<File> allFiles,
-			Map<String, List<File>> loadedPlaylists) throws IOException {
-		File targetPlaylistDirectory = getTargetPlaylistDirectory();
+	private void recreatePlaylists(ProgressReporter reporter, Target target, Map<String, List<File>> loadedPlaylists)
+			throws IOException {
+		Path targetPlaylistDirectory = getTargetPlaylistDirectory(target);
 
 		int i = 0;
 		reporter.setStatus("Creating playlists...");
 		reporter.setStep(i);
 		reporter.setTotal(loadedPlaylists.size());
 		for (Entry<String, List<File>> playlistEntry : loadedPlaylists.entrySet()) {
-			String plsName = playlistEntry.getKey();
-			File playlistFile = new File(targetPlaylistDirectory, plsName + ".m3u");
-			PlaylistWriter writer = new PlaylistWriter(playlistFile, sourceDirectory.toPath(), useSlashes, dryRun);
-			List<File> plsEntries = playlistEntry.getValue();
-			writer.writeEntries(plsEntries, reporter);
+			writePlaylist(reporter, targetPlaylistDirectory, target, playlistEntry.getKey(), playlistEntry.getValue());
 			reporter.setStep(i++);
-			reporter.endSubTracking();
+			checkCancelled();
+		}
+	}
+
+	private void writePlaylist(ProgressReporter reporter, Path targetPlaylistDirectory, Target target, String plsName,
+			List<File> plsEntries) throws IOException {
+		Path playlistFile = targetPlaylistDirectory.resolve(plsName + ".m3u");
+		PlaylistWriter writer = new PlaylistWriter(playlistFile, sourceDirectory, target.isUseSlashes(),
+				dryRun);
+		writer.writeEntries(plsEntries.stream().map(File::toPath).collect(Collectors.toList()), reporter);
+		reporter.endSubTracking();
+	}
+
+	/**
+	 * Writes the playlists completed while copying files, in playlist order.
+	 * 
+	 * @param reporter The progress reporter.
+	 * @param names The names of the completed playlists.
+	 * @param loadedPlaylists The files of each playlist, by name.
+	 */
+	private void writeCompletedPlaylists(ProgressReporter reporter, Collection<String> names,
+			Map<String, List<File>> loadedPlaylists) {
+		for (String name : names) {
+			LOGGER.info("Playlist \"{}\" is complete", name);
+			for (Target target : targets) {
+				try {
+					writePlaylist(reporter, getTargetPlaylistDirectory(target), target, name, loadedPlaylists.get(name));
+				} catch (IOException e) {
+					LOGGER.warn("Failed to write the playlist \"{}\" to {}", name, target, e);
+					reporter.reportError("Failed to write the playlist '" + name + "' to " + target + ":\n"
+							+ e.getMessage());
+				}
+			}
+		}
+	}
+
+	/**
+	 * Gets the sizes of files, from their metadata when it is already resolved so that they aren't looked up again.
+	 *
+	 * @param files The files.
+	 * @return The size of each file.
+	 * @throws IOException If a lookup fails.
+	 */
+	private Map<File, Long> getSizes(Collection<File> files) throws IOException {
+		Map<File, Long> sizes = new HashMap<>();
+		List<File> unresolved = new ArrayList<>();
+		for (File file : files) {
+			FileMetadata metadata = metadataCache.get(file);
+			if (metadata != null) {
+				sizes.put(file, metadata.getSize());
+			} else {
+				unresolved.add(file);
+			}
 		}
+		Iterator<Long> sizeIterator = metadataResolver.resolveAll(unresolved, FileProcessor::sizeOf).iterator();
+		for (File file : unresolved) {
+			sizes.put(file, sizeIterator.next());
+		}
+		return sizes;
 	}
 
-	private void copyFiles(ProgressReporter reporter, Set<File> allFiles) {
+	private void copyFiles(ProgressReporter reporter, Set<File> allFiles, Map<String, List<File>> loadedPlaylists)
+			throws IOException {
 		LOGGER.info("Copying files and setting covers...");
-		int i = 0;
+		// Weight the progress by file size so that a long mix doesn't count as much as a jingle
+		Map<File, Long> sizes = getSizes(allFiles);
+		long byteTotal = 0;
+		for (long size : sizes.values()) {
+			byteTotal += size;
+		}
+		Collection<File> orderedFiles = allFiles;
+		PlaylistSchedule schedule = null;
+		if (playlistsFirst) {
+			schedule = new PlaylistSchedule(loadedPlaylists, priorityPlaylists, f -> sizes.getOrDefault(f, 0L));
+			LOGGER.debug("Playlists will be completed in this order: {}", schedule.getPlaylistOrder());
+			orderedFiles = schedule.getFiles();
+			writeCompletedPlaylists(reporter, schedule.getEmptyPlaylists(), loadedPlaylists);
+		}
+		PlaylistSchedule playlistSchedule = schedule;
+
+		AtomicInteger step = new AtomicInteger();
+		AtomicLong bytesDone = new AtomicLong();
+		// Nothing is written in dry-run, so there is no throughput to report
+		AtomicLong remainingByteTotal = new AtomicLong(dryRun ? 0 : byteTotal);
 		reporter.setStatus("Copying files and covers...");
-		reporter.setStep(i);
+		reporter.setStep(0);
 		reporter.setTotal(allFiles.size());
-		for (File sourceFile : allFiles) {
-			try {
-				copyFile(sourceFile);
-			} catch (IOException e) {
-				LOGGER.warn("Failed to copy a file: {}", sourceFile, e);
-				reporter.reportError("Failed to copy a file:\n" + e.getMessage() + "\n\nFile was:\n" + sourceFile);
-				// Continue happily
+		reporter.setByteTotal(remainingByteTotal.get());
+		if (autoTune) {
+			for (Target target : targets) {
+				target.setWriteTuner(new WriteTuner(target));
 			}
-			reporter.setStep(i++);
+		}
+		// One writer per target so that slow devices are written concurrently
+		int fileConcurrency = autoTune ? WriteTuner.MAX_WRITERS : 1;
+		ExecutorService writers = targets.size() > 1 ? Executors.newFixedThreadPool(targets.size() * fileConcurrency)
+				: null;
+		ExecutorService fileWorkers = autoTune ? Executors.newFixedThreadPool(fileConcurrency) : null;
+		// Bounds the albums waiting for a worker, the tuners decide how many files are actually written at once
+		Semaphore pendingUnits = new Semaphore(fileConcurrency * 2);
+		AtomicReference<RuntimeException> fatalError = new AtomicReference<>();
+		// Keep the order of the schedule, at the cost of splitting the albums shared by several playlists
+		List<AlbumUnit> units = AlbumUnit.group(orderedFiles, playlistSchedule != null);
+		LOGGER.debug("Copying {} files in {} units", allFiles.size(), units.size());
+		BiConsumer<File, Boolean> fileDone = (sourceFile, written) -> {
+			if (playlistSchedule != null) {
+				writeCompletedPlaylists(reporter, playlistSchedule.fileDone(sourceFile), loadedPlaylists);
+			}
+			if (!dryRun) {
+				// Only count the bytes actually written, so that unchanged files don't inflate the throughput
+				long size = sizes.getOrDefault(sourceFile, 0L);
+				if (written) {
+					reporter.setBytesDone(bytesDone.addAndGet(size));
+				} else {
+					reporter.adjustByteTotal(remainingByteTotal.addAndGet(-size));
+				}
+			}
+			reporter.setStep(step.incrementAndGet());
+		};
+		try {
+			// Albums are copied as soon as their metadata is known, in the order of the schedule if there is one
+			metadataResolver.forEachResolved(units, this::getAlbumMetadata, (unit, unitMetadata, failure) -> {
+				checkCancelled();
+				if (fatalError.get() != null) {
+					throw fatalError.get();
+				}
+				if (fileWorkers == null) {
+					copyAlbum(reporter, unit, unitMetadata, failure, writers, fileDone);
+					return;
+				}
+				pendingUnits.acquireUninterruptibly();
+				fileWorkers.execute(() -> {
+					try {
+						copyAlbum(reporter, unit, unitMetadata, failure, writers, fileDone);
+					} catch (RuntimeException e) {
+						fatalError.compareAndSet(null, e);
+					} finally {
+						pendingUnits.release();
+					}
+				});
+			}, playlistSchedule != null);
+		} finally {
+			if (fileWorkers != null) {
+				// Let the files being written complete, even when cancelled
+				fileWorkers.shutdown();
+				awaitTermination(fileWorkers);
+			}
+			if (writers != null) {
+				writers.shutdown();
+			}
+		}
+		if (fatalError.get() != null) {
+			throw fatalError.get();
 		}
 		reporter.setStep(allFiles.size());
+		reporter.setByteTotal(0);
+		if (resumedFiles.get() > 0) {
+			LOGGER.info("Skipped {} files copied by an interrupted run", resumedFiles);
+		}
 		LOGGER.info("Copy complete");
 	}
 
-	private void copyFile(File sourceFile) throws IOException {
-		Path path = sourceDirectory.toPath().relativize(sourceFile.toPath());
+	/**
+	 * Gets the metadata of the files of a unit, resolving them together if any of them isn't known yet.
+	 * 
+	 * @param unit The unit.
+	 * @return The metadata of each file of the unit, in order.
+	 * @throws IOException If a lookup fails.
+	 */
+	private List<FileMetadata> getAlbumMetadata(AlbumUnit unit) throws IOException {
+		List<FileMetadata> unitMetadata = new ArrayList<>();
+		for (File sourceFile : unit.getFiles()) {
+			FileMetadata metadata = metadataCache.get(sourceFile);
+			if (metadata == null) {
+				unitMetadata = null;
+				break;
+			}
+			unitMetadata.add(metadata);
+		}
+		if (unitMetadata == null) {
+			unitMetadata = unit.resolve(sourceDirectory, targets,
+					libraryCache != null ? libraryCache::findCover : findCovers(unit.getDirectory()));
+			for (FileMetadata metadata : unitMetadata) {
+				metadataCache.put(metadata.getSourceFile(), metadata);
+			}
+		}
+		return unitMetadata;
+	}
 
-		// Create the parent directory in the target
-		File targetFile = new File(targetDirectory, path.toString());
-		if (!dryRun) {
-			targetFile.getParentFile().mkdirs();
+	private FileMetadata getMetadata(File sourceFile) throws IOException {
+		FileMetadata metadata = metadataCache.get(sourceFile);
+		if (metadata == null) {
+			metadata = FileMetadata.resolve(sourceFile, getRelativePath(sourceFile), targets,
+					libraryCache != null ? libraryCache::findCover : FileProcessor::findCover);
+			metadataCache.put(sourceFile, metadata);
 		}
+		return metadata;
+	}
 
-		// Check for cover. Only for MP3
-		Cover cover = null;
-		if (FilenameUtils.getExtension(sourceFile.getName()).equalsIgnoreCase("mp3")) {
-			cover = Cover.forMusicFile(sourceFile);
+	private static void awaitTermination(ExecutorService executor) throws InterruptedIOException {
+		try {
+			while (!executor.awaitTermination(1, TimeUnit.MINUTES)) {
+				LOGGER.debug("Still waiting for the files being copied");
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while waiting for the files being copied");
+		}
+	}
+
+	/**
+	 * Copies the files of a unit, one after another.
+	 * 
+	 * @param reporter The progress reporter.
+	 * @param unit The unit.
+	 * @param unitMetadata The metadata of the files of the unit, <code>null</code> if it couldn't be resolved.
+	 * @param failure Why the metadata couldn't be resolved, <code>null</code> if it was.
+	 * @param writers The executor writing to targets concurrently, <code>null</code> to write sequentially.
+	 * @param fileDone Called after each file, with whether it was written to any target.
+	 */
+	private void copyAlbum(ProgressReporter reporter, AlbumUnit unit, List<FileMetadata> unitMetadata,
+			IOException failure, ExecutorService writers, BiConsumer<File, Boolean> fileDone) {
+		List<File> files = unit.getFiles();
+		for (int i = 0; i < files.size(); i++) {
+			checkCancelled();
+			File sourceFile = files.get(i);
+			FileMetadata metadata = null;
+			IOException fileFailure = null;
+			if (failure == null) {
+				metadata = unitMetadata.get(i);
+			} else {
+				// Find out which files are affected
+				try {
+					metadata = getMetadata(sourceFile);
+				} catch (IOException e) {
+					fileFailure = e;
+				}
+			}
+			boolean written = copyFile(reporter, unit, sourceFile, metadata, fileFailure, writers);
+			fileDone.accept(sourceFile, written);
+		}
+	}
+
+	private boolean copyFile(ProgressReporter reporter, AlbumUnit unit, File sourceFile, FileMetadata metadata,
+			IOException failure, ExecutorService writers) {
+		try {
+			if (failure != null) {
+				throw failure;
+			}
+			return copyFile(metadata, unit, writers);
+		} catch (IOException e) {
+			LOGGER.warn("Failed to copy a file: {}", sourceFile, e);
+			events.fire(FileEvent.failed(sourceFile, e));
+			reporter.reportError("Failed to copy a file:\n" + e.getMessage() + "\n\nFile was:\n" + sourceFile);
+			// Continue happily
+			return false;
 		}
+	}
+
+	/**
+	 * Copies a file to the targets where it is missing or outdated.
+	 * 
+	 * @param metadata The metadata of the file.
+	 * @param unit The unit of the file.
+	 * @param writers The executor writing to targets concurrently, <code>null</code> to write sequentially.
+	 * @return <code>true</code> if the file was written to at least one target.
+	 * @throws IOException If writing to any target fails.
+	 */
+	private boolean copyFile(FileMetadata metadata, AlbumUnit unit, ExecutorService writers) throws IOException {
+		File sourceFile = metadata.getSourceFile();
+		String relativePath = metadata.getRelativePath();
+		long originalSize = metadata.getSize();
+		Cover cover = metadata.getCover();
+		FileTiming timing = new FileTiming(sourceFile);
+		FlightRecording.FileCopyEvent event = FlightRecording.fileCopy();
 
-		// Safety check to avoid corruption
-		Path canonicalSource = sourceFile.toPath().toRealPath();
-		Path targetPath = targetFile.toPath();
-		if (Files.exists(targetPath)) {
-			Path canonicalTarget = targetPath.toRealPath();
+		List<Target> processedTargets = new ArrayList<>();
+		List<Target> copyTargets = new ArrayList<>();
+		for (Target target : targets) {
+			if (target.getJournal().isCompleted(relativePath)) {
+				// Copied by an interrupted run
+				resumedFiles.incrementAndGet();
+				events.fire(FileEvent.skippedUnchanged(sourceFile, target));
+				continue;
+			}
+			processedTargets.add(target);
+
+			// Safety check to avoid corruption
+			TargetState targetState = metadata.getTargetState(target);
+			Path canonicalSource = metadata.getCanonicalSource();
+			Path canonicalTarget = targetState.getCanonicalPath();
 			if (canonicalSource.equals(canonicalTarget)) {
 				LOGGER.error("Fatal error: source and target are equal, this could lead to data corruption "
 					+ "(nothing was corrupted here): source = {}, target = {}", canonicalSource, canonicalTarget);
 				throw new IllegalArgumentException("Fatal error: source and target are equal");
 			}
+
+			if (shouldCopy(metadata, targetState)) {
+				copyTargets.add(target);
+			} else {
+				synchronized (target) {
+					target.getSyncSavedStats().addValue(originalSize);
+				}
+				events.fire(FileEvent.skippedUnchanged(sourceFile, target));
+			}
 		}
 
-		long originalSize = sourceFile.length();
-		if (shouldCopy(sourceFile, targetFile, cover)) {
-			if (!dryRun) {
-				// If there is no cover, copy the file as-is
-				if (cover == null) {
-					FileUtils.copyFile(sourceFile, targetFile);
-				} else {
-					// We can integrate the cover on the fly
+		Map<Target, IOException> failures = Collections.emptyMap();
+		if (!copyTargets.isEmpty() && !dryRun) {
+			for (Target target : copyTargets) {
+				unit.createTargetDirectory(target, relativePath);
+			}
+			// Prepare once for all targets
+			PreparedFile preparedFile = prepare(metadata, timing);
+			long phaseStart = System.nanoTime();
+			failures = writeToTargets(preparedFile, sourceFile, relativePath, copyTargets, writers);
+			timing.add(Phase.COPY, System.nanoTime() - phaseStart);
+		}
+
+		for (Target target : processedTargets) {
+			if (failures.containsKey(target)) {
+				continue;
+			}
+			long destinationSize;
+			if (!copyTargets.contains(target)) {
+				destinationSize = metadata.getTargetState(target).getSize();
+			} else if (!dryRun) {
+				destinationSize = sizeOf(getTargetFile(target, sourceFile));
+			} else {
+				Long estimate = sizeEstimates.get(sourceFile);
+				destinationSize = estimate != null ? estimate : estimateTargetSize(metadata);
+			}
+			synchronized (target) {
+				target.getFileTotalStats().addValue(destinationSize);
+			}
+			target.getJournal().markCompleted(relativePath);
+		}
+		synchronized (sourceFileTotalStats) {
+			sourceFileTotalStats.addValue(originalSize);
+		}
+		timing.add(Phase.COVER_LOOKUP, metadata.getCoverLookupNanos());
+		slowFileLog.offer(timing);
+		int copiedTargets = dryRun ? 0 : copyTargets.size() - failures.size();
+		event.end(sourceFile, originalSize, cover != null, copiedTargets,
+				processedTargets.size() - copyTargets.size(), targets.size() - processedTargets.size());
+
+		if (!failures.isEmpty()) {
+			Entry<Target, IOException> failure = failures.entrySet().iterator().next();
+			IOException e = new IOException("Failed to write to " + failures.keySet() + ": "
+					+ failure.getValue().getMessage(), failure.getValue());
+			failures.values().stream().skip(1).forEach(e::addSuppressed);
+			throw e;
+		}
+
+		LOGGER.trace("Copied {}", relativePath);
+		return copiedTargets > 0;
+	}
+
+	/**
+	 * Prepares a file for all targets. If the cover can't be embedded, the file is prepared without cover.
+	 * 
+	 * @param metadata The metadata of the file to prepare.
+	 * @param timing The timing of the file.
+	 * @return The prepared file.
+	 */
+	private PreparedFile prepare(FileMetadata metadata, FileTiming timing) {
+		File sourceFile = metadata.getSourceFile();
+		String relativePath = metadata.getRelativePath();
+		Cover cover = metadata.getCover();
+		// If there is no cover, copy the file as-is
+		if (cover == null) {
+			return plainCopy(sourceFile.toPath());
+		}
+
+		// Reuse the file prepared by a previous sync if possible
+		String stagingKey = null;
+		if (stagingMirror != null) {
+			stagingKey = StagingMirror.keyOf(sourceFile.toPath(), metadata.getSize(), metadata.getLastModified(),
+					cover);
+			Path stagedFile = stagingMirror.find(relativePath, stagingKey);
+			if (stagedFile != null) {
+				return plainCopy(stagedFile);
+			}
+		}
+
+		// We can integrate the cover on the fly
+		long phaseStart = System.nanoTime();
+		byte[] coverBytes = renderCover(cover);
+		timing.add(Phase.COVER_RENDER, System.nanoTime() - phaseStart);
+		phaseStart = System.nanoTime();
+		try {
+			TaggedMp3 taggedFile = cover.prepare(sourceFile.toPath(), coverBytes);
+			taggedFile.setThrottle(throttle);
+			// Serialise the tag once for all targets
+			taggedFile.getTagBytes();
+			events.fire(FileEvent.coverEmbedded(sourceFile, coverBytes.length, System.nanoTime() - phaseStart));
+			if (stagingMirror == null) {
+				return taggedFile;
+			}
+			Path preparationFile = stagingMirror.getPreparationFile(relativePath);
+			try {
+				taggedFile.writeTo(preparationFile);
+				return plainCopy(stagingMirror.commit(relativePath, stagingKey, preparationFile));
+			} finally {
+				Files.deleteIfExists(preparationFile);
+			}
+		} catch (Exception e) {
+			LOGGER.warn("Failed to write cover in file {}, the file will be copied without cover", sourceFile, e);
+			return plainCopy(sourceFile.toPath());
+		} finally {
+			timing.add(Phase.TAG_WRITE, System.nanoTime() - phaseStart);
+		}
+	}
+
+	private PreparedFile plainCopy(Path file) {
+		return (targets, bufferSize, checksum) -> throttle.copy(file, targets, bufferSize, checksum);
+	}
+
+	/**
+	 * Writes a prepared file to targets. Its source is read once: each chunk is written to all the targets,
+	 * concurrently if there are several of them. Each target is written to a temporary file first so that an
+	 * interruption never leaves a truncated target behind, and a target which fails doesn't stop the others.
+	 * 
+	 * @param preparedFile The file to write.
+	 * @param sourceFile The file of the library.
+	 * @param relativePath The path of the file relative to the targets.
+	 * @param copyTargets The targets to write to.
+	 * @param writers The executor writing to targets concurrently, <code>null</code> if there is a single target.
+	 * @return The failures, per target.
+	 */
+	private Map<Target, IOException> writeToTargets(PreparedFile preparedFile, File sourceFile, String relativePath,
+			List<Target> copyTargets, ExecutorService writers) {
+		long start = System.nanoTime();
+		firstWriteNanos.compareAndSet(0, start);
+		Map<Target, IOException> failures = new LinkedHashMap<>();
+		Map<Target, Path> tempFiles = new LinkedHashMap<>();
+		for (Target target : copyTargets) {
+			tempFiles.put(target, getTempFile(target.getDirectory().resolve(relativePath)));
+		}
+		CRC32 crc = checksums || verify ? new CRC32() : null;
+		try {
+			List<Target> acquiredTargets = new ArrayList<>();
+			try {
+				// Always in the same order, so that concurrent files can't deadlock
+				for (Target target : copyTargets) {
+					if (target.getWriteTuner() != null) {
+						target.getWriteTuner().acquireWriter();
+					}
+					acquiredTargets.add(target);
+				}
+				writeTempFiles(preparedFile, tempFiles, writers, crc, failures);
+			} catch (InterruptedIOException e) {
+				for (Target target : copyTargets) {
+					failures.putIfAbsent(target, e);
+				}
+			} finally {
+				for (Target target : acquiredTargets) {
+					if (target.getWriteTuner() != null) {
+						long written = failures.containsKey(target) ? 0 : sizeOf(tempFiles.get(target));
+						target.getWriteTuner().releaseWriter(written);
+					}
+				}
+			}
+			for (Target target : copyTargets) {
+				if (!failures.containsKey(target)) {
 					try {
-						cover.writeToFile(sourceFile, targetFile);
-					} catch (Exception e) {
-						LOGGER.warn("Failed to write cover in file {}, the file will be copied without cover", targetFile, e);
-						FileUtils.copyFile(sourceFile, targetFile);
+						commitTempFile(sourceFile, target, relativePath, tempFiles.get(target), crc, start);
+					} catch (IOException e) {
+						failures.put(target, e);
 					}
 				}
-				// Update the target date so that it's used in future synced runs
-				targetFile.setLastModified(System.currentTimeMillis());
 			}
-		} else {
-			syncSavedStats.addValue(originalSize);
+		} finally {
+			for (Path tempFile : tempFiles.values()) {
+				try {
+					Files.deleteIfExists(tempFile);
+				} catch (IOException e) {
+					LOGGER.warn("Failed to delete the temporary file {}", tempFile, e);
+				}
+			}
 		}
+		return failures;
+	}
 
-		long destinationSize;
-		if (dryRun) {
-			// Will be different without the dry run but we can't estimate the increase
-			destinationSize = originalSize;
+	/**
+	 * Writes a prepared file to the temporary files of targets, reading its source once.
+	 * 
+	 * @param preparedFile The file to write.
+	 * @param tempFiles The temporary files, per target.
+	 * @param writers The executor writing to targets concurrently, <code>null</code> if there is a single target.
+	 * @param crc The checksum of the bytes written, <code>null</code> for none.
+	 * @param failures The failures, per target, to complete.
+	 * @throws InterruptedIOException If the calling thread is interrupted.
+	 */
+	private void writeTempFiles(PreparedFile preparedFile, Map<Target, Path> tempFiles, ExecutorService writers,
+			CRC32 crc, Map<Target, IOException> failures) throws InterruptedIOException {
+		Map<Target, FileChannel> files = new LinkedHashMap<>();
+		for (Entry<Target, Path> tempFile : tempFiles.entrySet()) {
+			try {
+				files.put(tempFile.getKey(), FileChannel.open(tempFile.getValue(), StandardOpenOption.WRITE,
+						StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING));
+			} catch (IOException e) {
+				failures.put(tempFile.getKey(), e);
+			}
+		}
+		if (files.size() == 1) {
+			Entry<Target, FileChannel> file = files.entrySet().iterator().next();
+			try (FileChannel channel = file.getValue()) {
+				preparedFile.writeTo(Collections.singletonList(channel), getBufferSize(file.getKey()), crc);
+			} catch (InterruptedIOException e) {
+				throw e;
+			} catch (IOException e) {
+				failures.put(file.getKey(), e);
+			}
+			return;
+		}
+
+		Map<Target, TargetChannel> channels = new LinkedHashMap<>();
+		int bufferSize = 0;
+		for (Entry<Target, FileChannel> file : files.entrySet()) {
+			int targetBufferSize = getBufferSize(file.getKey());
+			// Read in the largest chunks, each target writes with its own buffer size
+			bufferSize = Math.max(bufferSize, targetBufferSize);
+			channels.put(file.getKey(), new TargetChannel(file.getValue(), targetBufferSize, writers));
+		}
+		try {
+			try {
+				preparedFile.writeTo(new ArrayList<>(channels.values()), bufferSize, crc);
+			} catch (InterruptedIOException e) {
+				throw e;
+			} catch (IOException e) {
+				// The targets isolate their own failures, so the source couldn't be read
+				for (Target target : channels.keySet()) {
+					failures.put(target, e);
+				}
+				return;
+			}
+			for (Entry<Target, TargetChannel> channel : channels.entrySet()) {
+				try {
+					channel.getValue().flush();
+				} catch (InterruptedIOException e) {
+					throw e;
+				} catch (IOException e) {
+					failures.put(channel.getKey(), e);
+				}
+			}
+		} finally {
+			for (Entry<Target, TargetChannel> channel : channels.entrySet()) {
+				try {
+					channel.getValue().close();
+				} catch (IOException e) {
+					failures.putIfAbsent(channel.getKey(), e);
+				}
+			}
+		}
+	}
+
+	private static int getBufferSize(Target target) {
+		return target.getWriteTuner() == null ? 0 : target.getWriteTuner().getBufferSize();
+	}
+
+	/**
+	 * Replaces the file of a target with its complete temporary file, and records it.
+	 * 
+	 * @param sourceFile The file of the library.
+	 * @param target The target.
+	 * @param relativePath The path of the file relative to the target.
+	 * @param tempFile The temporary file.
+	 * @param crc The checksum of the file, <code>null</code> if there is none.
+	 * @param start When writing the file started.
+	 * @throws IOException If the file can't be replaced.
+	 */
+	private void commitTempFile(File sourceFile, Target target, String relativePath, Path tempFile, CRC32 crc,
+			long start) throws IOException {
+		// Update the target date so that it's used in future synced runs
+		Files.setLastModifiedTime(tempFile, FileTime.fromMillis(System.currentTimeMillis()));
+		long size = Files.size(tempFile);
+		replaceAtomically(tempFile, target.getDirectory().resolve(relativePath));
+		ChecksumStore checksumStore = target.getChecksums();
+		if (crc == null) {
+			checksumStore.remove(relativePath);
 		} else {
-			destinationSize = targetFile.length();
+			checksumStore.record(relativePath, size, crc.getValue());
+			target.getWrittenPaths().add(relativePath);
+		}
+		events.fire(FileEvent.copied(sourceFile, target, size, System.nanoTime() - start));
+	}
+
+	/**
+	 * Reads back the files written to each target during this run, and reports or copies again those which don't
+	 * match their checksum.
+	 * 
+	 * @param reporter The progress reporter.
+	 * @throws IOException If the verification is interrupted.
+	 */
+	private void verifyTargets(ProgressReporter reporter) throws IOException {
+		LOGGER.info("Verifying the files written...");
+		for (Target target : targets) {
+			checkCancelled();
+			Verifier verifier = new Verifier(target.getDirectory(), target.getChecksums(),
+					Verifier.DEFAULT_PARALLELISM);
+			Map<String, String> problems = verifier.verify(target.getWrittenPaths(), reporter);
+			if (repair && !problems.isEmpty()) {
+				LOGGER.info("Copying {} files again to {}", problems.size(), target);
+				for (String relativePath : problems.keySet()) {
+					checkCancelled();
+					repairFile(target, relativePath);
+				}
+				problems = verifier.verify(problems.keySet(), reporter);
+			}
+			for (Entry<String, String> problem : problems.entrySet()) {
+				reporter.reportError("Verification failed on " + target + ":\n" + problem.getKey() + " is "
+						+ problem.getValue());
+			}
+		}
+	}
+
+	private void repairFile(Target target, String relativePath) {
+		File sourceFile = sourceDirectory.resolve(relativePath).toFile();
+		try {
+			FileMetadata metadata = getMetadata(sourceFile);
+			PreparedFile preparedFile = prepare(metadata, new FileTiming(sourceFile));
+			Files.createDirectories(target.getDirectory().resolve(relativePath).getParent());
+			IOException failure = writeToTargets(preparedFile, sourceFile, relativePath,
+					Collections.singletonList(target), null).get(target);
+			if (failure != null) {
+				throw failure;
+			}
+		} catch (IOException e) {
+			LOGGER.warn("Failed to copy {} again to {}", relativePath, target, e);
 		}
-		sourceFileTotalStats.addValue(originalSize);
-		targetFileTotalStats.addValue(destinationSize);
+	}
 
-		LOGGER.trace("Copied {}", path.toString());
+	/**
+	 * Gets the temporary file used while writing a target file. It lives next to the target so that it can be renamed
+	 * atomically.
+	 * 
+	 * @param targetFile The target file.
+	 * @return The temporary file.
+	 */
+	static Path getTempFile(Path targetFile) {
+		return targetFile.resolveSibling("." + targetFile.getFileName() + TEMP_SUFFIX);
+	}
+
+	/**
+	 * Replaces a file with a complete temporary file.
+	 * 
+	 * @param tempFile The temporary file.
+	 * @param targetFile The file to replace.
+	 * @throws IOException If the move fails.
+	 */
+	private static void replaceAtomically(Path tempFile, Path targetFile) throws IOException {
+		try {
+			Files.move(tempFile, targetFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			LOGGER.trace("Atomic moves are not supported for {}, falling back to a regular move", targetFile);
+			Files.move(tempFile, targetFile, StandardCopyOption.REPLACE_EXISTING);
+		}
+	}
+
+	private String getRelativePath(File sourceFile) {
+		return sourceDirectory.relativize(sourceFile.toPath()).toString();
+	}
+
+	private Path getTargetFile(Target target, File sourceFile) {
+		return target.getDirectory().resolve(getRelativePath(sourceFile));
+	}
+
+	/**
+	 * Finds the cover of a file. Only MP3 files get a cover.
+	 * 
+	 * @param sourceFile The file.
+	 * @return The cover, or <code>null</code> if there is none.
+	 */
+	static Cover findCover(File sourceFile) {
+		if (FilenameUtils.getExtension(sourceFile.getName()).equalsIgnoreCase("mp3")) {
+			return Cover.forMusicFile(sourceFile.toPath());
+		}
+		return null;
+	}
+
+	/**
+	 * Finds the covers of the music files of a directory, as {@link #findCover(File)} would, listing the directory only
+	 * once.
+	 * 
+	 * @param directory The directory.
+	 * @return Finds the cover of a file of the directory, not thread-safe.
+	 */
+	private static Function<File, Cover> findCovers(File directory) {
+		Function<Path, Cover> directoryCovers = Cover.forDirectory(directory.toPath());
+		return sourceFile -> FilenameUtils.getExtension(sourceFile.getName()).equalsIgnoreCase("mp3")
+				? directoryCovers.apply(sourceFile.toPath())
+				: null;
 	}
 
 	/**
 	 * Applies heuristics to check if it's worth copying the file to the destination.
 	 * 
-	 * @param sourceFile The file to copy.
-	 * @param targetFile The destination.
-	 * @param cover The cover.
+	 * @param metadata The metadata of the file to copy.
+	 * @param targetState The state of the destination.
 	 * @return <code>true</code> if the file should be copied.
 	 */
-	private boolean shouldCopy(File sourceFile, File targetFile, Cover cover) {
+	private boolean shouldCopy(FileMetadata metadata, TargetState targetState) {
 		if (!syncMode) {
 			return true;
 		}
 
-		if (!targetFile.exists()) {
+		File sourceFile = metadata.getSourceFile();
+		if (!targetState.exists()) {
 			LOGGER.debug("Syncing {}: target file does not exist", sourceFile);
 			return true;
 		}
 
-		long sourceLastModified = sourceFile.lastModified();
-		if (cover != null) {
-			long coverLastModified = cover.lastModified();
+		long sourceLastModified = metadata.getLastModified();
+		if (metadata.getCover() != null) {
+			long coverLastModified = metadata.getCoverLastModified();
 			if (coverLastModified > sourceLastModified) {
 				LOGGER.trace("Cover for source file has been modified after it, "
 						+ "using it as reference (source file: {})", sourceFile);
@@ -405,7 +1627,7 @@ public class FileProcessor {
 			}
 		}
 
-		if (sourceLastModified > targetFile.lastModified()) {
+		if (sourceLastModified > targetState.getLastModified()) {
 			LOGGER.debug("Syncing {}: source file or cover is more recent", sourceFile);
 			return true;
 		}
@@ -419,12 +1641,41 @@ public class FileProcessor {
 	 */
 	private void resetStats() {
 		sourceFileTotalStats.clear();
-		targetFileTotalStats.clear();
-		syncSavedStats.clear();
-		syncRemovedStats.clear();
+		for (Target target : targets) {
+			target.reset();
+		}
+		resumedFiles.set(0);
+		slowFileLog.clear();
+		sizeEstimates.clear();
+		renderedCoverSizes.clear();
+		firstWriteNanos.set(0);
 		stopWatch.start();
 	}
 
+	/**
+	 * Captures the statistics of the last run.
+	 * 
+	 * @param errors The errors reported during the run.
+	 * @return The result of the run.
+	 */
+	SyncResult getResult(List<String> errors) {
+		List<SyncResult.TargetResult> targetResults = new ArrayList<>();
+		for (Target target : targets) {
+			synchronized (target) {
+				SummaryStatistics fileTotalStats = target.getFileTotalStats();
+				SummaryStatistics syncSavedStats = target.getSyncSavedStats();
+				SummaryStatistics syncRemovedStats = target.getSyncRemovedStats();
+				targetResults.add(new SyncResult.TargetResult(target.getDirectory(), fileTotalStats.getN(),
+						(long) fileTotalStats.getSum(), syncSavedStats.getN(), (long) syncSavedStats.getSum(),
+						syncRemovedStats.getN(), (long) syncRemovedStats.getSum()));
+			}
+		}
+		synchronized (sourceFileTotalStats) {
+			return new SyncResult(sourceFileTotalStats.getN(), (long) sourceFileTotalStats.getSum(),
+					resumedFiles.get(), stopWatch.getTime(), targetResults, errors);
+		}
+	}
+
 	/**
 	 * Closes and outputs all statistics to the logger.
 	 */
@@ -433,18 +1684,38 @@ public class FileProcessor {
 
 		LOGGER.info("Processed {} files in {} seconds.", sourceFileTotalStats.getN(),
 				Math.round(stopWatch.getTime() / 1000));
+		if (firstWriteNanos.get() != 0) {
+			long sinceFirstWrite = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - firstWriteNanos.get());
+			LOGGER.info("Time to first byte copied: {} ms after the run started, {} ms after the JVM started",
+					stopWatch.getTime() - sinceFirstWrite,
+					ManagementFactory.getRuntimeMXBean().getUptime() - sinceFirstWrite);
+		}
+		String coverCacheStatistics = Cover.getCacheStatistics();
+		if (coverCacheStatistics != null) {
+			LOGGER.info("Cover cache: {}", coverCacheStatistics);
+		}
 		double sourceTotal = sourceFileTotalStats.getSum();
 		LOGGER.info("Source files weighted {} MB in total (average: {})", byteCountToMB((long) sourceTotal),
 				FileUtils.byteCountToDisplaySize((long) sourceFileTotalStats.getMean()));
-		double targetTotal = targetFileTotalStats.getSum();
-		float increase = Math.round(((targetTotal / sourceTotal) - 1) * 10000) / 100;
-		LOGGER.info("Target files weighted {} MB in total (average: {}), a {}% increase with the covers",
-				byteCountToMB((long) targetTotal),
-				FileUtils.byteCountToDisplaySize((long) targetFileTotalStats.getMean()), increase);
-		LOGGER.info("Sync removed {} files worth {} MB", syncRemovedStats.getN(),
-				byteCountToMB((long) syncRemovedStats.getSum()));
-		LOGGER.info("Sync saved the copy of {} MB in {} files", byteCountToMB((long) syncSavedStats.getSum()),
-				syncSavedStats.getN());
+		for (Target target : targets) {
+			String prefix = targets.size() > 1 ? "[" + target + "] " : "";
+			SummaryStatistics targetFileTotalStats = target.getFileTotalStats();
+			SummaryStatistics syncRemovedStats = target.getSyncRemovedStats();
+			SummaryStatistics syncSavedStats = target.getSyncSavedStats();
+			double targetTotal = targetFileTotalStats.getSum();
+			float increase = Math.round(((targetTotal / sourceTotal) - 1) * 10000) / 100;
+			LOGGER.info("{}Target files weighted {} MB in total (average: {}), a {}% increase with the covers", prefix,
+					byteCountToMB((long) targetTotal),
+					FileUtils.byteCountToDisplaySize((long) targetFileTotalStats.getMean()), increase);
+			LOGGER.info("{}Sync removed {} files worth {} MB", prefix, syncRemovedStats.getN(),
+					byteCountToMB((long) syncRemovedStats.getSum()));
+			LOGGER.info("{}Sync saved the copy of {} MB in {} files", prefix,
+					byteCountToMB((long) syncSavedStats.getSum()), syncSavedStats.getN());
+			if (target.getWriteTuner() != null) {
+				LOGGER.info("{}Copy settings: {}", prefix, target.getWriteTuner().formatSettings());
+			}
+		}
+		slowFileLog.output(LOGGER);
 	}
 
 	private static long byteCountToMB(long bytes) {
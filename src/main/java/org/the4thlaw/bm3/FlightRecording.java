@@ -0,0 +1,148 @@
+package org.the4thlaw.bm3;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.lang.reflect.Method;
+import java.nio.file.Path;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Emits Java Flight Recorder events for the phases of a run, the copy of each file and the rendering of each cover,
+ * so that a recording shows what bm3 was doing instead of anonymous I/O and imaging frames.
+ * <p>
+ * The events themselves are declared in {@link FlightRecordingEvents}, which is only loaded if the runtime has JFR:
+ * bm3 still runs on Java 8 runtimes without it. Without JFR, each call is a test of a constant. With JFR but no
+ * recording of these events, each call only tests whether the type of event is enabled, nothing is allocated.
+ * <p>
+ * Thread-safe.
+ */
+final class FlightRecording {
+	private static final Logger LOGGER = LoggerFactory.getLogger(FlightRecording.class);
+	private static final boolean AVAILABLE = isAvailable();
+
+	/**
+	 * A phase of a run.
+	 */
+	interface PhaseEvent {
+		/**
+		 * Ends the event and records it.
+		 */
+		void commit();
+	}
+
+	/**
+	 * The processing of a file of the library for all targets.
+	 */
+	interface FileCopyEvent {
+		/**
+		 * Ends the event.
+		 *
+		 * @param sourceFile The file of the library.
+		 * @param size The size of the file in the library.
+		 * @param coverUsed <code>true</code> if a cover was available for the file.
+		 * @param copiedTargets The number of targets the file was written to.
+		 * @param unchangedTargets The number of targets on which the file was up-to-date.
+		 * @param resumedTargets The number of targets to which an interrupted run had copied the file.
+		 */
+		void end(File sourceFile, long size, boolean coverUsed, int copiedTargets, int unchangedTargets,
+				int resumedTargets);
+	}
+
+	/**
+	 * The lookup of a rendered cover, rendering it if it isn't cached.
+	 */
+	interface CoverRenderEvent {
+		/**
+		 * Ends the event.
+		 *
+		 * @param coverFile The image file.
+		 * @param sourceWidth The width of the image, 0 if it wasn't read.
+		 * @param sourceHeight The height of the image, 0 if it wasn't read.
+		 * @param outputBytes The size of the rendered cover, 0 if it couldn't be rendered.
+		 * @param cacheHit <code>true</code> if the rendered cover was cached.
+		 */
+		void end(Path coverFile, int sourceWidth, int sourceHeight, int outputBytes, boolean cacheHit);
+	}
+
+	static final class NoEvent implements PhaseEvent, FileCopyEvent, CoverRenderEvent {
+		@Override
+		public void commit() {
+			// Nothing to record
+		}
+
+		@Override
+		public void end(File sourceFile, long size, boolean coverUsed, int copiedTargets, int unchangedTargets,
+				int resumedTargets) {
+			// Nothing to record
+		}
+
+		@Override
+		public void end(Path coverFile, int sourceWidth, int sourceHeight, int outputBytes, boolean cacheHit) {
+			// Nothing to record
+		}
+	}
+
+	static final NoEvent NO_EVENT = new NoEvent();
+
+	private FlightRecording() {
+		// Utility class
+	}
+
+	private static boolean isAvailable() {
+		try {
+			// Reflection so that this class can be loaded without JFR
+			Method isAvailable = Class.forName("jdk.jfr.FlightRecorder").getMethod("isAvailable");
+			return (Boolean) isAvailable.invoke(null);
+		} catch (ReflectiveOperationException | LinkageError e) {
+			return false;
+		}
+	}
+
+	/**
+	 * Starts a phase of a run.
+	 *
+	 * @param name The name of the phase.
+	 * @return The event, to commit at the end of the phase.
+	 */
+	static PhaseEvent phase(String name) {
+		return AVAILABLE ? FlightRecordingEvents.beginPhase(name) : NO_EVENT;
+	}
+
+	/**
+	 * Starts the processing of a file.
+	 *
+	 * @return The event, to end once the file is processed.
+	 */
+	static FileCopyEvent fileCopy() {
+		return AVAILABLE ? FlightRecordingEvents.beginFileCopy() : NO_EVENT;
+	}
+
+	/**
+	 * Starts the lookup of a rendered cover.
+	 *
+	 * @return The event, to end once the cover is rendered.
+	 */
+	static CoverRenderEvent coverRender() {
+		return AVAILABLE ? FlightRecordingEvents.beginCoverRender() : NO_EVENT;
+	}
+
+	/**
+	 * Starts a recording with the profiling settings of the JVM, including the events of bm3. The recording is written
+	 * when closed, or when the JVM exits.
+	 *
+	 * @param destination The file to write the recording to.
+	 * @return The recording, to close to stop it.
+	 * @throws IOException If JFR is not available or if the recording can't be started.
+	 */
+	static Closeable startRecording(File destination) throws IOException {
+		if (!AVAILABLE) {
+			throw new IOException("Java Flight Recorder is not available in this Java runtime");
+		}
+		Closeable recording = FlightRecordingEvents.startRecording(destination);
+		LOGGER.info("Recording to {}", destination);
+		return recording;
+	}
+}
@@ -0,0 +1,166 @@
+package org.the4thlaw.bm3;
+
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.text.ParseException;
+
+import jdk.jfr.Category;
+import jdk.jfr.Configuration;
+import jdk.jfr.DataAmount;
+import jdk.jfr.Description;
+import jdk.jfr.Event;
+import jdk.jfr.EventType;
+import jdk.jfr.Label;
+import jdk.jfr.Name;
+import jdk.jfr.Recording;
+
+/**
+ * The JFR events of bm3. Only loaded through {@link FlightRecording}, once it has checked that JFR is available.
+ */
+final class FlightRecordingEvents {
+	private static final String CATEGORY = "bm3";
+
+	@Name("org.the4thlaw.bm3.Phase")
+	@Label("Phase")
+	@Description("A phase of a run")
+	@Category(CATEGORY)
+	static class PhaseEvent extends Event implements FlightRecording.PhaseEvent {
+		@Label("Name")
+		String name;
+	}
+
+	@Name("org.the4thlaw.bm3.FileCopy")
+	@Label("File Copy")
+	@Description("The processing of a file of the library for all targets, including its cover")
+	@Category(CATEGORY)
+	static class FileCopyEvent extends Event implements FlightRecording.FileCopyEvent {
+		@Label("Source File")
+		String sourceFile;
+
+		@Label("Size")
+		@DataAmount
+		long size;
+
+		@Label("Cover Used")
+		boolean coverUsed;
+
+		@Label("Copied Targets")
+		@Description("The number of targets the file was written to")
+		int copiedTargets;
+
+		@Label("Unchanged Targets")
+		@Description("The number of targets on which the file was up-to-date")
+		int unchangedTargets;
+
+		@Label("Resumed Targets")
+		@Description("The number of targets to which an interrupted run had copied the file")
+		int resumedTargets;
+
+		@Override
+		public void end(File sourceFile, long size, boolean coverUsed, int copiedTargets, int unchangedTargets,
+				int resumedTargets) {
+			end();
+			if (shouldCommit()) {
+				this.sourceFile = sourceFile.getPath();
+				this.size = size;
+				this.coverUsed = coverUsed;
+				this.copiedTargets = copiedTargets;
+				this.unchangedTargets = unchangedTargets;
+				this.resumedTargets = resumedTargets;
+				commit();
+			}
+		}
+	}
+
+	@Name("org.the4thlaw.bm3.CoverRender")
+	@Label("Cover Render")
+	@Description("The lookup of a rendered cover, rendering it if it isn't cached")
+	@Category(CATEGORY)
+	static class CoverRenderEvent extends Event implements FlightRecording.CoverRenderEvent {
+		@Label("Cover File")
+		String coverFile;
+
+		@Label("Source Width")
+		int sourceWidth;
+
+		@Label("Source Height")
+		int sourceHeight;
+
+		@Label("Output Size")
+		@DataAmount
+		int outputBytes;
+
+		@Label("Cache Hit")
+		boolean cacheHit;
+
+		@Override
+		public void end(Path coverFile, int sourceWidth, int sourceHeight, int outputBytes, boolean cacheHit) {
+			end();
+			if (shouldCommit()) {
+				this.coverFile = coverFile.toString();
+				this.sourceWidth = sourceWidth;
+				this.sourceHeight = sourceHeight;
+				this.outputBytes = outputBytes;
+				this.cacheHit = cacheHit;
+				commit();
+			}
+		}
+	}
+
+	/** Checked before allocating events, so that nothing is allocated when they aren't recorded. */
+	private static final EventType PHASE_TYPE = EventType.getEventType(PhaseEvent.class);
+	private static final EventType FILE_COPY_TYPE = EventType.getEventType(FileCopyEvent.class);
+	private static final EventType COVER_RENDER_TYPE = EventType.getEventType(CoverRenderEvent.class);
+
+	private FlightRecordingEvents() {
+		// Utility class
+	}
+
+	// The methods below return the interfaces so that FlightRecording never refers to the event classes
+
+	static FlightRecording.PhaseEvent beginPhase(String name) {
+		if (!PHASE_TYPE.isEnabled()) {
+			return FlightRecording.NO_EVENT;
+		}
+		PhaseEvent event = new PhaseEvent();
+		event.name = name;
+		event.begin();
+		return event;
+	}
+
+	static FlightRecording.FileCopyEvent beginFileCopy() {
+		if (!FILE_COPY_TYPE.isEnabled()) {
+			return FlightRecording.NO_EVENT;
+		}
+		FileCopyEvent event = new FileCopyEvent();
+		event.begin();
+		return event;
+	}
+
+	static FlightRecording.CoverRenderEvent beginCoverRender() {
+		if (!COVER_RENDER_TYPE.isEnabled()) {
+			return FlightRecording.NO_EVENT;
+		}
+		CoverRenderEvent event = new CoverRenderEvent();
+		event.begin();
+		return event;
+	}
+
+	static Closeable startRecording(File destination) throws IOException {
+		Recording recording;
+		try {
+			recording = new Recording(Configuration.getConfiguration("profile"));
+		} catch (ParseException e) {
+			throw new IOException("Failed to read the JFR profiling settings", e);
+		}
+		recording.enable(PhaseEvent.class);
+		recording.enable(FileCopyEvent.class);
+		recording.enable(CoverRenderEvent.class);
+		recording.setDestination(destination.toPath());
+		recording.setDumpOnExit(true);
+		recording.start();
+		return recording::stop;
+	}
+}
@@ -0,0 +1,276 @@
+package org.the4thlaw.bm3;
+
+import java.io.FilterInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.Checksum;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Limits the I/O bandwidth and operation rate of a run, so that a background sync doesn't starve the other users of
+ * the disks.
+ * <p>
+ * Reads and writes are limited separately in bytes per second, and both count against a common limit of operations
+ * per second. Each limit is enforced by a {@link TokenBucket} holding one second worth of tokens. In adaptive mode, the
+ * latency of source reads is also monitored: when it rises well above the lowest latency observed, which means that
+ * the source is busy, the copy pauses between reads for a growing share of the time, and it speeds up again once the
+ * latency is back to normal.
+ * <p>
+ * Thread-safe.
+ */
+public class IoThrottle {
+	private static final Logger LOGGER = LoggerFactory.getLogger(IoThrottle.class);
+	/**
+	 * No limit at all.
+	 */
+	public static final IoThrottle UNLIMITED = new IoThrottle(0, 0, 0, false);
+
+	private static final int CHUNK_SIZE = 256 * 1024;
+	private static final double BURST_SECONDS = 1;
+	/** Reads slower than this ratio of the baseline latency mean that the source is busy. */
+	private static final double BUSY_LATENCY_RATIO = 2.0;
+	/** Reads faster than this ratio of the baseline latency mean that the source is idle again. */
+	private static final double IDLE_LATENCY_RATIO = 1.25;
+	private static final double MIN_DUTY_CYCLE = 1.0 / 16;
+	private static final double LATENCY_SMOOTHING = 0.2;
+	/** The number of reads before the baseline latency is trusted. */
+	private static final int WARMUP_READS = 8;
+
+	private final TokenBucket readBucket;
+	private final TokenBucket writeBucket;
+	private final TokenBucket operationBucket;
+	private final boolean adaptive;
+
+	private double averageReadNanos;
+	private double baselineReadNanos = Double.MAX_VALUE;
+	private int reads;
+	/** The share of time spent reading in adaptive mode, 1 meaning no pause at all. */
+	private double dutyCycle = 1;
+
+	/**
+	 * Creates a throttle.
+	 *
+	 * @param readBytesPerSecond The maximum read rate, 0 for no limit.
+	 * @param writeBytesPerSecond The maximum write rate, 0 for no limit.
+	 * @param operationsPerSecond The maximum number of read and write operations per second, 0 for no limit.
+	 * @param adaptive <code>true</code> to back off when the latency of source reads rises.
+	 */
+	public IoThrottle(long readBytesPerSecond, long writeBytesPerSecond, int operationsPerSecond, boolean adaptive) {
+		this.readBucket = readBytesPerSecond > 0 ? new TokenBucket(readBytesPerSecond, BURST_SECONDS) : null;
+		this.writeBucket = writeBytesPerSecond > 0 ? new TokenBucket(writeBytesPerSecond, BURST_SECONDS) : null;
+		this.operationBucket = operationsPerSecond > 0 ? new TokenBucket(operationsPerSecond, BURST_SECONDS) : null;
+		this.adaptive = adaptive;
+	}
+
+	/**
+	 * Checks if this throttle limits anything.
+	 *
+	 * @return <code>true</code> if I/O must go through this throttle.
+	 */
+	public boolean isLimited() {
+		return readBucket != null || writeBucket != null || operationBucket != null || adaptive;
+	}
+
+	/**
+	 * Copies a file.
+	 *
+	 * @param sourceFile The file to copy.
+	 * @param targetFile The copy.
+	 * @param bufferSize The size of the copy buffer, 0 to copy without a buffer if nothing is limited.
+	 * @param checksum The checksum updated with the copied bytes, <code>null</code> for none.
+	 * @throws IOException If copying fails.
+	 */
+	public void copy(Path sourceFile, Path targetFile, int bufferSize, Checksum checksum) throws IOException {
+		if (!isLimited() && bufferSize <= 0 && checksum == null) {
+			Files.copy(sourceFile, targetFile, StandardCopyOption.REPLACE_EXISTING);
+			return;
+		}
+		try (FileChannel target = FileChannel.open(targetFile, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			copy(sourceFile, Collections.singletonList(target), bufferSize, checksum);
+		}
+	}
+
+	/**
+	 * Copies a file to several channels, reading it only once.
+	 *
+	 * @param sourceFile The file to copy.
+	 * @param targets The target channels, written at their current position.
+	 * @param bufferSize The size of the copy buffer, 0 to copy without a buffer if nothing is limited.
+	 * @param checksum The checksum updated with the copied bytes, <code>null</code> for none.
+	 * @throws IOException If copying fails.
+	 * @see #transfer(FileChannel, long, long, List, int, Checksum)
+	 */
+	public void copy(Path sourceFile, List<? extends WritableByteChannel> targets, int bufferSize,
+			Checksum checksum) throws IOException {
+		try (FileChannel source = FileChannel.open(sourceFile, StandardOpenOption.READ)) {
+			transfer(source, 0, source.size(), targets, bufferSize, checksum);
+		}
+	}
+
+	/**
+	 * Copies part of a channel to others. Each chunk is read once and written to every target, in turn, and counts
+	 * once per target against the write limits.
+	 *
+	 * @param source The source channel.
+	 * @param position The position of the first byte to copy.
+	 * @param count The number of bytes to copy.
+	 * @param targets The target channels, written at their current position.
+	 * @param bufferSize The size of the copy buffer, 0 to copy without a buffer if nothing is limited and there is
+	 *            a single target.
+	 * @param checksum The checksum updated with the copied bytes, <code>null</code> for none. Computing it requires
+	 *            a buffer, even if nothing is limited.
+	 * @throws IOException If copying fails or if the source is shorter than expected.
+	 */
+	public void transfer(FileChannel source, long position, long count, List<? extends WritableByteChannel> targets,
+			int bufferSize, Checksum checksum) throws IOException {
+		long end = position + count;
+		if (!isLimited() && bufferSize <= 0 && checksum == null && targets.size() == 1) {
+			WritableByteChannel target = targets.get(0);
+			while (position < end) {
+				long transferred = source.transferTo(position, end - position, target);
+				if (transferred <= 0 && position >= source.size()) {
+					throw new IOException("The source was truncated while being copied");
+				}
+				position += transferred;
+			}
+			return;
+		}
+
+		int chunkSize = bufferSize > 0 ? bufferSize : CHUNK_SIZE;
+		ByteBuffer buffer = ByteBuffer.allocate(chunkSize);
+		while (position < end) {
+			buffer.clear();
+			buffer.limit((int) Math.min(chunkSize, end - position));
+			beforeRead(buffer.remaining());
+			long readStart = System.nanoTime();
+			int read = source.read(buffer, position);
+			afterRead(System.nanoTime() - readStart);
+			if (read < 0) {
+				throw new IOException("The source was truncated while being copied");
+			}
+			position += read;
+			buffer.flip();
+			if (checksum != null) {
+				// Computed from the bytes written, so the source is never read twice
+				checksum.update(buffer.array(), 0, buffer.limit());
+			}
+			beforeWrite(targets.size(), (long) buffer.remaining() * targets.size());
+			for (WritableByteChannel target : targets) {
+				ByteBuffer chunk = buffer.duplicate();
+				while (chunk.hasRemaining()) {
+					target.write(chunk);
+				}
+			}
+		}
+	}
+
+	/**
+	 * Wraps a stream so that reading from it is throttled.
+	 *
+	 * @param in The stream.
+	 * @return The throttled stream, or the stream itself if nothing is limited.
+	 */
+	public InputStream wrap(InputStream in) {
+		if (!isLimited()) {
+			return in;
+		}
+		return new FilterInputStream(in) {
+			@Override
+			public int read() throws IOException {
+				byte[] single = new byte[1];
+				return read(single, 0, 1) < 0 ? -1 : single[0] & 0xFF;
+			}
+
+			@Override
+			public int read(byte[] b, int off, int len) throws IOException {
+				beforeRead(len);
+				long readStart = System.nanoTime();
+				int read = super.read(b, off, len);
+				afterRead(System.nanoTime() - readStart);
+				return read;
+			}
+		};
+	}
+
+	private void beforeRead(int bytes) throws InterruptedIOException {
+		if (operationBucket != null) {
+			operationBucket.acquire(1);
+		}
+		if (readBucket != null) {
+			readBucket.acquire(bytes);
+		}
+	}
+
+	private void beforeWrite(int operations, long bytes) throws InterruptedIOException {
+		if (operationBucket != null) {
+			operationBucket.acquire(operations);
+		}
+		if (writeBucket != null) {
+			writeBucket.acquire(bytes);
+		}
+	}
+
+	private void afterRead(long readNanos) throws InterruptedIOException {
+		if (!adaptive) {
+			return;
+		}
+		double pauseNanos = recordRead(readNanos);
+		if (pauseNanos >= 1) {
+			try {
+				TimeUnit.NANOSECONDS.sleep((long) pauseNanos);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while throttling I/O");
+			}
+		}
+	}
+
+	/**
+	 * Records the latency of a source read and adapts the duty cycle to it.
+	 *
+	 * @param readNanos The duration of the read.
+	 * @return The pause to make before the next read, in nanoseconds.
+	 */
+	synchronized double recordRead(long readNanos) {
+		averageReadNanos = reads == 0 ? readNanos
+				: averageReadNanos + LATENCY_SMOOTHING * (readNanos - averageReadNanos);
+		reads++;
+		if (reads < WARMUP_READS) {
+			return 0;
+		}
+		baselineReadNanos = Math.min(baselineReadNanos, averageReadNanos);
+		double ratio = averageReadNanos / baselineReadNanos;
+		if (ratio > BUSY_LATENCY_RATIO && dutyCycle > MIN_DUTY_CYCLE) {
+			// Multiplicative decrease, additive increase
+			dutyCycle = Math.max(MIN_DUTY_CYCLE, dutyCycle / 2);
+			LOGGER.debug("Source reads are {}x slower than usual, backing off to a duty cycle of {}",
+					String.format("%.1f", ratio), dutyCycle);
+		} else if (ratio < IDLE_LATENCY_RATIO && dutyCycle < 1) {
+			dutyCycle = Math.min(1, dutyCycle + MIN_DUTY_CYCLE);
+		}
+		return readNanos * (1 / dutyCycle - 1);
+	}
+
+	/**
+	 * Gets the share of time spent reading in adaptive mode.
+	 *
+	 * @return The duty cycle, 1 meaning no pause at all.
+	 */
+	synchronized double getDutyCycle() {
+		return dutyCycle;
+	}
+}
@@ -0,0 +1,557 @@
+package org.the4thlaw.bm3;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.InvalidPathException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.security.MessageDigest;
+import java.security.SecureRandom;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.NavigableMap;
+import java.util.concurrent.ConcurrentSkipListMap;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.IOUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+import com.sun.net.httpserver.Headers;
+import com.sun.net.httpserver.HttpExchange;
+import com.sun.net.httpserver.HttpServer;
+
+/**
+ * A long-running server accepting sync jobs through a local HTTP API.
+ * <p>
+ * The server keeps the cover cache and a {@link LibraryCache} warm across jobs, so that repeated syncs of the same
+ * library only pay for what changed. Jobs run one at a time, in submission order. Only the most recent finished jobs
+ * are kept.
+ * <p>
+ * It listens on the loopback interface only, and only accepts requests carrying its token, generated for each run,
+ * in the {@value #TOKEN_HEADER} header. Requests from browsers are rejected, as well as requests for another host
+ * name, so that web pages can't submit jobs, even through DNS rebinding:
+ * <ul>
+ * <li><code>POST /jobs</code> with a JSON object such as
+ * <code>{"source": "...", "target": "...", "sync": true, "dryRun": false, "backslashes": false}</code> queues a job
+ * and returns it</li>
+ * <li><code>GET /jobs</code> lists the jobs</li>
+ * <li><code>GET /jobs/&lt;id&gt;</code> returns the state and progress of a job</li>
+ * <li><code>GET /jobs/&lt;id&gt;/events</code> streams the events of a job as server-sent events until it ends</li>
+ * </ul>
+ */
+public class JobServer {
+	private static final Logger LOGGER = LoggerFactory.getLogger(JobServer.class);
+	/** How often progress is streamed, at most. */
+	private static final long PROGRESS_INTERVAL_MILLIS = 500;
+	/** The header carrying the token of the server. */
+	public static final String TOKEN_HEADER = "X-BM3-Token";
+	private static final int TOKEN_BYTES = 32;
+	/** The number of finished jobs kept, so that their outcome can still be queried. */
+	private static final int MAX_FINISHED_JOBS = 100;
+
+	private final HttpServer server;
+	private final ExecutorService jobExecutor;
+	private final ExecutorService requestExecutor;
+	private LibraryCache libraryCache = new LibraryCache();
+	private Path indexFile;
+	private final NavigableMap<Integer, ServerJob> jobs = new ConcurrentSkipListMap<>();
+	private final AtomicInteger jobCount = new AtomicInteger();
+	private final int metadataParallelism;
+	private final IoThrottle throttle;
+	private final String token;
+	private final List<String> allowedHosts;
+
+	/**
+	 * Creates a server, which must then be started.
+	 *
+	 * @param port The port to listen to, on the loopback interface.
+	 * @param metadataParallelism The number of concurrent metadata lookups of each job.
+	 * @param throttle The I/O limits of each job.
+	 * @throws IOException If the port can't be bound.
+	 */
+	public JobServer(int port, int metadataParallelism, IoThrottle throttle) throws IOException {
+		this.metadataParallelism = metadataParallelism;
+		this.throttle = throttle;
+		server = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+		int boundPort = server.getAddress().getPort();
+		allowedHosts = Arrays.asList("localhost:" + boundPort, "127.0.0.1:" + boundPort, "[::1]:" + boundPort);
+		byte[] tokenBytes = new byte[TOKEN_BYTES];
+		new SecureRandom().nextBytes(tokenBytes);
+		token = toHex(tokenBytes);
+		server.createContext("/jobs", this::handle);
+		jobExecutor = Executors.newSingleThreadExecutor(r -> new Thread(r, "bm3-job"));
+		// Event streams hold a thread each
+		requestExecutor = Executors.newCachedThreadPool(r -> {
+			Thread thread = new Thread(r, "bm3-http");
+			thread.setDaemon(true);
+			return thread;
+		});
+		server.setExecutor(requestExecutor);
+	}
+
+	/**
+	 * Persists the library cache in an index file, loaded now and saved after each job. Must be called before the
+	 * server is started.
+	 *
+	 * @param indexFile The index file.
+	 */
+	public void setIndexFile(Path indexFile) {
+		this.indexFile = indexFile;
+		this.libraryCache = LibraryCache.load(indexFile);
+	}
+
+	/**
+	 * Gets the token which requests must carry in the {@value #TOKEN_HEADER} header. It is generated when the server is
+	 * created.
+	 *
+	 * @return The token.
+	 */
+	public String getToken() {
+		return token;
+	}
+
+	/**
+	 * Gets the port the server listens to, which is chosen by the system if the server was created with port 0.
+	 *
+	 * @return The port.
+	 */
+	public int getPort() {
+		return server.getAddress().getPort();
+	}
+
+	public void start() {
+		server.start();
+		LOGGER.info("Job server listening on http://{}:{}/jobs", server.getAddress().getHostString(),
+				server.getAddress().getPort());
+	}
+
+	public void stop() {
+		server.stop(0);
+		jobExecutor.shutdownNow();
+		requestExecutor.shutdownNow();
+	}
+
+	/**
+	 * Queues a job. It runs as a {@link SyncJob}, so it fails if another job of this JVM is writing to the same
+	 * target.
+	 *
+	 * @param sourceDirectory The library.
+	 * @param target The target.
+	 * @param syncMode <code>true</code> to only copy files which changed since the previous sync.
+	 * @param dryRun <code>true</code> to leave the target untouched.
+	 * @return The job.
+	 */
+	public ServerJob submit(Path sourceDirectory, Target target, boolean syncMode, boolean dryRun) {
+		ServerJob job = new ServerJob(jobCount.incrementAndGet(), sourceDirectory, target.getDirectory(), syncMode,
+				dryRun);
+		// Jobs run one at a time on the job thread
+		Executor executor = r -> jobExecutor.execute(() -> {
+			job.setState(ServerJob.State.RUNNING);
+			r.run();
+		});
+		jobs.put(job.getId(), job);
+		SyncJob syncJob;
+		try {
+			syncJob = SyncJob.builder(sourceDirectory).target(target.getDirectory(), target.isUseSlashes())
+					.syncMode(syncMode).dryRun(dryRun).reporter(job).libraryCache(libraryCache)
+					.metadataParallelism(metadataParallelism).throttle(throttle).start(executor);
+		} catch (RuntimeException e) {
+			jobs.remove(job.getId());
+			throw e;
+		}
+		// Completed on the job thread, before the next job starts
+		syncJob.getResult().whenComplete((result, failure) -> finish(job, failure));
+		LOGGER.info("Queued job {}: {} to {}", job.getId(), sourceDirectory, target);
+		return job;
+	}
+
+	private void finish(ServerJob job, Throwable failure) {
+		if (failure == null) {
+			job.setState(ServerJob.State.SUCCEEDED);
+		} else {
+			// Logged by the sync job
+			LOGGER.warn("Job {} failed: {}", job.getId(), failure.getMessage());
+			job.reportError(String.valueOf(failure.getMessage()));
+			job.setState(ServerJob.State.FAILED);
+		}
+		if (indexFile != null) {
+			try {
+				libraryCache.save(indexFile);
+			} catch (IOException e) {
+				LOGGER.warn("Failed to save the library index {}", indexFile, e);
+			}
+		}
+		evictFinishedJobs();
+	}
+
+	/**
+	 * Forgets the oldest finished jobs, beyond {@link #MAX_FINISHED_JOBS}.
+	 */
+	private void evictFinishedJobs() {
+		int finished = 0;
+		for (ServerJob job : jobs.descendingMap().values()) {
+			if (job.isFinished() && ++finished > MAX_FINISHED_JOBS) {
+				jobs.remove(job.getId());
+			}
+		}
+	}
+
+	private void handle(HttpExchange exchange) throws IOException {
+		try {
+			String path = exchange.getRequestURI().getPath();
+			String[] parts = path.replaceAll("^/+|/+$", "").split("/");
+			String method = exchange.getRequestMethod();
+			Headers headers = exchange.getRequestHeaders();
+			if (headers.containsKey("Origin")) {
+				send(exchange, 403, error("Requests from web pages are not accepted"));
+			} else if (!allowedHosts.contains(String.valueOf(headers.getFirst("Host")).toLowerCase(Locale.ROOT))) {
+				send(exchange, 403, error("Unexpected host: " + headers.getFirst("Host")));
+			} else if (!isValidToken(headers.getFirst(TOKEN_HEADER))) {
+				send(exchange, 401, error("The " + TOKEN_HEADER + " header is missing or wrong"));
+			} else if (!parts[0].equals("jobs")) {
+				// The context matches any path starting with /jobs, such as /jobsx
+				send(exchange, 404, error("Not found: " + path));
+			} else if (parts.length == 1 && method.equals("POST")) {
+				handleSubmit(exchange);
+			} else if (parts.length == 1 && method.equals("GET")) {
+				List<String> list = new ArrayList<>();
+				for (ServerJob job : jobs.values()) {
+					list.add(job.toJson());
+				}
+				send(exchange, 200, "[" + String.join(",", list) + "]");
+			} else if (parts.length >= 2 && method.equals("GET")) {
+				ServerJob job = findJob(parts[1]);
+				if (job == null) {
+					send(exchange, 404, error("No such job: " + parts[1]));
+				} else if (parts.length == 2) {
+					send(exchange, 200, job.toJson());
+				} else if (parts.length == 3 && parts[2].equals("events")) {
+					streamEvents(exchange, job);
+				} else {
+					send(exchange, 404, error("Not found: " + path));
+				}
+			} else {
+				send(exchange, 405, error("Unsupported: " + method + " " + path));
+			}
+		} catch (RuntimeException e) {
+			LOGGER.warn("Failed to handle {}", exchange.getRequestURI(), e);
+			send(exchange, 500, error(String.valueOf(e.getMessage())));
+		} finally {
+			exchange.close();
+		}
+	}
+
+	private boolean isValidToken(String candidate) {
+		// Compared in constant time
+		return candidate != null && MessageDigest.isEqual(token.getBytes(StandardCharsets.UTF_8),
+				candidate.getBytes(StandardCharsets.UTF_8));
+	}
+
+	private void handleSubmit(HttpExchange exchange) throws IOException {
+		String contentType = exchange.getRequestHeaders().getFirst("Content-Type");
+		if (contentType == null || !contentType.split(";")[0].trim().equalsIgnoreCase("application/json")) {
+			send(exchange, 415, error("The job must be sent as application/json"));
+			return;
+		}
+		Map<String, String> parameters;
+		try (InputStream in = exchange.getRequestBody()) {
+			parameters = parseJsonObject(IOUtils.toString(in, StandardCharsets.UTF_8));
+		} catch (IllegalArgumentException e) {
+			send(exchange, 400, error("Invalid JSON: " + e.getMessage()));
+			return;
+		}
+		String source = parameters.get("source");
+		String target = parameters.get("target");
+		if (source == null || target == null) {
+			send(exchange, 400, error("The source and target parameters are required"));
+			return;
+		}
+		Path sourceDirectory;
+		Path targetDirectory;
+		try {
+			sourceDirectory = Paths.get(source);
+			targetDirectory = Paths.get(target);
+		} catch (InvalidPathException e) {
+			send(exchange, 400, error("Invalid path: " + e.getMessage()));
+			return;
+		}
+		if (!Files.isDirectory(sourceDirectory)) {
+			send(exchange, 400, error("Not a directory or doesn't exist: " + source));
+			return;
+		}
+		ServerJob job = submit(sourceDirectory,
+				new Target(targetDirectory, !Boolean.parseBoolean(parameters.get("backslashes"))),
+				Boolean.parseBoolean(parameters.get("sync")), Boolean.parseBoolean(parameters.get("dryRun")));
+		send(exchange, 202, job.toJson());
+	}
+
+	private void streamEvents(HttpExchange exchange, ServerJob job) throws IOException {
+		exchange.getResponseHeaders().set("Content-Type", "text/event-stream; charset=utf-8");
+		exchange.getResponseHeaders().set("Cache-Control", "no-cache");
+		exchange.sendResponseHeaders(200, 0);
+		OutputStream out = exchange.getResponseBody();
+		int eventIndex = 0;
+		long version = -1;
+		try {
+			while (true) {
+				long seenVersion = version;
+				version = job.awaitChange(seenVersion, PROGRESS_INTERVAL_MILLIS * 20);
+				StringBuilder chunk = new StringBuilder();
+				for (ServerJob.Event event : job.getEvents(eventIndex)) {
+					chunk.append("id: ").append(event.getIndex()).append("\nevent: ").append(event.getType())
+							.append("\ndata: ").append(quote(event.getMessage())).append("\n\n");
+					// Events dropped from the job while the client was behind are skipped
+					eventIndex = event.getIndex() + 1;
+				}
+				if (version != seenVersion) {
+					chunk.append("event: progress\ndata: ").append(job.toJson()).append("\n\n");
+				} else {
+					// Keeps the connection alive
+					chunk.append(": idle\n\n");
+				}
+				out.write(chunk.toString().getBytes(StandardCharsets.UTF_8));
+				out.flush();
+				if (job.isFinished()) {
+					return;
+				}
+				// Coalesce progress updates
+				Thread.sleep(PROGRESS_INTERVAL_MILLIS);
+			}
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+		} catch (IOException e) {
+			LOGGER.debug("Event stream of job {} closed by the client", job.getId(), e);
+		}
+	}
+
+	private ServerJob findJob(String id) {
+		try {
+			return jobs.get(Integer.valueOf(id));
+		} catch (NumberFormatException e) {
+			return null;
+		}
+	}
+
+	private static void send(HttpExchange exchange, int code, String json) throws IOException {
+		byte[] body = json.getBytes(StandardCharsets.UTF_8);
+		exchange.getResponseHeaders().set("Content-Type", "application/json; charset=utf-8");
+		exchange.sendResponseHeaders(code, body.length);
+		try (OutputStream out = exchange.getResponseBody()) {
+			out.write(body);
+		}
+	}
+
+	private static String error(String message) {
+		return "{\"error\":" + quote(message) + "}";
+	}
+
+	private static String toHex(byte[] bytes) {
+		StringBuilder hex = new StringBuilder();
+		for (byte b : bytes) {
+			hex.append(String.format("%02x", b));
+		}
+		return hex.toString();
+	}
+
+	/**
+	 * Parses a flat JSON object, whose values are strings, booleans, numbers or <code>null</code>.
+	 *
+	 * @param json The JSON object.
+	 * @return The values of the object, as strings.
+	 * @throws IllegalArgumentException If the object is not valid or not flat.
+	 */
+	static Map<String, String> parseJsonObject(String json) {
+		Map<String, String> values = new HashMap<>();
+		JsonReader reader = new JsonReader(json);
+		reader.expect('{');
+		if (!reader.skipIf('}')) {
+			do {
+				String name = reader.readString();
+				reader.expect(':');
+				values.put(name, reader.readValue());
+			} while (reader.skipIf(','));
+			reader.expect('}');
+		}
+		reader.expectEnd();
+		return values;
+	}
+
+	/**
+	 * Quotes a string as a JSON string literal.
+	 *
+	 * @param value The string, may be <code>null</code>.
+	 * @return The literal.
+	 */
+	static String quote(String value) {
+		if (value == null) {
+			return "null";
+		}
+		StringBuilder quoted = new StringBuilder("\"");
+		for (char c : value.toCharArray()) {
+			switch (c) {
+			case '"':
+				quoted.append("\\\"");
+				break;
+			case '\\':
+				quoted.append("\\\\");
+				break;
+			case '\n':
+				quoted.append("\\n");
+				break;
+			case '\r':
+				quoted.append("\\r");
+				break;
+			case '\t':
+				quoted.append("\\t");
+				break;
+			default:
+				if (c < 0x20) {
+					quoted.append(String.format("\\u%04x", (int) c));
+				} else {
+					quoted.append(c);
+				}
+			}
+		}
+		return quoted.append('"').toString();
+	}
+
+	/**
+	 * Reads the tokens of a JSON document.
+	 */
+	private static final class JsonReader {
+		private final String json;
+		private int position;
+
+		JsonReader(String json) {
+			this.json = json;
+		}
+
+		private char peek() {
+			while (position < json.length() && Character.isWhitespace(json.charAt(position))) {
+				position++;
+			}
+			if (position == json.length()) {
+				throw new IllegalArgumentException("Unexpected end");
+			}
+			return json.charAt(position);
+		}
+
+		void expect(char c) {
+			if (!skipIf(c)) {
+				throw new IllegalArgumentException("Expected '" + c + "' at " + position);
+			}
+		}
+
+		boolean skipIf(char c) {
+			if (peek() == c) {
+				position++;
+				return true;
+			}
+			return false;
+		}
+
+		void expectEnd() {
+			while (position < json.length() && Character.isWhitespace(json.charAt(position))) {
+				position++;
+			}
+			if (position < json.length()) {
+				throw new IllegalArgumentException("Unexpected content at " + position);
+			}
+		}
+
+		String readValue() {
+			if (peek() == '"') {
+				return readString();
+			}
+			int start = position;
+			while (position < json.length() && "{}[],:\" \t\r\n".indexOf(json.charAt(position)) < 0) {
+				position++;
+			}
+			String literal = json.substring(start, position);
+			if (literal.equals("null")) {
+				return null;
+			}
+			if (literal.equals("true") || literal.equals("false")
+					|| literal.matches("-?\\d+(\\.\\d+)?([eE][+-]?\\d+)?")) {
+				return literal;
+			}
+			throw new IllegalArgumentException("Unsupported value at " + start);
+		}
+
+		String readString() {
+			expect('"');
+			StringBuilder value = new StringBuilder();
+			while (true) {
+				if (position >= json.length()) {
+					throw new IllegalArgumentException("Unterminated string");
+				}
+				char c = json.charAt(position++);
+				if (c == '"') {
+					return value.toString();
+				}
+				if (c != '\\') {
+					value.append(c);
+					continue;
+				}
+				if (position >= json.length()) {
+					throw new IllegalArgumentException("Unterminated string");
+				}
+				char escaped = json.charAt(position++);
+				switch (escaped) {
+				case 'b':
+					value.append('\b');
+					break;
+				case 'f':
+					value.append('\f');
+					break;
+				case 'n':
+					value.append('\n');
+					break;
+				case 'r':
+					value.append('\r');
+					break;
+				case 't':
+					value.append('\t');
+					break;
+				case 'u':
+					if (position + 4 > json.length()) {
+						throw new IllegalArgumentException("Invalid escape at " + position);
+					}
+					int codeUnit = 0;
+					for (int i = position; i < position + 4; i++) {
+						char hexDigit = json.charAt(i);
+						// Character.digit also accepts non-ASCII digits
+						int digit = hexDigit < 0x80 ? Character.digit(hexDigit, 16) : -1;
+						if (digit < 0) {
+							throw new IllegalArgumentException("Invalid escape at " + position);
+						}
+						codeUnit = codeUnit * 16 + digit;
+					}
+					value.append((char) codeUnit);
+					position += 4;
+					break;
+				case '"':
+				case '\\':
+				case '/':
+					value.append(escaped);
+					break;
+				default:
+					throw new IllegalArgumentException("Invalid escape at " + position);
+				}
+			}
+		}
+	}
+}
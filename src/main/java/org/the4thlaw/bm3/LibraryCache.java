@@ -0,0 +1,535 @@
+package org.the4thlaw.bm3;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.IOException;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.FileVisitOption;
+import java.nio.file.FileVisitResult;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.nio.file.SimpleFileVisitor;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.EnumSet;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Library state kept across runs: playlist directory snapshots, parsed playlists, resolved playlist entries, cover
+ * lookups and content hashes. It is held in memory by the job server and can be persisted as an index of the library,
+ * so that a sync without changes doesn't need to walk the library again.
+ * <p>
+ * Each entry is validated against the file system before being reused: snapshots by the modification times of the
+ * directories they cover, playlists by their size and modification time, resolved entries and cover lookups by the
+ * modification time of the directory holding the music file (adding, removing or renaming a file changes it),
+ * content hashes by the size and modification time of the file.
+ * Validating is a single lookup per entry, much cheaper than a listing, a parse or a canonicalisation. Sizes and
+ * modification times of music files are always read again, since editing a file in place doesn't change its
+ * directory.
+ * <p>
+ * Thread-safe.
+ */
+public class LibraryCache implements DuplicateFinder.HashCache {
+	private static final Logger LOGGER = LoggerFactory.getLogger(LibraryCache.class);
+	private static final String INDEX_HEADER = "#bm3-index 2";
+	private static final char SEPARATOR = '\t';
+
+	private static final class Snapshot {
+		private final Map<File, Long> directoryTimes;
+		private final List<File> playlists;
+		/** The directories which contain audio files, for album pruning. */
+		private final Set<File> albumDirectories;
+
+		private Snapshot(Map<File, Long> directoryTimes, List<File> playlists, Set<File> albumDirectories) {
+			this.directoryTimes = directoryTimes;
+			this.playlists = playlists;
+			this.albumDirectories = albumDirectories;
+		}
+
+		boolean isValid() {
+			for (Map.Entry<File, Long> entry : directoryTimes.entrySet()) {
+				if (lastModified(entry.getKey()) != entry.getValue()) {
+					return false;
+				}
+			}
+			return true;
+		}
+	}
+
+	private static final class CachedPlaylist {
+		private final long lastModified;
+		private final long length;
+		private final List<File> entries;
+
+		private CachedPlaylist(long lastModified, long length, List<File> entries) {
+			this.lastModified = lastModified;
+			this.length = length;
+			this.entries = entries;
+		}
+	}
+
+	private static final class CachedCover {
+		private final long directoryLastModified;
+		private final Cover cover;
+
+		private CachedCover(long directoryLastModified, Cover cover) {
+			this.directoryLastModified = directoryLastModified;
+			this.cover = cover;
+		}
+	}
+
+	private static final class CachedHash {
+		private final long size;
+		private final long lastModified;
+		private volatile String partialHash;
+		private volatile String fullHash;
+
+		private CachedHash(long size, long lastModified, String partialHash, String fullHash) {
+			this.size = size;
+			this.lastModified = lastModified;
+			this.partialHash = partialHash;
+			this.fullHash = fullHash;
+		}
+	}
+
+	/**
+	 * A playlist entry resolved to its canonical file.
+	 */
+	static final class ResolvedEntry {
+		private final long directoryLastModified;
+		private final File file;
+		private final boolean exists;
+
+		private ResolvedEntry(long directoryLastModified, File file, boolean exists) {
+			this.directoryLastModified = directoryLastModified;
+			this.file = file;
+			this.exists = exists;
+		}
+
+		/**
+		 * Resolves an entry without any cache.
+		 *
+		 * @param rawEntry The entry.
+		 * @return The resolved entry.
+		 * @throws IOException If resolving the entry fails.
+		 */
+		static ResolvedEntry resolve(File rawEntry) throws IOException {
+			File file = PlaylistReader.resolve(rawEntry);
+			return new ResolvedEntry(0, file, Files.exists(file.toPath()));
+		}
+
+		File getFile() {
+			return file;
+		}
+
+		boolean exists() {
+			return exists;
+		}
+	}
+
+	private final Map<File, Snapshot> snapshots = new ConcurrentHashMap<>();
+	private final Map<File, CachedPlaylist> playlists = new ConcurrentHashMap<>();
+	private final Map<File, CachedCover> covers = new ConcurrentHashMap<>();
+	private final Map<File, ResolvedEntry> entries = new ConcurrentHashMap<>();
+	private final Map<File, CachedHash> hashes = new ConcurrentHashMap<>();
+	private final AtomicInteger hits = new AtomicInteger();
+	private final AtomicInteger misses = new AtomicInteger();
+
+	/**
+	 * Lists the playlists of a directory and its sub-directories. The whole tree is listed and cached, then pruned as
+	 * the finder would prune its search, so that the same snapshot serves any pruning rules.
+	 *
+	 * @param directory The directory.
+	 * @param finder The finder whose pruning rules apply.
+	 * @return The playlists.
+	 * @throws IOException If listing the directory fails.
+	 */
+	public Collection<File> listPlaylists(File directory, PlaylistFinder finder) throws IOException {
+		Snapshot snapshot = snapshots.get(directory);
+		if (snapshot != null && snapshot.isValid()) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+			snapshot = takeSnapshot(directory);
+			snapshots.put(directory, snapshot);
+		}
+		return finder.prune(directory, snapshot.playlists, snapshot.albumDirectories);
+	}
+
+	private static Snapshot takeSnapshot(File directory) throws IOException {
+		Map<File, Long> directoryTimes = new HashMap<>();
+		List<File> playlists = new ArrayList<>();
+		Set<File> albumDirectories = new HashSet<>();
+		Files.walkFileTree(directory.toPath(), EnumSet.of(FileVisitOption.FOLLOW_LINKS), Integer.MAX_VALUE,
+				new SimpleFileVisitor<Path>() {
+					@Override
+					public FileVisitResult preVisitDirectory(Path dir, BasicFileAttributes attrs) {
+						directoryTimes.put(dir.toFile(), attrs.lastModifiedTime().toMillis());
+						return FileVisitResult.CONTINUE;
+					}
+
+					@Override
+					public FileVisitResult visitFile(Path file, BasicFileAttributes attrs) {
+						if (attrs.isRegularFile() && PlaylistFinder.isPlaylist(file)) {
+							playlists.add(file.toFile());
+						} else if (PlaylistFinder.isAudio(file)) {
+							albumDirectories.add(file.getParent().toFile());
+						}
+						return FileVisitResult.CONTINUE;
+					}
+				});
+		LOGGER.debug("Took a snapshot of {}: {} directories, {} playlists", directory, directoryTimes.size(),
+				playlists.size());
+		return new Snapshot(directoryTimes, Collections.unmodifiableList(playlists),
+				Collections.unmodifiableSet(albumDirectories));
+	}
+
+	/**
+	 * Reads the entries of a playlist, without resolving them.
+	 *
+	 * @param playlist The playlist.
+	 * @return The entries, as returned by {@link PlaylistReader#getRawEntries()}.
+	 * @throws IOException If reading the playlist fails.
+	 */
+	public List<File> readPlaylist(File playlist) throws IOException {
+		BasicFileAttributes attributes = Files.readAttributes(playlist.toPath(), BasicFileAttributes.class);
+		long lastModified = attributes.lastModifiedTime().toMillis();
+		long length = attributes.size();
+		CachedPlaylist cached = playlists.get(playlist);
+		if (cached != null && cached.lastModified == lastModified && cached.length == length) {
+			hits.incrementAndGet();
+			return cached.entries;
+		}
+		misses.incrementAndGet();
+		List<File> playlistEntries;
+		try (PlaylistReader reader = new PlaylistReader(playlist.toPath())) {
+			playlistEntries = Collections.unmodifiableList(reader.getRawEntries());
+		}
+		playlists.put(playlist, new CachedPlaylist(lastModified, length, playlistEntries));
+		return playlistEntries;
+	}
+
+	/**
+	 * Resolves a playlist entry to its canonical file.
+	 *
+	 * @param rawEntry The entry, as returned by {@link #readPlaylist(File)}.
+	 * @return The resolved entry.
+	 * @throws IOException If resolving the entry fails.
+	 */
+	ResolvedEntry resolveEntry(File rawEntry) throws IOException {
+		long directoryLastModified = getDirectoryLastModified(rawEntry);
+		ResolvedEntry cached = entries.get(rawEntry);
+		if (cached != null && cached.directoryLastModified == directoryLastModified && directoryLastModified != 0) {
+			hits.incrementAndGet();
+			return cached;
+		}
+		misses.incrementAndGet();
+		ResolvedEntry uncached = ResolvedEntry.resolve(rawEntry);
+		ResolvedEntry resolved = new ResolvedEntry(directoryLastModified, uncached.file, uncached.exists);
+		entries.put(rawEntry, resolved);
+		return resolved;
+	}
+
+	/**
+	 * Finds the cover of a music file.
+	 *
+	 * @param musicFile The music file.
+	 * @return The cover, or <code>null</code> if there is none.
+	 * @see FileProcessor#findCover(File)
+	 */
+	public Cover findCover(File musicFile) {
+		long directoryLastModified = getDirectoryLastModified(musicFile);
+		CachedCover cached = covers.get(musicFile);
+		if (cached != null && cached.directoryLastModified == directoryLastModified) {
+			hits.incrementAndGet();
+			return cached.cover;
+		}
+		misses.incrementAndGet();
+		Cover cover = FileProcessor.findCover(musicFile);
+		covers.put(musicFile, new CachedCover(directoryLastModified, cover));
+		return cover;
+	}
+
+	@Override
+	public String getContentHash(File file, long size, long lastModified, boolean partial) {
+		CachedHash cached = hashes.get(file);
+		String hash = null;
+		if (cached != null && cached.size == size && cached.lastModified == lastModified) {
+			hash = partial ? cached.partialHash : cached.fullHash;
+		}
+		if (hash != null) {
+			hits.incrementAndGet();
+		} else {
+			misses.incrementAndGet();
+		}
+		return hash;
+	}
+
+	@Override
+	public void putContentHash(File file, long size, long lastModified, boolean partial, String hash) {
+		CachedHash cached = hashes.compute(file, (f, previous) -> previous != null && previous.size == size
+				&& previous.lastModified == lastModified ? previous : new CachedHash(size, lastModified, null, null));
+		if (partial) {
+			cached.partialHash = hash;
+		} else {
+			cached.fullHash = hash;
+		}
+	}
+
+	/**
+	 * Forgets the hashes of the files which no longer exist, so that hashes don't pile up as the library changes.
+	 */
+	public void pruneHashes() {
+		int before = hashes.size();
+		hashes.keySet().removeIf(file -> !Files.isRegularFile(file.toPath()));
+		if (hashes.size() < before) {
+			LOGGER.debug("Forgot the hashes of {} deleted files", before - hashes.size());
+		}
+	}
+
+	private static long getDirectoryLastModified(File file) {
+		File directory = file.getParentFile();
+		return directory == null ? 0 : lastModified(directory);
+	}
+
+	/**
+	 * Gets the modification time of a file, like {@link File#lastModified()} but through the file system provider.
+	 *
+	 * @param file The file.
+	 * @return The modification time, 0 if the file doesn't exist or can't be read.
+	 */
+	private static long lastModified(File file) {
+		try {
+			return Files.getLastModifiedTime(file.toPath()).toMillis();
+		} catch (IOException e) {
+			return 0;
+		}
+	}
+
+	/**
+	 * Logs the cache hits and misses since the last call, and resets them.
+	 */
+	public void logStatistics() {
+		LOGGER.info("Library cache: {} hits, {} misses ({} snapshots, {} playlists, {} entries, {} cover lookups,"
+				+ " {} hashes held)", hits.getAndSet(0), misses.getAndSet(0), snapshots.size(), playlists.size(),
+				entries.size(), covers.size(), hashes.size());
+	}
+
+	/**
+	 * Empties the cache.
+	 */
+	public void clear() {
+		snapshots.clear();
+		playlists.clear();
+		covers.clear();
+		entries.clear();
+		hashes.clear();
+	}
+
+	/**
+	 * Loads a cache saved by {@link #save(Path)}. A missing or unreadable index yields an empty cache.
+	 *
+	 * @param indexFile The index file.
+	 * @return The cache.
+	 */
+	public static LibraryCache load(Path indexFile) {
+		LibraryCache cache = new LibraryCache();
+		if (!Files.isRegularFile(indexFile)) {
+			return cache;
+		}
+		try (BufferedReader reader = Files.newBufferedReader(indexFile, StandardCharsets.UTF_8)) {
+			if (!INDEX_HEADER.equals(reader.readLine())) {
+				LOGGER.info("Ignoring the index {}, it was written by another version", indexFile);
+				return cache;
+			}
+			cache.read(reader);
+		} catch (IOException | RuntimeException e) {
+			LOGGER.warn("Ignoring the unreadable index {}", indexFile, e);
+			cache.clear();
+			return cache;
+		}
+		LOGGER.info("Loaded the library index {}: {} playlists, {} entries", indexFile, cache.playlists.size(),
+				cache.entries.size());
+		return cache;
+	}
+
+	private void read(BufferedReader reader) throws IOException {
+		File snapshotRoot = null;
+		Map<File, Long> directoryTimes = null;
+		List<File> snapshotPlaylists = null;
+		Set<File> snapshotAlbums = null;
+		File playlist = null;
+		long playlistLastModified = 0;
+		long playlistLength = 0;
+		List<File> playlistEntries = null;
+
+		String line;
+		while ((line = reader.readLine()) != null) {
+			String[] fields = line.split(String.valueOf(SEPARATOR), -1);
+			switch (fields[0]) {
+			case "S":
+				snapshotRoot = new File(fields[1]);
+				directoryTimes = new HashMap<>();
+				snapshotPlaylists = new ArrayList<>();
+				snapshotAlbums = new HashSet<>();
+				snapshots.put(snapshotRoot, new Snapshot(directoryTimes,
+						Collections.unmodifiableList(snapshotPlaylists), Collections.unmodifiableSet(snapshotAlbums)));
+				break;
+			case "d":
+				directoryTimes.put(new File(fields[1]), Long.valueOf(fields[2]));
+				break;
+			case "p":
+				snapshotPlaylists.add(new File(fields[1]));
+				break;
+			case "a":
+				snapshotAlbums.add(new File(fields[1]));
+				break;
+			case "P":
+				playlist = new File(fields[1]);
+				playlistLastModified = Long.parseLong(fields[2]);
+				playlistLength = Long.parseLong(fields[3]);
+				playlistEntries = new ArrayList<>();
+				playlists.put(playlist, new CachedPlaylist(playlistLastModified, playlistLength,
+						Collections.unmodifiableList(playlistEntries)));
+				break;
+			case "e":
+				playlistEntries.add(new File(fields[1]));
+				break;
+			case "R":
+				entries.put(new File(fields[1]),
+						new ResolvedEntry(Long.parseLong(fields[2]), new File(fields[3]), Boolean.parseBoolean(fields[4])));
+				break;
+			case "C":
+				Cover cover = fields[3].isEmpty() ? null : Cover.forCoverFile(Paths.get(fields[3]));
+				covers.put(new File(fields[1]), new CachedCover(Long.parseLong(fields[2]), cover));
+				break;
+			case "H":
+				hashes.put(new File(fields[1]), new CachedHash(Long.parseLong(fields[2]), Long.parseLong(fields[3]),
+						fields[4].isEmpty() ? null : fields[4], fields[5].isEmpty() ? null : fields[5]));
+				break;
+			default:
+				throw new IOException("Unexpected index line: " + line);
+			}
+		}
+	}
+
+	/**
+	 * Saves the cache, so that it can be loaded by another run.
+	 *
+	 * @param indexFile The index file.
+	 * @throws IOException If writing the index fails.
+	 */
+	public void save(Path indexFile) throws IOException {
+		Path absoluteFile = indexFile.toAbsolutePath();
+		Files.createDirectories(absoluteFile.getParent());
+		Path tempFile = FileProcessor.getTempFile(absoluteFile);
+		try (Writer writer = Files.newBufferedWriter(tempFile, StandardCharsets.UTF_8)) {
+			writer.write(INDEX_HEADER);
+			writer.write('\n');
+			write(writer);
+		}
+		try {
+			Files.move(tempFile, absoluteFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tempFile, absoluteFile, StandardCopyOption.REPLACE_EXISTING);
+		}
+		LOGGER.debug("Saved the library index {}", indexFile);
+	}
+
+	private void write(Writer writer) throws IOException {
+		for (Map.Entry<File, Snapshot> snapshot : snapshots.entrySet()) {
+			Snapshot cached = snapshot.getValue();
+			if (!isIndexable(snapshot.getKey(), cached.directoryTimes.keySet(), cached.playlists,
+					cached.albumDirectories)) {
+				continue;
+			}
+			writeLine(writer, "S", snapshot.getKey());
+			for (Map.Entry<File, Long> directory : cached.directoryTimes.entrySet()) {
+				writeLine(writer, "d", directory.getKey(), directory.getValue());
+			}
+			for (File playlist : cached.playlists) {
+				writeLine(writer, "p", playlist);
+			}
+			for (File album : cached.albumDirectories) {
+				writeLine(writer, "a", album);
+			}
+		}
+		for (Map.Entry<File, CachedPlaylist> playlist : playlists.entrySet()) {
+			CachedPlaylist cached = playlist.getValue();
+			if (!isIndexable(playlist.getKey(), cached.entries)) {
+				continue;
+			}
+			writeLine(writer, "P", playlist.getKey(), cached.lastModified, cached.length);
+			for (File entry : cached.entries) {
+				writeLine(writer, "e", entry);
+			}
+		}
+		for (Map.Entry<File, ResolvedEntry> entry : entries.entrySet()) {
+			ResolvedEntry resolved = entry.getValue();
+			if (isIndexable(entry.getKey(), resolved.file)) {
+				writeLine(writer, "R", entry.getKey(), resolved.directoryLastModified, resolved.file, resolved.exists);
+			}
+		}
+		for (Map.Entry<File, CachedCover> cover : covers.entrySet()) {
+			CachedCover cached = cover.getValue();
+			Path coverFile = cached.cover == null ? null : cached.cover.getPath();
+			if (isIndexable(cover.getKey(), coverFile)) {
+				writeLine(writer, "C", cover.getKey(), cached.directoryLastModified, coverFile == null ? "" : coverFile);
+			}
+		}
+		for (Map.Entry<File, CachedHash> hash : hashes.entrySet()) {
+			CachedHash cached = hash.getValue();
+			if (isIndexable(hash.getKey())) {
+				writeLine(writer, "H", hash.getKey(), cached.size, cached.lastModified,
+						cached.partialHash == null ? "" : cached.partialHash,
+						cached.fullHash == null ? "" : cached.fullHash);
+			}
+		}
+	}
+
+	/**
+	 * Checks that files can be written to the index. Paths containing separators or line breaks are too exotic to be
+	 * worth escaping, they are simply looked up again on each run.
+	 *
+	 * @param files The files, or collections of files.
+	 * @return <code>true</code> if all files can be written.
+	 */
+	private static boolean isIndexable(Object... files) {
+		for (Object file : files) {
+			if (file instanceof Collection) {
+				if (!isIndexable(((Collection<?>) file).toArray())) {
+					return false;
+				}
+			} else if (file != null) {
+				String path = file.toString();
+				if (path.indexOf(SEPARATOR) >= 0 || path.indexOf('\n') >= 0 || path.indexOf('\r') >= 0) {
+					return false;
+				}
+			}
+		}
+		return true;
+	}
+
+	private static void writeLine(Writer writer, String type, Object... fields) throws IOException {
+		StringBuilder line = new StringBuilder(type);
+		for (Object field : fields) {
+			line.append(SEPARATOR).append(field);
+		}
+		writer.write(line.append('\n').toString());
+	}
+}
@@ -0,0 +1,309 @@
+package org.the4thlaw.bm3;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.lang.reflect.Method;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Resolves file metadata (existence, sizes, modification times, canonical paths...), either inline or concurrently.
+ * <p>
+ * On high-latency file systems such as network shares, each metadata lookup is a round trip. Resolving them
+ * concurrently hides that latency. Virtual threads are used when the runtime supports them (Java 21+), a fixed pool
+ * of platform threads otherwise.
+ */
+public class MetadataResolver implements Closeable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(MetadataResolver.class);
+
+	/**
+	 * Resolves the metadata of an item.
+	 *
+	 * @param <T> The type of items.
+	 * @param <R> The type of metadata.
+	 */
+	@FunctionalInterface
+	public interface Resolver<T, R> {
+		R resolve(T item) throws IOException;
+	}
+
+	/**
+	 * Consumes resolved metadata.
+	 *
+	 * @param <T> The type of items.
+	 * @param <R> The type of metadata.
+	 */
+	@FunctionalInterface
+	public interface Consumer<T, R> {
+		/**
+		 * Consumes resolved metadata.
+		 *
+		 * @param item The item.
+		 * @param metadata The metadata, <code>null</code> if resolving it failed.
+		 * @param failure The failure, <code>null</code> if resolving the metadata succeeded.
+		 */
+		void accept(T item, R metadata, IOException failure);
+	}
+
+	private final ExecutorService executor;
+	private final int window;
+
+	private MetadataResolver(ExecutorService executor, int window) {
+		this.executor = executor;
+		this.window = window;
+	}
+
+	/**
+	 * Creates a resolver which resolves metadata on the calling thread.
+	 *
+	 * @return The resolver.
+	 */
+	public static MetadataResolver inline() {
+		return new MetadataResolver(null, 1);
+	}
+
+	/**
+	 * Creates a resolver which resolves metadata concurrently.
+	 *
+	 * @param parallelism The maximum number of lookups in flight.
+	 * @return The resolver.
+	 */
+	public static MetadataResolver concurrent(int parallelism) {
+		if (parallelism <= 1) {
+			return inline();
+		}
+		ExecutorService executor = newVirtualThreadExecutor();
+		if (executor == null) {
+			AtomicInteger threadCount = new AtomicInteger();
+			executor = Executors.newFixedThreadPool(parallelism, r -> {
+				Thread thread = new Thread(r, "bm3-metadata-" + threadCount.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			});
+			LOGGER.debug("Resolving metadata with {} threads", parallelism);
+		} else {
+			LOGGER.debug("Resolving metadata with virtual threads, {} lookups in flight", parallelism);
+		}
+		return new MetadataResolver(executor, parallelism);
+	}
+
+	/**
+	 * Creates an executor starting a virtual thread per task, through reflection to remain compatible with Java 8.
+	 *
+	 * @return The executor, or <code>null</code> if virtual threads are not supported.
+	 */
+	private static ExecutorService newVirtualThreadExecutor() {
+		try {
+			Method factory = Executors.class.getMethod("newVirtualThreadPerTaskExecutor");
+			return (ExecutorService) factory.invoke(null);
+		} catch (ReflectiveOperationException | RuntimeException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Resolves the metadata of all items, passing them to the consumer in the order in which they are resolved. The
+	 * consumer is always called on the calling thread.
+	 *
+	 * @param items The items.
+	 * @param resolver The resolver.
+	 * @param consumer The consumer.
+	 * @param <T> The type of items.
+	 * @param <R> The type of metadata.
+	 * @throws InterruptedIOException If the calling thread is interrupted.
+	 */
+	public <T, R> void forEachResolved(Collection<T> items, Resolver<T, R> resolver, Consumer<T, R> consumer)
+			throws InterruptedIOException {
+		forEachResolved(items, resolver, consumer, false);
+	}
+
+	/**
+	 * Resolves the metadata of all items, passing them to the consumer either in the order in which they are resolved
+	 * or in the order of the items. The consumer is always called on the calling thread.
+	 *
+	 * @param items The items.
+	 * @param resolver The resolver.
+	 * @param consumer The consumer.
+	 * @param keepOrder <code>true</code> to pass the items in their order, waiting for the oldest lookup in flight as
+	 *            {@link #resolveAll(Collection, Resolver)} does, <code>false</code> to pass each one as soon as it is
+	 *            resolved.
+	 * @param <T> The type of items.
+	 * @param <R> The type of metadata.
+	 * @throws InterruptedIOException If the calling thread is interrupted.
+	 */
+	public <T, R> void forEachResolved(Collection<T> items, Resolver<T, R> resolver, Consumer<T, R> consumer,
+			boolean keepOrder) throws InterruptedIOException {
+		if (executor == null) {
+			for (T item : items) {
+				R metadata;
+				try {
+					metadata = resolver.resolve(item);
+				} catch (IOException e) {
+					consumer.accept(item, null, e);
+					continue;
+				}
+				consumer.accept(item, metadata, null);
+			}
+			return;
+		}
+		if (keepOrder) {
+			forEachResolvedInOrder(items, resolver, consumer);
+			return;
+		}
+
+		// Bound the lookups in flight so that results don't pile up in memory
+		CompletionService<Resolution<T, R>> completion = new ExecutorCompletionService<>(executor);
+		Iterator<T> iterator = items.iterator();
+		int inFlight = 0;
+		while (iterator.hasNext() || inFlight > 0) {
+			while (inFlight < window && iterator.hasNext()) {
+				T item = iterator.next();
+				completion.submit(() -> Resolution.of(item, resolver));
+				inFlight++;
+			}
+			Resolution<T, R> resolution;
+			try {
+				resolution = completion.take().get();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while resolving metadata");
+			} catch (ExecutionException e) {
+				// Resolutions capture their failures
+				throw new IllegalStateException(e.getCause());
+			}
+			inFlight--;
+			consumer.accept(resolution.item, resolution.metadata, resolution.failure);
+		}
+	}
+
+	private <T, R> void forEachResolvedInOrder(Collection<T> items, Resolver<T, R> resolver, Consumer<T, R> consumer)
+			throws InterruptedIOException {
+		Deque<Future<Resolution<T, R>>> inFlight = new ArrayDeque<>(window);
+		try {
+			for (T item : items) {
+				if (inFlight.size() >= window) {
+					accept(inFlight.removeFirst(), consumer);
+				}
+				inFlight.addLast(executor.submit(() -> Resolution.of(item, resolver)));
+			}
+			while (!inFlight.isEmpty()) {
+				accept(inFlight.removeFirst(), consumer);
+			}
+		} finally {
+			for (Future<Resolution<T, R>> future : inFlight) {
+				future.cancel(true);
+			}
+		}
+	}
+
+	private static <T, R> void accept(Future<Resolution<T, R>> future, Consumer<T, R> consumer)
+			throws InterruptedIOException {
+		Resolution<T, R> resolution;
+		try {
+			resolution = future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while resolving metadata");
+		} catch (ExecutionException e) {
+			// Resolutions capture their failures
+			throw new IllegalStateException(e.getCause());
+		}
+		consumer.accept(resolution.item, resolution.metadata, resolution.failure);
+	}
+
+	/**
+	 * Resolves the metadata of all items. No more items than the parallelism of the resolver are resolved at once.
+	 *
+	 * @param items The items.
+	 * @param resolver The resolver.
+	 * @param <T> The type of items.
+	 * @param <R> The type of metadata.
+	 * @return The metadata, in the order of the items.
+	 * @throws IOException If resolving the metadata of any item fails.
+	 */
+	public <T, R> List<R> resolveAll(Collection<T> items, Resolver<T, R> resolver) throws IOException {
+		List<R> results = new ArrayList<>(items.size());
+		if (executor == null) {
+			for (T item : items) {
+				results.add(resolver.resolve(item));
+			}
+			return results;
+		}
+
+		// Bound the lookups in flight as forEachResolved does, waiting for the oldest one to keep the results in order
+		Deque<Future<R>> inFlight = new ArrayDeque<>(window);
+		try {
+			for (T item : items) {
+				if (inFlight.size() >= window) {
+					results.add(await(inFlight.removeFirst()));
+				}
+				inFlight.addLast(executor.submit(() -> resolver.resolve(item)));
+			}
+			while (!inFlight.isEmpty()) {
+				results.add(await(inFlight.removeFirst()));
+			}
+		} finally {
+			for (Future<R> future : inFlight) {
+				future.cancel(true);
+			}
+		}
+		return results;
+	}
+
+	private static <R> R await(Future<R> future) throws IOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while resolving metadata");
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			if (cause instanceof IOException) {
+				throw (IOException) cause;
+			}
+			throw new IOException(cause);
+		}
+	}
+
+	@Override
+	public void close() {
+		if (executor != null) {
+			executor.shutdownNow();
+		}
+	}
+
+	private static final class Resolution<T, R> {
+		private final T item;
+		private final R metadata;
+		private final IOException failure;
+
+		private Resolution(T item, R metadata, IOException failure) {
+			this.item = item;
+			this.metadata = metadata;
+			this.failure = failure;
+		}
+
+		static <T, R> Resolution<T, R> of(T item, Resolver<T, R> resolver) {
+			try {
+				return new Resolution<>(item, resolver.resolve(item), null);
+			} catch (IOException e) {
+				return new Resolution<>(item, null, e);
+			}
+		}
+	}
+}
@@ -1,15 +1,14 @@
 package org.the4thlaw.bm3;
 
-import java.io.File;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Path;
 import java.util.Set;
 
-import org.apache.commons.io.filefilter.AbstractFileFilter;
-
 /**
- * A FileFilter that checks if the listed files, relative to their root, are contained in a set of known paths.
+ * A filter that checks if the listed files, relative to their root, are contained in a set of known paths.
+ * Temporary files left behind by interrupted copies are never contained in the source.
  */
-public class NotInSourceFileFilter extends AbstractFileFilter {
+public class NotInSourceFileFilter implements DirectoryStream.Filter<Path> {
 	private final Set<String> includedPaths;
 	private final Path targetPath;
 
@@ -19,13 +18,17 @@ public class NotInSourceFileFilter extends AbstractFileFilter {
 	}
 
 	@Override
-	public boolean accept(File file) {
-		String name = file.getName().toLowerCase();
+	public boolean accept(Path file) {
+		String name = file.getFileName().toString().toLowerCase();
+		if (name.endsWith(FileProcessor.TEMP_SUFFIX)) {
+			// Left behind by an interrupted copy
+			return true;
+		}
 		if (!(name.endsWith(".mp3")) || name.endsWith(".m4a") || name.endsWith(".wma") || name.endsWith(".aac")) {
 			// Only filter out known audio files
 			return false;
 		}
-		String relativeFile = targetPath.relativize(file.toPath()).toString();
+		String relativeFile = targetPath.relativize(file).toString();
 		return !includedPaths.contains(relativeFile);
 	}
-}
\ No newline at end of file
+}
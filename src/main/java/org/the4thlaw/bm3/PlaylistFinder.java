@@ -0,0 +1,409 @@
+package org.the4thlaw.bm3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Locale;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.RecursiveAction;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.apache.commons.io.FilenameUtils;
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Searches a directory tree for playlists.
+ * <p>
+ * Directories are listed concurrently, and the tree can be pruned so that searching a whole music library doesn't
+ * visit every album:
+ * <ul>
+ * <li>directories can be skipped by name, with globs such as <code>.*</code> or <code>Podcasts</code>;</li>
+ * <li>the search can be limited in depth;</li>
+ * <li>album directories, those which contain audio files, can be searched without descending into their
+ * sub-directories. Their audio files are then recognised by their extension alone, without reading their
+ * attributes, which saves a round-trip per track on network shares.</li>
+ * </ul>
+ * By default, nothing is pruned.
+ */
+public class PlaylistFinder {
+	private static final Logger LOGGER = LoggerFactory.getLogger(PlaylistFinder.class);
+	/**
+	 * The default number of directories listed concurrently.
+	 */
+	public static final int DEFAULT_PARALLELISM = 4;
+	private static final String PLAYLIST_EXTENSION = "m3u";
+	private static final Set<String> AUDIO_EXTENSIONS = new HashSet<>(
+			Arrays.asList("mp3", "m4a", "wma", "aac", "flac", "ogg", "wav"));
+
+	private final int parallelism;
+	private final List<PathMatcher> prunedNames = new ArrayList<>();
+	private final List<String> prunedPatterns = new ArrayList<>();
+	private int maxDepth = Integer.MAX_VALUE;
+	private boolean albumPruning;
+
+	/**
+	 * Statistics of a search.
+	 */
+	public static final class Statistics {
+		private final int directories;
+		private final int entries;
+		private final int attributeReads;
+		private final int prunedDirectories;
+		private final int albumDirectories;
+		private final int depthLimitedDirectories;
+		private final int unreadableDirectories;
+		private final int playlists;
+		private final long durationMillis;
+
+		private Statistics(Walk walk, int playlists, long durationMillis) {
+			this.directories = walk.directories.get();
+			this.entries = walk.entries.get();
+			this.attributeReads = walk.attributeReads.get();
+			this.prunedDirectories = walk.prunedDirectories.get();
+			this.albumDirectories = walk.albumDirectories.get();
+			this.depthLimitedDirectories = walk.depthLimitedDirectories.get();
+			this.unreadableDirectories = walk.unreadableDirectories.get();
+			this.playlists = playlists;
+			this.durationMillis = durationMillis;
+		}
+
+		public int getDirectories() {
+			return directories;
+		}
+
+		public int getEntries() {
+			return entries;
+		}
+
+		/**
+		 * Gets the number of entries whose attributes were read to know whether they are directories.
+		 *
+		 * @return The number of attribute reads.
+		 */
+		public int getAttributeReads() {
+			return attributeReads;
+		}
+
+		/**
+		 * Gets the number of directories which weren't listed because of their name.
+		 *
+		 * @return The number of pruned directories.
+		 */
+		public int getPrunedDirectories() {
+			return prunedDirectories;
+		}
+
+		/**
+		 * Gets the number of album directories, whose sub-directories weren't listed.
+		 *
+		 * @return The number of album directories.
+		 */
+		public int getAlbumDirectories() {
+			return albumDirectories;
+		}
+
+		/**
+		 * Gets the number of directories at the maximum depth, whose sub-directories weren't listed.
+		 *
+		 * @return The number of directories at the maximum depth.
+		 */
+		public int getDepthLimitedDirectories() {
+			return depthLimitedDirectories;
+		}
+
+		public int getUnreadableDirectories() {
+			return unreadableDirectories;
+		}
+
+		public int getPlaylists() {
+			return playlists;
+		}
+
+		public long getDurationMillis() {
+			return durationMillis;
+		}
+
+		@Override
+		public String toString() {
+			return String.format("%d playlists in %d ms, %d directories listed, %d entries, %d attribute reads,"
+					+ " %d directories pruned by name, %d albums not descended, %d directories at max depth,"
+					+ " %d unreadable", playlists, durationMillis, directories, entries, attributeReads,
+					prunedDirectories, albumDirectories, depthLimitedDirectories, unreadableDirectories);
+		}
+	}
+
+	private volatile Statistics lastStatistics;
+
+	/**
+	 * Creates a finder.
+	 *
+	 * @param parallelism The number of directories listed concurrently.
+	 */
+	public PlaylistFinder(int parallelism) {
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * Skips directories by name.
+	 *
+	 * @param glob A glob matched against the name of each directory, such as <code>.*</code> for hidden directories.
+	 */
+	public void addPrunedName(String glob) {
+		prunedNames.add(FileSystems.getDefault().getPathMatcher("glob:" + glob));
+		prunedPatterns.add(glob);
+	}
+
+	/**
+	 * Limits the depth of the search.
+	 *
+	 * @param maxDepth The maximum depth of the directories which are listed, 0 to only list the searched directory.
+	 */
+	public void setMaxDepth(int maxDepth) {
+		this.maxDepth = maxDepth;
+	}
+
+	/**
+	 * Enables or disables the pruning of album directories: directories which contain audio files are listed, but
+	 * their sub-directories aren't.
+	 *
+	 * @param albumPruning <code>true</code> to prune album directories.
+	 */
+	public void setAlbumPruning(boolean albumPruning) {
+		this.albumPruning = albumPruning;
+	}
+
+	/**
+	 * Gets the statistics of the last search.
+	 *
+	 * @return The statistics, <code>null</code> if there was no search.
+	 */
+	public Statistics getStatistics() {
+		return lastStatistics;
+	}
+
+	/**
+	 * Searches a directory tree for playlists.
+	 *
+	 * @param directory The directory.
+	 * @return The playlists, sorted by path.
+	 * @throws IOException If the directory can't be listed.
+	 */
+	public List<File> find(File directory) throws IOException {
+		long start = System.nanoTime();
+		Path root = directory.toPath();
+		if (!Files.isDirectory(root)) {
+			throw new IOException("Not a directory: " + directory);
+		}
+		LOGGER.debug("Searching {} for playlists (pruned names: {}, max depth: {}, album pruning: {})", directory,
+				prunedPatterns, maxDepth == Integer.MAX_VALUE ? "none" : maxDepth, albumPruning);
+
+		Walk walk = new Walk();
+		Object rootKey = Files.readAttributes(root, BasicFileAttributes.class).fileKey();
+		if (rootKey != null) {
+			walk.directoryKeys.add(rootKey);
+		}
+		ForkJoinPool pool = new ForkJoinPool(parallelism);
+		try {
+			pool.invoke(new ListDirectory(walk, root, 0));
+		} finally {
+			pool.shutdown();
+		}
+
+		List<File> playlists = new ArrayList<>(walk.playlists.size());
+		for (Path playlist : walk.playlists) {
+			playlists.add(playlist.toFile());
+		}
+		playlists.sort(null);
+		lastStatistics = new Statistics(walk, playlists.size(),
+				TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start));
+		return playlists;
+	}
+
+	/**
+	 * Applies the pruning rules to playlists which were found without this finder, such as those listed by a
+	 * {@link LibraryCache}, keeping the ones a search would have found.
+	 *
+	 * @param directory The searched directory.
+	 * @param playlists The playlists of the directory and its sub-directories.
+	 * @param albumDirectories The directories which contain audio files, as told by {@link #isAudio(Path)}.
+	 * @return The playlists which aren't pruned, in their original order.
+	 */
+	public List<File> prune(File directory, Collection<File> playlists, Set<File> albumDirectories) {
+		Path root = directory.toPath();
+		List<File> kept = new ArrayList<>(playlists.size());
+		for (File playlist : playlists) {
+			if (!isPruned(root, playlist.toPath().getParent(), albumDirectories)) {
+				kept.add(playlist);
+			}
+		}
+		if (kept.size() < playlists.size()) {
+			LOGGER.debug("Pruned {} of the {} listed playlists", playlists.size() - kept.size(), playlists.size());
+		}
+		return kept;
+	}
+
+	/**
+	 * Checks whether a directory is out of the search, as a sub-directory of a pruned one or because of its own name.
+	 */
+	private boolean isPruned(Path root, Path playlistDirectory, Set<File> albumDirectories) {
+		Path current = root;
+		int depth = 0;
+		for (Path name : root.relativize(playlistDirectory)) {
+			if (depth >= maxDepth || albumPruning && albumDirectories.contains(current.toFile())) {
+				return true;
+			}
+			current = current.resolve(name);
+			depth++;
+			if (isPruned(current)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks whether a file is a playlist, by its extension.
+	 *
+	 * @param file The file.
+	 * @return <code>true</code> for a playlist.
+	 */
+	static boolean isPlaylist(Path file) {
+		return PLAYLIST_EXTENSION.equals(getExtension(file));
+	}
+
+	/**
+	 * Checks whether a file is an audio file, by its extension.
+	 *
+	 * @param file The file.
+	 * @return <code>true</code> for an audio file.
+	 */
+	static boolean isAudio(Path file) {
+		return AUDIO_EXTENSIONS.contains(getExtension(file));
+	}
+
+	private static String getExtension(Path path) {
+		return FilenameUtils.getExtension(path.getFileName().toString()).toLowerCase(Locale.ROOT);
+	}
+
+	private boolean isPruned(Path directory) {
+		Path name = directory.getFileName();
+		for (PathMatcher prunedName : prunedNames) {
+			if (prunedName.matches(name)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * The state of a search, shared by the tasks listing the directories.
+	 */
+	private static final class Walk {
+		private final Queue<Path> playlists = new ConcurrentLinkedQueue<>();
+		/** The keys of the listed directories, to avoid cycles through links. */
+		private final Set<Object> directoryKeys = ConcurrentHashMap.newKeySet();
+		private final AtomicInteger directories = new AtomicInteger();
+		private final AtomicInteger entries = new AtomicInteger();
+		private final AtomicInteger attributeReads = new AtomicInteger();
+		private final AtomicInteger prunedDirectories = new AtomicInteger();
+		private final AtomicInteger albumDirectories = new AtomicInteger();
+		private final AtomicInteger depthLimitedDirectories = new AtomicInteger();
+		private final AtomicInteger unreadableDirectories = new AtomicInteger();
+	}
+
+	/**
+	 * Lists a directory, then its sub-directories concurrently.
+	 */
+	private final class ListDirectory extends RecursiveAction {
+		private static final long serialVersionUID = 1L;
+
+		private final transient Walk walk;
+		private final transient Path directory;
+		private final int depth;
+
+		private ListDirectory(Walk walk, Path directory, int depth) {
+			this.walk = walk;
+			this.directory = directory;
+			this.depth = depth;
+		}
+
+		@Override
+		protected void compute() {
+			walk.directories.incrementAndGet();
+			List<Path> otherEntries = new ArrayList<>();
+			boolean album = false;
+			try (DirectoryStream<Path> stream = Files.newDirectoryStream(directory)) {
+				for (Path entry : stream) {
+					walk.entries.incrementAndGet();
+					if (isPlaylist(entry)) {
+						walk.attributeReads.incrementAndGet();
+						if (Files.isRegularFile(entry)) {
+							walk.playlists.add(entry);
+							continue;
+						}
+					} else if (albumPruning && isAudio(entry)) {
+						// Trust the extension, reading the attributes of each track is what makes searches slow
+						album = true;
+						continue;
+					}
+					otherEntries.add(entry);
+				}
+			} catch (IOException e) {
+				LOGGER.warn("Failed to list {} while searching for playlists", directory, e);
+				walk.unreadableDirectories.incrementAndGet();
+				return;
+			}
+
+			// Sub-directories are not searched, there is no need to tell them apart from files
+			if (album) {
+				walk.albumDirectories.incrementAndGet();
+				return;
+			}
+			if (depth >= maxDepth) {
+				walk.depthLimitedDirectories.incrementAndGet();
+				return;
+			}
+			List<ListDirectory> subTasks = new ArrayList<>();
+			for (Path entry : otherEntries) {
+				BasicFileAttributes attributes;
+				try {
+					walk.attributeReads.incrementAndGet();
+					attributes = Files.readAttributes(entry, BasicFileAttributes.class);
+				} catch (IOException e) {
+					// Broken link or vanished entry
+					continue;
+				}
+				if (!attributes.isDirectory()) {
+					continue;
+				}
+				if (isPruned(entry)) {
+					walk.prunedDirectories.incrementAndGet();
+					continue;
+				}
+				Object key = attributes.fileKey();
+				if (key != null && !walk.directoryKeys.add(key)) {
+					LOGGER.debug("Skipping {}, which was already searched through another path", entry);
+					continue;
+				}
+				subTasks.add(new ListDirectory(walk, entry, depth + 1));
+			}
+			invokeAll(subTasks);
+		}
+	}
+}
@@ -3,12 +3,15 @@ package org.the4thlaw.bm3;
 import java.io.BufferedReader;
 import java.io.Closeable;
 import java.io.File;
-import java.io.FileInputStream;
-import java.io.FileNotFoundException;
 import java.io.IOException;
 import java.io.InputStreamReader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
 
-import org.apache.commons.io.Charsets;
 import org.slf4j.Logger;
 import org.slf4j.LoggerFactory;
 
@@ -16,14 +19,38 @@ public class PlaylistReader implements Closeable {
 	private static final Logger LOGGER = LoggerFactory.getLogger(PlaylistReader.class);
 
 	private final BufferedReader reader;
-	private final File playlistDirectory;
+	private final Path playlistDirectory;
 
-	public PlaylistReader(File playlist) throws FileNotFoundException {
-		reader = new BufferedReader(new InputStreamReader(new FileInputStream(playlist), Charsets.UTF_8));
-		playlistDirectory = playlist.getParentFile();
+	/**
+	 * Opens a playlist.
+	 * <p>
+	 * Entries are returned as {@link File} names, which don't require any file system lookup and can hold the wildcards
+	 * of exclusion globs, which aren't valid paths on every platform. Resolving them goes through {@link Path}.
+	 *
+	 * @param playlist The playlist.
+	 * @throws IOException If the playlist can't be opened.
+	 */
+	public PlaylistReader(Path playlist) throws IOException {
+		// Not Files.newBufferedReader(), which fails on the first malformed character
+		reader = new BufferedReader(new InputStreamReader(Files.newInputStream(playlist), StandardCharsets.UTF_8));
+		playlistDirectory = playlist.toAbsolutePath().getParent();
 	}
 
 	public File getEntry() throws IOException {
+		File musicFile = getRawEntry();
+		if (musicFile == null) {
+			return null;
+		}
+		return resolve(musicFile);
+	}
+
+	/**
+	 * Gets the next entry without resolving it, which doesn't require any file system lookup.
+	 *
+	 * @return The absolute but non-canonical entry, or <code>null</code> if there are no more entries.
+	 * @throws IOException If reading the playlist fails.
+	 */
+	public File getRawEntry() throws IOException {
 		String line;
 		while ((line = reader.readLine()) != null) {
 			if (!line.startsWith("#")) {
@@ -36,17 +63,65 @@ public class PlaylistReader implements Closeable {
 
 		File musicFile = new File(line);
 		if (!musicFile.isAbsolute()) {
-			musicFile = new File(playlistDirectory, line);
+			musicFile = new File(playlistDirectory.toString(), line);
+		}
+		return musicFile;
+	}
+
+	/**
+	 * Gets all remaining entries without resolving them.
+	 *
+	 * @return The absolute but non-canonical entries.
+	 * @throws IOException If reading the playlist fails.
+	 * @see #getRawEntry()
+	 */
+	public List<File> getRawEntries() throws IOException {
+		List<File> entries = new ArrayList<>();
+		File musicFile;
+		while ((musicFile = getRawEntry()) != null) {
+			entries.add(musicFile);
 		}
-		musicFile = musicFile.getCanonicalFile();
+		return entries;
+	}
+
+	/**
+	 * Resolves an entry returned by {@link #getRawEntry()} to its canonical file.
+	 *
+	 * @param rawEntry The entry.
+	 * @return The canonical file.
+	 * @throws IOException If resolving the file fails.
+	 */
+	public static File resolve(File rawEntry) throws IOException {
+		File musicFile = resolve(rawEntry.toPath()).toFile();
 
 		LOGGER.debug("Found file {}", musicFile);
 
 		return musicFile;
 	}
 
+	/**
+	 * Resolves a path to its canonical form. Like {@link File#getCanonicalFile()}, paths which don't exist are
+	 * resolved too: links are resolved up to their closest existing parent.
+	 *
+	 * @param path The path.
+	 * @return The canonical path.
+	 * @throws IOException If resolving the path fails.
+	 */
+	static Path resolve(Path path) throws IOException {
+		try {
+			return path.toRealPath();
+		} catch (NoSuchFileException e) {
+			Path absolutePath = path.toAbsolutePath().normalize();
+			Path parent = absolutePath.getParent();
+			if (parent == null) {
+				return absolutePath;
+			}
+			return resolve(parent).resolve(absolutePath.getFileName().toString());
+		}
+	}
+
 	@Override
 	public void close() throws IOException {
 		reader.close();
 	}
-}
\ No newline at end of file
+}
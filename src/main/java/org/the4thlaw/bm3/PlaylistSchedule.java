@@ -0,0 +1,127 @@
+package org.the4thlaw.bm3;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.HashMap;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.ToLongFunction;
+
+/**
+ * Orders the files to copy so that whole playlists are completed one after another, and tells when each playlist is
+ * complete.
+ * <p>
+ * Prioritised playlists come first, in the given order, then the other playlists from the smallest to the largest, so
+ * that as many playlists as possible are usable early in a long copy. Within a playlist, the files which aren't
+ * scheduled yet are copied in path order, which keeps the files of an album, and their cover, together.
+ * <p>
+ * Thread-safe once created.
+ */
+public class PlaylistSchedule {
+	private final Set<File> files = new LinkedHashSet<>();
+	private final List<String> playlistOrder = new ArrayList<>();
+	/** The number of files left to copy, per playlist. */
+	private final Map<String, AtomicInteger> remainingFiles = new HashMap<>();
+	/** The playlists each file belongs to. */
+	private final Map<File, List<String>> playlistsOfFile = new HashMap<>();
+
+	/**
+	 * Creates a schedule.
+	 *
+	 * @param playlists The files of each playlist, by playlist name.
+	 * @param priorityPlaylists The names of the playlists to complete first, in order. Unknown names are ignored.
+	 * @param sizeOf Gives the size of a file.
+	 */
+	public PlaylistSchedule(Map<String, List<File>> playlists, List<String> priorityPlaylists,
+			ToLongFunction<File> sizeOf) {
+		Map<String, Long> playlistSizes = new HashMap<>();
+		for (Entry<String, List<File>> playlist : playlists.entrySet()) {
+			long size = 0;
+			Set<File> distinctFiles = new LinkedHashSet<>(playlist.getValue());
+			for (File file : distinctFiles) {
+				size += sizeOf.applyAsLong(file);
+				playlistsOfFile.computeIfAbsent(file, f -> new ArrayList<>(1)).add(playlist.getKey());
+			}
+			playlistSizes.put(playlist.getKey(), size);
+			remainingFiles.put(playlist.getKey(), new AtomicInteger(distinctFiles.size()));
+		}
+
+		for (String name : priorityPlaylists) {
+			if (playlists.containsKey(name) && !playlistOrder.contains(name)) {
+				playlistOrder.add(name);
+			}
+		}
+		List<String> others = new ArrayList<>(playlists.keySet());
+		others.removeAll(playlistOrder);
+		others.sort(Comparator.comparingLong((String name) -> playlistSizes.get(name))
+				.thenComparing(Comparator.naturalOrder()));
+		playlistOrder.addAll(others);
+
+		for (String name : playlistOrder) {
+			Set<File> newFiles = new TreeSet<>(playlists.get(name));
+			newFiles.removeAll(files);
+			files.addAll(newFiles);
+		}
+	}
+
+	/**
+	 * Gets the files to copy, in order.
+	 *
+	 * @return The files.
+	 */
+	public Set<File> getFiles() {
+		return Collections.unmodifiableSet(files);
+	}
+
+	/**
+	 * Gets the playlists, in the order in which they are completed.
+	 *
+	 * @return The names of the playlists.
+	 */
+	public List<String> getPlaylistOrder() {
+		return Collections.unmodifiableList(playlistOrder);
+	}
+
+	/**
+	 * Gets the playlists which are complete before any file is copied, since they are empty.
+	 *
+	 * @return The names of the playlists.
+	 */
+	public List<String> getEmptyPlaylists() {
+		List<String> empty = new ArrayList<>();
+		for (String name : playlistOrder) {
+			if (remainingFiles.get(name).get() == 0) {
+				empty.add(name);
+			}
+		}
+		return empty;
+	}
+
+	/**
+	 * Records that a file was processed, whether it was copied or not.
+	 *
+	 * @param file The file.
+	 * @return The names of the playlists which this file completed, if any.
+	 */
+	public Collection<String> fileDone(File file) {
+		List<String> playlists = playlistsOfFile.get(file);
+		if (playlists == null) {
+			return Collections.emptyList();
+		}
+		List<String> completed = new ArrayList<>(1);
+		for (String name : playlists) {
+			if (remainingFiles.get(name).decrementAndGet() == 0) {
+				completed.add(name);
+			}
+		}
+		return completed;
+	}
+}
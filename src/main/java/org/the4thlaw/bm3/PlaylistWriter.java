@@ -1,12 +1,10 @@
 package org.the4thlaw.bm3;
 
-import java.io.BufferedWriter;
-import java.io.File;
-import java.io.FileWriter;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
 import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
 import java.nio.file.Path;
 import java.util.List;
 
@@ -17,20 +15,23 @@ import org.slf4j.LoggerFactory;
 public class PlaylistWriter {
     private static final Logger LOGGER = LoggerFactory.getLogger(PlaylistWriter.class);
 
-    private final File playlistFile;
+    private final Path playlistFile;
     private final Path sourceDirectory;
     private final boolean useSlashes;
     private final boolean dryRun;
+    /** The separator of the paths relative to the source directory. */
+    private final String separator;
 
-    public PlaylistWriter(File playlistFile, Path sourceDirectory, boolean useSlashes, boolean dryRun) {
+    public PlaylistWriter(Path playlistFile, Path sourceDirectory, boolean useSlashes, boolean dryRun) {
         this.playlistFile = playlistFile;
         this.sourceDirectory = sourceDirectory;
         this.useSlashes = useSlashes;
         this.dryRun = dryRun;
+        this.separator = sourceDirectory.getFileSystem().getSeparator();
     }
 
-    public void writeEntries(List<File> plsEntries, ProgressReporter reporter) throws IOException {
-        String plsName = playlistFile.getName();
+    public void writeEntries(List<Path> plsEntries, ProgressReporter reporter) throws IOException {
+        String plsName = playlistFile.getFileName().toString();
         int numEntries = plsEntries.size();
         int curEntry = 0;
 
@@ -42,9 +43,9 @@ public class PlaylistWriter {
             m3uWriter.println("#EXTM3U");
             m3uWriter.println("#EXTENC:UTF-8");
             LOGGER.trace("{}: wrote header", plsName);
-            for (File record : plsEntries) {
+            for (Path record : plsEntries) {
                 String adjustedPath = adjustSeparators(
-                        ".." + File.separator + sourceDirectory.relativize(record.toPath()).toString());
+                        ".." + separator + sourceDirectory.relativize(record).toString());
                 LOGGER.trace("{}: writing path for file {}", plsName, adjustedPath);
                 m3uWriter.println(adjustedPath);
                 reporter.setSubStep(++curEntry);
@@ -52,18 +53,18 @@ public class PlaylistWriter {
         }
     }
 
-    private PrintWriter getWriter(File playlistFile) throws IOException {
+    private PrintWriter getWriter(Path playlistFile) throws IOException {
         if (dryRun) {
             return new PrintWriter(new StringWriter());
         } else {
-            return new PrintWriter(new BufferedWriter(new FileWriter(playlistFile, StandardCharsets.UTF_8)));
+            return new PrintWriter(Files.newBufferedWriter(playlistFile, StandardCharsets.UTF_8));
         }
     }
 
     private String adjustSeparators(String path) {
         if (useSlashes) {
-            return path.replace(File.separatorChar, '/');
+            return path.replace(separator, "/");
         }
-        return path.replace(File.separatorChar, '\\');
+        return path.replace(separator, "\\");
     }
 }
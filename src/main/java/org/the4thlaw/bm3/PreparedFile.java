@@ -0,0 +1,63 @@
+package org.the4thlaw.bm3;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.List;
+import java.util.zip.Checksum;
+
+/**
+ * A file ready to be written to one or more targets, with its cover already embedded if any.
+ */
+@FunctionalInterface
+public interface PreparedFile {
+	/**
+	 * Writes the file. This method may be called several times, concurrently, to write to several targets.
+	 * 
+	 * @param targetFile The file to write.
+	 * @throws IOException If writing fails.
+	 */
+	default void writeTo(Path targetFile) throws IOException {
+		writeTo(targetFile, 0);
+	}
+
+	/**
+	 * Writes the file with a given copy buffer size.
+	 * 
+	 * @param targetFile The file to write.
+	 * @param bufferSize The size of the copy buffer, 0 to let the implementation choose.
+	 * @throws IOException If writing fails.
+	 */
+	default void writeTo(Path targetFile, int bufferSize) throws IOException {
+		writeTo(targetFile, bufferSize, null);
+	}
+
+	/**
+	 * Writes the file with a given copy buffer size, computing the checksum of the bytes written on the way.
+	 * 
+	 * @param targetFile The file to write.
+	 * @param bufferSize The size of the copy buffer, 0 to let the implementation choose.
+	 * @param checksum The checksum updated with every byte written, <code>null</code> for none.
+	 * @throws IOException If writing fails.
+	 */
+	default void writeTo(Path targetFile, int bufferSize, Checksum checksum) throws IOException {
+		try (FileChannel target = FileChannel.open(targetFile, StandardOpenOption.WRITE, StandardOpenOption.CREATE,
+				StandardOpenOption.TRUNCATE_EXISTING)) {
+			writeTo(Collections.singletonList(target), bufferSize, checksum);
+		}
+	}
+
+	/**
+	 * Writes the file to several channels at once, reading its source only once.
+	 * 
+	 * @param targets The channels to write, at their current position.
+	 * @param bufferSize The size of the copy buffer, 0 to let the implementation choose.
+	 * @param checksum The checksum updated with every byte written, <code>null</code> for none. The same bytes are
+	 *            written to all the channels, so this is the checksum of each of them.
+	 * @throws IOException If reading the source or writing to any channel fails.
+	 */
+	void writeTo(List<? extends WritableByteChannel> targets, int bufferSize, Checksum checksum) throws IOException;
+}
@@ -0,0 +1,218 @@
+package org.the4thlaw.bm3;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * A progress reporter which only records the latest state, so that a UI can render it at its own pace instead of
+ * handling every update. As a file event listener, it counts the files by outcome, shown next to the status: the
+ * progress and errors themselves come from the progress callbacks.
+ * <p>
+ * Thread-safe.
+ */
+public class ProgressModel implements ProgressReporter, FileEventListener {
+	/**
+	 * An immutable snapshot of the progress.
+	 */
+	public static final class Snapshot {
+		private final String status;
+		private final boolean progressUnknown;
+		private final int total;
+		private final int step;
+		private final long byteTotal;
+		private final long bytesDone;
+		private final int subTotal;
+		private final int subStep;
+		private final String fileCounts;
+
+		private Snapshot(ProgressModel model) {
+			this.status = model.status;
+			this.progressUnknown = model.progressUnknown;
+			this.total = model.total;
+			this.step = model.step;
+			this.byteTotal = model.byteTotal;
+			this.bytesDone = model.bytesDone;
+			this.subTotal = model.subTotal;
+			this.subStep = model.subStep;
+			this.fileCounts = model.fileCounts.format();
+		}
+
+		public String getStatus() {
+			return status;
+		}
+
+		public boolean isProgressUnknown() {
+			return progressUnknown;
+		}
+
+		public int getTotal() {
+			return total;
+		}
+
+		public int getStep() {
+			return step;
+		}
+
+		public long getByteTotal() {
+			return byteTotal;
+		}
+
+		public long getBytesDone() {
+			return bytesDone;
+		}
+
+		/**
+		 * Gets the total of the sub-progress.
+		 *
+		 * @return The total, 0 if there is no sub-progress.
+		 */
+		public int getSubTotal() {
+			return subTotal;
+		}
+
+		public int getSubStep() {
+			return subStep;
+		}
+
+		/**
+		 * Gets the counts of the files by outcome.
+		 *
+		 * @return The formatted counts, empty if no files were processed.
+		 * @see FileEventCounter#format()
+		 */
+		public String getFileCounts() {
+			return fileCounts;
+		}
+	}
+
+	private final ThroughputEstimator throughput = new ThroughputEstimator();
+	private final List<String> errors = new ArrayList<>();
+	private final FileEventCounter fileCounts = new FileEventCounter();
+	private String status = "";
+	private boolean progressUnknown;
+	private int total;
+	private int step;
+	private long byteTotal;
+	private long bytesDone;
+	private int subTotal;
+	private int subStep;
+	private long version;
+	private long publishedVersion = -1;
+
+	/**
+	 * Gets the latest state, if it changed since the last call.
+	 *
+	 * @return The snapshot, or <code>null</code> if nothing changed.
+	 */
+	public synchronized Snapshot publish() {
+		if (publishedVersion == version) {
+			return null;
+		}
+		publishedVersion = version;
+		return new Snapshot(this);
+	}
+
+	/**
+	 * Gets the errors reported since the last call.
+	 *
+	 * @return The error messages.
+	 */
+	public synchronized List<String> drainErrors() {
+		List<String> drained = new ArrayList<>(errors);
+		errors.clear();
+		return drained;
+	}
+
+	/**
+	 * Formats the throughput and estimated remaining time of the current step.
+	 *
+	 * @return The formatted estimate.
+	 */
+	public synchronized String formatThroughput() {
+		return throughput.format(byteTotal);
+	}
+
+	/**
+	 * Forgets the file events of the previous run.
+	 */
+	public synchronized void clearFileEvents() {
+		fileCounts.clear();
+		version++;
+	}
+
+	@Override
+	public synchronized void onEvents(List<FileEvent> events) {
+		fileCounts.onEvents(events);
+		version++;
+	}
+
+	@Override
+	public synchronized void setStatus(String status) {
+		this.status = status;
+		version++;
+	}
+
+	@Override
+	public synchronized void setProgressUnknown(boolean unknown) {
+		this.progressUnknown = unknown;
+		version++;
+	}
+
+	@Override
+	public synchronized void setTotal(int total) {
+		this.total = total;
+		version++;
+	}
+
+	@Override
+	public synchronized void setStep(int step) {
+		this.step = step;
+		version++;
+	}
+
+	@Override
+	public synchronized void reportError(String message) {
+		errors.add(message);
+	}
+
+	@Override
+	public synchronized void setSubTotal(int total) {
+		this.subTotal = total;
+		this.subStep = 0;
+		version++;
+	}
+
+	@Override
+	public synchronized void setSubStep(int step) {
+		this.subStep = step;
+		version++;
+	}
+
+	@Override
+	public synchronized void endSubTracking() {
+		this.subTotal = 0;
+		this.subStep = 0;
+		version++;
+	}
+
+	@Override
+	public synchronized void setByteTotal(long total) {
+		this.byteTotal = total;
+		this.bytesDone = 0;
+		throughput.reset();
+		version++;
+	}
+
+	@Override
+	public synchronized void adjustByteTotal(long total) {
+		this.byteTotal = total;
+		version++;
+	}
+
+	@Override
+	public synchronized void setBytesDone(long bytes) {
+		this.bytesDone = bytes;
+		throughput.record(bytes);
+		version++;
+	}
+}
@@ -17,6 +17,32 @@ public interface ProgressReporter {
 
 	void endSubTracking();
 
+	/**
+	 * Sets the total number of bytes processed by the current step, so that progress can be weighted by file size.
+	 * A total of zero means that the current step doesn't track bytes.
+	 * 
+	 * @param total The total number of bytes.
+	 */
+	default void setByteTotal(long total) {
+	}
+
+	/**
+	 * Sets the number of bytes processed so far by the current step.
+	 * 
+	 * @param bytes The number of bytes.
+	 */
+	default void setBytesDone(long bytes) {
+	}
+
+	/**
+	 * Changes the total number of bytes of the current step, when some of the work turns out to be unnecessary, such
+	 * as files which are up-to-date. Unlike {@link #setByteTotal(long)}, the bytes done and the throughput are kept.
+	 * 
+	 * @param total The new total number of bytes.
+	 */
+	default void adjustByteTotal(long total) {
+	}
+
 	default void endTracking() {
 	}
 }
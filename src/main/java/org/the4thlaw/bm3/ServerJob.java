@@ -0,0 +1,250 @@
+package org.the4thlaw.bm3;
+
+import java.nio.file.Path;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.List;
+
+/**
+ * A sync job submitted to the {@link JobServer}, which runs it as a {@link SyncJob}. The job is the progress
+ * reporter of that run, so that its state can be queried and streamed while it runs.
+ * <p>
+ * Thread-safe.
+ */
+public class ServerJob implements ProgressReporter {
+	/** The number of events kept, the oldest ones are dropped beyond it. */
+	static final int MAX_EVENTS = 1000;
+
+	/**
+	 * The state of a job.
+	 */
+	public enum State {
+		QUEUED, RUNNING, SUCCEEDED, FAILED
+	}
+
+	/**
+	 * An event reported by a job. Status changes and errors are kept, up to {@link ServerJob#MAX_EVENTS}, progress is
+	 * available as a snapshot.
+	 */
+	public static final class Event {
+		private final int index;
+		private final String type;
+		private final String message;
+
+		Event(int index, String type, String message) {
+			this.index = index;
+			this.type = type;
+			this.message = message;
+		}
+
+		/**
+		 * Gets the index of the event among all the events of its job, including the ones which were dropped.
+		 *
+		 * @return The index.
+		 */
+		public int getIndex() {
+			return index;
+		}
+
+		public String getType() {
+			return type;
+		}
+
+		public String getMessage() {
+			return message;
+		}
+	}
+
+	private final int id;
+	private final Path sourceDirectory;
+	private final Path targetDirectory;
+	private final boolean syncMode;
+	private final boolean dryRun;
+
+	private final Deque<Event> events = new ArrayDeque<>();
+	private int eventCount;
+	private State state = State.QUEUED;
+	private String status = "Queued";
+	private boolean progressUnknown;
+	private int total;
+	private int step;
+	private long byteTotal;
+	private long bytesDone;
+	/** Incremented on each change, so that watchers can wait for the next one. */
+	private long version;
+
+	ServerJob(int id, Path sourceDirectory, Path targetDirectory, boolean syncMode, boolean dryRun) {
+		this.id = id;
+		this.sourceDirectory = sourceDirectory;
+		this.targetDirectory = targetDirectory;
+		this.syncMode = syncMode;
+		this.dryRun = dryRun;
+	}
+
+	public int getId() {
+		return id;
+	}
+
+	public Path getSourceDirectory() {
+		return sourceDirectory;
+	}
+
+	public Path getTargetDirectory() {
+		return targetDirectory;
+	}
+
+	public boolean isSyncMode() {
+		return syncMode;
+	}
+
+	public boolean isDryRun() {
+		return dryRun;
+	}
+
+	public synchronized State getState() {
+		return state;
+	}
+
+	synchronized void setState(State state) {
+		this.state = state;
+		addEvent("state", state.name());
+		changed();
+	}
+
+	/**
+	 * Checks whether the job is over.
+	 *
+	 * @return <code>true</code> if the job succeeded or failed.
+	 */
+	public synchronized boolean isFinished() {
+		return state == State.SUCCEEDED || state == State.FAILED;
+	}
+
+	private void addEvent(String type, String message) {
+		events.addLast(new Event(eventCount++, type, message));
+		if (events.size() > MAX_EVENTS) {
+			events.removeFirst();
+		}
+	}
+
+	/**
+	 * Gets the events reported since a given one. Events which were dropped since are skipped.
+	 *
+	 * @param from The index of the first event to return.
+	 * @return The events.
+	 */
+	public synchronized List<Event> getEvents(int from) {
+		List<Event> result = new ArrayList<>();
+		for (Event event : events) {
+			if (event.getIndex() >= from) {
+				result.add(event);
+			}
+		}
+		return result;
+	}
+
+	/**
+	 * Waits until the job changes.
+	 *
+	 * @param seenVersion The last version seen by the caller, as returned by {@link #getVersion()}.
+	 * @param timeoutMillis The maximum time to wait.
+	 * @return The current version.
+	 * @throws InterruptedException If the calling thread is interrupted.
+	 */
+	public synchronized long awaitChange(long seenVersion, long timeoutMillis) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + timeoutMillis;
+		long remaining = timeoutMillis;
+		while (version == seenVersion && remaining > 0) {
+			wait(remaining);
+			remaining = deadline - System.currentTimeMillis();
+		}
+		return version;
+	}
+
+	public synchronized long getVersion() {
+		return version;
+	}
+
+	/**
+	 * Formats the state and progress of the job as a JSON object.
+	 *
+	 * @return The JSON object.
+	 */
+	public synchronized String toJson() {
+		return "{\"id\":" + id + ",\"source\":" + JobServer.quote(sourceDirectory.toString()) + ",\"target\":"
+				+ JobServer.quote(targetDirectory.toString()) + ",\"sync\":" + syncMode + ",\"dryRun\":" + dryRun
+				+ ",\"state\":\"" + state + "\",\"status\":" + JobServer.quote(status) + ",\"progressUnknown\":"
+				+ progressUnknown + ",\"step\":" + step + ",\"total\":" + total + ",\"bytesDone\":" + bytesDone
+				+ ",\"byteTotal\":" + byteTotal + "}";
+	}
+
+	private void changed() {
+		version++;
+		notifyAll();
+	}
+
+	@Override
+	public synchronized void setStatus(String status) {
+		this.status = status;
+		addEvent("status", status);
+		changed();
+	}
+
+	@Override
+	public synchronized void setProgressUnknown(boolean unknown) {
+		this.progressUnknown = unknown;
+		changed();
+	}
+
+	@Override
+	public synchronized void setTotal(int total) {
+		this.total = total;
+		changed();
+	}
+
+	@Override
+	public synchronized void setStep(int step) {
+		this.step = step;
+		changed();
+	}
+
+	@Override
+	public synchronized void reportError(String message) {
+		addEvent("error", message);
+		changed();
+	}
+
+	@Override
+	public void setSubTotal(int total) {
+		// Not tracked
+	}
+
+	@Override
+	public void setSubStep(int step) {
+		// Not tracked
+	}
+
+	@Override
+	public void endSubTracking() {
+		// Not tracked
+	}
+
+	@Override
+	public synchronized void setByteTotal(long total) {
+		this.byteTotal = total;
+		changed();
+	}
+
+	@Override
+	public synchronized void adjustByteTotal(long total) {
+		this.byteTotal = total;
+		changed();
+	}
+
+	@Override
+	public synchronized void setBytesDone(long bytes) {
+		this.bytesDone = bytes;
+		changed();
+	}
+}
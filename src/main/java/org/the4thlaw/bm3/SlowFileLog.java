@@ -0,0 +1,161 @@
+package org.the4thlaw.bm3;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.PriorityQueue;
+import java.util.concurrent.TimeUnit;
+
+import org.slf4j.Logger;
+
+/**
+ * Keeps track of the slowest files of a run, along with the time spent in each phase of their processing.
+ * <p>
+ * Only the N slowest files are retained, in a bounded min-heap: recording a file which is faster than all retained
+ * ones costs a single comparison.
+ */
+public class SlowFileLog {
+	/**
+	 * The phases of the processing of a single file.
+	 */
+	public enum Phase {
+		COVER_LOOKUP("cover lookup"),
+		COVER_RENDER("cover render"),
+		TAG_WRITE("tag write"),
+		COPY("copy");
+
+		private final String label;
+
+		Phase(String label) {
+			this.label = label;
+		}
+
+		public String getLabel() {
+			return label;
+		}
+	}
+
+	private static final Phase[] PHASES = Phase.values();
+
+	/**
+	 * The timings of a single file.
+	 */
+	public static class FileTiming {
+		private final File file;
+		private final long[] phaseNanos = new long[PHASES.length];
+		private long totalNanos;
+
+		public FileTiming(File file) {
+			this.file = file;
+		}
+
+		/**
+		 * Adds time to a phase.
+		 *
+		 * @param phase The phase.
+		 * @param nanos The time spent, in nanoseconds.
+		 */
+		public void add(Phase phase, long nanos) {
+			phaseNanos[phase.ordinal()] += nanos;
+			totalNanos += nanos;
+		}
+
+		public File getFile() {
+			return file;
+		}
+
+		public long getTotalNanos() {
+			return totalNanos;
+		}
+
+		public long getNanos(Phase phase) {
+			return phaseNanos[phase.ordinal()];
+		}
+
+		/**
+		 * Gets the phase which took the most time, which is the most likely reason for the file to be slow.
+		 *
+		 * @return The dominant phase.
+		 */
+		public Phase getDominantPhase() {
+			Phase dominant = PHASES[0];
+			for (Phase phase : PHASES) {
+				if (phaseNanos[phase.ordinal()] > phaseNanos[dominant.ordinal()]) {
+					dominant = phase;
+				}
+			}
+			return dominant;
+		}
+	}
+
+	private final int capacity;
+	private final PriorityQueue<FileTiming> heap;
+
+	/**
+	 * Creates the log.
+	 *
+	 * @param capacity The number of files to retain. Zero disables the log.
+	 */
+	public SlowFileLog(int capacity) {
+		this.capacity = capacity;
+		this.heap = new PriorityQueue<>(Math.max(1, capacity), Comparator.comparingLong(FileTiming::getTotalNanos));
+	}
+
+	/**
+	 * Records the timings of a file, keeping them only if they are among the slowest ones.
+	 *
+	 * @param timing The timings.
+	 */
+	public synchronized void offer(FileTiming timing) {
+		if (heap.size() < capacity) {
+			heap.add(timing);
+		} else if (capacity > 0 && timing.getTotalNanos() > heap.peek().getTotalNanos()) {
+			heap.poll();
+			heap.add(timing);
+		}
+	}
+
+	public synchronized void clear() {
+		heap.clear();
+	}
+
+	/**
+	 * Gets the retained files.
+	 *
+	 * @return The retained files, slowest first.
+	 */
+	public synchronized List<FileTiming> getSlowest() {
+		List<FileTiming> slowest = new ArrayList<>(heap);
+		slowest.sort(Comparator.comparingLong(FileTiming::getTotalNanos).reversed());
+		return slowest;
+	}
+
+	/**
+	 * Outputs the retained files to a logger.
+	 *
+	 * @param logger The logger.
+	 */
+	public void output(Logger logger) {
+		List<FileTiming> slowest = getSlowest();
+		if (slowest.isEmpty()) {
+			return;
+		}
+		logger.info("The {} slowest files were:", slowest.size());
+		for (FileTiming timing : slowest) {
+			StringBuilder details = new StringBuilder();
+			for (Phase phase : PHASES) {
+				if (details.length() > 0) {
+					details.append(", ");
+				}
+				details.append(phase.getLabel()).append(": ").append(toMillis(timing.getNanos(phase))).append(" ms");
+			}
+			logger.info("  {} ms, mostly {} ({}): {}", toMillis(timing.getTotalNanos()),
+					timing.getDominantPhase().getLabel(), details, timing.getFile());
+		}
+	}
+
+	private static long toMillis(long nanos) {
+		return TimeUnit.NANOSECONDS.toMillis(nanos);
+	}
+}
@@ -0,0 +1,247 @@
+package org.the4thlaw.bm3;
+
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Properties;
+import java.util.Set;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A local mirror of prepared files, i.e. files with their cover already embedded.
+ * <p>
+ * Preparing a file is costly (cover rendering and tag rewriting), and it yields the same result for every device the
+ * library is synced to. The mirror keeps the prepared files on a fast local disk so that device syncs only need to
+ * copy bytes. Each prepared file is keyed by its source path, size and modification time and by the identity of its
+ * cover, so that any change to one of those prepares it again.
+ * <p>
+ * The jobs of a JVM which open the same directory share a single mirror, so that they don't overwrite each other's
+ * files and index. Each file is prepared in a temporary file of its own, and a file prepared by two jobs at once is
+ * only committed once. A directory must only serve one library.
+ * <p>
+ * Thread-safe.
+ */
+public class StagingMirror implements Closeable {
+	private static final Logger LOGGER = LoggerFactory.getLogger(StagingMirror.class);
+	private static final String INDEX_FILE_NAME = ".bm3-staging.properties";
+	/** The open mirrors, by real path of their directory. */
+	private static final Map<Path, StagingMirror> OPEN_MIRRORS = new HashMap<>();
+
+	private final Path stagingDirectory;
+	private final Path indexFile;
+	private final Properties index = new Properties();
+	/** The number of jobs which opened the mirror and didn't close it yet, guarded by {@link #OPEN_MIRRORS}. */
+	private int users;
+	private boolean dirty;
+	private int hits;
+	private int misses;
+
+	private StagingMirror(Path stagingDirectory) {
+		this.stagingDirectory = stagingDirectory;
+		this.indexFile = stagingDirectory.resolve(INDEX_FILE_NAME);
+	}
+
+	/**
+	 * Opens a staging mirror, creating it if needed. If another job of this JVM has the directory open, its mirror is
+	 * shared. The mirror must be closed once the job is done with it.
+	 *
+	 * @param stagingDirectory The directory of the mirror.
+	 * @return The mirror.
+	 * @throws IOException If the mirror can't be created or its index can't be read.
+	 */
+	public static StagingMirror open(Path stagingDirectory) throws IOException {
+		Files.createDirectories(stagingDirectory);
+		Path realDirectory = stagingDirectory.toRealPath();
+		synchronized (OPEN_MIRRORS) {
+			StagingMirror mirror = OPEN_MIRRORS.get(realDirectory);
+			if (mirror == null) {
+				mirror = new StagingMirror(realDirectory);
+				if (Files.isRegularFile(mirror.indexFile)) {
+					try (InputStream in = Files.newInputStream(mirror.indexFile)) {
+						mirror.index.load(in);
+					}
+				}
+				LOGGER.info("Staging mirror at {} holds {} prepared files", realDirectory, mirror.index.size());
+				OPEN_MIRRORS.put(realDirectory, mirror);
+			}
+			mirror.users++;
+			return mirror;
+		}
+	}
+
+	/**
+	 * Computes the key of a prepared file.
+	 *
+	 * @param sourceFile The source file.
+	 * @param size The size of the source file.
+	 * @param lastModified The modification time of the source file.
+	 * @param cover The cover embedded in the file.
+	 * @return The key.
+	 */
+	public static String keyOf(Path sourceFile, long size, long lastModified, Cover cover) {
+		return sourceFile.toAbsolutePath() + "|" + size + "|" + lastModified + "|" + cover.getIdentity();
+	}
+
+	/**
+	 * Finds an up-to-date prepared file.
+	 *
+	 * @param relativePath The path of the file, relative to the source directory.
+	 * @param key The key of the file, as computed by {@link #keyOf(Path, long, long, Cover)}.
+	 * @return The prepared file, or <code>null</code> if it must be prepared again.
+	 */
+	public synchronized Path find(String relativePath, String key) {
+		Path stagedFile = getStagedFile(relativePath);
+		if (key.equals(index.getProperty(relativePath)) && Files.isRegularFile(stagedFile)) {
+			hits++;
+			return stagedFile;
+		}
+		misses++;
+		return null;
+	}
+
+	/**
+	 * Gets the size of an up-to-date prepared file, without counting it as reused.
+	 *
+	 * @param relativePath The path of the file, relative to the source directory.
+	 * @param key The key of the file, as computed by {@link #keyOf(Path, long, long, Cover)}.
+	 * @return The size of the prepared file, or -1 if it must be prepared again.
+	 */
+	public synchronized long getPreparedSize(String relativePath, String key) {
+		if (!key.equals(index.getProperty(relativePath))) {
+			return -1;
+		}
+		try {
+			return Files.size(getStagedFile(relativePath));
+		} catch (IOException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * Gets the files held by the mirror.
+	 *
+	 * @return The paths of the files, relative to the source directory.
+	 */
+	public synchronized Set<String> getPaths() {
+		return new HashSet<>(index.stringPropertyNames());
+	}
+
+	/**
+	 * Forgets the prepared files which are no longer needed, deleting them.
+	 *
+	 * @param relativePaths The paths of the files to keep, relative to the source directory.
+	 */
+	public synchronized void retainAll(Collection<String> relativePaths) {
+		Set<String> kept = relativePaths instanceof Set ? (Set<String>) relativePaths : new HashSet<>(relativePaths);
+		int removed = 0;
+		for (String relativePath : index.stringPropertyNames()) {
+			if (kept.contains(relativePath)) {
+				continue;
+			}
+			try {
+				Files.deleteIfExists(getStagedFile(relativePath));
+			} catch (IOException e) {
+				LOGGER.warn("Failed to delete the prepared file {}", relativePath, e);
+				continue;
+			}
+			index.remove(relativePath);
+			removed++;
+		}
+		if (removed > 0) {
+			LOGGER.info("Staging mirror: {} prepared files which are no longer needed were deleted", removed);
+			dirty = true;
+		}
+	}
+
+	/**
+	 * Creates the temporary file in which a file should be prepared before being committed to the mirror. Each call
+	 * creates a new file, so that jobs preparing the same file don't write to the same temporary file.
+	 *
+	 * @param relativePath The path of the file, relative to the source directory.
+	 * @return The temporary file, empty. The caller must delete it if it isn't committed.
+	 * @throws IOException If the file can't be created.
+	 */
+	public Path getPreparationFile(String relativePath) throws IOException {
+		Path stagedFile = getStagedFile(relativePath);
+		Files.createDirectories(stagedFile.getParent());
+		return Files.createTempFile(stagedFile.getParent(), "." + stagedFile.getFileName() + ".",
+				FileProcessor.TEMP_SUFFIX);
+	}
+
+	/**
+	 * Adds a prepared file to the mirror.
+	 *
+	 * @param relativePath The path of the file, relative to the source directory.
+	 * @param key The key of the file, as computed by {@link #keyOf(Path, long, long, Cover)}.
+	 * @param preparedFile The prepared file, as returned by {@link #getPreparationFile(String)}. It is left in place if
+	 *            another job committed the same file meanwhile.
+	 * @return The file in the mirror.
+	 * @throws IOException If the file can't be moved to the mirror.
+	 */
+	public synchronized Path commit(String relativePath, String key, Path preparedFile) throws IOException {
+		Path stagedFile = getStagedFile(relativePath);
+		if (key.equals(index.getProperty(relativePath)) && Files.isRegularFile(stagedFile)) {
+			// Prepared by another job meanwhile, which may be copying it
+			return stagedFile;
+		}
+		Files.move(preparedFile, stagedFile, StandardCopyOption.REPLACE_EXISTING);
+		index.setProperty(relativePath, key);
+		dirty = true;
+		return stagedFile;
+	}
+
+	/**
+	 * Saves the index of the mirror, if it changed.
+	 *
+	 * @throws IOException If writing the index fails.
+	 */
+	public synchronized void save() throws IOException {
+		LOGGER.info("Staging mirror: {} prepared files reused, {} prepared", hits, misses);
+		if (!dirty) {
+			return;
+		}
+		Path tempFile = FileProcessor.getTempFile(indexFile);
+		try (OutputStream out = Files.newOutputStream(tempFile)) {
+			index.store(out, "bm3 staging mirror index");
+		}
+		try {
+			Files.move(tempFile, indexFile, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+		} catch (AtomicMoveNotSupportedException e) {
+			Files.move(tempFile, indexFile, StandardCopyOption.REPLACE_EXISTING);
+		}
+		dirty = false;
+	}
+
+	/**
+	 * Saves the index of the mirror and releases it. The mirror may still be used by other jobs.
+	 *
+	 * @throws IOException If writing the index fails.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			save();
+		} finally {
+			synchronized (OPEN_MIRRORS) {
+				if (--users == 0) {
+					OPEN_MIRRORS.remove(stagingDirectory);
+				}
+			}
+		}
+	}
+
+	private Path getStagedFile(String relativePath) {
+		return stagingDirectory.resolve(relativePath);
+	}
+}
@@ -0,0 +1,432 @@
+package org.the4thlaw.bm3;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executor;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * A sync running asynchronously, for applications embedding bm3.
+ * <p>
+ * Jobs are created with a {@link Builder} and run on an executor supplied by the caller. Independent jobs can run
+ * concurrently in the same JVM: each one has its own {@link FileProcessor}, and they share the cover cache and, if
+ * given, a {@link LibraryCache}. Two jobs can't write to the same target at the same time: the second one fails.
+ * <p>
+ * Thread-safe.
+ */
+public class SyncJob {
+	private static final Logger LOGGER = LoggerFactory.getLogger(SyncJob.class);
+	/** The canonical paths of the targets of the running jobs. */
+	private static final Set<String> ACTIVE_TARGETS = ConcurrentHashMap.newKeySet();
+
+	private final FileProcessor processor;
+	private final List<Target> targets;
+	private final ProgressReporter reporter;
+	private final List<String> errors = Collections.synchronizedList(new ArrayList<>());
+	private final CompletableFuture<SyncResult> result = new CompletableFuture<>();
+
+	/**
+	 * Builds sync jobs.
+	 */
+	public static class Builder {
+		private final Path sourceDirectory;
+		private final List<Target> targets = new ArrayList<>();
+		private Path playlistDirectory;
+		private boolean syncMode;
+		private boolean dryRun;
+		private ProgressReporter reporter;
+		private FileEventListener fileEventListener;
+		private int slowFileLogSize = FileProcessor.DEFAULT_SLOW_FILE_LOG_SIZE;
+		private boolean spaceCheck = true;
+		private Path stagingDirectory;
+		private int metadataParallelism;
+		private LibraryCache libraryCache;
+		private PlaylistFinder playlistFinder;
+		private IoThrottle throttle = IoThrottle.UNLIMITED;
+		private boolean autoTune;
+		private boolean checksums;
+		private boolean verify;
+		private boolean repair;
+		private boolean playlistsFirst;
+		private boolean deduplicate;
+		private List<String> priorityPlaylists = Collections.emptyList();
+
+		private Builder(Path sourceDirectory) {
+			this.sourceDirectory = sourceDirectory;
+		}
+
+		/**
+		 * Adds a target.
+		 *
+		 * @param directory The target directory, on any file system.
+		 * @param useSlashes <code>true</code> to use slashes as separators in playlists, <code>false</code> to use
+		 *            backslashes.
+		 * @return This builder.
+		 */
+		public Builder target(Path directory, boolean useSlashes) {
+			targets.add(new Target(directory, useSlashes));
+			return this;
+		}
+
+		/**
+		 * Sets the directory where playlists are searched.
+		 *
+		 * @param playlistDirectory The directory, <code>null</code> to search the library (the default).
+		 * @return This builder.
+		 */
+		public Builder playlistDirectory(Path playlistDirectory) {
+			this.playlistDirectory = playlistDirectory;
+			return this;
+		}
+
+		/**
+		 * Only copies the files which changed since the previous sync of each target.
+		 *
+		 * @param syncMode <code>true</code> to sync, <code>false</code> to copy everything (the default).
+		 * @return This builder.
+		 */
+		public Builder syncMode(boolean syncMode) {
+			this.syncMode = syncMode;
+			return this;
+		}
+
+		/**
+		 * Leaves the targets untouched.
+		 *
+		 * @param dryRun <code>true</code> for a trial run.
+		 * @return This builder.
+		 */
+		public Builder dryRun(boolean dryRun) {
+			this.dryRun = dryRun;
+			return this;
+		}
+
+		/**
+		 * Sets the reporter of the progress of the job. It is called from the threads of the job.
+		 *
+		 * @param reporter The reporter, <code>null</code> for none (the default).
+		 * @return This builder.
+		 */
+		public Builder reporter(ProgressReporter reporter) {
+			this.reporter = reporter;
+			return this;
+		}
+
+		/**
+		 * Sets the listener of the events of each file. It is called from the threads of the job.
+		 *
+		 * @see FileProcessor#setFileEventListener(FileEventListener)
+		 */
+		public Builder fileEventListener(FileEventListener fileEventListener) {
+			this.fileEventListener = fileEventListener;
+			return this;
+		}
+
+		/**
+		 * @see FileProcessor#setSlowFileLogSize(int)
+		 */
+		public Builder slowFileLogSize(int slowFileLogSize) {
+			this.slowFileLogSize = slowFileLogSize;
+			return this;
+		}
+
+		/**
+		 * @see FileProcessor#setSpaceCheck(boolean)
+		 */
+		public Builder spaceCheck(boolean spaceCheck) {
+			this.spaceCheck = spaceCheck;
+			return this;
+		}
+
+		/**
+		 * Sets the staging directory. Concurrent jobs given the same directory share its mirror, so a job per device
+		 * prepares each file once for all of them.
+		 *
+		 * @see FileProcessor#setStagingDirectory(Path)
+		 */
+		public Builder stagingDirectory(Path stagingDirectory) {
+			this.stagingDirectory = stagingDirectory;
+			return this;
+		}
+
+		/**
+		 * @see FileProcessor#setMetadataParallelism(int)
+		 */
+		public Builder metadataParallelism(int metadataParallelism) {
+			this.metadataParallelism = metadataParallelism;
+			return this;
+		}
+
+		/**
+		 * Sets the library cache, which may be shared by concurrent jobs.
+		 *
+		 * @see FileProcessor#setLibraryCache(LibraryCache)
+		 */
+		public Builder libraryCache(LibraryCache libraryCache) {
+			this.libraryCache = libraryCache;
+			return this;
+		}
+
+		/**
+		 * @see FileProcessor#setPlaylistFinder(PlaylistFinder)
+		 */
+		public Builder playlistFinder(PlaylistFinder playlistFinder) {
+			this.playlistFinder = playlistFinder;
+			return this;
+		}
+
+		/**
+		 * Sets the I/O limits of the job. A throttle shared by concurrent jobs limits them as a whole.
+		 *
+		 * @see FileProcessor#setThrottle(IoThrottle)
+		 */
+		public Builder throttle(IoThrottle throttle) {
+			this.throttle = throttle;
+			return this;
+		}
+
+		/**
+		 * @see FileProcessor#setAutoTune(boolean)
+		 */
+		public Builder autoTune(boolean autoTune) {
+			this.autoTune = autoTune;
+			return this;
+		}
+
+		/**
+		 * @see FileProcessor#setChecksums(boolean)
+		 */
+		public Builder checksums(boolean checksums) {
+			this.checksums = checksums;
+			return this;
+		}
+
+		/**
+		 * @see FileProcessor#setVerify(boolean, boolean)
+		 */
+		public Builder verify(boolean verify, boolean repair) {
+			this.verify = verify;
+			this.repair = repair;
+			return this;
+		}
+
+		/**
+		 * @see FileProcessor#setPlaylistOrder(boolean, List)
+		 */
+		public Builder playlistOrder(boolean playlistsFirst, List<String> priorityPlaylists) {
+			this.playlistsFirst = playlistsFirst;
+			this.priorityPlaylists = new ArrayList<>(priorityPlaylists);
+			return this;
+		}
+
+		/**
+		 * @see FileProcessor#setDeduplicate(boolean)
+		 */
+		public Builder deduplicate(boolean deduplicate) {
+			this.deduplicate = deduplicate;
+			return this;
+		}
+
+		/**
+		 * Creates the job and starts it.
+		 *
+		 * @param executor The executor running the job. The job occupies one of its threads until it ends, and
+		 *            starts its own threads for concurrent I/O as configured.
+		 * @return The job.
+		 * @throws IllegalArgumentException If the source is not a directory or if there are no targets.
+		 */
+		public SyncJob start(Executor executor) {
+			FileProcessor processor = new FileProcessor(sourceDirectory, targets, playlistDirectory, syncMode, dryRun);
+			processor.setSlowFileLogSize(slowFileLogSize);
+			processor.setSpaceCheck(spaceCheck);
+			processor.setStagingDirectory(stagingDirectory);
+			processor.setMetadataParallelism(metadataParallelism);
+			processor.setLibraryCache(libraryCache);
+			if (playlistFinder != null) {
+				processor.setPlaylistFinder(playlistFinder);
+			}
+			processor.setThrottle(throttle);
+			processor.setAutoTune(autoTune);
+			processor.setChecksums(checksums);
+			processor.setVerify(verify, repair);
+			processor.setPlaylistOrder(playlistsFirst, priorityPlaylists);
+			processor.setDeduplicate(deduplicate);
+			processor.setFileEventListener(fileEventListener);
+			SyncJob job = new SyncJob(processor, new ArrayList<>(targets), reporter);
+			executor.execute(job::run);
+			return job;
+		}
+	}
+
+	/**
+	 * Starts building a job.
+	 *
+	 * @param sourceDirectory The library, on the default file system.
+	 * @return The builder.
+	 */
+	public static Builder builder(Path sourceDirectory) {
+		return new Builder(sourceDirectory);
+	}
+
+	private SyncJob(FileProcessor processor, List<Target> targets, ProgressReporter reporter) {
+		this.processor = processor;
+		this.targets = targets;
+		this.reporter = reporter;
+		// Cancelling the future cancels the job
+		result.whenComplete((r, e) -> {
+			if (result.isCancelled()) {
+				processor.cancel();
+			}
+		});
+	}
+
+	/**
+	 * Gets the result of the job. The future fails with the {@link IOException} which stopped the job, or with a
+	 * {@link CancellationException} if the job was cancelled. Cancelling the future cancels the job.
+	 *
+	 * @return The result, once the job is complete.
+	 */
+	public CompletableFuture<SyncResult> getResult() {
+		return result;
+	}
+
+	/**
+	 * Requests the cancellation of the job. The job stops after the file being copied, and can be resumed by the next
+	 * sync.
+	 *
+	 * @see FileProcessor#cancel()
+	 */
+	public void cancel() {
+		processor.cancel();
+	}
+
+	private void run() {
+		List<String> claimedTargets = new ArrayList<>();
+		try {
+			for (Target target : targets) {
+				String path = getCanonicalPath(target.getDirectory());
+				if (!ACTIVE_TARGETS.add(path)) {
+					throw new IOException("Another job is already writing to " + target);
+				}
+				claimedTargets.add(path);
+			}
+			processor.process(new Reporter());
+			result.complete(processor.getResult(new ArrayList<>(errors)));
+		} catch (IOException | RuntimeException e) {
+			if (!(e instanceof CancellationException)) {
+				LOGGER.error("Sync job failed", e);
+			}
+			result.completeExceptionally(e);
+		} finally {
+			ACTIVE_TARGETS.removeAll(claimedTargets);
+		}
+	}
+
+	/**
+	 * Gets the canonical path of a target directory, which may not exist yet.
+	 */
+	private static String getCanonicalPath(Path directory) throws IOException {
+		Path path = directory.toAbsolutePath().normalize();
+		return (Files.exists(path) ? path.toRealPath() : path).toUri().toString();
+	}
+
+	/**
+	 * Records the errors of the job and forwards progress to the reporter of the caller, if any.
+	 */
+	private class Reporter implements ProgressReporter {
+		@Override
+		public void setStatus(String status) {
+			if (reporter != null) {
+				reporter.setStatus(status);
+			}
+		}
+
+		@Override
+		public void setProgressUnknown(boolean unknown) {
+			if (reporter != null) {
+				reporter.setProgressUnknown(unknown);
+			}
+		}
+
+		@Override
+		public void setTotal(int total) {
+			if (reporter != null) {
+				reporter.setTotal(total);
+			}
+		}
+
+		@Override
+		public void setStep(int step) {
+			if (reporter != null) {
+				reporter.setStep(step);
+			}
+		}
+
+		@Override
+		public void reportError(String message) {
+			errors.add(message);
+			if (reporter != null) {
+				reporter.reportError(message);
+			}
+		}
+
+		@Override
+		public void setSubTotal(int total) {
+			if (reporter != null) {
+				reporter.setSubTotal(total);
+			}
+		}
+
+		@Override
+		public void setSubStep(int step) {
+			if (reporter != null) {
+				reporter.setSubStep(step);
+			}
+		}
+
+		@Override
+		public void endSubTracking() {
+			if (reporter != null) {
+				reporter.endSubTracking();
+			}
+		}
+
+		@Override
+		public void setByteTotal(long total) {
+			if (reporter != null) {
+				reporter.setByteTotal(total);
+			}
+		}
+
+		@Override
+		public void adjustByteTotal(long total) {
+			if (reporter != null) {
+				reporter.adjustByteTotal(total);
+			}
+		}
+
+		@Override
+		public void setBytesDone(long bytes) {
+			if (reporter != null) {
+				reporter.setBytesDone(bytes);
+			}
+		}
+
+		@Override
+		public void endTracking() {
+			if (reporter != null) {
+				reporter.endTracking();
+			}
+		}
+	}
+}
@@ -0,0 +1,175 @@
+package org.the4thlaw.bm3;
+
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * The outcome of a sync: what was copied, skipped and removed on each target.
+ * <p>
+ * Immutable.
+ */
+public final class SyncResult {
+	private final long fileCount;
+	private final long sourceBytes;
+	private final int resumedFiles;
+	private final long durationMillis;
+	private final List<TargetResult> targets;
+	private final List<String> errors;
+
+	/**
+	 * The outcome of a sync on one target.
+	 * <p>
+	 * Immutable.
+	 */
+	public static final class TargetResult {
+		private final Path directory;
+		private final long fileCount;
+		private final long bytes;
+		private final long unchangedFiles;
+		private final long unchangedBytes;
+		private final long removedFiles;
+		private final long removedBytes;
+
+		TargetResult(Path directory, long fileCount, long bytes, long unchangedFiles, long unchangedBytes,
+				long removedFiles, long removedBytes) {
+			this.directory = directory;
+			this.fileCount = fileCount;
+			this.bytes = bytes;
+			this.unchangedFiles = unchangedFiles;
+			this.unchangedBytes = unchangedBytes;
+			this.removedFiles = removedFiles;
+			this.removedBytes = removedBytes;
+		}
+
+		public Path getDirectory() {
+			return directory;
+		}
+
+		/**
+		 * Gets the number of files of the library on the target after the sync, copied or not.
+		 *
+		 * @return The number of files.
+		 */
+		public long getFileCount() {
+			return fileCount;
+		}
+
+		/**
+		 * Gets the size of the files of the library on the target after the sync, covers included.
+		 *
+		 * @return The size, in bytes.
+		 */
+		public long getBytes() {
+			return bytes;
+		}
+
+		/**
+		 * Gets the number of files which were up-to-date and not copied, in sync mode.
+		 *
+		 * @return The number of files.
+		 */
+		public long getUnchangedFiles() {
+			return unchangedFiles;
+		}
+
+		/**
+		 * Gets the size of the files which were up-to-date and not copied, in sync mode.
+		 *
+		 * @return The size of their source, in bytes.
+		 */
+		public long getUnchangedBytes() {
+			return unchangedBytes;
+		}
+
+		/**
+		 * Gets the number of files removed from the target since they are no longer part of the library, in sync mode.
+		 *
+		 * @return The number of files.
+		 */
+		public long getRemovedFiles() {
+			return removedFiles;
+		}
+
+		/**
+		 * Gets the size of the files removed from the target, in sync mode.
+		 *
+		 * @return The size, in bytes.
+		 */
+		public long getRemovedBytes() {
+			return removedBytes;
+		}
+
+		@Override
+		public String toString() {
+			return directory + ": " + fileCount + " files (" + bytes + " bytes), " + unchangedFiles + " unchanged, "
+					+ removedFiles + " removed";
+		}
+	}
+
+	SyncResult(long fileCount, long sourceBytes, int resumedFiles, long durationMillis, List<TargetResult> targets,
+			List<String> errors) {
+		this.fileCount = fileCount;
+		this.sourceBytes = sourceBytes;
+		this.resumedFiles = resumedFiles;
+		this.durationMillis = durationMillis;
+		this.targets = Collections.unmodifiableList(new ArrayList<>(targets));
+		this.errors = Collections.unmodifiableList(new ArrayList<>(errors));
+	}
+
+	/**
+	 * Gets the number of files of the library which were processed.
+	 *
+	 * @return The number of files.
+	 */
+	public long getFileCount() {
+		return fileCount;
+	}
+
+	/**
+	 * Gets the size of the files of the library which were processed.
+	 *
+	 * @return The size, in bytes.
+	 */
+	public long getSourceBytes() {
+		return sourceBytes;
+	}
+
+	/**
+	 * Gets the number of files which were skipped on a target since they were copied by an interrupted run.
+	 *
+	 * @return The number of files.
+	 */
+	public int getResumedFiles() {
+		return resumedFiles;
+	}
+
+	public long getDurationMillis() {
+		return durationMillis;
+	}
+
+	/**
+	 * Gets the outcome on each target, in the order in which the targets were given.
+	 *
+	 * @return The outcomes.
+	 */
+	public List<TargetResult> getTargets() {
+		return targets;
+	}
+
+	/**
+	 * Gets the errors reported while syncing, which didn't stop the sync, such as files which couldn't be copied.
+	 *
+	 * @return The error messages.
+	 */
+	public List<String> getErrors() {
+		return errors;
+	}
+
+	@Override
+	public String toString() {
+		return fileCount + " files (" + sourceBytes + " bytes) in " + durationMillis + " ms, " + errors.size()
+				+ " errors, targets: " + targets;
+	}
+}
@@ -0,0 +1,263 @@
+package org.the4thlaw.bm3;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.List;
+import java.util.zip.Checksum;
+
+import com.mpatric.mp3agic.ID3v2;
+import com.mpatric.mp3agic.ID3v24Tag;
+import com.mpatric.mp3agic.ID3v2TagFactory;
+import com.mpatric.mp3agic.InvalidDataException;
+import com.mpatric.mp3agic.NoSuchTagException;
+import com.mpatric.mp3agic.NotSupportedException;
+import com.mpatric.mp3agic.UnsupportedTagException;
+
+/**
+ * An MP3 file with a rewritten ID3v2 tag, ready to be written.
+ * <p>
+ * The new tag is held in memory and the rest of the source file (audio frames and trailing tags) is spliced after it
+ * as-is. This allows knowing the exact size of the result before writing anything.
+ */
+public class TaggedMp3 implements PreparedFile {
+	private static final int ID3V2_HEADER_LENGTH = 10;
+	private static final int ID3V2_FOOTER_LENGTH = 10;
+	private static final int ID3V2_FOOTER_FLAG = 0x10;
+	private static final int ID3V2_UNSYNCHRONISATION_FLAG = 0x80;
+	private static final int ID3V2_EXTENDED_HEADER_FLAG = 0x40;
+	private static final int ID3V2_FRAME_HEADER_LENGTH = 10;
+	/** The text encoding, picture type and empty description of a picture frame, besides its MIME type. */
+	private static final int PICTURE_FRAME_OVERHEAD = 4;
+	private static final String PICTURE_FRAME_ID = "APIC";
+
+	private final Path sourceFile;
+	private final ID3v2 tag;
+	private final long audioOffset;
+	private final long audioLength;
+	private byte[] tagBytes;
+	private IoThrottle throttle = IoThrottle.UNLIMITED;
+
+	private TaggedMp3(Path sourceFile, ID3v2 tag, long audioOffset, long audioLength) {
+		this.sourceFile = sourceFile;
+		this.tag = tag;
+		this.audioOffset = audioOffset;
+		this.audioLength = audioLength;
+	}
+
+	/**
+	 * Reads the existing ID3v2 tag of a file, if any. Only the tag is read, not the audio frames.
+	 *
+	 * @param sourceFile The MP3 file.
+	 * @return The file, ready for its tag to be edited.
+	 * @throws IOException If the file can't be read or its tag is invalid.
+	 */
+	public static TaggedMp3 read(Path sourceFile) throws IOException {
+		try (FileChannel file = FileChannel.open(sourceFile, StandardOpenOption.READ)) {
+			long fileLength = file.size();
+			byte[] header = new byte[ID3V2_HEADER_LENGTH];
+			if (fileLength < ID3V2_HEADER_LENGTH || !readFully(file, header) || header[0] != 'I' || header[1] != 'D'
+					|| header[2] != '3') {
+				return new TaggedMp3(sourceFile, new ID3v24Tag(), 0, fileLength);
+			}
+
+			int tagLength = ID3V2_HEADER_LENGTH + unpackSynchsafeInteger(header, 6);
+			if ((header[5] & ID3V2_FOOTER_FLAG) != 0) {
+				tagLength += ID3V2_FOOTER_LENGTH;
+			}
+			if (tagLength > fileLength) {
+				throw new IOException("Invalid ID3v2 tag: the tag is larger than the file");
+			}
+			byte[] tagData = new byte[tagLength];
+			file.position(0);
+			if (!readFully(file, tagData)) {
+				throw new EOFException("The file was truncated while reading its ID3v2 tag");
+			}
+			ID3v2 tag;
+			try {
+				tag = ID3v2TagFactory.createTag(tagData);
+			} catch (NoSuchTagException | UnsupportedTagException | InvalidDataException e) {
+				throw new IOException("Failed to read the ID3v2 tag", e);
+			}
+			return new TaggedMp3(sourceFile, tag, tagLength, fileLength - tagLength);
+		}
+	}
+
+	/**
+	 * Estimates the size of a file once its album image is set, as {@link #getSize()} would after
+	 * {@link #setAlbumImage(byte[], String)}. Only the headers of the tag and of its frames are read, so an image
+	 * already embedded in the file is skipped rather than read and parsed. Tags which can't be walked that way
+	 * (ID3v2.2, unsynchronised or with an extended header) are assumed to keep all their frames, which overestimates
+	 * their size by the image they hold.
+	 *
+	 * @param sourceFile The MP3 file.
+	 * @param imageLength The size of the new image.
+	 * @param mimeType The MIME type of the new image.
+	 * @return The estimated size, in bytes.
+	 * @throws IOException If the file can't be read.
+	 */
+	public static long estimateSize(Path sourceFile, int imageLength, String mimeType) throws IOException {
+		long pictureFrameLength = ID3V2_FRAME_HEADER_LENGTH + PICTURE_FRAME_OVERHEAD + mimeType.length()
+				+ imageLength;
+		try (FileChannel file = FileChannel.open(sourceFile, StandardOpenOption.READ)) {
+			long fileLength = file.size();
+			byte[] header = new byte[ID3V2_HEADER_LENGTH];
+			if (fileLength < ID3V2_HEADER_LENGTH || !readFully(file, header) || header[0] != 'I' || header[1] != 'D'
+					|| header[2] != '3') {
+				return fileLength + ID3V2_HEADER_LENGTH + pictureFrameLength;
+			}
+
+			int version = header[3];
+			int flags = header[5];
+			long framesEnd = ID3V2_HEADER_LENGTH + unpackSynchsafeInteger(header, 6);
+			if ((version != 3 && version != 4)
+					|| (flags & (ID3V2_UNSYNCHRONISATION_FLAG | ID3V2_EXTENDED_HEADER_FLAG)) != 0) {
+				return fileLength + pictureFrameLength;
+			}
+			long keptLength = ID3V2_HEADER_LENGTH;
+			byte[] frameHeader = new byte[ID3V2_FRAME_HEADER_LENGTH];
+			long position = ID3V2_HEADER_LENGTH;
+			while (position + ID3V2_FRAME_HEADER_LENGTH <= framesEnd) {
+				file.position(position);
+				if (!readFully(file, frameHeader)) {
+					throw new EOFException("The file was truncated while reading its ID3v2 tag");
+				}
+				if (frameHeader[0] == 0) {
+					// Padding, which isn't written back
+					break;
+				}
+				long frameLength = ID3V2_FRAME_HEADER_LENGTH + (version == 4 ? unpackSynchsafeInteger(frameHeader, 4)
+						: ByteBuffer.wrap(frameHeader, 4, 4).getInt() & 0xFFFFFFFFL);
+				String frameId = new String(frameHeader, 0, 4, StandardCharsets.ISO_8859_1);
+				if (!PICTURE_FRAME_ID.equals(frameId)) {
+					keptLength += frameLength;
+				}
+				position += frameLength;
+			}
+			long tagLength = framesEnd;
+			if ((flags & ID3V2_FOOTER_FLAG) != 0) {
+				tagLength += ID3V2_FOOTER_LENGTH;
+				keptLength += ID3V2_FOOTER_LENGTH;
+			}
+			return fileLength - tagLength + keptLength + pictureFrameLength;
+		}
+	}
+
+	/**
+	 * Reads bytes from the current position of a channel until the array is full.
+	 *
+	 * @return <code>false</code> if the end of the channel was reached first.
+	 */
+	private static boolean readFully(FileChannel channel, byte[] bytes) throws IOException {
+		ByteBuffer buffer = ByteBuffer.wrap(bytes);
+		while (buffer.hasRemaining()) {
+			if (channel.read(buffer) < 0) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	private static int unpackSynchsafeInteger(byte[] bytes, int offset) {
+		int value = 0;
+		for (int i = offset; i < offset + 4; i++) {
+			value = (value << 7) | (bytes[i] & 0x7F);
+		}
+		return value;
+	}
+
+	/**
+	 * Sets the album image.
+	 *
+	 * @param imageBytes The image data.
+	 * @param mimeType The image MIME type.
+	 */
+	public synchronized void setAlbumImage(byte[] imageBytes, String mimeType) {
+		tag.setAlbumImage(imageBytes, mimeType);
+		tagBytes = null;
+	}
+
+	/**
+	 * Gets the serialised tag.
+	 *
+	 * @return The tag bytes.
+	 * @throws IOException If the tag can't be serialised.
+	 */
+	public synchronized byte[] getTagBytes() throws IOException {
+		if (tagBytes == null) {
+			try {
+				tagBytes = tag.toBytes();
+			} catch (NotSupportedException e) {
+				throw new IOException("Failed to serialise the ID3v2 tag", e);
+			}
+		}
+		return tagBytes;
+	}
+
+	/**
+	 * Gets the size of the file that would be written.
+	 *
+	 * @return The size, in bytes.
+	 * @throws IOException If the tag can't be serialised.
+	 */
+	public long getSize() throws IOException {
+		return getTagBytes().length + audioLength;
+	}
+
+	public Path getSourceFile() {
+		return sourceFile;
+	}
+
+	public long getAudioOffset() {
+		return audioOffset;
+	}
+
+	public long getAudioLength() {
+		return audioLength;
+	}
+
+	/**
+	 * Sets the throttle applied to the copy of the audio frames.
+	 *
+	 * @param throttle The throttle.
+	 */
+	public void setThrottle(IoThrottle throttle) {
+		this.throttle = throttle;
+	}
+
+	/**
+	 * Writes the new tag followed by the audio of the source file. The tag is only serialised once, no matter how many
+	 * files are written, and the audio is read once for all the channels.
+	 *
+	 * @param targets The channels to write. None of them may write to the source file.
+	 * @param bufferSize The size of the copy buffer, 0 to let the throttle choose.
+	 * @param checksum The checksum updated with every byte written, <code>null</code> for none.
+	 * @throws IOException If writing fails.
+	 */
+	@Override
+	public void writeTo(List<? extends WritableByteChannel> targets, int bufferSize, Checksum checksum)
+			throws IOException {
+		try (FileChannel source = FileChannel.open(sourceFile, StandardOpenOption.READ)) {
+			byte[] tagBytes = getTagBytes();
+			if (checksum != null) {
+				checksum.update(tagBytes, 0, tagBytes.length);
+			}
+			for (WritableByteChannel target : targets) {
+				ByteBuffer tagBuffer = ByteBuffer.wrap(tagBytes);
+				while (tagBuffer.hasRemaining()) {
+					target.write(tagBuffer);
+				}
+			}
+			try {
+				throttle.transfer(source, audioOffset, audioLength, targets, bufferSize, checksum);
+			} catch (IOException e) {
+				throw new IOException("Failed to copy the audio of " + sourceFile + ": " + e.getMessage(), e);
+			}
+		}
+	}
+}
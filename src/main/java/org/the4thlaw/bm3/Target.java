@@ -0,0 +1,135 @@
+package org.the4thlaw.bm3;
+
+import java.nio.file.Path;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.apache.commons.math3.stat.descriptive.SummaryStatistics;
+
+/**
+ * A directory the library is copied to, such as a USB stick or an SD card.
+ * <p>
+ * Each target has its own playlist settings and its own synchronisation state: files to remove, journal of the
+ * current run, checksums and statistics.
+ */
+public class Target {
+	private final Path directory;
+	private final boolean useSlashes;
+
+	private final SummaryStatistics fileTotalStats = new SummaryStatistics();
+	private final SummaryStatistics syncSavedStats = new SummaryStatistics();
+	private final SummaryStatistics syncRemovedStats = new SummaryStatistics();
+	private Collection<Path> obsoleteFiles = Collections.emptyList();
+	private CopyJournal journal;
+	private ChecksumStore checksums;
+	private final Set<String> writtenPaths = ConcurrentHashMap.newKeySet();
+	private WriteTuner writeTuner;
+
+	/**
+	 * Creates a target.
+	 *
+	 * @param directory The target directory. It may be on any file system, unlike the library.
+	 * @param useSlashes <code>true</code> to use slashes as separators in playlists, <code>false</code> to use
+	 *            backslashes.
+	 */
+	public Target(Path directory, boolean useSlashes) {
+		this.directory = directory;
+		this.useSlashes = useSlashes;
+	}
+
+	public Path getDirectory() {
+		return directory;
+	}
+
+	public boolean isUseSlashes() {
+		return useSlashes;
+	}
+
+	/**
+	 * Gets the directory where playlists are written.
+	 *
+	 * @return The playlist directory.
+	 */
+	public Path getPlaylistDirectory() {
+		return directory.resolve("BM3_Playlists");
+	}
+
+	SummaryStatistics getFileTotalStats() {
+		return fileTotalStats;
+	}
+
+	SummaryStatistics getSyncSavedStats() {
+		return syncSavedStats;
+	}
+
+	SummaryStatistics getSyncRemovedStats() {
+		return syncRemovedStats;
+	}
+
+	Collection<Path> getObsoleteFiles() {
+		return obsoleteFiles;
+	}
+
+	void setObsoleteFiles(Collection<Path> obsoleteFiles) {
+		this.obsoleteFiles = obsoleteFiles;
+	}
+
+	CopyJournal getJournal() {
+		return journal;
+	}
+
+	void setJournal(CopyJournal journal) {
+		this.journal = journal;
+	}
+
+	ChecksumStore getChecksums() {
+		return checksums;
+	}
+
+	void setChecksums(ChecksumStore checksums) {
+		this.checksums = checksums;
+	}
+
+	/**
+	 * Gets the files written during the current run with a checksum, which can be verified.
+	 *
+	 * @return The paths of the files, relative to the target.
+	 */
+	Set<String> getWrittenPaths() {
+		return writtenPaths;
+	}
+
+	/**
+	 * Gets the tuner of the copy settings of this target.
+	 *
+	 * @return The tuner, <code>null</code> if the copy settings are not tuned.
+	 */
+	WriteTuner getWriteTuner() {
+		return writeTuner;
+	}
+
+	void setWriteTuner(WriteTuner writeTuner) {
+		this.writeTuner = writeTuner;
+	}
+
+	/**
+	 * Resets the state of the previous run.
+	 */
+	void reset() {
+		fileTotalStats.clear();
+		syncSavedStats.clear();
+		syncRemovedStats.clear();
+		obsoleteFiles = Collections.emptyList();
+		journal = null;
+		checksums = null;
+		writtenPaths.clear();
+		writeTuner = null;
+	}
+
+	@Override
+	public String toString() {
+		return directory.toString();
+	}
+}
@@ -0,0 +1,135 @@
+package org.the4thlaw.bm3;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+
+/**
+ * A channel writing the file of one target, when a source file is copied to several targets at once.
+ * <p>
+ * Writes are buffered and handed over to a writer thread, so that the targets are written concurrently and the next
+ * chunk of the source is read meanwhile. Each target gets its own buffer size, so that the copy settings tuned for
+ * each device still apply. A failure only stops the writes to this target: the following writes are discarded, so
+ * that the other targets are still written, and the failure is thrown by {@link #flush()}.
+ * <p>
+ * Not thread-safe.
+ */
+class TargetChannel implements WritableByteChannel {
+	private final FileChannel channel;
+	private final int bufferSize;
+	private final ExecutorService writer;
+	/** The buffer being filled. */
+	private ByteBuffer buffer;
+	/** The buffer being written, reused once it is. */
+	private ByteBuffer spareBuffer;
+	private Future<?> pendingWrite;
+	private IOException failure;
+
+	/**
+	 * Creates a channel.
+	 *
+	 * @param channel The channel of the target file.
+	 * @param bufferSize The size of the writes, 0 to write the chunks as they come.
+	 * @param writer The executor writing to the target.
+	 */
+	TargetChannel(FileChannel channel, int bufferSize, ExecutorService writer) {
+		this.channel = channel;
+		this.bufferSize = bufferSize;
+		this.writer = writer;
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		int length = src.remaining();
+		if (buffer == null) {
+			buffer = ByteBuffer.allocate(bufferSize > 0 ? bufferSize : Math.max(length, 1));
+		}
+		while (src.hasRemaining() && failure == null) {
+			ByteBuffer chunk = src.duplicate();
+			chunk.limit(chunk.position() + Math.min(chunk.remaining(), buffer.remaining()));
+			buffer.put(chunk);
+			src.position(chunk.position());
+			if (!buffer.hasRemaining()) {
+				dispatch();
+			}
+		}
+		// Discarded after a failure
+		src.position(src.limit());
+		return length;
+	}
+
+	/**
+	 * Hands the buffer over to the writer, once the previous write is complete.
+	 */
+	private void dispatch() throws InterruptedIOException {
+		awaitPendingWrite();
+		ByteBuffer full = buffer;
+		full.flip();
+		buffer = spareBuffer != null ? spareBuffer : ByteBuffer.allocate(full.capacity());
+		buffer.clear();
+		spareBuffer = full;
+		if (failure == null) {
+			pendingWrite = writer.submit(() -> {
+				while (full.hasRemaining()) {
+					channel.write(full);
+				}
+				return null;
+			});
+		}
+	}
+
+	private void awaitPendingWrite() throws InterruptedIOException {
+		if (pendingWrite == null) {
+			return;
+		}
+		try {
+			pendingWrite.get();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while writing to " + channel);
+		} catch (ExecutionException e) {
+			Throwable cause = e.getCause();
+			failure = cause instanceof IOException ? (IOException) cause : new IOException(cause);
+		} finally {
+			pendingWrite = null;
+		}
+	}
+
+	/**
+	 * Writes the bytes which are still buffered and waits until they are written.
+	 *
+	 * @throws IOException If any write to the target failed.
+	 */
+	public void flush() throws IOException {
+		if (failure == null && buffer != null && buffer.position() > 0) {
+			dispatch();
+		}
+		awaitPendingWrite();
+		if (failure != null) {
+			throw failure;
+		}
+	}
+
+	@Override
+	public boolean isOpen() {
+		return channel.isOpen();
+	}
+
+	/**
+	 * Closes the channel, after the pending write if any. The bytes still buffered are discarded, they must be flushed
+	 * first.
+	 */
+	@Override
+	public void close() throws IOException {
+		try {
+			awaitPendingWrite();
+		} finally {
+			channel.close();
+		}
+	}
+}
@@ -0,0 +1,104 @@
+package org.the4thlaw.bm3;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Estimates the throughput and remaining time of a byte-weighted task over a rolling window.
+ * <p>
+ * Samples are recorded at most every {@value #SAMPLE_INTERVAL_MILLIS} ms so that recording progress is cheap no
+ * matter how often it is called.
+ */
+public class ThroughputEstimator {
+	private static final long SAMPLE_INTERVAL_MILLIS = 250;
+	private static final long SAMPLE_INTERVAL_NANOS = TimeUnit.MILLISECONDS.toNanos(SAMPLE_INTERVAL_MILLIS);
+	/** Ten seconds worth of samples. */
+	private static final int WINDOW_SIZE = 40;
+
+	private final long[] sampleTimes = new long[WINDOW_SIZE];
+	private final long[] sampleBytes = new long[WINDOW_SIZE];
+	private int next;
+	private int count;
+	private long latestTime;
+	private long latestBytes;
+
+	/**
+	 * Forgets all samples.
+	 */
+	public synchronized void reset() {
+		next = 0;
+		count = 0;
+		latestTime = 0;
+		latestBytes = 0;
+	}
+
+	/**
+	 * Records the progress of the task.
+	 * 
+	 * @param bytesDone The number of bytes processed so far.
+	 */
+	public synchronized void record(long bytesDone) {
+		long now = System.nanoTime();
+		latestTime = now;
+		latestBytes = bytesDone;
+		if (count > 0 && now - sampleTimes[(next + WINDOW_SIZE - 1) % WINDOW_SIZE] < SAMPLE_INTERVAL_NANOS) {
+			return;
+		}
+		sampleTimes[next] = now;
+		sampleBytes[next] = bytesDone;
+		next = (next + 1) % WINDOW_SIZE;
+		if (count < WINDOW_SIZE) {
+			count++;
+		}
+	}
+
+	/**
+	 * Gets the throughput over the rolling window.
+	 * 
+	 * @return The throughput in bytes per second, or zero if it is not known yet.
+	 */
+	public synchronized double getBytesPerSecond() {
+		if (count == 0) {
+			return 0;
+		}
+		int oldest = count < WINDOW_SIZE ? 0 : next;
+		long elapsed = latestTime - sampleTimes[oldest];
+		if (elapsed <= 0) {
+			return 0;
+		}
+		return (latestBytes - sampleBytes[oldest]) * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+	}
+
+	/**
+	 * Gets the estimated remaining time.
+	 * 
+	 * @param byteTotal The total number of bytes of the task.
+	 * @return The remaining time in seconds, or -1 if it can't be estimated yet.
+	 */
+	public long getRemainingSeconds(long byteTotal) {
+		double rate = getBytesPerSecond();
+		long remaining;
+		synchronized (this) {
+			remaining = byteTotal - latestBytes;
+		}
+		if (rate <= 0) {
+			return -1;
+		}
+		return Math.max(0, Math.round(remaining / rate));
+	}
+
+	/**
+	 * Formats a throughput and an ETA for display.
+	 * 
+	 * @param byteTotal The total number of bytes of the task.
+	 * @return The formatted text.
+	 */
+	public String format(long byteTotal) {
+		long remaining = getRemainingSeconds(byteTotal);
+		if (remaining < 0) {
+			return "estimating...";
+		}
+		double mbPerSecond = getBytesPerSecond() / 1024 / 1024;
+		return String.format("%.1f MB/s, ETA %d:%02d:%02d", mbPerSecond, remaining / 3600, (remaining / 60) % 60,
+				remaining % 60);
+	}
+}
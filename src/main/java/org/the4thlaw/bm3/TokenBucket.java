@@ -0,0 +1,81 @@
+package org.the4thlaw.bm3;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+/**
+ * A token bucket rate limiter. Tokens are added at a constant rate up to a burst capacity, and callers block until
+ * the tokens they need are available. Requests larger than the capacity are allowed and put the bucket in debt, so
+ * that the average rate is always honoured.
+ * <p>
+ * Thread-safe.
+ */
+public class TokenBucket {
+	private final LongSupplier nanoClock;
+	private final double tokensPerNano;
+	private final double capacity;
+	private double tokens;
+	private long lastRefill;
+
+	/**
+	 * Creates a bucket, initially full.
+	 *
+	 * @param tokensPerSecond The rate at which tokens are added.
+	 * @param burstSeconds The number of seconds worth of tokens the bucket holds, which smooths out bursts.
+	 */
+	public TokenBucket(double tokensPerSecond, double burstSeconds) {
+		this(tokensPerSecond, burstSeconds, System::nanoTime);
+	}
+
+	/**
+	 * Creates a bucket measuring time with the given clock.
+	 *
+	 * @param tokensPerSecond The rate at which tokens are added.
+	 * @param burstSeconds The number of seconds worth of tokens the bucket holds.
+	 * @param nanoClock The clock, in nanoseconds, as {@link System#nanoTime()}.
+	 */
+	TokenBucket(double tokensPerSecond, double burstSeconds, LongSupplier nanoClock) {
+		if (tokensPerSecond <= 0) {
+			throw new IllegalArgumentException("The rate must be positive: " + tokensPerSecond);
+		}
+		this.tokensPerNano = tokensPerSecond / TimeUnit.SECONDS.toNanos(1);
+		this.capacity = tokensPerSecond * burstSeconds;
+		this.tokens = capacity;
+		this.nanoClock = nanoClock;
+		this.lastRefill = nanoClock.getAsLong();
+	}
+
+	/**
+	 * Takes tokens from the bucket, waiting until they are available.
+	 *
+	 * @param count The number of tokens.
+	 * @throws InterruptedIOException If the calling thread is interrupted while waiting.
+	 */
+	public void acquire(long count) throws InterruptedIOException {
+		long waitNanos = reserve(count);
+		if (waitNanos > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(waitNanos);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while throttling I/O");
+			}
+		}
+	}
+
+	/**
+	 * Takes tokens from the bucket, possibly putting it in debt.
+	 *
+	 * @param count The number of tokens.
+	 * @return The time to wait before the tokens are actually available, in nanoseconds.
+	 */
+	synchronized long reserve(long count) {
+		long now = nanoClock.getAsLong();
+		tokens = Math.min(capacity, tokens + (now - lastRefill) * tokensPerNano);
+		lastRefill = now;
+		tokens -= count;
+		// Callers queue up behind the debt, in order
+		return tokens >= 0 ? 0 : (long) (-tokens / tokensPerNano);
+	}
+}
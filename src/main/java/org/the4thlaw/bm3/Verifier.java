@@ -0,0 +1,245 @@
+package org.the4thlaw.bm3;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.io.UncheckedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.NoSuchFileException;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.util.ArrayList;
+import java.util.Collection;
+import java.util.List;
+import java.util.Map;
+import java.util.Map.Entry;
+import java.util.TreeMap;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.stream.Stream;
+import java.util.zip.CRC32;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Reads files back from a target and compares them with the checksums recorded when they were written.
+ * <p>
+ * Files are read concurrently, since flash storage serves parallel reads much faster than sequential ones. Files read
+ * back right after being written may be served by the cache of the operating system rather than by the device: only
+ * an audit after the device was unmounted checks what was actually stored.
+ */
+public class Verifier {
+	private static final Logger LOGGER = LoggerFactory.getLogger(Verifier.class);
+	/**
+	 * The default number of files read concurrently.
+	 */
+	public static final int DEFAULT_PARALLELISM = 4;
+	private static final int BUFFER_SIZE = 256 * 1024;
+
+	private final Path targetDirectory;
+	private final ChecksumStore checksums;
+	private final int parallelism;
+
+	/**
+	 * Creates a verifier.
+	 *
+	 * @param targetDirectory The target directory.
+	 * @param checksums The checksums recorded for the target.
+	 * @param parallelism The number of files read concurrently.
+	 */
+	public Verifier(Path targetDirectory, ChecksumStore checksums, int parallelism) {
+		this.targetDirectory = targetDirectory;
+		this.checksums = checksums;
+		this.parallelism = Math.max(1, parallelism);
+	}
+
+	/**
+	 * Verifies files.
+	 *
+	 * @param relativePaths The paths of the files to verify, relative to the target. Files without a recorded
+	 *            checksum are skipped.
+	 * @param reporter The progress reporter.
+	 * @return The files which are missing, unreadable or corrupted, with a description of the problem, sorted by
+	 *         path.
+	 * @throws InterruptedIOException If the calling thread is interrupted.
+	 */
+	public Map<String, String> verify(Collection<String> relativePaths, ProgressReporter reporter)
+			throws InterruptedIOException {
+		reporter.setStatus("Verifying " + targetDirectory + "...");
+		reporter.setProgressUnknown(false);
+		reporter.setStep(0);
+		reporter.setTotal(relativePaths.size());
+		AtomicInteger step = new AtomicInteger();
+
+		ExecutorService readers = Executors.newFixedThreadPool(parallelism, r -> {
+			Thread thread = new Thread(r, "bm3-verifier");
+			thread.setDaemon(true);
+			return thread;
+		});
+		Map<String, Future<String>> results = new TreeMap<>();
+		try {
+			for (String relativePath : relativePaths) {
+				results.put(relativePath, readers.submit(() -> {
+					try {
+						return check(relativePath);
+					} finally {
+						reporter.setStep(step.incrementAndGet());
+					}
+				}));
+			}
+
+			Map<String, String> problems = new TreeMap<>();
+			for (Entry<String, Future<String>> result : results.entrySet()) {
+				String problem;
+				try {
+					problem = result.getValue().get();
+				} catch (ExecutionException e) {
+					problem = "verification failed: " + e.getCause();
+				}
+				if (problem != null) {
+					LOGGER.warn("Verification of {} in {} failed: {}", result.getKey(), targetDirectory, problem);
+					problems.put(result.getKey(), problem);
+				}
+			}
+			LOGGER.info("Verified {} files in {}, {} problems found", relativePaths.size(), targetDirectory,
+					problems.size());
+			return problems;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			throw new InterruptedIOException("Interrupted while verifying " + targetDirectory);
+		} finally {
+			readers.shutdownNow();
+		}
+	}
+
+	private String check(String relativePath) {
+		ChecksumStore.Record expected = checksums.get(relativePath);
+		if (expected == null) {
+			return null;
+		}
+		Path file = targetDirectory.resolve(relativePath);
+		long crc;
+		try {
+			BasicFileAttributes attributes = Files.readAttributes(file, BasicFileAttributes.class);
+			if (!attributes.isRegularFile()) {
+				return "missing";
+			}
+			if (attributes.size() != expected.getSize()) {
+				return "size is " + attributes.size() + " instead of " + expected.getSize();
+			}
+			crc = checksum(file);
+		} catch (NoSuchFileException e) {
+			return "missing";
+		} catch (IOException e) {
+			return "unreadable: " + e.getMessage();
+		}
+		if (crc != expected.getCrc()) {
+			return "checksum mismatch";
+		}
+		return null;
+	}
+
+	/**
+	 * Computes the CRC32 of a file.
+	 *
+	 * @param file The file.
+	 * @return The CRC32.
+	 * @throws IOException If reading the file fails.
+	 */
+	static long checksum(Path file) throws IOException {
+		CRC32 crc = new CRC32();
+		ByteBuffer buffer = ByteBuffer.allocate(BUFFER_SIZE);
+		try (FileChannel channel = FileChannel.open(file, StandardOpenOption.READ)) {
+			while (channel.read(buffer) >= 0) {
+				buffer.flip();
+				crc.update(buffer.array(), 0, buffer.limit());
+				buffer.clear();
+			}
+		}
+		return crc.getValue();
+	}
+
+	/**
+	 * The result of the audit of a target.
+	 */
+	public static final class Audit {
+		private final Map<String, String> problems;
+		private final int verifiedFiles;
+		private final int unrecordedFiles;
+
+		private Audit(Map<String, String> problems, int verifiedFiles, int unrecordedFiles) {
+			this.problems = problems;
+			this.verifiedFiles = verifiedFiles;
+			this.unrecordedFiles = unrecordedFiles;
+		}
+
+		/**
+		 * @return The files which are missing, unreadable or corrupted, with a description of the problem.
+		 */
+		public Map<String, String> getProblems() {
+			return problems;
+		}
+
+		/**
+		 * @return The number of files which have a recorded checksum, and were verified.
+		 */
+		public int getVerifiedFiles() {
+			return verifiedFiles;
+		}
+
+		/**
+		 * @return The number of audio files of the target which have no recorded checksum, and were not verified.
+		 */
+		public int getUnrecordedFiles() {
+			return unrecordedFiles;
+		}
+
+		/**
+		 * Tells whether the audit vouches for the target: no problem was found and, unless the target holds no audio
+		 * file, at least one file was verified.
+		 *
+		 * @return <code>true</code> if the target passed the audit.
+		 */
+		public boolean isPassed() {
+			return problems.isEmpty() && (verifiedFiles > 0 || unrecordedFiles == 0);
+		}
+	}
+
+	/**
+	 * Verifies all the files of a target which have a recorded checksum, without the library, and counts the audio
+	 * files which have none.
+	 *
+	 * @param targetDirectory The target directory.
+	 * @param parallelism The number of files read concurrently.
+	 * @param reporter The progress reporter.
+	 * @return The result of the audit.
+	 * @throws IOException If the recorded checksums or the target can't be read.
+	 */
+	public static Audit audit(Path targetDirectory, int parallelism, ProgressReporter reporter) throws IOException {
+		ChecksumStore checksums = ChecksumStore.open(targetDirectory, true);
+		List<String> paths = new ArrayList<>(checksums.getPaths());
+		int unrecordedFiles;
+		try (Stream<Path> files = Files.walk(targetDirectory)) {
+			unrecordedFiles = (int) files
+					.filter(file -> PlaylistFinder.isAudio(file) && Files.isRegularFile(file)
+							&& checksums.get(targetDirectory.relativize(file).toString()) == null)
+					.count();
+		} catch (UncheckedIOException e) {
+			throw e.getCause();
+		}
+		if (paths.isEmpty() && unrecordedFiles > 0) {
+			LOGGER.warn("No checksums were recorded for {}, sync it with --checksums first", targetDirectory);
+		} else if (unrecordedFiles > 0) {
+			LOGGER.warn("{} audio files in {} have no recorded checksum and were not verified", unrecordedFiles,
+					targetDirectory);
+		}
+		Map<String, String> problems = new Verifier(targetDirectory, checksums, parallelism).verify(paths, reporter);
+		return new Audit(problems, paths.size(), unrecordedFiles);
+	}
+}
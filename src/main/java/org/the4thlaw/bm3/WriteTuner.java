@@ -0,0 +1,206 @@
+package org.the4thlaw.bm3;
+
+import java.io.InterruptedIOException;
+import java.util.concurrent.TimeUnit;
+import java.util.function.LongSupplier;
+
+import org.slf4j.Logger;
+import org.slf4j.LoggerFactory;
+
+/**
+ * Tunes the number of concurrent writers and the copy buffer size of a target.
+ * <p>
+ * The sustained write throughput is measured over windows of {@value #WINDOW_MB} MB. After each window, one setting is
+ * moved a step in one direction: if the throughput improves, the move is kept and the next window goes further the
+ * same way, otherwise it is undone and the other direction, then the other setting, is tried (hill climbing). Tuning
+ * stops after {@value #TUNING_MB} MB and the best settings found are kept for the rest of the run.
+ * <p>
+ * Thread-safe.
+ */
+public class WriteTuner {
+	private static final Logger LOGGER = LoggerFactory.getLogger(WriteTuner.class);
+	/**
+	 * The maximum number of files written concurrently to a target.
+	 */
+	public static final int MAX_WRITERS = 8;
+	private static final int[] BUFFER_SIZES = { 64 * 1024, 128 * 1024, 256 * 1024, 512 * 1024, 1024 * 1024,
+			2048 * 1024, 4096 * 1024 };
+	private static final long WINDOW_MB = 32;
+	private static final long TUNING_MB = 512;
+	static final long WINDOW_BYTES = WINDOW_MB * 1024 * 1024;
+	static final long TUNING_BYTES = TUNING_MB * 1024 * 1024;
+	/** A move must improve the throughput by this ratio to be kept, so that noise doesn't cause random walks. */
+	private static final double IMPROVEMENT_RATIO = 1.05;
+	private static final int WRITERS = 0;
+	private static final int BUFFER = 1;
+
+	private final Target target;
+	private final LongSupplier nanoClock;
+	/** The accepted settings: writers and buffer size index. */
+	private final int[] current = { 1, 2 };
+	/** The settings being measured. */
+	private int[] trial = current.clone();
+	private double currentThroughput = -1;
+	private int dimension = WRITERS;
+	private int direction = 1;
+	private int failedMoves;
+	private boolean tuning = true;
+
+	private int activeWriters;
+	private long windowStart;
+	private long windowBytes;
+	private long totalBytes;
+
+	/**
+	 * Creates a tuner, starting with a single writer and 256 KB buffers.
+	 *
+	 * @param target The target.
+	 */
+	public WriteTuner(Target target) {
+		this(target, System::nanoTime);
+	}
+
+	/**
+	 * Creates a tuner measuring time with the given clock.
+	 *
+	 * @param target The target.
+	 * @param nanoClock The clock, in nanoseconds, as {@link System#nanoTime()}.
+	 */
+	WriteTuner(Target target, LongSupplier nanoClock) {
+		this.target = target;
+		this.nanoClock = nanoClock;
+	}
+
+	/**
+	 * Waits until a writer slot is available.
+	 *
+	 * @throws InterruptedIOException If the calling thread is interrupted.
+	 */
+	public synchronized void acquireWriter() throws InterruptedIOException {
+		while (activeWriters >= trial[WRITERS]) {
+			try {
+				wait();
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for a writer");
+			}
+		}
+		activeWriters++;
+		if (windowStart == 0) {
+			windowStart = nanoClock.getAsLong();
+		}
+	}
+
+	/**
+	 * Releases a writer slot and records the bytes it wrote.
+	 *
+	 * @param bytes The number of bytes written.
+	 */
+	public synchronized void releaseWriter(long bytes) {
+		activeWriters--;
+		notifyAll();
+		if (!tuning) {
+			return;
+		}
+
+		windowBytes += bytes;
+		totalBytes += bytes;
+		if (windowBytes < WINDOW_BYTES) {
+			return;
+		}
+		long elapsed = Math.max(1, nanoClock.getAsLong() - windowStart);
+		double throughput = windowBytes * (double) TimeUnit.SECONDS.toNanos(1) / elapsed;
+		LOGGER.debug("Target {}: {} writers with {} KB buffers wrote {} MB/s", target, trial[WRITERS],
+				BUFFER_SIZES[trial[BUFFER]] / 1024, String.format("%.1f", throughput / (1024 * 1024)));
+		windowBytes = 0;
+		windowStart = activeWriters > 0 ? nanoClock.getAsLong() : 0;
+
+		if (currentThroughput < 0) {
+			currentThroughput = throughput;
+		} else if (throughput > currentThroughput * IMPROVEMENT_RATIO) {
+			current[WRITERS] = trial[WRITERS];
+			current[BUFFER] = trial[BUFFER];
+			currentThroughput = throughput;
+			failedMoves = 0;
+		} else {
+			turn();
+		}
+
+		if (totalBytes >= TUNING_BYTES) {
+			tuning = false;
+			trial = current.clone();
+			LOGGER.info("Target {}: auto-tuning settled on {}", target, formatSettings());
+			return;
+		}
+		moveNext();
+	}
+
+	private void turn() {
+		failedMoves++;
+		if (failedMoves % 2 == 1) {
+			direction = -direction;
+		} else {
+			dimension = dimension == WRITERS ? BUFFER : WRITERS;
+			direction = 1;
+		}
+	}
+
+	private void moveNext() {
+		// At most one attempt per dimension and direction
+		for (int attempt = 0; attempt < 4; attempt++) {
+			int[] candidate = current.clone();
+			candidate[dimension] += direction;
+			if (isValid(candidate)) {
+				trial = candidate;
+				return;
+			}
+			turn();
+		}
+		trial = current.clone();
+	}
+
+	private static boolean isValid(int[] settings) {
+		return settings[WRITERS] >= 1 && settings[WRITERS] <= MAX_WRITERS && settings[BUFFER] >= 0
+				&& settings[BUFFER] < BUFFER_SIZES.length;
+	}
+
+	/**
+	 * Gets the copy buffer size to use for the next file.
+	 *
+	 * @return The buffer size, in bytes.
+	 */
+	public synchronized int getBufferSize() {
+		return BUFFER_SIZES[trial[BUFFER]];
+	}
+
+	/**
+	 * Gets the number of files which may be written concurrently.
+	 *
+	 * @return The number of writers.
+	 */
+	synchronized int getWriters() {
+		return trial[WRITERS];
+	}
+
+	/**
+	 * Checks if the tuner is still measuring settings.
+	 *
+	 * @return <code>false</code> once the tuner settled.
+	 */
+	synchronized boolean isTuning() {
+		return tuning;
+	}
+
+	/**
+	 * Formats the best settings found so far.
+	 *
+	 * @return The formatted settings.
+	 */
+	public synchronized String formatSettings() {
+		String settings = current[WRITERS] + " writers with " + BUFFER_SIZES[current[BUFFER]] / 1024 + " KB buffers";
+		if (currentThroughput < 0) {
+			return settings + " (not enough data was written to tune them)";
+		}
+		return settings + String.format(" (%.1f MB/s)", currentThroughput / (1024 * 1024));
+	}
+}
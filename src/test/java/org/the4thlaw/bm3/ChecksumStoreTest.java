@@ -0,0 +1,83 @@
+package org.the4thlaw.bm3;
+
+import java.io.File;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.TreeSet;
+
+import org.apache.commons.io.FileUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link ChecksumStore}.
+ */
+public class ChecksumStoreTest extends TestCase {
+	private static final String FIRST = "A" + File.separator + "01.mp3";
+	private static final String SECOND = "B" + File.separator + "02.mp3";
+
+	private Path directory;
+
+	@Override
+	protected void setUp() throws Exception {
+		directory = Files.createTempDirectory("bm3-checksums").toRealPath();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(directory.toFile());
+	}
+
+	public void testRoundTrip() throws Exception {
+		ChecksumStore store = ChecksumStore.open(directory, false);
+		assertTrue(store.getPaths().isEmpty());
+		assertNull(store.get(FIRST));
+		store.record(FIRST, 1234, 0xFFFFFFFFL);
+		store.record(SECOND, 0, 0);
+		store.save();
+
+		ChecksumStore loaded = ChecksumStore.open(directory, false);
+		assertEquals(new TreeSet<>(Arrays.asList(FIRST, SECOND)), loaded.getPaths());
+		assertEquals(1234, loaded.get(FIRST).getSize());
+		assertEquals(0xFFFFFFFFL, loaded.get(FIRST).getCrc());
+		assertEquals(0, loaded.get(SECOND).getSize());
+		assertEquals(0, loaded.get(SECOND).getCrc());
+	}
+
+	public void testRemoveAndRetain() throws Exception {
+		ChecksumStore store = ChecksumStore.open(directory, false);
+		store.record(FIRST, 1, 1);
+		store.record(SECOND, 2, 2);
+		store.record("C" + File.separator + "03.mp3", 3, 3);
+		store.remove(FIRST);
+		store.retainAll(Collections.singletonList(SECOND));
+		store.save();
+
+		assertEquals(Collections.singleton(SECOND), ChecksumStore.open(directory, false).getPaths());
+	}
+
+	public void testDryRunDoesNotWrite() throws Exception {
+		ChecksumStore store = ChecksumStore.open(directory, true);
+		store.record(FIRST, 1, 1);
+		store.save();
+		assertFalse(Files.exists(directory.resolve(ChecksumStore.FILE_NAME)));
+
+		// A dry run still reads the recorded checksums
+		ChecksumStore recorded = ChecksumStore.open(directory, false);
+		recorded.record(FIRST, 1, 1);
+		recorded.save();
+		assertEquals(1, ChecksumStore.open(directory, true).get(FIRST).getSize());
+	}
+
+	public void testUnchangedStoreIsNotWritten() throws Exception {
+		ChecksumStore store = ChecksumStore.open(directory, false);
+		store.save();
+		assertFalse(Files.exists(directory.resolve(ChecksumStore.FILE_NAME)));
+		store.remove(FIRST);
+		store.retainAll(Collections.<String> emptyList());
+		store.save();
+		assertFalse(Files.exists(directory.resolve(ChecksumStore.FILE_NAME)));
+	}
+}
@@ -0,0 +1,175 @@
+package org.the4thlaw.bm3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link DuplicateFinder}.
+ */
+public class DuplicateFinderTest extends TestCase {
+	private static final int LARGE_SIZE = 3 * DuplicateFinder.PARTIAL_SIZE;
+
+	private Path directory;
+
+	@Override
+	protected void setUp() throws Exception {
+		directory = Files.createTempDirectory("bm3-dedup").toRealPath();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(directory.toFile());
+	}
+
+	private File createFile(String relativePath, byte[] content) throws IOException {
+		Path file = directory.resolve(relativePath);
+		Files.createDirectories(file.getParent());
+		Files.write(file, content);
+		return file.toFile();
+	}
+
+	private static byte[] content(int size, int seed) {
+		byte[] content = new byte[size];
+		for (int i = 0; i < size; i++) {
+			content[i] = (byte) (i * 7 + seed);
+		}
+		return content;
+	}
+
+	private static DuplicateFinder newFinder(LibraryCache cache, MetadataResolver resolver, Map<File, Cover> covers) {
+		return new DuplicateFinder(cache, resolver, IoThrottle.UNLIMITED, covers::get);
+	}
+
+	public void testGrouping() throws IOException {
+		byte[] large = content(LARGE_SIZE, 1);
+		byte[] sameStart = large.clone();
+		sameStart[LARGE_SIZE - 1]++;
+		File kept = createFile("A/01.mp3", large);
+		File duplicate = createFile("B/01.mp3", large);
+		// Identical, but gets another cover
+		File otherCover = createFile("C/01.mp3", large);
+		// Same size and partial hash, different content
+		File differentEnd = createFile("D/01.mp3", sameStart);
+		File differentSize = createFile("E/01.mp3", content(LARGE_SIZE + 1, 1));
+		File keptSmall = createFile("F/01.mp3", content(100, 2));
+		File duplicateSmall = createFile("G/01.mp3", content(100, 2));
+		File differentSmall = createFile("H/01.mp3", content(100, 3));
+		File empty = createFile("I/01.mp3", new byte[0]);
+		File otherEmpty = createFile("J/01.mp3", new byte[0]);
+		Map<File, Cover> covers = new HashMap<>();
+		covers.put(otherCover, Cover.forCoverFile(directory.resolve("C/cover.jpg")));
+		List<File> files = Arrays.asList(kept, duplicate, otherCover, differentEnd, differentSize, keptSmall,
+				duplicateSmall, differentSmall, empty, otherEmpty);
+
+		Map<File, File> expected = new HashMap<>();
+		expected.put(duplicate, kept);
+		expected.put(duplicateSmall, keptSmall);
+		assertEquals(expected, newFinder(null, MetadataResolver.inline(), covers).find(files));
+		try (MetadataResolver resolver = MetadataResolver.concurrent(4)) {
+			assertEquals(expected, newFinder(null, resolver, covers).find(files));
+		}
+
+		// The first file in order of preference is the one kept
+		List<File> reversed = new ArrayList<>(files);
+		Collections.reverse(reversed);
+		expected.clear();
+		expected.put(kept, duplicate);
+		expected.put(keptSmall, duplicateSmall);
+		assertEquals(expected, newFinder(null, MetadataResolver.inline(), covers).find(reversed));
+	}
+
+	public void testUnreadableFilesAreUnique() throws IOException {
+		File missing = directory.resolve("A/missing.mp3").toFile();
+		Path unreadable = Files.createDirectories(directory.resolve("B/01.mp3"));
+		File sameSize = createFile("C/01.mp3", content((int) Files.size(unreadable), 1));
+		File kept = createFile("D/01.mp3", content(100, 1));
+		File duplicate = createFile("E/01.mp3", content(100, 1));
+
+		Map<File, File> found = newFinder(null, MetadataResolver.inline(), Collections.emptyMap())
+				.find(Arrays.asList(missing, unreadable.toFile(), sameSize, kept, duplicate));
+		assertEquals(Collections.singletonMap(duplicate, kept), found);
+	}
+
+	public void testHashesAreIndexed() throws IOException {
+		File kept = createFile("A/01.mp3", content(LARGE_SIZE, 1));
+		File duplicate = createFile("B/01.mp3", content(LARGE_SIZE, 1));
+		File unique = createFile("C/01.mp3", content(LARGE_SIZE, 2));
+		List<File> files = Arrays.asList(kept, duplicate, unique);
+		Path indexFile = directory.resolve("index");
+		LibraryCache cache = LibraryCache.load(indexFile);
+		assertEquals(Collections.singletonMap(duplicate, kept),
+				newFinder(cache, MetadataResolver.inline(), Collections.emptyMap()).find(files));
+		cache.save(indexFile);
+
+		List<String> hashLines = new ArrayList<>();
+		for (String line : Files.readAllLines(indexFile)) {
+			if (line.startsWith("H\t")) {
+				hashLines.add(line);
+			}
+		}
+		assertEquals(3, hashLines.size());
+		for (String line : hashLines) {
+			String[] fields = line.split("\t", -1);
+			assertEquals(6, fields.length);
+			assertEquals(LARGE_SIZE, Long.parseLong(fields[2]));
+			assertEquals(new File(fields[1]).lastModified(), Long.parseLong(fields[3]));
+			assertEquals(64, fields[4].length());
+			// The unique file differs from its first bytes, so it is never fully hashed
+			assertEquals(fields[1].equals(unique.getPath()) ? 0 : 64, fields[5].length());
+		}
+
+		// The hashes of the index are trusted as long as the size and modification time of the file don't change
+		FileTime lastModified = Files.getLastModifiedTime(duplicate.toPath());
+		Files.write(duplicate.toPath(), content(LARGE_SIZE, 3));
+		Files.setLastModifiedTime(duplicate.toPath(), lastModified);
+		LibraryCache loaded = LibraryCache.load(indexFile);
+		assertEquals(Collections.singletonMap(duplicate, kept),
+				newFinder(loaded, MetadataResolver.inline(), Collections.emptyMap()).find(files));
+		Files.setLastModifiedTime(duplicate.toPath(), FileTime.fromMillis(lastModified.toMillis() + 2000));
+		assertEquals(Collections.emptyMap(),
+				newFinder(loaded, MetadataResolver.inline(), Collections.emptyMap()).find(files));
+
+		// The hashes of deleted files are pruned
+		Files.delete(unique.toPath());
+		loaded.pruneHashes();
+		loaded.save(indexFile);
+		for (String line : Files.readAllLines(indexFile)) {
+			assertFalse(line.startsWith("H\t" + unique.getPath() + "\t"));
+		}
+	}
+
+	public void testPlaylistsReferToKeptFile() throws IOException {
+		Path library = directory.resolve("library");
+		byte[] content = content(LARGE_SIZE, 1);
+		createFile("library/Album/01.mp3", content);
+		createFile("library/Compilation/07.mp3", content);
+		createFile("library/Compilation/08.mp3", content(LARGE_SIZE, 2));
+		Files.write(library.resolve("Album.m3u"), Arrays.asList("Album/01.mp3"));
+		Files.write(library.resolve("Best of.m3u"), Arrays.asList("Compilation/07.mp3", "Compilation/08.mp3"));
+		Path target = directory.resolve("target");
+		FileProcessor processor = new FileProcessor(library, target, false);
+		processor.setDeduplicate(true);
+		processor.process(new ProgressModel());
+
+		assertTrue(Files.isRegularFile(target.resolve("Album/01.mp3")));
+		assertFalse(Files.exists(target.resolve("Compilation/07.mp3")));
+		assertTrue(Files.isRegularFile(target.resolve("Compilation/08.mp3")));
+		assertEquals(Arrays.asList("#EXTM3U", "#EXTENC:UTF-8", "../Album/01.mp3", "../Compilation/08.mp3"),
+				Files.readAllLines(target.resolve("BM3_Playlists/Best of.m3u")));
+		assertEquals(Arrays.asList("#EXTM3U", "#EXTENC:UTF-8", "../Album/01.mp3"),
+				Files.readAllLines(target.resolve("BM3_Playlists/Album.m3u")));
+	}
+}
@@ -0,0 +1,82 @@
+package org.the4thlaw.bm3;
+
+import java.io.File;
+import java.io.IOException;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link ExclusionRules}.
+ */
+public class ExclusionRulesTest extends TestCase {
+	private final File library = new File(System.getProperty("java.io.tmpdir"), "bm3-library").getAbsoluteFile();
+
+	private File file(String relativePath) {
+		return new File(library, relativePath.replace('/', File.separatorChar));
+	}
+
+	public void testEmpty() {
+		ExclusionRules rules = new ExclusionRules();
+		assertTrue(rules.isEmpty());
+		assertFalse(rules.isExcluded(file("Artist/Album/01.mp3")));
+	}
+
+	public void testFile() {
+		ExclusionRules rules = new ExclusionRules();
+		rules.addFile(file("Artist/Album/01.mp3"));
+		assertTrue(rules.isExcluded(file("Artist/Album/01.mp3")));
+		assertFalse(rules.isExcluded(file("Artist/Album/02.mp3")));
+		assertFalse(rules.isExcluded(file("Artist/Album")));
+		assertFalse(rules.isExcluded(file("Artist/Album/01.mp3/nested.mp3")));
+	}
+
+	public void testDirectory() {
+		ExclusionRules rules = new ExclusionRules();
+		rules.addDirectory(file("Audiobooks"));
+		assertTrue(rules.isExcluded(file("Audiobooks/Author/Book/01.mp3")));
+		assertTrue(rules.isExcluded(file("Audiobooks/01.mp3")));
+		assertFalse(rules.isExcluded(file("Audiobooks2/01.mp3")));
+		assertFalse(rules.isExcluded(file("Artist/Audiobooks/01.mp3")));
+	}
+
+	public void testGlob() {
+		ExclusionRules rules = new ExclusionRules();
+		rules.addGlob(library, "Podcasts/*/*.ogg");
+		assertTrue(rules.isExcluded(file("Podcasts/Show/Episode.ogg")));
+		assertFalse(rules.isExcluded(file("Podcasts/Show/Episode.mp3")));
+		assertFalse(rules.isExcluded(file("Podcasts/Episode.ogg")));
+		assertFalse(rules.isExcluded(file("Music/Show/Episode.ogg")));
+	}
+
+	public void testGlobMatchingDirectory() {
+		ExclusionRules rules = new ExclusionRules();
+		rules.addGlob(library, "**/Live *");
+		assertTrue(rules.isExcluded(file("Artist/Live at Home/01.mp3")));
+		assertTrue(rules.isExcluded(file("Artist/Album/Live take.mp3")));
+		assertFalse(rules.isExcluded(file("Artist/Album/01.mp3")));
+	}
+
+	public void testRawGlob() throws IOException {
+		File rawEntry = new File(library, "Artist" + File.separator + "*" + File.separator + "bonus?.mp3");
+		assertTrue(ExclusionRules.isGlob(rawEntry));
+		assertFalse(ExclusionRules.isGlob(file("Artist/Album [Live]/01.mp3")));
+
+		ExclusionRules rules = new ExclusionRules();
+		rules.addGlob(rawEntry);
+		File canonicalLibrary = library.getCanonicalFile();
+		assertTrue(rules.isExcluded(new File(canonicalLibrary, "Artist/Album/bonus1.mp3")));
+		assertFalse(rules.isExcluded(new File(canonicalLibrary, "Artist/Album/bonus10.mp3")));
+	}
+
+	public void testMixed() {
+		ExclusionRules rules = new ExclusionRules();
+		rules.addFile(file("Artist/Album/01.mp3"));
+		rules.addDirectory(file("Artist/Demos"));
+		rules.addGlob(file("Artist"), "*/*.wav");
+		assertTrue(rules.isExcluded(file("Artist/Album/01.mp3")));
+		assertTrue(rules.isExcluded(file("Artist/Demos/01.mp3")));
+		assertTrue(rules.isExcluded(file("Artist/Album/02.wav")));
+		assertFalse(rules.isExcluded(file("Artist/Album/02.mp3")));
+		assertEquals("1 files, 1 directories and 1 globs", rules.toString());
+	}
+}
@@ -0,0 +1,161 @@
+package org.the4thlaw.bm3;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link FileEventBatcher}.
+ */
+public class FileEventBatcherTest extends TestCase {
+	private static final int MAX_BATCH_SIZE = 512;
+
+	/**
+	 * Records the batches it receives, and the threads which delivered them.
+	 */
+	private static final class RecordingListener implements FileEventListener {
+		private final List<List<FileEvent>> batches = Collections.synchronizedList(new ArrayList<>());
+		private final List<Thread> threads = Collections.synchronizedList(new ArrayList<>());
+		private final CountDownLatch delivered = new CountDownLatch(1);
+
+		@Override
+		public void onEvents(List<FileEvent> events) {
+			batches.add(new ArrayList<>(events));
+			threads.add(Thread.currentThread());
+			delivered.countDown();
+		}
+
+		private List<FileEvent> getEvents() {
+			List<FileEvent> events = new ArrayList<>();
+			synchronized (batches) {
+				for (List<FileEvent> batch : batches) {
+					events.addAll(batch);
+				}
+			}
+			return events;
+		}
+	}
+
+	private static List<FileEvent> fire(FileEventBatcher batcher, String prefix, int count) {
+		List<FileEvent> fired = new ArrayList<>();
+		for (int i = 0; i < count; i++) {
+			FileEvent event = FileEvent.discovered(new File(prefix + i + ".mp3"));
+			fired.add(event);
+			batcher.fire(event);
+		}
+		return fired;
+	}
+
+	public void testNullListenerDropsEvents() {
+		try (FileEventBatcher batcher = new FileEventBatcher(null)) {
+			fire(batcher, "", MAX_BATCH_SIZE * 2);
+			batcher.flush();
+		}
+	}
+
+	public void testFullBatchIsDeliveredByTheFiringThread() {
+		RecordingListener listener = new RecordingListener();
+		List<FileEvent> fired;
+		try (FileEventBatcher batcher = new FileEventBatcher(listener)) {
+			fired = fire(batcher, "", MAX_BATCH_SIZE);
+			assertEquals(1, listener.batches.size());
+			assertEquals(fired, listener.batches.get(0));
+			assertSame(Thread.currentThread(), listener.threads.get(0));
+
+			// The next events wait for the batch to fill up, or for the timer
+			fired.addAll(fire(batcher, "next", 10));
+			assertEquals(1, listener.batches.size());
+		}
+		// Closing delivers the pending events
+		assertEquals(2, listener.batches.size());
+		assertEquals(fired, listener.getEvents());
+	}
+
+	public void testTimerDeliversPendingEvents() throws InterruptedException {
+		RecordingListener listener = new RecordingListener();
+		long start = System.nanoTime();
+		try (FileEventBatcher batcher = new FileEventBatcher(listener)) {
+			List<FileEvent> fired = fire(batcher, "", 3);
+			assertTrue(listener.delivered.await(10, TimeUnit.SECONDS));
+			assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS.toNanos(90));
+			assertEquals(Collections.singletonList(fired), listener.batches);
+			assertNotSame(Thread.currentThread(), listener.threads.get(0));
+		}
+		assertEquals(1, listener.batches.size());
+	}
+
+	public void testFailingListenerLosesOnlyItsBatch() {
+		AtomicInteger calls = new AtomicInteger();
+		RecordingListener recorder = new RecordingListener();
+		FileEventListener listener = events -> {
+			if (calls.incrementAndGet() == 1) {
+				throw new IllegalStateException("Expected failure");
+			}
+			recorder.onEvents(events);
+		};
+		try (FileEventBatcher batcher = new FileEventBatcher(listener)) {
+			fire(batcher, "lost", MAX_BATCH_SIZE);
+			List<FileEvent> fired = fire(batcher, "", 5);
+			batcher.flush();
+			assertEquals(fired, recorder.getEvents());
+		}
+		assertEquals(2, calls.get());
+	}
+
+	public void testConcurrentFiring() throws InterruptedException {
+		int threads = 8;
+		int eventsPerThread = 5000;
+		AtomicInteger delivering = new AtomicInteger();
+		AtomicInteger overlaps = new AtomicInteger();
+		RecordingListener recorder = new RecordingListener();
+		FileEventListener listener = events -> {
+			if (delivering.incrementAndGet() > 1) {
+				overlaps.incrementAndGet();
+			}
+			recorder.onEvents(events);
+			try {
+				// A slow listener, so that events pile up while it is called
+				Thread.sleep(1);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+			delivering.decrementAndGet();
+		};
+
+		List<List<FileEvent>> fired = Collections.synchronizedList(new ArrayList<>());
+		try (FileEventBatcher batcher = new FileEventBatcher(listener)) {
+			List<Thread> firers = new ArrayList<>();
+			for (int i = 0; i < threads; i++) {
+				String prefix = i + "/";
+				Thread firer = new Thread(() -> fired.add(fire(batcher, prefix, eventsPerThread)));
+				firers.add(firer);
+				firer.start();
+			}
+			for (Thread firer : firers) {
+				firer.join();
+			}
+		}
+
+		assertEquals(0, overlaps.get());
+		List<FileEvent> delivered = recorder.getEvents();
+		assertEquals(threads * eventsPerThread, delivered.size());
+		// Each thread's events are delivered in the order in which it fired them
+		for (List<FileEvent> firedByThread : fired) {
+			List<FileEvent> deliveredFromThread = new ArrayList<>(delivered);
+			deliveredFromThread.retainAll(new HashSet<>(firedByThread));
+			assertEquals(firedByThread, deliveredFromThread);
+		}
+		synchronized (recorder.batches) {
+			for (List<FileEvent> batch : recorder.batches) {
+				assertFalse(batch.isEmpty());
+			}
+		}
+	}
+}
@@ -0,0 +1,167 @@
+package org.the4thlaw.bm3;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.channels.WritableByteChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.concurrent.TimeUnit;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.FileUtils;
+import org.apache.commons.io.IOUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link IoThrottle}.
+ */
+public class IoThrottleTest extends TestCase {
+	private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private Path directory;
+
+	@Override
+	protected void setUp() throws Exception {
+		directory = Files.createTempDirectory("bm3-throttle").toRealPath();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(directory.toFile());
+	}
+
+	private static byte[] content(int size) {
+		byte[] content = new byte[size];
+		for (int i = 0; i < size; i++) {
+			content[i] = (byte) (i * 17);
+		}
+		return content;
+	}
+
+	private Path createFile(byte[] content) throws IOException {
+		Path file = directory.resolve("source");
+		Files.write(file, content);
+		return file;
+	}
+
+	public void testUnlimited() throws IOException {
+		assertFalse(IoThrottle.UNLIMITED.isLimited());
+		assertTrue(new IoThrottle(0, 0, 0, true).isLimited());
+		assertTrue(new IoThrottle(0, 0, 1, false).isLimited());
+		InputStream in = new ByteArrayInputStream(new byte[1]);
+		assertSame(in, IoThrottle.UNLIMITED.wrap(in));
+
+		byte[] content = content(300 * 1024);
+		Path target = directory.resolve("target");
+		IoThrottle.UNLIMITED.copy(createFile(content), target, 0, null);
+		assertTrue(Arrays.equals(content, Files.readAllBytes(target)));
+	}
+
+	public void testTransferToSeveralTargets() throws IOException {
+		byte[] content = content(1024 * 1024);
+		Path source = createFile(content);
+		IoThrottle throttle = new IoThrottle(1L << 40, 1L << 40, 1 << 30, false);
+		for (int bufferSize : new int[] { 0, 100 * 1000 }) {
+			ByteArrayOutputStream first = new ByteArrayOutputStream();
+			ByteArrayOutputStream second = new ByteArrayOutputStream();
+			CRC32 checksum = new CRC32();
+			try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+				throttle.transfer(channel, 1000, 500 * 1000, Arrays.asList(Channels.newChannel(first),
+						Channels.newChannel(second)), bufferSize, checksum);
+			}
+			byte[] expected = Arrays.copyOfRange(content, 1000, 501 * 1000);
+			assertTrue(Arrays.equals(expected, first.toByteArray()));
+			assertTrue(Arrays.equals(expected, second.toByteArray()));
+			CRC32 expectedChecksum = new CRC32();
+			expectedChecksum.update(expected);
+			assertEquals(expectedChecksum.getValue(), checksum.getValue());
+		}
+	}
+
+	public void testTruncatedSource() throws IOException {
+		Path source = createFile(content(1000));
+		for (IoThrottle throttle : new IoThrottle[] { IoThrottle.UNLIMITED, new IoThrottle(0, 0, 0, true) }) {
+			try (FileChannel channel = FileChannel.open(source, StandardOpenOption.READ)) {
+				WritableByteChannel target = Channels.newChannel(new ByteArrayOutputStream());
+				throttle.transfer(channel, 0, 2000, Collections.singletonList(target), 0, null);
+				fail("Copying beyond the end of the source should fail");
+			} catch (IOException e) {
+				// Expected
+			}
+		}
+	}
+
+	public void testWritesCountOncePerTarget() throws IOException {
+		Path source = createFile(content(64 * 1024));
+		IoThrottle throttle = new IoThrottle(0, 64 * 1024, 0, false);
+		// A second worth of writes is available at once
+		long start = System.nanoTime();
+		throttle.copy(source, Collections.singletonList(Channels.newChannel(new ByteArrayOutputStream())), 16 * 1024,
+				null);
+		assertTrue(System.nanoTime() - start < 500 * MILLIS);
+
+		// The bucket is empty: two targets need two more seconds worth of writes, less the chunk read in the meantime
+		start = System.nanoTime();
+		throttle.copy(source, Arrays.asList(Channels.newChannel(new ByteArrayOutputStream()),
+				Channels.newChannel(new ByteArrayOutputStream())), 16 * 1024, null);
+		assertTrue(System.nanoTime() - start >= 1500 * MILLIS);
+	}
+
+	public void testWrappedReadsAreThrottled() throws IOException {
+		byte[] content = content(100);
+		IoThrottle throttle = new IoThrottle(0, 0, 20, false);
+		long start = System.nanoTime();
+		InputStream in = throttle.wrap(new ByteArrayInputStream(content));
+		byte[] read = new byte[content.length];
+		for (int i = 0; i < 30; i++) {
+			assertEquals(content[i] & 0xFF, in.read());
+		}
+		// 20 operations are available at once, the next 10 at 20 per second
+		assertTrue(System.nanoTime() - start >= 450 * MILLIS);
+		assertEquals(70, IOUtils.read(in, read, 30, 70));
+		assertTrue(Arrays.equals(Arrays.copyOfRange(content, 30, 100), Arrays.copyOfRange(read, 30, 100)));
+	}
+
+	public void testAdaptiveBackOff() {
+		IoThrottle throttle = new IoThrottle(0, 0, 0, true);
+		// The baseline is only trusted after a few reads
+		assertEquals(0.0, throttle.recordRead(MILLIS));
+		for (int i = 0; i < 6; i++) {
+			throttle.recordRead(50 * MILLIS);
+		}
+		assertEquals(1.0, throttle.getDutyCycle());
+		for (int i = 0; i < 50; i++) {
+			throttle.recordRead(MILLIS);
+		}
+		assertEquals(1.0, throttle.getDutyCycle());
+		assertEquals(0.0, throttle.recordRead(MILLIS));
+
+		// Slow reads halve the duty cycle, down to the minimum, and each one is followed by a pause
+		assertEquals(10.0 * MILLIS, throttle.recordRead(10 * MILLIS));
+		assertEquals(0.5, throttle.getDutyCycle());
+		for (int i = 0; i < 20; i++) {
+			throttle.recordRead(10 * MILLIS);
+		}
+		assertEquals(1.0 / 16, throttle.getDutyCycle());
+		assertEquals(150.0 * MILLIS, throttle.recordRead(10 * MILLIS));
+
+		// Fast reads speed up again, step by step
+		int steps = 0;
+		while (throttle.getDutyCycle() < 1) {
+			double before = throttle.getDutyCycle();
+			throttle.recordRead(MILLIS);
+			assertTrue(throttle.getDutyCycle() - before <= 1.0 / 16 + 1e-9);
+			steps++;
+			assertTrue(steps < 100);
+		}
+		assertTrue(steps >= 15);
+	}
+}
@@ -0,0 +1,203 @@
+package org.the4thlaw.bm3;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.Socket;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+
+import org.apache.commons.io.FileUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link JobServer}.
+ */
+public class JobServerTest extends TestCase {
+	private Path directory;
+	private JobServer server;
+
+	@Override
+	protected void setUp() throws Exception {
+		directory = Files.createTempDirectory("bm3-server").toRealPath();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		if (server != null) {
+			server.stop();
+		}
+		FileUtils.deleteDirectory(directory.toFile());
+	}
+
+	private static Map<String, String> map(String... keysAndValues) {
+		Map<String, String> map = new HashMap<>();
+		for (int i = 0; i < keysAndValues.length; i += 2) {
+			map.put(keysAndValues[i], keysAndValues[i + 1]);
+		}
+		return map;
+	}
+
+	private static void assertInvalid(String json) {
+		try {
+			JobServer.parseJsonObject(json);
+			fail("Should be rejected: " + json);
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	public void testParseJsonObject() {
+		assertEquals(map(), JobServer.parseJsonObject(" { } "));
+		assertEquals(map("source", "/music", "sync", "true", "dryRun", "false", "n", "-1.5e3", "none", null),
+				JobServer.parseJsonObject("{\"source\": \"/music\", \"sync\": true, \"dryRun\":false,"
+						+ " \"n\": -1.5e3, \"none\": null}"));
+	}
+
+	public void testParseJsonEscapes() {
+		assertEquals(map("a", "\"\\/\b\f\n\r\t\u00e9\u20ac"),
+				JobServer.parseJsonObject("{\"a\": \"\\\"\\\\\\/\\b\\f\\n\\r\\t\\u00e9\\u20AC\"}"));
+		assertInvalid("{\"a\": \"\\x\"}");
+		assertInvalid("{\"a\": \"\\u12\"}");
+		assertInvalid("{\"a\": \"\\u+123\"}");
+		assertInvalid("{\"a\": \"\\u12g4\"}");
+		assertInvalid("{\"a\": \"\\");
+	}
+
+	public void testRejectNestedOrMalformedJson() {
+		assertInvalid("{\"a\": {\"b\": 1}}");
+		assertInvalid("{\"a\": [1]}");
+		assertInvalid("[]");
+		assertInvalid("");
+		assertInvalid("{");
+		assertInvalid("{\"a\"}");
+		assertInvalid("{\"a\": 1,}");
+		assertInvalid("{\"a\": 1} x");
+		assertInvalid("{\"a\": \"unterminated}");
+		assertInvalid("{\"a\": yes}");
+		assertInvalid("{a: 1}");
+	}
+
+	public void testQuote() {
+		assertEquals("null", JobServer.quote(null));
+		assertEquals("\"a\\\"b\\\\c\\nd\\re\\tf\\u0001\u00e9\"", JobServer.quote("a\"b\\c\nd\re\tf\u0001\u00e9"));
+		String value = "x\"\\\n\r\t\u0001\u00e9\u20ac";
+		assertEquals(map("v", value), JobServer.parseJsonObject("{\"v\":" + JobServer.quote(value) + "}"));
+	}
+
+	/**
+	 * A raw HTTP response.
+	 */
+	private static final class Response {
+		private final int status;
+		private final String body;
+
+		private Response(int status, String body) {
+			this.status = status;
+			this.body = body;
+		}
+	}
+
+	/**
+	 * Sends a request through a socket, which unlike {@link java.net.HttpURLConnection} allows setting any Host header.
+	 */
+	private Response request(String method, String path, String host, String token, String origin, String body)
+			throws IOException {
+		StringBuilder request = new StringBuilder(method).append(' ').append(path).append(" HTTP/1.1\r\n");
+		request.append("Host: ").append(host).append("\r\nConnection: close\r\n");
+		if (token != null) {
+			request.append(JobServer.TOKEN_HEADER).append(": ").append(token).append("\r\n");
+		}
+		if (origin != null) {
+			request.append("Origin: ").append(origin).append("\r\n");
+		}
+		byte[] bodyBytes = body == null ? new byte[0] : body.getBytes(StandardCharsets.UTF_8);
+		if (body != null) {
+			request.append("Content-Type: application/json\r\n");
+		}
+		request.append("Content-Length: ").append(bodyBytes.length).append("\r\n\r\n");
+
+		try (Socket socket = new Socket(InetAddress.getLoopbackAddress(), server.getPort())) {
+			socket.setSoTimeout(10000);
+			OutputStream out = socket.getOutputStream();
+			out.write(request.toString().getBytes(StandardCharsets.UTF_8));
+			out.write(bodyBytes);
+			out.flush();
+			ByteArrayOutputStream response = new ByteArrayOutputStream();
+			InputStream in = socket.getInputStream();
+			byte[] buffer = new byte[4096];
+			int n;
+			while ((n = in.read(buffer)) > 0) {
+				response.write(buffer, 0, n);
+			}
+			String text = new String(response.toByteArray(), StandardCharsets.UTF_8);
+			int status = Integer.parseInt(text.substring(9, 12));
+			return new Response(status, text.substring(text.indexOf("\r\n\r\n") + 4));
+		}
+	}
+
+	private Response request(String method, String path, String body) throws IOException {
+		return request(method, path, "localhost:" + server.getPort(), server.getToken(), null, body);
+	}
+
+	private void startServer() throws IOException {
+		server = new JobServer(0, 1, IoThrottle.UNLIMITED);
+		server.start();
+	}
+
+	public void testRejectedRequests() throws IOException {
+		startServer();
+		String host = "localhost:" + server.getPort();
+		String token = server.getToken();
+		assertEquals(200, request("GET", "/jobs", host, token, null, null).status);
+		assertEquals(200, request("GET", "/jobs", "127.0.0.1:" + server.getPort(), token, null, null).status);
+
+		assertEquals(401, request("GET", "/jobs", host, null, null, null).status);
+		assertEquals(401, request("GET", "/jobs", host, token.substring(1), null, null).status);
+		assertEquals(401, request("GET", "/jobs", host, token + "0", null, null).status);
+		assertEquals(403, request("GET", "/jobs", host, token, "http://localhost", null).status);
+		assertEquals(403, request("GET", "/jobs", "attacker.example:" + server.getPort(), token, null, null).status);
+		assertEquals(403, request("GET", "/jobs", "localhost:1", token, null, null).status);
+	}
+
+	public void testPaths() throws IOException {
+		startServer();
+		assertEquals("[]", request("GET", "/jobs", null).body);
+		assertEquals("[]", request("GET", "/jobs/", null).body);
+		assertEquals(404, request("GET", "/jobsx", null).status);
+		assertEquals(404, request("GET", "/jobsx/1", null).status);
+		assertEquals(404, request("POST", "/jobs-other", "{}").status);
+		assertEquals(404, request("GET", "/jobs/1", null).status);
+		assertEquals(404, request("GET", "/jobs/abc", null).status);
+		assertEquals(405, request("DELETE", "/jobs", null).status);
+	}
+
+	public void testSubmit() throws Exception {
+		startServer();
+		Path library = Files.createDirectories(directory.resolve("library"));
+		Path target = directory.resolve("target");
+		assertEquals(400, request("POST", "/jobs", "{\"source\": {}}").status);
+		assertEquals(400, request("POST", "/jobs", "{\"source\": \"" + library + "\"}").status);
+		assertEquals(400,
+				request("POST", "/jobs", "{\"source\": \"" + directory.resolve("none") + "\", \"target\": \"t\"}")
+						.status);
+		assertEquals(415, request("POST", "/jobs", "localhost:" + server.getPort(), server.getToken(), null, null)
+				.status);
+
+		Response submitted = request("POST", "/jobs", "{\"source\": " + JobServer.quote(library.toString())
+				+ ", \"target\": " + JobServer.quote(target.toString()) + ", \"dryRun\": true}");
+		assertEquals(202, submitted.status);
+		assertTrue(submitted.body, submitted.body.startsWith("{\"id\":1,"));
+		assertTrue(submitted.body, submitted.body.contains("\"dryRun\":true"));
+		Response job = request("GET", "/jobs/1", null);
+		assertEquals(200, job.status);
+		assertTrue(job.body, job.body.startsWith("{\"id\":1,"));
+		assertTrue(request("GET", "/jobs", null).body.startsWith("[{\"id\":1,"));
+	}
+}
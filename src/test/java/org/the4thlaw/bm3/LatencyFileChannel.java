@@ -0,0 +1,169 @@
+package org.the4thlaw.bm3;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.ReadableByteChannel;
+import java.nio.channels.WritableByteChannel;
+
+/**
+ * A channel to a file of a slow device, whose reads and writes are capped to the throughput of the device.
+ * <p>
+ * Transfers between channels are done through a buffer rather than by the operating system, so that both ends are
+ * throttled.
+ */
+class LatencyFileChannel extends FileChannel {
+	private static final int TRANSFER_BUFFER_SIZE = 64 * 1024;
+
+	private final LatencyFileSystemProvider device;
+	private final FileChannel delegate;
+
+	LatencyFileChannel(LatencyFileSystemProvider device, FileChannel delegate) {
+		this.device = device;
+		this.delegate = delegate;
+	}
+
+	private int read(int bytes) throws IOException {
+		if (bytes > 0) {
+			device.read(bytes);
+		}
+		return bytes;
+	}
+
+	private long read(long bytes) throws IOException {
+		if (bytes > 0) {
+			device.read(bytes);
+		}
+		return bytes;
+	}
+
+	@Override
+	public int read(ByteBuffer dst) throws IOException {
+		return read(delegate.read(dst));
+	}
+
+	@Override
+	public long read(ByteBuffer[] dsts, int offset, int length) throws IOException {
+		return read(delegate.read(dsts, offset, length));
+	}
+
+	@Override
+	public int read(ByteBuffer dst, long position) throws IOException {
+		return read(delegate.read(dst, position));
+	}
+
+	@Override
+	public int write(ByteBuffer src) throws IOException {
+		device.write(src.remaining());
+		return delegate.write(src);
+	}
+
+	@Override
+	public long write(ByteBuffer[] srcs, int offset, int length) throws IOException {
+		long bytes = 0;
+		for (int i = offset; i < offset + length; i++) {
+			bytes += srcs[i].remaining();
+		}
+		device.write(bytes);
+		return delegate.write(srcs, offset, length);
+	}
+
+	@Override
+	public int write(ByteBuffer src, long position) throws IOException {
+		device.write(src.remaining());
+		return delegate.write(src, position);
+	}
+
+	@Override
+	public long position() throws IOException {
+		return delegate.position();
+	}
+
+	@Override
+	public FileChannel position(long newPosition) throws IOException {
+		delegate.position(newPosition);
+		return this;
+	}
+
+	@Override
+	public long size() throws IOException {
+		return delegate.size();
+	}
+
+	@Override
+	public FileChannel truncate(long size) throws IOException {
+		delegate.truncate(size);
+		return this;
+	}
+
+	@Override
+	public void force(boolean metaData) throws IOException {
+		delegate.force(metaData);
+	}
+
+	@Override
+	public long transferTo(long position, long count, WritableByteChannel target) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(TRANSFER_BUFFER_SIZE, Math.max(count, 1)));
+		long transferred = 0;
+		while (transferred < count) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), count - transferred));
+			int n = read(buffer, position + transferred);
+			if (n <= 0) {
+				break;
+			}
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				target.write(buffer);
+			}
+			transferred += n;
+		}
+		return transferred;
+	}
+
+	@Override
+	public long transferFrom(ReadableByteChannel src, long position, long count) throws IOException {
+		ByteBuffer buffer = ByteBuffer.allocate((int) Math.min(TRANSFER_BUFFER_SIZE, Math.max(count, 1)));
+		long transferred = 0;
+		while (transferred < count) {
+			buffer.clear();
+			buffer.limit((int) Math.min(buffer.capacity(), count - transferred));
+			int n = src.read(buffer);
+			if (n <= 0) {
+				break;
+			}
+			buffer.flip();
+			while (buffer.hasRemaining()) {
+				transferred += write(buffer, position + transferred);
+			}
+		}
+		return transferred;
+	}
+
+	/**
+	 * Maps the file. The whole region is accounted for as read up front, since accesses to the mapping can't be
+	 * intercepted.
+	 */
+	@Override
+	public MappedByteBuffer map(MapMode mode, long position, long size) throws IOException {
+		read(size);
+		return delegate.map(mode, position, size);
+	}
+
+	@Override
+	public FileLock lock(long position, long size, boolean shared) throws IOException {
+		return delegate.lock(position, size, shared);
+	}
+
+	@Override
+	public FileLock tryLock(long position, long size, boolean shared) throws IOException {
+		return delegate.tryLock(position, size, shared);
+	}
+
+	@Override
+	protected void implCloseChannel() throws IOException {
+		delegate.close();
+	}
+}
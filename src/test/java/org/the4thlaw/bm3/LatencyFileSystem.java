@@ -0,0 +1,100 @@
+package org.the4thlaw.bm3;
+
+import java.io.IOException;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.Path;
+import java.nio.file.PathMatcher;
+import java.nio.file.WatchService;
+import java.nio.file.attribute.UserPrincipalLookupService;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Set;
+
+/**
+ * The file system of a {@link LatencyFileSystemProvider}, which wraps the file system of the slowed down provider.
+ */
+class LatencyFileSystem extends FileSystem {
+	private final LatencyFileSystemProvider provider;
+	private final FileSystem delegate;
+
+	LatencyFileSystem(LatencyFileSystemProvider provider, FileSystem delegate) {
+		this.provider = provider;
+		this.delegate = delegate;
+	}
+
+	/**
+	 * Gets the path of this file system for a path of the wrapped one.
+	 *
+	 * @param path The path of the wrapped file system, may be <code>null</code>.
+	 * @return The path, <code>null</code> if the path was <code>null</code>.
+	 */
+	Path wrap(Path path) {
+		return path == null ? null : new LatencyPath(this, path);
+	}
+
+	@Override
+	public LatencyFileSystemProvider provider() {
+		return provider;
+	}
+
+	@Override
+	public void close() throws IOException {
+		delegate.close();
+	}
+
+	@Override
+	public boolean isOpen() {
+		return delegate.isOpen();
+	}
+
+	@Override
+	public boolean isReadOnly() {
+		return delegate.isReadOnly();
+	}
+
+	@Override
+	public String getSeparator() {
+		return delegate.getSeparator();
+	}
+
+	@Override
+	public Iterable<Path> getRootDirectories() {
+		List<Path> roots = new ArrayList<>();
+		for (Path root : delegate.getRootDirectories()) {
+			roots.add(wrap(root));
+		}
+		return roots;
+	}
+
+	@Override
+	public Iterable<FileStore> getFileStores() {
+		return delegate.getFileStores();
+	}
+
+	@Override
+	public Set<String> supportedFileAttributeViews() {
+		return delegate.supportedFileAttributeViews();
+	}
+
+	@Override
+	public Path getPath(String first, String... more) {
+		return wrap(delegate.getPath(first, more));
+	}
+
+	@Override
+	public PathMatcher getPathMatcher(String syntaxAndPattern) {
+		PathMatcher matcher = delegate.getPathMatcher(syntaxAndPattern);
+		return path -> path instanceof LatencyPath && matcher.matches(((LatencyPath) path).getDelegate());
+	}
+
+	@Override
+	public UserPrincipalLookupService getUserPrincipalLookupService() {
+		return delegate.getUserPrincipalLookupService();
+	}
+
+	@Override
+	public WatchService newWatchService() throws IOException {
+		return delegate.newWatchService();
+	}
+}
@@ -0,0 +1,510 @@
+package org.the4thlaw.bm3;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.net.URI;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SeekableByteChannel;
+import java.nio.file.AccessMode;
+import java.nio.file.CopyOption;
+import java.nio.file.DirectoryStream;
+import java.nio.file.FileStore;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
+import java.nio.file.Files;
+import java.nio.file.LinkOption;
+import java.nio.file.OpenOption;
+import java.nio.file.Path;
+import java.nio.file.ProviderMismatchException;
+import java.nio.file.attribute.BasicFileAttributes;
+import java.nio.file.attribute.FileAttribute;
+import java.nio.file.attribute.FileAttributeView;
+import java.nio.file.spi.FileSystemProvider;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * A file system provider which wraps another one and makes part of it as slow as a given device, such as a FAT stick on
+ * USB 2 or an SMB share, so that the copy strategies can be benchmarked on any machine.
+ * <p>
+ * Each metadata operation (attribute read, directory listing, opening a file, rename...) costs a fixed latency, and
+ * reads and writes are capped to the throughput of the device. The device serves one request at a time, so concurrent
+ * requests queue like they would on the real device. The time the device spent is accounted for separately from the
+ * wall clock: without sleeping, it is a deterministic measure of the I/O of a run, which doesn't depend on the load of
+ * the machine.
+ * <p>
+ * The provider can be used in two ways:
+ * <ul>
+ * <li>directly, by getting paths from {@link #wrap(Path)}: only code which works on {@link Path} goes through it;</li>
+ * <li>as the default provider, with
+ * <code>-Djava.nio.file.spi.DefaultFileSystemProvider=org.the4thlaw.bm3.LatencyFileSystemProvider</code>: all the I/O
+ * which goes through {@link Files}, including on paths of {@link java.io.File#toPath()}, is then slowed down. The
+ * profile, the slow directory and whether to wait for the device are read from the {@value #PROFILE_PROPERTY},
+ * {@value #ROOT_PROPERTY} and {@value #SLEEP_PROPERTY} system properties, and the statistics are printed when the JVM
+ * exits. The test classes must come before any jar on the class path, since opening a jar needs the default
+ * provider.</li>
+ * </ul>
+ * Thread-safe.
+ */
+public class LatencyFileSystemProvider extends FileSystemProvider {
+	/** The system property holding the name of the profile, when installed as the default provider. */
+	public static final String PROFILE_PROPERTY = "bm3.latency.profile";
+	/** The system property holding the slow directory, when installed as the default provider. */
+	public static final String ROOT_PROPERTY = "bm3.latency.root";
+	/** The system property telling whether to wait for the device, when installed as the default provider. */
+	public static final String SLEEP_PROPERTY = "bm3.latency.sleep";
+
+	/**
+	 * The performance of a device.
+	 */
+	public static final class Profile {
+		/** A FAT32 stick on a USB 2 port, as found in many cars. */
+		public static final Profile FAT_USB2 = new Profile("FAT_USB2", 1000, 30_000_000, 8_000_000);
+		/** An SMB share on a gigabit network. */
+		public static final Profile SMB = new Profile("SMB", 500, 110_000_000, 90_000_000);
+
+		private final String name;
+		private final long operationNanos;
+		private final long readBytesPerSecond;
+		private final long writeBytesPerSecond;
+
+		/**
+		 * Creates a profile.
+		 *
+		 * @param name The name of the profile.
+		 * @param operationMicros The latency of each metadata operation, in microseconds.
+		 * @param readBytesPerSecond The read throughput, 0 for no limit.
+		 * @param writeBytesPerSecond The write throughput, 0 for no limit.
+		 */
+		public Profile(String name, long operationMicros, long readBytesPerSecond, long writeBytesPerSecond) {
+			this.name = name;
+			this.operationNanos = TimeUnit.MICROSECONDS.toNanos(operationMicros);
+			this.readBytesPerSecond = readBytesPerSecond;
+			this.writeBytesPerSecond = writeBytesPerSecond;
+		}
+
+		/**
+		 * Gets a predefined profile.
+		 *
+		 * @param name The name of the profile.
+		 * @return The profile.
+		 * @throws IllegalArgumentException If there is no such profile.
+		 */
+		public static Profile valueOf(String name) {
+			if (FAT_USB2.name.equals(name)) {
+				return FAT_USB2;
+			}
+			if (SMB.name.equals(name)) {
+				return SMB;
+			}
+			throw new IllegalArgumentException("Unknown device profile: " + name);
+		}
+
+		public long getOperationNanos() {
+			return operationNanos;
+		}
+
+		public long getReadBytesPerSecond() {
+			return readBytesPerSecond;
+		}
+
+		public long getWriteBytesPerSecond() {
+			return writeBytesPerSecond;
+		}
+
+		@Override
+		public String toString() {
+			return name;
+		}
+	}
+
+	private final FileSystemProvider delegate;
+	private final LatencyFileSystem fileSystem;
+	private final Profile profile;
+	private final Path slowRoot;
+	private volatile boolean sleeping = true;
+
+	private long busyUntilNanos;
+	private long deviceNanos;
+	private long operations;
+	private long bytesRead;
+	private long bytesWritten;
+
+	/**
+	 * Creates a provider slowing down a whole file system.
+	 *
+	 * @param delegate The provider of the file system.
+	 * @param profile The device to emulate.
+	 */
+	public LatencyFileSystemProvider(FileSystemProvider delegate, Profile profile) {
+		this(delegate, profile, null);
+	}
+
+	/**
+	 * Creates a provider slowing down a directory of a file system.
+	 *
+	 * @param delegate The provider of the file system.
+	 * @param profile The device to emulate.
+	 * @param slowRoot The directory to slow down, as a path of the delegate, <code>null</code> for the whole file
+	 *            system.
+	 */
+	public LatencyFileSystemProvider(FileSystemProvider delegate, Profile profile, Path slowRoot) {
+		this.delegate = delegate;
+		this.fileSystem = new LatencyFileSystem(this, delegate.getFileSystem(URI.create(delegate.getScheme() + ":///")));
+		this.profile = profile;
+		this.slowRoot = slowRoot == null ? null : slowRoot.toAbsolutePath().normalize();
+	}
+
+	/**
+	 * Creates a provider from the system properties. This is the constructor used when installed as the default
+	 * provider, which can't use {@link java.nio.file.FileSystems#getDefault()}.
+	 *
+	 * @param delegate The built-in default provider.
+	 */
+	public LatencyFileSystemProvider(FileSystemProvider delegate) {
+		this(delegate, Profile.valueOf(System.getProperty(PROFILE_PROPERTY, Profile.FAT_USB2.toString())),
+				getSlowRoot(delegate));
+		setSleeping(Boolean.parseBoolean(System.getProperty(SLEEP_PROPERTY, "true")));
+		Runtime.getRuntime().addShutdownHook(new Thread(() -> System.err.println(this)));
+	}
+
+	private static Path getSlowRoot(FileSystemProvider delegate) {
+		String root = System.getProperty(ROOT_PROPERTY);
+		return root == null ? null : delegate.getFileSystem(URI.create(delegate.getScheme() + ":///")).getPath(root);
+	}
+
+	/**
+	 * Gets the path of this provider for a path of the wrapped provider.
+	 *
+	 * @param path The path of the wrapped provider.
+	 * @return The path, which goes through this provider.
+	 */
+	public Path wrap(Path path) {
+		return fileSystem.wrap(path);
+	}
+
+	public Profile getProfile() {
+		return profile;
+	}
+
+	/**
+	 * Sets whether the calling threads actually wait for the device. When they don't, the time of the device is still
+	 * accounted for but runs are as fast as the underlying file system.
+	 *
+	 * @param sleeping <code>true</code> to wait for the device.
+	 */
+	public void setSleeping(boolean sleeping) {
+		this.sleeping = sleeping;
+	}
+
+	/**
+	 * Gets the time the device spent serving requests since the last reset, which doesn't depend on the machine
+	 * running the benchmark.
+	 *
+	 * @return The time, in nanoseconds.
+	 */
+	public synchronized long getDeviceNanos() {
+		return deviceNanos;
+	}
+
+	/**
+	 * Gets the number of metadata operations since the last reset.
+	 *
+	 * @return The number of operations.
+	 */
+	public synchronized long getOperations() {
+		return operations;
+	}
+
+	public synchronized long getBytesRead() {
+		return bytesRead;
+	}
+
+	public synchronized long getBytesWritten() {
+		return bytesWritten;
+	}
+
+	/**
+	 * Resets the statistics.
+	 */
+	public synchronized void reset() {
+		deviceNanos = 0;
+		operations = 0;
+		bytesRead = 0;
+		bytesWritten = 0;
+	}
+
+	@Override
+	public synchronized String toString() {
+		return String.format("%s: %d ms, %d operations, %d bytes read, %d bytes written", profile,
+				TimeUnit.NANOSECONDS.toMillis(deviceNanos), operations, bytesRead, bytesWritten);
+	}
+
+	/**
+	 * Checks whether a path is on the slow device.
+	 *
+	 * @param path A path of the wrapped provider.
+	 */
+	boolean isSlow(Path path) {
+		return slowRoot == null || path.toAbsolutePath().normalize().startsWith(slowRoot);
+	}
+
+	/**
+	 * Accounts for a metadata operation on a path.
+	 *
+	 * @param path A path of the wrapped provider.
+	 */
+	void operation(Path path) throws InterruptedIOException {
+		if (isSlow(path)) {
+			synchronized (this) {
+				operations++;
+			}
+			occupy(profile.operationNanos);
+		}
+	}
+
+	void read(long bytes) throws InterruptedIOException {
+		synchronized (this) {
+			bytesRead += bytes;
+		}
+		occupy(transferNanos(bytes, profile.readBytesPerSecond));
+	}
+
+	void write(long bytes) throws InterruptedIOException {
+		synchronized (this) {
+			bytesWritten += bytes;
+		}
+		occupy(transferNanos(bytes, profile.writeBytesPerSecond));
+	}
+
+	private static long transferNanos(long bytes, long bytesPerSecond) {
+		return bytesPerSecond <= 0 ? 0 : bytes * TimeUnit.SECONDS.toNanos(1) / bytesPerSecond;
+	}
+
+	/**
+	 * Keeps the device busy, waiting for it to serve the previous requests first.
+	 */
+	private void occupy(long nanos) throws InterruptedIOException {
+		if (nanos <= 0) {
+			return;
+		}
+		long end;
+		synchronized (this) {
+			deviceNanos += nanos;
+			if (!sleeping) {
+				return;
+			}
+			busyUntilNanos = Math.max(busyUntilNanos, System.nanoTime()) + nanos;
+			end = busyUntilNanos;
+		}
+		long remaining;
+		while ((remaining = end - System.nanoTime()) > 0) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(remaining);
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+				throw new InterruptedIOException("Interrupted while waiting for the device");
+			}
+		}
+	}
+
+	static Path unwrap(Path path) {
+		if (!(path instanceof LatencyPath)) {
+			throw new ProviderMismatchException("Not a path of the latency file system: " + path);
+		}
+		return ((LatencyPath) path).getDelegate();
+	}
+
+	private FileChannel wrapChannel(Path path, FileChannel channel) {
+		return isSlow(path) ? new LatencyFileChannel(this, channel) : channel;
+	}
+
+	@Override
+	public String getScheme() {
+		return delegate.getScheme();
+	}
+
+	@Override
+	public FileSystem newFileSystem(URI uri, Map<String, ?> env) throws IOException {
+		throw new FileSystemAlreadyExistsException();
+	}
+
+	@Override
+	public FileSystem getFileSystem(URI uri) {
+		return fileSystem;
+	}
+
+	@Override
+	public Path getPath(URI uri) {
+		return wrap(delegate.getPath(uri));
+	}
+
+	@Override
+	public SeekableByteChannel newByteChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs)
+			throws IOException {
+		return newFileChannel(path, options, attrs);
+	}
+
+	@Override
+	public FileChannel newFileChannel(Path path, Set<? extends OpenOption> options, FileAttribute<?>... attrs)
+			throws IOException {
+		Path delegatePath = unwrap(path);
+		operation(delegatePath);
+		return wrapChannel(delegatePath, delegate.newFileChannel(delegatePath, options, attrs));
+	}
+
+	@Override
+	public DirectoryStream<Path> newDirectoryStream(Path dir, DirectoryStream.Filter<? super Path> filter)
+			throws IOException {
+		Path delegateDir = unwrap(dir);
+		operation(delegateDir);
+		DirectoryStream<Path> stream = delegate.newDirectoryStream(delegateDir,
+				entry -> filter.accept(fileSystem.wrap(entry)));
+		return new DirectoryStream<Path>() {
+			@Override
+			public Iterator<Path> iterator() {
+				Iterator<Path> entries = stream.iterator();
+				return new Iterator<Path>() {
+					@Override
+					public boolean hasNext() {
+						return entries.hasNext();
+					}
+
+					@Override
+					public Path next() {
+						return fileSystem.wrap(entries.next());
+					}
+				};
+			}
+
+			@Override
+			public void close() throws IOException {
+				stream.close();
+			}
+		};
+	}
+
+	@Override
+	public void createDirectory(Path dir, FileAttribute<?>... attrs) throws IOException {
+		Path delegateDir = unwrap(dir);
+		operation(delegateDir);
+		delegate.createDirectory(delegateDir, attrs);
+	}
+
+	@Override
+	public void createSymbolicLink(Path link, Path target, FileAttribute<?>... attrs) throws IOException {
+		Path delegateLink = unwrap(link);
+		operation(delegateLink);
+		delegate.createSymbolicLink(delegateLink, unwrap(target), attrs);
+	}
+
+	@Override
+	public void createLink(Path link, Path existing) throws IOException {
+		Path delegateLink = unwrap(link);
+		operation(delegateLink);
+		delegate.createLink(delegateLink, unwrap(existing));
+	}
+
+	@Override
+	public Path readSymbolicLink(Path link) throws IOException {
+		Path delegateLink = unwrap(link);
+		operation(delegateLink);
+		return wrap(delegate.readSymbolicLink(delegateLink));
+	}
+
+	@Override
+	public void delete(Path path) throws IOException {
+		Path delegatePath = unwrap(path);
+		operation(delegatePath);
+		delegate.delete(delegatePath);
+	}
+
+	@Override
+	public void copy(Path source, Path target, CopyOption... options) throws IOException {
+		Path delegateSource = unwrap(source);
+		Path delegateTarget = unwrap(target);
+		operation(delegateSource);
+		operation(delegateTarget);
+		delegate.copy(delegateSource, delegateTarget, options);
+		long size = delegate.readAttributes(delegateTarget, BasicFileAttributes.class).size();
+		if (isSlow(delegateSource)) {
+			read(size);
+		}
+		if (isSlow(delegateTarget)) {
+			write(size);
+		}
+	}
+
+	@Override
+	public void move(Path source, Path target, CopyOption... options) throws IOException {
+		Path delegateSource = unwrap(source);
+		operation(delegateSource);
+		delegate.move(delegateSource, unwrap(target), options);
+	}
+
+	@Override
+	public boolean isSameFile(Path path, Path path2) throws IOException {
+		Path delegatePath = unwrap(path);
+		operation(delegatePath);
+		return delegate.isSameFile(delegatePath, unwrap(path2));
+	}
+
+	@Override
+	public boolean isHidden(Path path) throws IOException {
+		return delegate.isHidden(unwrap(path));
+	}
+
+	@Override
+	public FileStore getFileStore(Path path) throws IOException {
+		Path delegatePath = unwrap(path);
+		operation(delegatePath);
+		return delegate.getFileStore(delegatePath);
+	}
+
+	@Override
+	public void checkAccess(Path path, AccessMode... modes) throws IOException {
+		Path delegatePath = unwrap(path);
+		operation(delegatePath);
+		delegate.checkAccess(delegatePath, modes);
+	}
+
+	/**
+	 * Gets a view of the attributes of a file. The operation is accounted for when the view is created, since views
+	 * are usually created for a single read or update.
+	 */
+	@Override
+	public <V extends FileAttributeView> V getFileAttributeView(Path path, Class<V> type, LinkOption... options) {
+		Path delegatePath = unwrap(path);
+		try {
+			operation(delegatePath);
+		} catch (InterruptedIOException e) {
+			// Can't be thrown from here, the caller will notice the interruption on its next wait
+			Thread.currentThread().interrupt();
+		}
+		return delegate.getFileAttributeView(delegatePath, type, options);
+	}
+
+	@Override
+	public <A extends BasicFileAttributes> A readAttributes(Path path, Class<A> type, LinkOption... options)
+			throws IOException {
+		Path delegatePath = unwrap(path);
+		operation(delegatePath);
+		return delegate.readAttributes(delegatePath, type, options);
+	}
+
+	@Override
+	public Map<String, Object> readAttributes(Path path, String attributes, LinkOption... options) throws IOException {
+		Path delegatePath = unwrap(path);
+		operation(delegatePath);
+		return delegate.readAttributes(delegatePath, attributes, options);
+	}
+
+	@Override
+	public void setAttribute(Path path, String attribute, Object value, LinkOption... options) throws IOException {
+		Path delegatePath = unwrap(path);
+		operation(delegatePath);
+		delegate.setAttribute(delegatePath, attribute, value, options);
+	}
+}
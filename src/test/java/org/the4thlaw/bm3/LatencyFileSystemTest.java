@@ -0,0 +1,166 @@
+package org.the4thlaw.bm3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.FileSystems;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.function.Function;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.FileUtils;
+import org.the4thlaw.bm3.LatencyFileSystemProvider.Profile;
+
+import junit.framework.TestCase;
+
+/**
+ * Runs the file handling of bm3 on a {@link LatencyFileSystemProvider}, checking what it costs on a slow device.
+ */
+public class LatencyFileSystemTest extends TestCase {
+	private static final int FILE_SIZE = 1024 * 1024;
+
+	private Path directory;
+
+	@Override
+	protected void setUp() throws Exception {
+		directory = Files.createTempDirectory("bm3-latency").toRealPath();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(directory.toFile());
+	}
+
+	private LatencyFileSystemProvider newProvider(Path slowRoot) {
+		LatencyFileSystemProvider provider = new LatencyFileSystemProvider(FileSystems.getDefault().provider(),
+				Profile.FAT_USB2, slowRoot);
+		// Only account for the time of the device, which makes the measures deterministic
+		provider.setSleeping(false);
+		return provider;
+	}
+
+	private static void createFile(Path file, int size) throws IOException {
+		Files.createDirectories(file.getParent());
+		byte[] content = new byte[size];
+		for (int i = 0; i < size; i++) {
+			content[i] = (byte) i;
+		}
+		Files.write(file, content);
+	}
+
+	public void testCopyIsCappedToWriteThroughput() throws IOException {
+		Path sourceFile = directory.resolve("library/track.mp3");
+		createFile(sourceFile, FILE_SIZE);
+		Path targetDirectory = directory.resolve("target");
+		Files.createDirectories(targetDirectory);
+		LatencyFileSystemProvider provider = newProvider(targetDirectory);
+		Path source = provider.wrap(sourceFile);
+		Path target = provider.wrap(targetDirectory.resolve("track.mp3"));
+		// Opening the target, then writing the whole file at the write throughput
+		long expectedNanos = Profile.FAT_USB2.getOperationNanos()
+				+ FILE_SIZE * 1_000_000_000L / Profile.FAT_USB2.getWriteBytesPerSecond();
+
+		IoThrottle.UNLIMITED.copy(source, target, 0, null);
+		assertEquals(expectedNanos, provider.getDeviceNanos());
+		assertEquals(FILE_SIZE, provider.getBytesWritten());
+		assertEquals(0, provider.getBytesRead());
+
+		// The buffered copy costs the same, however the file is split in chunks
+		provider.reset();
+		CRC32 crc = new CRC32();
+		IoThrottle.UNLIMITED.copy(source, target, 64 * 1024, crc);
+		assertEquals(expectedNanos, provider.getDeviceNanos());
+		assertTrue(Arrays.equals(Files.readAllBytes(sourceFile), Files.readAllBytes(target)));
+	}
+
+	public void testPlaylistRoundTrip() throws IOException {
+		createFile(directory.resolve("A/a.mp3"), 1);
+		createFile(directory.resolve("B/b.mp3"), 1);
+		LatencyFileSystemProvider provider = newProvider(null);
+		Path root = provider.wrap(directory);
+		Path playlistDirectory = root.resolve("BM3_Playlists");
+		Files.createDirectories(playlistDirectory);
+		Path playlist = playlistDirectory.resolve("Fav.m3u");
+
+		PlaylistWriter writer = new PlaylistWriter(playlist, root, true, false);
+		writer.writeEntries(Arrays.asList(root.resolve("A/a.mp3"), root.resolve("B/b.mp3")), new ProgressModel());
+		assertEquals(Arrays.asList("#EXTM3U", "#EXTENC:UTF-8", "../A/a.mp3", "../B/b.mp3"),
+				Files.readAllLines(directory.resolve("BM3_Playlists/Fav.m3u")));
+
+		try (PlaylistReader reader = new PlaylistReader(playlist)) {
+			assertEquals(directory.resolve("A/a.mp3").toFile(), reader.getEntry());
+			assertEquals(directory.resolve("B/b.mp3").toFile(), reader.getEntry());
+			assertNull(reader.getEntry());
+		}
+		assertTrue(provider.getOperations() > 0);
+		assertTrue(provider.getBytesWritten() > 0);
+		assertTrue(provider.getBytesRead() > 0);
+	}
+
+	public void testDirectoryCoverLookup() throws IOException {
+		List<String> tracks = Arrays.asList("01.mp3", "02.mp3", "03.mp3");
+		for (String track : tracks) {
+			createFile(directory.resolve("Album").resolve(track), 1);
+		}
+		createFile(directory.resolve("Album/folder.jpg"), 1);
+		LatencyFileSystemProvider provider = newProvider(null);
+		Path album = provider.wrap(directory.resolve("Album"));
+
+		// Two listings per track, and a check of the cover once found
+		for (String track : tracks) {
+			assertEquals(album.resolve("folder.jpg"), Cover.forMusicFile(album.resolve(track)).getPath());
+		}
+		assertEquals(3 * tracks.size(), provider.getOperations());
+
+		// One listing and one check for the whole album
+		provider.reset();
+		Function<Path, Cover> directoryCovers = Cover.forDirectory(album);
+		for (String track : tracks) {
+			assertEquals(album.resolve("folder.jpg"), directoryCovers.apply(album.resolve(track)).getPath());
+		}
+		assertEquals(2, provider.getOperations());
+	}
+
+	public void testSyncToSlowDevice() throws IOException {
+		Path library = directory.resolve("library");
+		createFile(library.resolve("A/a.mp3"), FILE_SIZE);
+		createFile(library.resolve("B/b.mp3"), 1);
+		Files.write(library.resolve("Fav.m3u"), Arrays.asList("A/a.mp3", "B/b.mp3"));
+		Path targetDirectory = directory.resolve("target");
+		LatencyFileSystemProvider provider = newProvider(null);
+		List<Target> targets = Collections.singletonList(new Target(provider.wrap(targetDirectory), true));
+		FileProcessor processor = new FileProcessor(library, targets, null, true, false);
+		processor.setChecksums(true);
+
+		// The whole target is written through the provider
+		processor.process(new ProgressModel());
+		assertTrue(Arrays.equals(Files.readAllBytes(library.resolve("A/a.mp3")),
+				Files.readAllBytes(targetDirectory.resolve("A/a.mp3"))));
+		assertTrue(Files.isRegularFile(targetDirectory.resolve("B/b.mp3")));
+		assertEquals(Arrays.asList("#EXTM3U", "#EXTENC:UTF-8", "../A/a.mp3", "../B/b.mp3"),
+				Files.readAllLines(targetDirectory.resolve("BM3_Playlists/Fav.m3u")));
+		assertTrue(Files.isRegularFile(targetDirectory.resolve(ChecksumStore.FILE_NAME)));
+		assertFalse(Files.exists(targetDirectory.resolve(CopyJournal.FILE_NAME)));
+		assertTrue(provider.getBytesWritten() > FILE_SIZE);
+
+		// The files are up-to-date, only the playlist is written again
+		provider.reset();
+		new FileProcessor(library, targets, null, true, false).process(new ProgressModel());
+		assertTrue(provider.getOperations() > 0);
+		assertTrue(provider.getBytesWritten() < FILE_SIZE);
+	}
+
+	public void testObsoleteFiles() {
+		LatencyFileSystemProvider provider = newProvider(null);
+		Path target = provider.wrap(directory);
+		NotInSourceFileFilter filter = new NotInSourceFileFilter(
+				Collections.singleton("A" + File.separator + "a.mp3"), target);
+		assertFalse(filter.accept(target.resolve("A/a.mp3")));
+		assertTrue(filter.accept(target.resolve("A/b.mp3")));
+		assertTrue(filter.accept(target.resolve("A/.c.mp3" + FileProcessor.TEMP_SUFFIX)));
+		assertEquals(0, provider.getOperations());
+	}
+}
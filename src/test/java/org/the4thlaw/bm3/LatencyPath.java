@@ -0,0 +1,194 @@
+package org.the4thlaw.bm3;
+
+import java.io.File;
+import java.io.IOException;
+import java.net.URI;
+import java.nio.file.FileSystems;
+import java.nio.file.LinkOption;
+import java.nio.file.Path;
+import java.nio.file.WatchEvent;
+import java.nio.file.WatchKey;
+import java.nio.file.WatchService;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * A path of a {@link LatencyFileSystem}. Only the methods which access the file system go through the provider, the
+ * others are computed by the wrapped path.
+ */
+final class LatencyPath implements Path {
+	private final LatencyFileSystem fileSystem;
+	private final Path delegate;
+
+	LatencyPath(LatencyFileSystem fileSystem, Path delegate) {
+		this.fileSystem = fileSystem;
+		this.delegate = delegate;
+	}
+
+	Path getDelegate() {
+		return delegate;
+	}
+
+	private Path wrap(Path path) {
+		return fileSystem.wrap(path);
+	}
+
+	@Override
+	public LatencyFileSystem getFileSystem() {
+		return fileSystem;
+	}
+
+	@Override
+	public boolean isAbsolute() {
+		return delegate.isAbsolute();
+	}
+
+	@Override
+	public Path getRoot() {
+		return wrap(delegate.getRoot());
+	}
+
+	@Override
+	public Path getFileName() {
+		return wrap(delegate.getFileName());
+	}
+
+	@Override
+	public Path getParent() {
+		return wrap(delegate.getParent());
+	}
+
+	@Override
+	public int getNameCount() {
+		return delegate.getNameCount();
+	}
+
+	@Override
+	public Path getName(int index) {
+		return wrap(delegate.getName(index));
+	}
+
+	@Override
+	public Path subpath(int beginIndex, int endIndex) {
+		return wrap(delegate.subpath(beginIndex, endIndex));
+	}
+
+	@Override
+	public boolean startsWith(Path other) {
+		return other instanceof LatencyPath && delegate.startsWith(((LatencyPath) other).delegate);
+	}
+
+	@Override
+	public boolean startsWith(String other) {
+		return delegate.startsWith(other);
+	}
+
+	@Override
+	public boolean endsWith(Path other) {
+		return other instanceof LatencyPath && delegate.endsWith(((LatencyPath) other).delegate);
+	}
+
+	@Override
+	public boolean endsWith(String other) {
+		return delegate.endsWith(other);
+	}
+
+	@Override
+	public Path normalize() {
+		return wrap(delegate.normalize());
+	}
+
+	@Override
+	public Path resolve(Path other) {
+		return wrap(delegate.resolve(LatencyFileSystemProvider.unwrap(other)));
+	}
+
+	@Override
+	public Path resolve(String other) {
+		return wrap(delegate.resolve(other));
+	}
+
+	@Override
+	public Path resolveSibling(Path other) {
+		return wrap(delegate.resolveSibling(LatencyFileSystemProvider.unwrap(other)));
+	}
+
+	@Override
+	public Path resolveSibling(String other) {
+		return wrap(delegate.resolveSibling(other));
+	}
+
+	@Override
+	public Path relativize(Path other) {
+		return wrap(delegate.relativize(LatencyFileSystemProvider.unwrap(other)));
+	}
+
+	@Override
+	public URI toUri() {
+		return delegate.toUri();
+	}
+
+	@Override
+	public Path toAbsolutePath() {
+		return wrap(delegate.toAbsolutePath());
+	}
+
+	@Override
+	public Path toRealPath(LinkOption... options) throws IOException {
+		fileSystem.provider().operation(delegate);
+		return wrap(delegate.toRealPath(options));
+	}
+
+	/**
+	 * Gets the file of this path, which is only possible if the provider is installed as the default provider.
+	 */
+	@Override
+	public File toFile() {
+		if (FileSystems.getDefault() != fileSystem) {
+			throw new UnsupportedOperationException("Not a path of the default file system: " + this);
+		}
+		return new File(delegate.toString());
+	}
+
+	@Override
+	public WatchKey register(WatchService watcher, WatchEvent.Kind<?>[] events, WatchEvent.Modifier... modifiers)
+			throws IOException {
+		return delegate.register(watcher, events, modifiers);
+	}
+
+	@Override
+	public WatchKey register(WatchService watcher, WatchEvent.Kind<?>... events) throws IOException {
+		return delegate.register(watcher, events);
+	}
+
+	@Override
+	public Iterator<Path> iterator() {
+		List<Path> names = new ArrayList<>(getNameCount());
+		for (Path name : delegate) {
+			names.add(wrap(name));
+		}
+		return names.iterator();
+	}
+
+	@Override
+	public int compareTo(Path other) {
+		return delegate.compareTo(LatencyFileSystemProvider.unwrap(other));
+	}
+
+	@Override
+	public boolean equals(Object other) {
+		return other instanceof LatencyPath && fileSystem == ((LatencyPath) other).fileSystem
+				&& delegate.equals(((LatencyPath) other).delegate);
+	}
+
+	@Override
+	public int hashCode() {
+		return delegate.hashCode();
+	}
+
+	@Override
+	public String toString() {
+		return delegate.toString();
+	}
+}
@@ -0,0 +1,244 @@
+package org.the4thlaw.bm3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.attribute.FileTime;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.apache.commons.io.FileUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link LibraryCache}, and for its index in particular.
+ */
+public class LibraryCacheTest extends TestCase {
+	private Path library;
+	private Path indexFile;
+
+	@Override
+	protected void setUp() throws Exception {
+		Path directory = Files.createTempDirectory("bm3-cache").toRealPath();
+		library = Files.createDirectories(directory.resolve("library"));
+		indexFile = directory.resolve("index");
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(library.getParent().toFile());
+	}
+
+	private File createFile(String relativePath, String... lines) throws IOException {
+		Path file = library.resolve(relativePath);
+		Files.createDirectories(file.getParent());
+		Files.write(file, Arrays.asList(lines));
+		return file.toFile();
+	}
+
+	/**
+	 * Changes a directory without changing its modification time, so that the cache can't notice.
+	 */
+	private static void hiddenChange(Path directory, IORunnable change) throws IOException {
+		FileTime lastModified = Files.getLastModifiedTime(directory);
+		change.run();
+		Files.setLastModifiedTime(directory, lastModified);
+	}
+
+	private static void touch(Path directory) throws IOException {
+		Files.setLastModifiedTime(directory,
+				FileTime.fromMillis(Files.getLastModifiedTime(directory).toMillis() + 2000));
+	}
+
+	@FunctionalInterface
+	private interface IORunnable {
+		void run() throws IOException;
+	}
+
+	private List<String> readIndexLines(String type) throws IOException {
+		List<String> lines = new ArrayList<>();
+		for (String line : Files.readAllLines(indexFile)) {
+			if (line.startsWith(type + "\t")) {
+				lines.add(line);
+			}
+		}
+		return lines;
+	}
+
+	/**
+	 * Fills a cache with every kind of entry, then saves it and loads it back.
+	 */
+	private LibraryCache saveAndLoad(File track, File playlist) throws IOException {
+		LibraryCache cache = new LibraryCache();
+		cache.listPlaylists(library.toFile(), new PlaylistFinder(1));
+		cache.readPlaylist(playlist);
+		cache.resolveEntry(track);
+		cache.findCover(track);
+		cache.putContentHash(track, 10, 20, true, "partial");
+		cache.putContentHash(track, 10, 20, false, "full");
+		cache.save(indexFile);
+		return LibraryCache.load(indexFile);
+	}
+
+	public void testIndexLines() throws IOException {
+		File track = createFile("Artist/Album/01.mp3");
+		createFile("Artist/Album/folder.jpg");
+		File playlist = createFile("Fav.m3u", "Artist/Album/01.mp3");
+		saveAndLoad(track, playlist);
+
+		assertEquals("#bm3-index 2", Files.readAllLines(indexFile).get(0));
+		assertEquals(Collections.singletonList("S\t" + library), readIndexLines("S"));
+		assertEquals(3, readIndexLines("d").size());
+		assertTrue(readIndexLines("d").contains("d\t" + library.resolve("Artist/Album") + "\t"
+				+ Files.getLastModifiedTime(library.resolve("Artist/Album")).toMillis()));
+		assertEquals(Collections.singletonList("p\t" + playlist), readIndexLines("p"));
+		assertEquals(Collections.singletonList("a\t" + track.getParent()), readIndexLines("a"));
+		assertEquals(Collections.singletonList("P\t" + playlist + "\t" + playlist.lastModified() + "\t"
+				+ playlist.length()), readIndexLines("P"));
+		assertEquals(1, readIndexLines("e").size());
+		long albumLastModified = track.getParentFile().lastModified();
+		assertEquals(Collections.singletonList("R\t" + track + "\t" + albumLastModified + "\t" + track + "\ttrue"),
+				readIndexLines("R"));
+		assertEquals(Collections.singletonList("C\t" + track + "\t" + albumLastModified + "\t"
+				+ library.resolve("Artist/Album/folder.jpg")), readIndexLines("C"));
+		assertEquals(Collections.singletonList("H\t" + track + "\t10\t20\tpartial\tfull"), readIndexLines("H"));
+	}
+
+	public void testRoundTrip() throws IOException {
+		File track = createFile("Artist/Album/01.mp3");
+		File playlist = createFile("Fav.m3u", "Artist/Album/01.mp3");
+		LibraryCache loaded = saveAndLoad(track, playlist);
+
+		assertEquals(Collections.singletonList(playlist),
+				new ArrayList<>(loaded.listPlaylists(library.toFile(), new PlaylistFinder(1))));
+		assertEquals(new LibraryCache().readPlaylist(playlist), loaded.readPlaylist(playlist));
+		assertEquals(track, loaded.resolveEntry(track).getFile());
+		assertTrue(loaded.resolveEntry(track).exists());
+		assertNull(loaded.findCover(track));
+		assertEquals("partial", loaded.getContentHash(track, 10, 20, true));
+		assertEquals("full", loaded.getContentHash(track, 10, 20, false));
+		assertNull(loaded.getContentHash(track, 11, 20, true));
+		assertNull(loaded.getContentHash(track, 10, 21, false));
+
+		// Saving the loaded cache writes the same index
+		List<String> lines = Files.readAllLines(indexFile);
+		loaded.save(indexFile);
+		assertEquals(lines.size(), Files.readAllLines(indexFile).size());
+		assertTrue(Files.readAllLines(indexFile).containsAll(lines));
+	}
+
+	public void testEntriesAreInvalidatedByDirectoryChanges() throws IOException {
+		File track = createFile("Artist/Album/01.mp3");
+		File playlist = createFile("Fav.m3u", "Artist/Album/01.mp3");
+		Path album = track.getParentFile().toPath();
+		LibraryCache loaded = saveAndLoad(track, playlist);
+
+		// Changes which don't touch the modification time of the directory go unnoticed
+		hiddenChange(album, () -> {
+			Files.delete(track.toPath());
+			Files.write(album.resolve("folder.jpg"), new byte[1]);
+		});
+		assertTrue(loaded.resolveEntry(track).exists());
+		assertNull(loaded.findCover(track));
+
+		touch(album);
+		assertFalse(loaded.resolveEntry(track).exists());
+		assertEquals(album.resolve("folder.jpg"), loaded.findCover(track).getPath());
+	}
+
+	public void testSnapshotIsInvalidatedByDirectoryChanges() throws IOException {
+		File track = createFile("Artist/Album/01.mp3");
+		File playlist = createFile("Fav.m3u", "Artist/Album/01.mp3");
+		Path artist = library.resolve("Artist");
+		LibraryCache loaded = saveAndLoad(track, playlist);
+
+		hiddenChange(artist, () -> createFile("Artist/Best of.m3u"));
+		assertEquals(Collections.singletonList(playlist),
+				new ArrayList<>(loaded.listPlaylists(library.toFile(), new PlaylistFinder(1))));
+
+		touch(artist);
+		assertEquals(2, loaded.listPlaylists(library.toFile(), new PlaylistFinder(1)).size());
+	}
+
+	public void testPlaylistIsInvalidatedByChanges() throws IOException {
+		File track = createFile("Artist/Album/01.mp3");
+		File playlist = createFile("Fav.m3u", "Artist/Album/01.mp3");
+		LibraryCache loaded = saveAndLoad(track, playlist);
+		List<File> entries = loaded.readPlaylist(playlist);
+
+		// Same size and modification time
+		FileTime lastModified = Files.getLastModifiedTime(playlist.toPath());
+		Files.write(playlist.toPath(), Arrays.asList("Artist/Album/02.mp3"));
+		Files.setLastModifiedTime(playlist.toPath(), lastModified);
+		assertEquals(entries, loaded.readPlaylist(playlist));
+
+		touch(playlist.toPath());
+		assertFalse(entries.equals(loaded.readPlaylist(playlist)));
+	}
+
+	public void testUnindexablePathsAreSkipped() throws IOException {
+		File track = createFile("Artist/Album/01.mp3");
+		File playlist = createFile("Fav.m3u", "Artist/Album/01.mp3");
+		File tabbedTrack = createFile("Artist/Tab\tAlbum/01.mp3");
+		File tabbedPlaylist = createFile("Tab\tFav.m3u", "Artist/Album/01.mp3");
+		LibraryCache cache = new LibraryCache();
+		cache.listPlaylists(library.toFile(), new PlaylistFinder(1));
+		cache.readPlaylist(playlist);
+		cache.readPlaylist(tabbedPlaylist);
+		cache.resolveEntry(track);
+		cache.resolveEntry(tabbedTrack);
+		cache.findCover(tabbedTrack);
+		cache.putContentHash(track, 10, 20, true, "hash");
+		cache.putContentHash(tabbedTrack, 10, 20, true, "hash");
+		cache.putContentHash(new File(library.toFile(), "New\nline.mp3"), 10, 20, true, "hash");
+		cache.save(indexFile);
+
+		// The snapshot covers a directory with a tab
+		assertEquals(Collections.emptyList(), readIndexLines("S"));
+		assertEquals(1, readIndexLines("P").size());
+		assertEquals(1, readIndexLines("R").size());
+		assertEquals(Collections.emptyList(), readIndexLines("C"));
+		assertEquals(1, readIndexLines("H").size());
+		for (String line : Files.readAllLines(indexFile)) {
+			assertEquals(-1, line.indexOf("Tab"));
+		}
+		LibraryCache loaded = LibraryCache.load(indexFile);
+		assertEquals("hash", loaded.getContentHash(track, 10, 20, true));
+		assertNull(loaded.getContentHash(tabbedTrack, 10, 20, true));
+	}
+
+	public void testOtherVersionsAreIgnored() throws IOException {
+		File track = createFile("Artist/Album/01.mp3");
+		LibraryCache cache = new LibraryCache();
+		cache.putContentHash(track, 10, 20, true, "hash");
+		cache.save(indexFile);
+		assertEquals("hash", LibraryCache.load(indexFile).getContentHash(track, 10, 20, true));
+
+		List<String> lines = Files.readAllLines(indexFile);
+		lines.set(0, "#bm3-index 1");
+		Files.write(indexFile, lines);
+		assertNull(LibraryCache.load(indexFile).getContentHash(track, 10, 20, true));
+	}
+
+	public void testUnreadableIndexIsIgnored() throws IOException {
+		File track = createFile("Artist/Album/01.mp3");
+		LibraryCache cache = new LibraryCache();
+		cache.putContentHash(track, 10, 20, true, "hash");
+		cache.save(indexFile);
+		List<String> lines = new ArrayList<>(Files.readAllLines(indexFile));
+
+		lines.add("X\tunknown");
+		Files.write(indexFile, lines);
+		assertNull(LibraryCache.load(indexFile).getContentHash(track, 10, 20, true));
+
+		lines.set(lines.size() - 1, "H\t" + track + "\tnot a number\t20\thash\t");
+		Files.write(indexFile, lines);
+		assertNull(LibraryCache.load(indexFile).getContentHash(track, 10, 20, true));
+
+		assertNull(LibraryCache.load(indexFile.resolveSibling("missing")).getContentHash(track, 10, 20, true));
+	}
+}
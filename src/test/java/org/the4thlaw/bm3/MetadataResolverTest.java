@@ -0,0 +1,106 @@
+package org.the4thlaw.bm3;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link MetadataResolver}.
+ */
+public class MetadataResolverTest extends TestCase {
+	private static final int ITEMS = 40;
+
+	private static List<Integer> items() {
+		List<Integer> items = new ArrayList<>();
+		for (int i = 0; i < ITEMS; i++) {
+			items.add(i);
+		}
+		return items;
+	}
+
+	/**
+	 * Resolves items slower the earlier they come, so that later items complete first.
+	 */
+	private static String resolve(int item) throws IOException {
+		try {
+			Thread.sleep((ITEMS - item) % 8);
+		} catch (InterruptedException e) {
+			throw new IOException(e);
+		}
+		if (item % 10 == 3) {
+			throw new IOException("Failed " + item);
+		}
+		return "r" + item;
+	}
+
+	private static void checkResults(List<Integer> delivered, List<String> results, List<IOException> failures) {
+		for (int i = 0; i < delivered.size(); i++) {
+			int item = delivered.get(i);
+			if (item % 10 == 3) {
+				assertNull(results.get(i));
+				assertEquals("Failed " + item, failures.get(i).getMessage());
+			} else {
+				assertEquals("r" + item, results.get(i));
+				assertNull(failures.get(i));
+			}
+		}
+	}
+
+	private static void checkForEachResolved(MetadataResolver resolver, boolean keepOrder) throws IOException {
+		List<Integer> delivered = new ArrayList<>();
+		List<String> results = new ArrayList<>();
+		List<IOException> failures = new ArrayList<>();
+		Thread caller = Thread.currentThread();
+		resolver.forEachResolved(items(), MetadataResolverTest::resolve, (item, result, failure) -> {
+			assertSame(caller, Thread.currentThread());
+			delivered.add(item);
+			results.add(result);
+			failures.add(failure);
+		}, keepOrder);
+
+		checkResults(delivered, results, failures);
+		if (keepOrder) {
+			assertEquals(items(), delivered);
+		} else {
+			List<Integer> sorted = new ArrayList<>(delivered);
+			Collections.sort(sorted);
+			assertEquals(items(), sorted);
+		}
+	}
+
+	public void testInline() throws IOException {
+		MetadataResolver resolver = MetadataResolver.inline();
+		checkForEachResolved(resolver, false);
+		checkForEachResolved(resolver, true);
+	}
+
+	public void testConcurrent() throws IOException {
+		try (MetadataResolver resolver = MetadataResolver.concurrent(4)) {
+			checkForEachResolved(resolver, false);
+		}
+	}
+
+	public void testConcurrentKeepsOrder() throws IOException {
+		try (MetadataResolver resolver = MetadataResolver.concurrent(4)) {
+			checkForEachResolved(resolver, true);
+		}
+	}
+
+	public void testResolveAll() throws IOException {
+		try (MetadataResolver resolver = MetadataResolver.concurrent(4)) {
+			List<String> results = resolver.resolveAll(items(), item -> "r" + item);
+			for (int i = 0; i < ITEMS; i++) {
+				assertEquals("r" + i, results.get(i));
+			}
+			try {
+				resolver.resolveAll(items(), MetadataResolverTest::resolve);
+				fail("The failure of an item should be thrown");
+			} catch (IOException e) {
+				assertEquals("Failed 3", e.getMessage());
+			}
+		}
+	}
+}
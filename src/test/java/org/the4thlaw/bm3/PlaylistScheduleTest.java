@@ -0,0 +1,104 @@
+package org.the4thlaw.bm3;
+
+import java.io.File;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link PlaylistSchedule}.
+ */
+public class PlaylistScheduleTest extends TestCase {
+	private final Map<File, Long> sizes = new HashMap<>();
+
+	private File file(String path, long size) {
+		File file = new File(path);
+		sizes.put(file, size);
+		return file;
+	}
+
+	private PlaylistSchedule newSchedule(Map<String, List<File>> playlists, String... priorityPlaylists) {
+		return new PlaylistSchedule(playlists, Arrays.asList(priorityPlaylists), f -> sizes.getOrDefault(f, 0L));
+	}
+
+	public void testSmallestPlaylistsFirst() {
+		File a1 = file("A/1.mp3", 100);
+		File a2 = file("A/2.mp3", 100);
+		File b1 = file("B/1.mp3", 50);
+		File c1 = file("C/1.mp3", 50);
+		Map<String, List<File>> playlists = new LinkedHashMap<>();
+		playlists.put("Large", Arrays.asList(a2, a1));
+		playlists.put("Small B", Arrays.asList(b1));
+		playlists.put("Small A", Arrays.asList(c1));
+
+		PlaylistSchedule schedule = newSchedule(playlists);
+		// Playlists of the same size are ordered by name
+		assertEquals(Arrays.asList("Small A", "Small B", "Large"), schedule.getPlaylistOrder());
+		// Files of a playlist are in path order
+		assertEquals(Arrays.asList(c1, b1, a1, a2), new ArrayList<>(schedule.getFiles()));
+	}
+
+	public void testPriorityPlaylists() {
+		File a1 = file("A/1.mp3", 100);
+		File b1 = file("B/1.mp3", 10);
+		File c1 = file("C/1.mp3", 1);
+		Map<String, List<File>> playlists = new LinkedHashMap<>();
+		playlists.put("A", Arrays.asList(a1));
+		playlists.put("B", Arrays.asList(b1));
+		playlists.put("C", Arrays.asList(c1));
+
+		// Unknown and repeated names are ignored
+		PlaylistSchedule schedule = newSchedule(playlists, "B", "Unknown", "A", "B");
+		assertEquals(Arrays.asList("B", "A", "C"), schedule.getPlaylistOrder());
+		assertEquals(Arrays.asList(b1, a1, c1), new ArrayList<>(schedule.getFiles()));
+	}
+
+	public void testSharedFilesAreScheduledOnce() {
+		File shared = file("Album/1.mp3", 10);
+		File own = file("Album/2.mp3", 10);
+		File other = file("Other/1.mp3", 100);
+		Map<String, List<File>> playlists = new LinkedHashMap<>();
+		playlists.put("First", Arrays.asList(shared, shared));
+		playlists.put("Second", Arrays.asList(other, shared, own));
+
+		PlaylistSchedule schedule = newSchedule(playlists);
+		assertEquals(Arrays.asList("First", "Second"), schedule.getPlaylistOrder());
+		assertEquals(Arrays.asList(shared, own, other), new ArrayList<>(schedule.getFiles()));
+	}
+
+	public void testCompletion() {
+		File shared = file("Album/1.mp3", 10);
+		File own = file("Album/2.mp3", 10);
+		File other = file("Other/1.mp3", 100);
+		Map<String, List<File>> playlists = new LinkedHashMap<>();
+		playlists.put("First", Arrays.asList(shared, shared));
+		playlists.put("Second", Arrays.asList(other, shared, own));
+		playlists.put("Empty", Collections.emptyList());
+
+		PlaylistSchedule schedule = newSchedule(playlists);
+		assertEquals(Collections.singletonList("Empty"), schedule.getEmptyPlaylists());
+		// A file listed twice only counts once
+		assertEquals(Collections.singletonList("First"), new ArrayList<>(schedule.fileDone(shared)));
+		assertEquals(Collections.emptyList(), new ArrayList<>(schedule.fileDone(other)));
+		assertEquals(Collections.emptyList(), new ArrayList<>(schedule.fileDone(new File("Unknown/1.mp3"))));
+		assertEquals(Collections.singletonList("Second"), new ArrayList<>(schedule.fileDone(own)));
+	}
+
+	public void testFileCompletingSeveralPlaylists() {
+		File shared = file("Album/1.mp3", 10);
+		File own = file("Album/2.mp3", 10);
+		Map<String, List<File>> playlists = new LinkedHashMap<>();
+		playlists.put("First", Arrays.asList(shared, own));
+		playlists.put("Second", Arrays.asList(shared));
+
+		PlaylistSchedule schedule = newSchedule(playlists);
+		assertEquals(Collections.emptyList(), new ArrayList<>(schedule.fileDone(own)));
+		assertEquals(Arrays.asList("First", "Second"), new ArrayList<>(schedule.fileDone(shared)));
+	}
+}
@@ -0,0 +1,153 @@
+package org.the4thlaw.bm3;
+
+import java.io.IOException;
+import java.nio.channels.FileChannel;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.FileUtils;
+
+import com.mpatric.mp3agic.ID3v2;
+import com.mpatric.mp3agic.ID3v23Tag;
+import com.mpatric.mp3agic.ID3v24Tag;
+import com.mpatric.mp3agic.ID3v2TagFactory;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link TaggedMp3}.
+ */
+public class TaggedMp3Test extends TestCase {
+	private static final String MIME_TYPE = "image/jpeg";
+	private static final int AUDIO_LENGTH = 4096;
+
+	private Path directory;
+
+	@Override
+	protected void setUp() throws Exception {
+		directory = Files.createTempDirectory("bm3-mp3").toRealPath();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(directory.toFile());
+	}
+
+	private static byte[] bytes(int length, int seed) {
+		byte[] bytes = new byte[length];
+		for (int i = 0; i < length; i++) {
+			bytes[i] = (byte) (i * 31 + seed);
+		}
+		return bytes;
+	}
+
+	private static ID3v2 tag(ID3v2 tag, boolean image, boolean padding) {
+		tag.setTitle("Title");
+		tag.setArtist("Artist");
+		tag.setAlbum("Album");
+		if (image) {
+			tag.setAlbumImage(bytes(3000, 7), "image/png");
+		}
+		tag.setPadding(padding);
+		return tag;
+	}
+
+	/**
+	 * Writes a file made of a tag, if any, followed by fake audio.
+	 */
+	private Path createFile(ID3v2 tag) throws Exception {
+		byte[] tagBytes = tag == null ? new byte[0] : tag.toBytes();
+		byte[] content = Arrays.copyOf(tagBytes, tagBytes.length + AUDIO_LENGTH);
+		System.arraycopy(bytes(AUDIO_LENGTH, 3), 0, content, tagBytes.length, AUDIO_LENGTH);
+		Path file = Files.createTempFile(directory, "track", ".mp3");
+		Files.write(file, content);
+		return file;
+	}
+
+	/**
+	 * Sets a new image on a file, checking the estimate against the actual size, then writes it and checks that
+	 * mp3agic reads the result back.
+	 */
+	private ID3v2 checkRoundTrip(Path sourceFile, int expectedVersion) throws Exception {
+		byte[] image = bytes(5000, 11);
+		long estimate = TaggedMp3.estimateSize(sourceFile, image.length, MIME_TYPE);
+
+		TaggedMp3 taggedFile = TaggedMp3.read(sourceFile);
+		assertEquals(Files.size(sourceFile) - taggedFile.getAudioOffset(), taggedFile.getAudioLength());
+		taggedFile.setAlbumImage(image, MIME_TYPE);
+		assertEquals(estimate, taggedFile.getSize());
+
+		Path targetFile = directory.resolve("target.mp3");
+		taggedFile.writeTo(targetFile);
+		byte[] written = Files.readAllBytes(targetFile);
+		assertEquals(taggedFile.getSize(), written.length);
+
+		int tagLength = taggedFile.getTagBytes().length;
+		ID3v2 tag = ID3v2TagFactory.createTag(Arrays.copyOf(written, tagLength));
+		assertEquals(expectedVersion, Integer.parseInt(tag.getVersion().substring(0, 1)));
+		assertTrue(Arrays.equals(image, tag.getAlbumImage()));
+		assertEquals(MIME_TYPE, tag.getAlbumImageMimeType());
+		assertTrue(Arrays.equals(bytes(AUDIO_LENGTH, 3), Arrays.copyOfRange(written, tagLength, written.length)));
+		return tag;
+	}
+
+	public void testId3v23() throws Exception {
+		ID3v2 tag = checkRoundTrip(createFile(tag(new ID3v23Tag(), false, false)), 3);
+		assertEquals("Title", tag.getTitle());
+		assertEquals("Artist", tag.getArtist());
+	}
+
+	public void testId3v24() throws Exception {
+		ID3v2 tag = checkRoundTrip(createFile(tag(new ID3v24Tag(), false, false)), 4);
+		assertEquals("Title", tag.getTitle());
+		assertEquals("Album", tag.getAlbum());
+	}
+
+	public void testExistingImageIsReplaced() throws Exception {
+		checkRoundTrip(createFile(tag(new ID3v23Tag(), true, false)), 3);
+		ID3v2 tag = checkRoundTrip(createFile(tag(new ID3v24Tag(), true, false)), 4);
+		assertEquals("Title", tag.getTitle());
+	}
+
+	public void testPadding() throws Exception {
+		checkRoundTrip(createFile(tag(new ID3v23Tag(), false, true)), 3);
+		ID3v2 tag = checkRoundTrip(createFile(tag(new ID3v24Tag(), true, true)), 4);
+		assertEquals("Artist", tag.getArtist());
+	}
+
+	public void testNoTag() throws Exception {
+		Path sourceFile = createFile(null);
+		TaggedMp3 taggedFile = TaggedMp3.read(sourceFile);
+		assertEquals(0, taggedFile.getAudioOffset());
+		checkRoundTrip(sourceFile, 4);
+	}
+
+	public void testChecksum() throws Exception {
+		TaggedMp3 taggedFile = TaggedMp3.read(createFile(tag(new ID3v24Tag(), true, false)));
+		taggedFile.setAlbumImage(bytes(100, 1), MIME_TYPE);
+		Path targetFile = directory.resolve("target.mp3");
+		CRC32 checksum = new CRC32();
+		try (FileChannel target = FileChannel.open(targetFile, StandardOpenOption.CREATE, StandardOpenOption.WRITE)) {
+			taggedFile.writeTo(Collections.singletonList(target), 0, checksum);
+		}
+		CRC32 expected = new CRC32();
+		expected.update(Files.readAllBytes(targetFile));
+		assertEquals(expected.getValue(), checksum.getValue());
+	}
+
+	public void testTruncatedTag() throws Exception {
+		byte[] tagBytes = tag(new ID3v24Tag(), false, false).toBytes();
+		Path sourceFile = directory.resolve("truncated.mp3");
+		Files.write(sourceFile, Arrays.copyOf(tagBytes, tagBytes.length / 2));
+		try {
+			TaggedMp3.read(sourceFile);
+			fail("A tag larger than the file should be rejected");
+		} catch (IOException e) {
+			// Expected
+		}
+	}
+}
@@ -0,0 +1,122 @@
+package org.the4thlaw.bm3;
+
+import java.io.InterruptedIOException;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link TokenBucket}, mostly on a simulated clock.
+ */
+public class TokenBucketTest extends TestCase {
+	private static final long MILLIS = TimeUnit.MILLISECONDS.toNanos(1);
+
+	private final AtomicLong clock = new AtomicLong(TimeUnit.SECONDS.toNanos(1));
+
+	private TokenBucket newBucket(double tokensPerSecond, double burstSeconds) {
+		return new TokenBucket(tokensPerSecond, burstSeconds, clock::get);
+	}
+
+	private static void assertNanos(long expected, long actual) {
+		// Allows for the rounding of the rate to tokens per nanosecond
+		assertTrue("Expected " + expected + " ns, got " + actual, Math.abs(expected - actual) <= 1000);
+	}
+
+	public void testInvalidRate() {
+		try {
+			new TokenBucket(0, 1);
+			fail("A rate of 0 should be rejected");
+		} catch (IllegalArgumentException e) {
+			// Expected
+		}
+	}
+
+	public void testBurst() {
+		TokenBucket bucket = newBucket(1000, 1);
+		assertEquals(0, bucket.reserve(600));
+		assertEquals(0, bucket.reserve(400));
+		assertNanos(100 * MILLIS, bucket.reserve(100));
+	}
+
+	public void testRefill() {
+		TokenBucket bucket = newBucket(1000, 0.1);
+		assertEquals(0, bucket.reserve(100));
+		clock.addAndGet(50 * MILLIS);
+		assertEquals(0, bucket.reserve(50));
+		assertNanos(MILLIS, bucket.reserve(1));
+
+		// Idle time doesn't accumulate tokens beyond the capacity
+		clock.addAndGet(TimeUnit.SECONDS.toNanos(10));
+		assertEquals(0, bucket.reserve(100));
+		assertNanos(10 * MILLIS, bucket.reserve(10));
+	}
+
+	public void testDebt() {
+		TokenBucket bucket = newBucket(1000, 1);
+		// Larger than the capacity, but allowed
+		assertNanos(500 * MILLIS, bucket.reserve(1500));
+		// Queued behind the debt
+		assertNanos(600 * MILLIS, bucket.reserve(100));
+		clock.addAndGet(600 * MILLIS);
+		assertEquals(0, bucket.reserve(0));
+		assertNanos(100 * MILLIS, bucket.reserve(100));
+	}
+
+	public void testConcurrentReservations() throws Exception {
+		TokenBucket bucket = newBucket(1000, 1);
+		int threads = 8;
+		int reservations = 100;
+		List<Long> waits = Collections.synchronizedList(new ArrayList<>());
+		List<Thread> reservers = new ArrayList<>();
+		for (int i = 0; i < threads; i++) {
+			Thread reserver = new Thread(() -> {
+				for (int j = 0; j < reservations; j++) {
+					waits.add(bucket.reserve(100));
+				}
+			});
+			reservers.add(reserver);
+			reserver.start();
+		}
+		for (Thread reserver : reservers) {
+			reserver.join();
+		}
+
+		// Every reservation queues behind the previous ones: no tokens are lost or granted twice
+		Collections.sort(waits);
+		assertEquals(threads * reservations, waits.size());
+		for (int i = 0; i < waits.size(); i++) {
+			long expected = Math.max(0, (i + 1 - 10) * 100 * MILLIS);
+			assertNanos(expected, waits.get(i));
+		}
+	}
+
+	public void testAcquireWaits() throws Exception {
+		TokenBucket bucket = new TokenBucket(1000, 0.05);
+		long start = System.nanoTime();
+		bucket.acquire(50);
+		bucket.acquire(100);
+		assertTrue(System.nanoTime() - start >= 90 * MILLIS);
+	}
+
+	public void testAcquireInterrupted() throws Exception {
+		TokenBucket bucket = new TokenBucket(1, 1);
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		Thread acquirer = new Thread(() -> {
+			try {
+				bucket.acquire(3600);
+			} catch (Throwable e) {
+				failure.set(e);
+			}
+		});
+		acquirer.start();
+		acquirer.interrupt();
+		acquirer.join(10000);
+		assertFalse(acquirer.isAlive());
+		assertTrue(failure.get() instanceof InterruptedIOException);
+	}
+}
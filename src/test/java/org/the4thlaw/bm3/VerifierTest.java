@@ -0,0 +1,177 @@
+package org.the4thlaw.bm3;
+
+import java.io.File;
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.zip.CRC32;
+
+import org.apache.commons.io.FileUtils;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link Verifier}.
+ */
+public class VerifierTest extends TestCase {
+	private Path directory;
+
+	@Override
+	protected void setUp() throws Exception {
+		directory = Files.createTempDirectory("bm3-verifier").toRealPath();
+	}
+
+	@Override
+	protected void tearDown() throws Exception {
+		FileUtils.deleteDirectory(directory.toFile());
+	}
+
+	private static String path(String relativePath) {
+		return relativePath.replace('/', File.separatorChar);
+	}
+
+	private static byte[] content(int size, int seed) {
+		byte[] content = new byte[size];
+		for (int i = 0; i < size; i++) {
+			content[i] = (byte) (i * 13 + seed);
+		}
+		return content;
+	}
+
+	/**
+	 * Writes a file and records its checksum.
+	 */
+	private void createFile(ChecksumStore store, String relativePath, byte[] content) throws IOException {
+		Path file = directory.resolve(path(relativePath));
+		Files.createDirectories(file.getParent());
+		Files.write(file, content);
+		if (store != null) {
+			CRC32 crc = new CRC32();
+			crc.update(content);
+			store.record(path(relativePath), content.length, crc.getValue());
+		}
+	}
+
+	public void testChecksum() throws IOException {
+		byte[] content = content(1024 * 1024 + 17, 1);
+		createFile(null, "A/01.mp3", content);
+		CRC32 crc = new CRC32();
+		crc.update(content);
+		assertEquals(crc.getValue(), Verifier.checksum(directory.resolve(path("A/01.mp3"))));
+	}
+
+	public void testVerify() throws IOException {
+		ChecksumStore store = ChecksumStore.open(directory, true);
+		createFile(store, "A/intact.mp3", content(1000, 1));
+		createFile(store, "A/corrupted.mp3", content(1000, 2));
+		createFile(store, "A/truncated.mp3", content(1000, 3));
+		createFile(store, "A/missing.mp3", content(1000, 4));
+		createFile(null, "A/unrecorded.mp3", content(1000, 5));
+		Files.write(directory.resolve(path("A/corrupted.mp3")), content(1000, 6));
+		Files.write(directory.resolve(path("A/truncated.mp3")), content(999, 3));
+		Files.delete(directory.resolve(path("A/missing.mp3")));
+
+		List<String> paths = Arrays.asList(path("A/intact.mp3"), path("A/corrupted.mp3"), path("A/truncated.mp3"),
+				path("A/missing.mp3"), path("A/unrecorded.mp3"));
+		Map<String, String> expected = new TreeMap<>();
+		expected.put(path("A/corrupted.mp3"), "checksum mismatch");
+		expected.put(path("A/truncated.mp3"), "size is 999 instead of 1000");
+		expected.put(path("A/missing.mp3"), "missing");
+		for (int parallelism : new int[] { 1, 4 }) {
+			ProgressModel progress = new ProgressModel();
+			assertEquals(expected, new Verifier(directory, store, parallelism).verify(paths, progress));
+			assertEquals(paths.size(), progress.publish().getStep());
+		}
+	}
+
+	public void testAudit() throws IOException {
+		ChecksumStore store = ChecksumStore.open(directory, false);
+		createFile(store, "A/01.mp3", content(100, 1));
+		createFile(store, "A/02.mp3", content(100, 2));
+		createFile(null, "B/01.mp3", content(100, 3));
+		createFile(null, "B/cover.jpg", content(100, 4));
+		store.save();
+
+		Verifier.Audit audit = Verifier.audit(directory, 2, new ProgressModel());
+		assertEquals(Collections.emptyMap(), audit.getProblems());
+		assertEquals(2, audit.getVerifiedFiles());
+		assertEquals(1, audit.getUnrecordedFiles());
+		assertTrue(audit.isPassed());
+
+		Files.write(directory.resolve(path("A/02.mp3")), content(100, 5));
+		audit = Verifier.audit(directory, 2, new ProgressModel());
+		assertEquals(Collections.singletonMap(path("A/02.mp3"), "checksum mismatch"), audit.getProblems());
+		assertFalse(audit.isPassed());
+	}
+
+	public void testAuditWithoutChecksums() throws IOException {
+		Verifier.Audit audit = Verifier.audit(directory, 2, new ProgressModel());
+		// There is nothing to vouch for
+		assertTrue(audit.isPassed());
+
+		createFile(null, "A/01.mp3", content(100, 1));
+		audit = Verifier.audit(directory, 2, new ProgressModel());
+		assertEquals(Collections.emptyMap(), audit.getProblems());
+		assertEquals(0, audit.getVerifiedFiles());
+		assertEquals(1, audit.getUnrecordedFiles());
+		assertFalse(audit.isPassed());
+	}
+
+	/**
+	 * Corrupts a file of the target when the verification starts, as a device would.
+	 */
+	private static final class CorruptingProgress extends ProgressModel {
+		private final Path file;
+		private boolean corrupted;
+
+		private CorruptingProgress(Path file) {
+			this.file = file;
+		}
+
+		@Override
+		public synchronized void setStatus(String status) {
+			super.setStatus(status);
+			if (status.startsWith("Verifying") && !corrupted) {
+				corrupted = true;
+				try {
+					byte[] content = Files.readAllBytes(file);
+					content[content.length / 2]++;
+					Files.write(file, content);
+				} catch (IOException e) {
+					throw new IllegalStateException(e);
+				}
+			}
+		}
+	}
+
+	private List<String> syncAndCorrupt(boolean repair) throws IOException {
+		Path library = directory.resolve("library");
+		Path target = directory.resolve("target");
+		createFile(null, "library/A/01.mp3", content(10000, 1));
+		createFile(null, "library/A/02.mp3", content(10000, 2));
+		Files.write(library.resolve("P.m3u"), Arrays.asList("A/01.mp3", "A/02.mp3"));
+		FileProcessor processor = new FileProcessor(library, target, false);
+		processor.setVerify(true, repair);
+		CorruptingProgress progress = new CorruptingProgress(target.resolve(path("A/02.mp3")));
+		processor.process(progress);
+		assertTrue(progress.corrupted);
+		return progress.drainErrors();
+	}
+
+	public void testVerifyReportsCorruption() throws IOException {
+		List<String> errors = syncAndCorrupt(false);
+		assertEquals(1, errors.size());
+		assertTrue(errors.get(0), errors.get(0).endsWith(path("A/02.mp3") + " is checksum mismatch"));
+	}
+
+	public void testRepair() throws IOException {
+		assertEquals(Collections.emptyList(), syncAndCorrupt(true));
+		assertTrue(Arrays.equals(Files.readAllBytes(directory.resolve(path("library/A/02.mp3"))),
+				Files.readAllBytes(directory.resolve(path("target/A/02.mp3")))));
+	}
+}
@@ -0,0 +1,161 @@
+package org.the4thlaw.bm3;
+
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.file.Paths;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import junit.framework.TestCase;
+
+/**
+ * Unit test for {@link WriteTuner}, on a simulated clock.
+ */
+public class WriteTunerTest extends TestCase {
+	private static final int KB = 1024;
+
+	private final AtomicLong clock = new AtomicLong(TimeUnit.SECONDS.toNanos(1));
+
+	private WriteTuner newTuner() {
+		return new WriteTuner(new Target(Paths.get("target"), true), clock::get);
+	}
+
+	/**
+	 * Writes a measuring window with a single file, at the given throughput.
+	 */
+	private void writeWindow(WriteTuner tuner, double megabytesPerSecond) throws IOException {
+		tuner.acquireWriter();
+		clock.addAndGet((long) (WriteTuner.WINDOW_BYTES / (megabytesPerSecond * 1024 * 1024)
+				* TimeUnit.SECONDS.toNanos(1)));
+		tuner.releaseWriter(WriteTuner.WINDOW_BYTES);
+	}
+
+	private static void assertSettings(WriteTuner tuner, int writers, int bufferSize) {
+		assertEquals(writers, tuner.getWriters());
+		assertEquals(bufferSize, tuner.getBufferSize());
+	}
+
+	public void testInitialSettings() {
+		WriteTuner tuner = newTuner();
+		assertSettings(tuner, 1, 256 * KB);
+		assertTrue(tuner.isTuning());
+		assertTrue(tuner.formatSettings(), tuner.formatSettings().endsWith("(not enough data was written to tune them)"));
+	}
+
+	public void testPartialWindowIsNotMeasured() throws IOException {
+		WriteTuner tuner = newTuner();
+		tuner.acquireWriter();
+		clock.addAndGet(TimeUnit.SECONDS.toNanos(1));
+		tuner.releaseWriter(WriteTuner.WINDOW_BYTES - 1);
+		assertSettings(tuner, 1, 256 * KB);
+	}
+
+	public void testKeepsMovingWhileImproving() throws IOException {
+		WriteTuner tuner = newTuner();
+		writeWindow(tuner, 10);
+		assertSettings(tuner, 2, 256 * KB);
+		writeWindow(tuner, 11);
+		assertSettings(tuner, 3, 256 * KB);
+		writeWindow(tuner, 12);
+		assertSettings(tuner, 4, 256 * KB);
+		assertTrue(tuner.formatSettings(), tuner.formatSettings().startsWith("3 writers with 256 KB buffers (12.0"));
+	}
+
+	public void testImprovementThreshold() throws IOException {
+		WriteTuner tuner = newTuner();
+		writeWindow(tuner, 10);
+		assertSettings(tuner, 2, 256 * KB);
+		// Less than 5% better: undone, fewer writers are invalid so the buffer size is tried next
+		writeWindow(tuner, 10.4);
+		assertSettings(tuner, 1, 512 * KB);
+		// More than 5% better than the accepted settings
+		writeWindow(tuner, 10.6);
+		assertSettings(tuner, 1, 1024 * KB);
+		assertTrue(tuner.formatSettings(), tuner.formatSettings().startsWith("1 writers with 512 KB buffers"));
+	}
+
+	public void testDirectionAndDimensionSwitching() throws IOException {
+		WriteTuner tuner = newTuner();
+		writeWindow(tuner, 10);
+		writeWindow(tuner, 11);
+		assertSettings(tuner, 3, 256 * KB);
+		// Worse: the other direction is tried
+		writeWindow(tuner, 11);
+		assertSettings(tuner, 1, 256 * KB);
+		// Worse again: the other dimension is tried
+		writeWindow(tuner, 11);
+		assertSettings(tuner, 2, 512 * KB);
+		writeWindow(tuner, 11);
+		assertSettings(tuner, 2, 128 * KB);
+		// Better: the next window goes further the same way
+		writeWindow(tuner, 12);
+		assertSettings(tuner, 2, 64 * KB);
+		// The smallest buffer is reached, so the other direction is tried
+		writeWindow(tuner, 12);
+		assertSettings(tuner, 2, 256 * KB);
+	}
+
+	public void testSettlesAfterTuning() throws IOException {
+		WriteTuner tuner = newTuner();
+		long windows = WriteTuner.TUNING_BYTES / WriteTuner.WINDOW_BYTES;
+		writeWindow(tuner, 10);
+		writeWindow(tuner, 11);
+		for (int i = 2; i < windows - 1; i++) {
+			writeWindow(tuner, 5);
+			assertTrue(tuner.isTuning());
+		}
+		writeWindow(tuner, 5);
+		assertFalse(tuner.isTuning());
+		// The best settings are kept
+		assertSettings(tuner, 2, 256 * KB);
+		writeWindow(tuner, 100);
+		writeWindow(tuner, 1);
+		assertSettings(tuner, 2, 256 * KB);
+		assertTrue(tuner.formatSettings(), tuner.formatSettings().startsWith("2 writers with 256 KB buffers (11.0"));
+	}
+
+	public void testWriterSlots() throws Exception {
+		WriteTuner tuner = newTuner();
+		writeWindow(tuner, 10);
+		assertEquals(2, tuner.getWriters());
+		tuner.acquireWriter();
+		tuner.acquireWriter();
+
+		CountDownLatch acquired = new CountDownLatch(1);
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		Thread writer = new Thread(() -> {
+			try {
+				tuner.acquireWriter();
+				acquired.countDown();
+			} catch (Throwable e) {
+				failure.set(e);
+			}
+		});
+		writer.start();
+		assertFalse(acquired.await(200, TimeUnit.MILLISECONDS));
+		tuner.releaseWriter(0);
+		assertTrue(acquired.await(10, TimeUnit.SECONDS));
+		writer.join();
+		assertNull(failure.get());
+	}
+
+	public void testInterruptedWhileWaiting() throws Exception {
+		WriteTuner tuner = newTuner();
+		tuner.acquireWriter();
+		AtomicReference<Throwable> failure = new AtomicReference<>();
+		Thread writer = new Thread(() -> {
+			try {
+				tuner.acquireWriter();
+			} catch (Throwable e) {
+				failure.set(e);
+			}
+		});
+		writer.start();
+		writer.interrupt();
+		writer.join(10000);
+		assertFalse(writer.isAlive());
+		assertTrue(failure.get() instanceof InterruptedIOException);
+	}
+}